@@ -24,6 +24,7 @@ import blcmm.plugins.BLCMMUtilityPlugin;
 import blcmm.plugins.PluginLoader;
 import blcmm.utilities.AutoBackupper;
 import blcmm.utilities.BLCMMUtilities;
+import blcmm.utilities.GameDetection;
 import blcmm.utilities.IconManager;
 import blcmm.utilities.Options;
 import blcmm.utilities.Utilities;
@@ -55,6 +56,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
@@ -162,9 +164,17 @@ public class Startup {
             }
             f2.delete();
         }
-        firstTime();//load options and set theme
-        generateHintsFile();
-        updateLauncher();
+        StartupPipeline pipeline = new StartupPipeline();
+        //Neither of these need our options, so they can run while we load them
+        pipeline.start("Plugin discovery", PluginLoader::loadPlugins);
+        CompletableFuture<Void> games = pipeline.start("Game detection", Startup::detectGames);
+        boolean firstTime = pipeline.run("Options", Startup::firstTime);//load options and set theme
+        //Our file history defaults to the patch files of the games we found
+        CompletableFuture<Void> fileHistory = firstTime
+                ? CompletableFuture.completedFuture(null)
+                : pipeline.after("File history", () -> BLCMMUtilities.populateFileHistory(true), games);
+        pipeline.start("Hints file", Startup::generateHintsFile);
+        pipeline.start("Launcher update", Startup::updateLauncher);
 
         ToolTipManager.sharedInstance().setInitialDelay(500);//make tooltips tolerable
         ToolTipManager.sharedInstance().setDismissDelay(10000);
@@ -177,7 +187,7 @@ public class Startup {
         GlobalLogger.log("Working directory: " + System.getProperty("user.dir").replaceAll("\\\\", "/"));
 
         java.awt.EventQueue.invokeLater(() -> {
-            new MainGUI(usedLauncher, file, titlePostfix).setVisible(true);
+            new MainGUI(usedLauncher, file, titlePostfix, pipeline, fileHistory).setVisible(true);
         });
     }
 
@@ -215,7 +225,24 @@ public class Startup {
         }
     }
 
-    private static void firstTime() {
+    /**
+     * Looks for the games, so it's not done on the EDT once the launch button
+     * or the file dialogs need them.
+     */
+    private static void detectGames() {
+        GameDetection.getExe(true);
+        GameDetection.getExe(false);
+        GameDetection.getBinariesDir(true);
+        GameDetection.getBinariesDir(false);
+    }
+
+    /**
+     * Loads the options and sets the theme, showing the welcome dialogs if
+     * this is the first time running BLCMM.
+     *
+     * @return Whether this is the first time running BLCMM
+     */
+    private static boolean firstTime() {
         if (isFirstTimeRunning()) {
             MainGUI.setTheme(ThemeManager.getDefaultTheme());
             showFirstTimeMessage();
@@ -244,9 +271,10 @@ public class Startup {
                 }
             }*/
             Options.INSTANCE.setShowHotfixNames(false);
+            return true;
         } else {
-            BLCMMUtilities.populateFileHistory(true);
             MainGUI.setTheme(Options.INSTANCE.getTheme());
+            return false;
         }
     }
 
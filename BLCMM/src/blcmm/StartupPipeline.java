@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm;
+
+import general.utilities.GlobalLogger;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The stages of starting up BLCMM. Stages that don't depend on each other run
+ * concurrently on a few background threads, so the main window can be shown
+ * right away. Every stage is timed and written to the log, along with the
+ * time it took until the first file was shown, so cold start times can be
+ * compared between releases.
+ *
+ * A stage which fails is logged, and stages depending on it still run, since
+ * none of them is critical enough to keep BLCMM from starting.
+ *
+ * @author LightChaosman
+ */
+public final class StartupPipeline {
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final ExecutorService executor;
+
+    public StartupPipeline() {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "Startup-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Runs the given stage on the current thread.
+     *
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     */
+    public void run(String name, Runnable stage) {
+        run(name, () -> {
+            stage.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given stage on the current thread.
+     *
+     * @param <T>
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     * @return The result of the stage
+     */
+    public <T> T run(String name, Supplier<T> stage) {
+        return time(name, stage);
+    }
+
+    /**
+     * Starts the given stage in the background.
+     *
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     * @return A future completing once the stage is done
+     */
+    public CompletableFuture<Void> start(String name, Runnable stage) {
+        return start(name, () -> {
+            stage.run();
+            return null;
+        });
+    }
+
+    /**
+     * Starts the given stage in the background.
+     *
+     * @param <T>
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     * @return A future completing with the result of the stage
+     */
+    public <T> CompletableFuture<T> start(String name, Supplier<T> stage) {
+        return CompletableFuture.supplyAsync(() -> time(name, stage), executor);
+    }
+
+    /**
+     * Starts the given stage in the background once the given stages are
+     * done, whether they succeeded or not.
+     *
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     * @param dependencies
+     * @return A future completing once the stage is done
+     */
+    public CompletableFuture<Void> after(String name, Runnable stage, CompletableFuture<?>... dependencies) {
+        return after(name, () -> {
+            stage.run();
+            return null;
+        }, dependencies);
+    }
+
+    /**
+     * Starts the given stage in the background once the given stages are
+     * done, whether they succeeded or not.
+     *
+     * @param <T>
+     * @param name The name of the stage, as shown in the log
+     * @param stage
+     * @param dependencies
+     * @return A future completing with the result of the stage
+     */
+    public <T> CompletableFuture<T> after(String name, Supplier<T> stage, CompletableFuture<?>... dependencies) {
+        return CompletableFuture.allOf(dependencies)
+                .handle((result, ex) -> null)
+                .thenApplyAsync(x -> time(name, stage), executor);
+    }
+
+    /**
+     * Logs the total startup time, and stops the background threads once
+     * their stages are done.
+     */
+    public void finished() {
+        GlobalLogger.log(String.format("Startup finished after %d ms", System.currentTimeMillis() - start));
+        executor.shutdown();
+    }
+
+    private static <T> T time(String name, Supplier<T> stage) {
+        long t = System.nanoTime();
+        try {
+            return stage.get();
+        } catch (RuntimeException ex) {
+            GlobalLogger.log("Startup stage " + name + " failed");
+            GlobalLogger.log(ex);
+            throw ex;
+        } finally {
+            GlobalLogger.log(String.format("Startup stage %s took %d ms", name, (System.nanoTime() - t) / 1000000));
+        }
+    }
+}
@@ -32,7 +32,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
@@ -47,6 +51,8 @@ public class GUI_IO_Handler {
     public static MainGUI MASTER_UI;
     public static ProgressDialog progressMeter = null;
 
+    private static final int IMPORT_THREADS = Runtime.getRuntime().availableProcessors();
+
     /**
      * Given a "modname" read from the mod itself, and the mod's filename,
      * return an appropriate name for the mod in our tree.
@@ -341,8 +347,9 @@ public class GUI_IO_Handler {
     }
 
     /**
-     * Main file-based mod import procedure. Will loop back on itself to
-     * recursively loop through directories as they're detected.
+     * Main file-based mod import procedure. Parses all the files concurrently,
+     * and then adds them to the patch one by one, in the same order as they
+     * would've been parsed in sequentially.
      *
      * @param mods A list of File objects to import (could be files and/or dirs)
      * @param patch The patch to import everything into
@@ -353,6 +360,54 @@ public class GUI_IO_Handler {
      */
     private static int addModsLoop(File[] mods, CompletePatch patch,
             Category parentOfMods, int insertIndex, boolean deselectAll) {
+        ExecutorService pool = Executors.newFixedThreadPool(IMPORT_THREADS, r -> {
+            Thread t = new Thread(r, "Mod import");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<File, Future<ParsedMod>> parsed = new HashMap<>();
+            parseModsLoop(mods, pool, parsed);
+            return addModsLoop(mods, patch, parentOfMods, insertIndex, deselectAll, parsed);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Sorts the given files the way addModsLoop will process them, and starts
+     * parsing each of them (recursively) on the given pool.
+     *
+     * @param mods A list of File objects to parse (could be files and/or dirs)
+     * @param pool The pool to parse on
+     * @param parsed The map to store the pending results in
+     */
+    private static void parseModsLoop(File[] mods, ExecutorService pool, Map<File, Future<ParsedMod>> parsed) {
+        // For some reason we have to sort these backwards?
+        Arrays.sort(mods, (f1, f2) -> f2.getName().compareToIgnoreCase(f1.getName()));
+        for (File f : mods) {
+            if (f.isDirectory()) {
+                parseModsLoop(f.listFiles(), pool, parsed);
+            } else if (isImportable(f)) {
+                parsed.put(f, pool.submit(() -> ParsedMod.parse(f)));
+            }
+        }
+    }
+
+    /**
+     * Adds the already parsed mods to the patch. Will loop back on itself to
+     * recursively loop through directories as they're detected.
+     *
+     * @param mods A list of File objects to import (could be files and/or dirs)
+     * @param patch The patch to import everything into
+     * @param parentOfMods The Category in which to put all the mods
+     * @param insertIndex The index in the category to place the mods
+     * @param deselectAll Whether or not to deselect the mods when importing
+     * @param parsed The pending parse results of the files
+     * @return
+     */
+    private static int addModsLoop(File[] mods, CompletePatch patch,
+            Category parentOfMods, int insertIndex, boolean deselectAll, Map<File, Future<ParsedMod>> parsed) {
         int count = 0;
         // For some reason we have to sort these backwards?
         Arrays.sort(mods, (f1, f2) -> f2.getName().compareToIgnoreCase(f1.getName()));
@@ -369,18 +424,20 @@ public class GUI_IO_Handler {
                     newLocation = new Category(f.getName());
                     patch.insertElementInto(newLocation, parentOfMods);
                 }
-                count += addModsLoop(f.listFiles(), patch, newLocation, newLocation.sizeIncludingHotfixes(), deselectAll);
-            } else {
-                String name = f.getName();
-                if (!name.endsWith(".rar") && !name.endsWith(".jar") && !name.endsWith(".exe") && !name.endsWith(".pdf")) {
-                    int newCount = addSingleMod(f, patch, parentOfMods, insertIndex, deselectAll);
-                    count += newCount;
-                }
+                count += addModsLoop(f.listFiles(), patch, newLocation, newLocation.sizeIncludingHotfixes(), deselectAll, parsed);
+            } else if (isImportable(f)) {
+                int newCount = addSingleMod(f, parsed.get(f), patch, parentOfMods, insertIndex, deselectAll);
+                count += newCount;
             }
         }
         return count;
     }
 
+    private static boolean isImportable(File f) {
+        String name = f.getName();
+        return !name.endsWith(".rar") && !name.endsWith(".jar") && !name.endsWith(".exe") && !name.endsWith(".pdf");
+    }
+
     /**
      * Adds the single mod at the given File, inside the specified Category.
      * This will modify the imported root category name if necessary to include
@@ -411,19 +468,67 @@ public class GUI_IO_Handler {
      * subcategories individually, or continue with nesting a new "mods" folder.
      *
      * @param file The file to load from
+     * @param parsed The pending result of parsing the file. If null, the file
+     * is parsed right away.
      * @param containingPatch
      * @param whereToPutMod The Category where the imported mod should go
      * @return The number of mods successfully imported (generally zero or one,
      * though if a multi-mod mod file is detected, it could be more)
      */
-    private static int addSingleMod(File file, CompletePatch containingPatch, Category whereToPutMod, int insertIndex, boolean deselectAll) {
+    private static int addSingleMod(File file, Future<ParsedMod> parsed, CompletePatch containingPatch, Category whereToPutMod, int insertIndex, boolean deselectAll) {
         if (progressMeter != null) {
             progressMeter.incrementProgress("<html><tt>" + file.getName() + "</tt>");
         }
-        CompletePatch mod = parseFile(file);
+        CompletePatch mod;
+        ParsedMod result = null;
+        if (parsed != null) {
+            try {
+                result = parsed.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                GlobalLogger.log(ex);
+            }
+        }
+        if (result != null) {
+            // Report the anomalies of this file now, so they're in the same
+            // order as when parsing the files one by one.
+            ImportAnomalyLog.INSTANCE.addAll(result.anomalies);
+            mod = result.patch;
+        } else {
+            mod = parseFile(file);
+        }
         return addModInternal(mod, containingPatch, whereToPutMod, file.getName(), insertIndex, deselectAll);
     }
 
+    /**
+     * The result of parsing a mod file in the background, along with the
+     * anomalies found while parsing it.
+     */
+    private static class ParsedMod {
+
+        private final CompletePatch patch;
+        private final ImportAnomalyLog anomalies;
+
+        private ParsedMod(CompletePatch patch, ImportAnomalyLog anomalies) {
+            this.patch = patch;
+            this.anomalies = anomalies;
+        }
+
+        /**
+         * Parses the given file. Like parseFile, but never shows a dialog, so
+         * it can be called from any thread.
+         */
+        private static ParsedMod parse(File f) {
+            ImportAnomalyLog anomalies = new ImportAnomalyLog();
+            CompletePatch patch = null;
+            try {
+                patch = ImportAnomalyLog.collect(anomalies, () -> PatchIO.parse(f));
+            } catch (Exception ex) {
+                GlobalLogger.log(ex);
+            }
+            return new ParsedMod(patch, anomalies);
+        }
+    }
+
     private static int addModInternal(CompletePatch modPatch, CompletePatch containingPatch, Category whereToPutMod, String filename, int insertIndex, boolean deselectAll) {
         if (insertIndex > whereToPutMod.sizeIncludingHotfixes()) {
             insertIndex = whereToPutMod.sizeIncludingHotfixes();
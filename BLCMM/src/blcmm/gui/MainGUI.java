@@ -18,6 +18,7 @@
 package blcmm.gui;
 
 import blcmm.Startup;
+import blcmm.StartupPipeline;
 import blcmm.data.lib.DataManager;
 import blcmm.data.lib.GlobalDictionary;
 import blcmm.gui.components.AutoExecMenu;
@@ -35,6 +36,8 @@ import blcmm.gui.panels.ObjectExplorerPanel;
 import blcmm.gui.theme.Theme;
 import blcmm.gui.theme.ThemeManager;
 import blcmm.gui.tree.CheckBoxTree;
+import blcmm.gui.tree.ColorGiver;
+import blcmm.gui.tree.OverwriteChecker;
 import blcmm.gui.tree.EasterEggs;
 import blcmm.gui.tree.rightmouse.RightMouseButtonAction;
 import blcmm.model.Category;
@@ -81,6 +84,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.AbstractAction;
@@ -125,6 +129,8 @@ public final class MainGUI extends ForceClosingJFrame {
 
     public static final String VERSION = "1.2.1";
     private static final String NAME = "BLCMM";
+    //The number of characters of a backup written at a time, while the EDT is parked
+    private static final int BACKUP_SLICE_SIZE = 64 * 1024;
 
     private final String titlePostfix;
     private File currentFile;
@@ -151,8 +157,12 @@ public final class MainGUI extends ForceClosingJFrame {
      * @param usedLauncher indicates if the launcher was used to launch BLCMM
      * @param toOpen The file to open, as passed to us by the launcher
      * @param titlePostfix A string to add onto the title of this window
+     * @param pipeline The pipeline to run the stages of opening our first file
+     * in
+     * @param fileHistory A future completing once our file history is up to
+     * date
      */
-    public MainGUI(final boolean usedLauncher, final File toOpen, final String titlePostfix) {
+    public MainGUI(final boolean usedLauncher, final File toOpen, final String titlePostfix, final StartupPipeline pipeline, final CompletableFuture<?> fileHistory) {
         INSTANCE = this;
         GUI_IO_Handler.MASTER_UI = INSTANCE;
         initComponents();
@@ -196,30 +206,108 @@ public final class MainGUI extends ForceClosingJFrame {
         initializeWindowSize();
         updateFontSizes();
         Utilities.changeCTRLMasks(this.getRootPane());
-        Runnable runnable = () -> {
-            initializeTree(toOpen);
-            setChangePatchTypeEnabled(Options.INSTANCE.isInDeveloperMode() && patch != null);
-            backupThread = startupBackupThread();
-            getPluginMenu().updatePluginMenuEnabledness();
-            updateLaunchGameButton();
-            performTooltipCheck();
-        };
-        boolean showGUIPriorToLoading = true;
-        if (showGUIPriorToLoading) {
-            EventQueue.invokeLater(runnable);
-            new SwingWorker() {
-                @Override
-                protected Object doInBackground() throws Exception {
-                    MainGUI.this.setEnabled(false);
-                    runnable.run();
-                    MainGUI.this.setEnabled(true);
-                    return null;
-                }
-            };
+        startLoading(pipeline, toOpen, fileHistory);
+    }
+
+    /**
+     * Opens the file we start out with. It's parsed and analyzed in the
+     * background while our window is shown, after which it is put into the
+     * tree on the EDT. Our window is disabled until then.
+     */
+    private void startLoading(StartupPipeline pipeline, File toOpen, CompletableFuture<?> fileHistory) {
+        updateTitle();
+        setEnabled(false);
+        cursorWait();
+        CompletableFuture<StartupFile> parsed;
+        if (toOpen != null && toOpen.isFile()) {
+            parsed = pipeline.start("File parse", () -> parseStartupFile(toOpen));
         } else {
-            runnable.run();
+            parsed = pipeline.after("File parse", () -> parseStartupFile(null), fileHistory);
+        }
+        //The game is picked on the EDT, like it is when the user picks one
+        CompletableFuture<Void> gameSelected = parsed.thenAcceptAsync(file -> {
+            if (file != null) {
+                DataManager.setBL2(file.patch.getType() != PatchType.TPS);
+            }
+        }, EventQueue::invokeLater);
+        pipeline.after("Data dictionary", () -> {
+            DataManager.getDictionary().getAllClasses();//just force the class structure to load
+        }, gameSelected);
+        CompletableFuture<StartupFile> analyzed = pipeline.after("Overwrite analysis", () -> {
+            StartupFile file = parsed.join();
+            return file == null ? null : file.withOverwrites(ColorGiver.prepare(file.patch.getRoot()));
+        }, parsed);
+        analyzed.whenComplete((file, ex) -> EventQueue.invokeLater(() -> {
+            try {
+                pipeline.run("Show file", () -> {
+                    initializeTree(toOpen, file);
+                    setChangePatchTypeEnabled(Options.INSTANCE.isInDeveloperMode() && patch != null);
+                    backupThread = startupBackupThread();
+                    getPluginMenu().updatePluginMenuEnabledness();
+                    updateLaunchGameButton();
+                    performTooltipCheck();
+                });
+            } finally {
+                setEnabled(true);
+                cursorNormal();
+                pipeline.finished();
+            }
+        }));
+    }
+
+    /**
+     * Parses the file initializeTree will open, unless the user decides to
+     * open a backup instead. Returns null if there is no such file, or if it
+     * can't be parsed, in which case it's parsed again on the EDT to report
+     * the error.
+     */
+    private static StartupFile parseStartupFile(File toOpen) {
+        File f = toOpen;
+        if (f == null) {
+            //initializeTree removes the files which no longer exist from our history
+            for (String file : Options.INSTANCE.getFileHistory()) {
+                if (new File(file).exists()) {
+                    f = new File(file);
+                    break;
+                }
+            }
         }
+        if (f == null || !f.isFile()) {
+            return null;
+        }
+        final File file = f;
+        try {
+            ImportAnomalyLog anomalies = new ImportAnomalyLog();
+            CompletePatch parsed = ImportAnomalyLog.collect(anomalies, () -> PatchIO.parse(file));
+            return new StartupFile(f, parsed, anomalies, null);
+        } catch (Exception ex) {
+            GlobalLogger.log("Unable to parse " + f.getName() + " while starting up");
+            return null;
+        }
+    }
 
+    /**
+     * A file parsed ahead of time, along with what parsing it reported, and
+     * the analysis of its overwrites, if that was done yet. None of this is
+     * shown until the file is opened on the EDT.
+     */
+    private static final class StartupFile {
+
+        final File file;
+        final CompletePatch patch;
+        final ImportAnomalyLog anomalies;
+        final OverwriteChecker overwrites;
+
+        StartupFile(File file, CompletePatch patch, ImportAnomalyLog anomalies, OverwriteChecker overwrites) {
+            this.file = file;
+            this.patch = patch;
+            this.anomalies = anomalies;
+            this.overwrites = overwrites;
+        }
+
+        StartupFile withOverwrites(OverwriteChecker overwrites) {
+            return new StartupFile(file, patch, anomalies, overwrites);
+        }
     }
 
     private void updateLaunchGameButton() {
@@ -412,19 +500,38 @@ public final class MainGUI extends ForceClosingJFrame {
                             return null;
                         }
                     }
-                    final File f = currentFile == null ? new File("New File") : currentFile;
-                    AutoBackupper.backup(f, new AutoBackupper.Backupable() {
-                        @Override
-                        public void write(BufferedWriter writer) throws IOException {
-                            PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, writer, false);
-                        }
+                    //The snapshot is taken on the EDT, so we see a consistent tree. Writing it happens on the backup thread.
+                    SwingUtilities.invokeLater(() -> {
+                        final File f = currentFile == null ? new File("New File") : currentFile;
+                        AutoBackupper.backup(f, new AutoBackupper.Backupable() {
+                            @Override
+                            public AutoBackupper.Snapshot snapshot() {
+                                //Rather than copying the mod, we just note its state, and write the mod itself while the EDT is parked.
+                                //Should the mod change before it's written, the backup is dropped, and the next one will have the change.
+                                final CompletePatch current = patch;
+                                final CheckBoxTree tree = getTree();
+                                final int modificationCount = tree.getModificationCount();
+                                return new AutoBackupper.Snapshot() {
+                                    @Override
+                                    public void write(BufferedWriter writer) throws IOException {
+                                        EDTSlicedWriter.write(writer, BACKUP_SLICE_SIZE,
+                                                () -> patch == current && tree.getModificationCount() == modificationCount,
+                                                w -> PatchIO.writeToFile(current, PatchIO.SaveFormat.BLCMM, w, false));
+                                    }
+
+                                    @Override
+                                    public void written() {
+                                        SwingUtilities.invokeLater(() -> ((TimedLabel) timedLabel).showTemporary("Made backup of mod"));
+                                    }
+                                };
+                            }
 
-                        @Override
-                        public boolean inNeedOfBackup() {
-                            return getTree().isChanged();
-                        }
+                            @Override
+                            public boolean inNeedOfBackup() {
+                                return patch != null && getTree().isChanged();
+                            }
+                        });
                     });
-                    ((TimedLabel) timedLabel).showTemporary("Made backup of mod");
                 }
                 return null;
             }
@@ -433,7 +540,7 @@ public final class MainGUI extends ForceClosingJFrame {
         return thread;
     }
 
-    private void initializeTree(final File toOpen) {
+    private void initializeTree(final File toOpen, final StartupFile parsed) {
         this.updateTitle();
         // Figure out which "recent" file to open.
         BLCMMUtilities.cleanFileHistory();
@@ -443,7 +550,7 @@ public final class MainGUI extends ForceClosingJFrame {
         try {
             if (toOpen != null && toOpen.exists() && toOpen.isFile()) {
                 currentFile = toOpen;
-                opened = openPatch(currentFile);
+                opened = openPatch(currentFile, parsed);
             }
             if (Startup.isFirstBootAfterCrash()) {
                 File backupFile = AutoBackupper.getMostRecentBackupFile();
@@ -461,7 +568,7 @@ public final class MainGUI extends ForceClosingJFrame {
             if (!opened) {
                 String file = files.length > 0 ? files[0] : "";
                 currentFile = new File(file);
-                opened = openPatch(currentFile);
+                opened = openPatch(currentFile, parsed);
             }
         } catch (Exception e) {
             GlobalLogger.log(e);
@@ -1325,12 +1432,23 @@ public final class MainGUI extends ForceClosingJFrame {
     }
 
     public boolean openPatch(File f) {
+        return openPatch(f, null);
+    }
+
+    private boolean openPatch(File f, StartupFile parsed) {
         if (f == null || !f.exists()) {
             return false;
         }
-        ImportAnomalyLog.INSTANCE.clear();
         long start = System.currentTimeMillis();
-        CompletePatch newpatch = GUI_IO_Handler.parseFile(f);
+        CompletePatch newpatch;
+        ImportAnomalyLog.INSTANCE.clear();
+        if (parsed != null && parsed.file.equals(f)) {
+            newpatch = parsed.patch;
+            ImportAnomalyLog.INSTANCE.addAll(parsed.anomalies);
+        } else {
+            parsed = null;
+            newpatch = GUI_IO_Handler.parseFile(f);
+        }
         if (newpatch == null) {
             return false;
         }
@@ -1351,7 +1469,7 @@ public final class MainGUI extends ForceClosingJFrame {
         patch = newpatch;
         currentFile = f;
         this.disablePatchRootStatuses();
-        SetUIModel(patch);
+        SetUIModel(patch, parsed == null ? null : parsed.overwrites);
         updateProfileMenu();
         enableIOButtons();
         String filename2 = truncateFileName(f, Options.INSTANCE.getFilenameTruncationLength());
@@ -1399,7 +1517,15 @@ public final class MainGUI extends ForceClosingJFrame {
     }
 
     void SetUIModel(CompletePatch patch) {
-        ((CheckBoxTree) jTree1).setPatch(patch);
+        SetUIModel(patch, null);
+    }
+
+    /**
+     * Shows the given patch, using the given analysis of its overwrites if we
+     * have one, rather than analyzing it again.
+     */
+    private void SetUIModel(CompletePatch patch, OverwriteChecker overwrites) {
+        ((CheckBoxTree) jTree1).setPatch(patch, overwrites);
         this.currentlyLoadingPatch = true;
         getGameSelectionPanel().setType(patch.getType());
         offlineCheckBox.setSelected(patch.isOffline());
@@ -30,6 +30,7 @@ import blcmm.plugins.BLCMMModelPlugin;
 import blcmm.plugins.BLCMMPlugin;
 import blcmm.plugins.BLCMMUtilityPlugin;
 import blcmm.plugins.PluginLoader;
+import blcmm.plugins.PluginLoader.PluginInfo;
 import blcmm.plugins.PluginSecurityManager;
 import blcmm.plugins.pseudo_model.PCategory;
 import blcmm.utilities.BLCMMUtilities;
@@ -95,7 +96,7 @@ public class PluginMenu extends JMenu {
         PluginLoader.loadPlugins();
         System.setSecurityManager(new PluginSecurityManager());
     }
-    private final Map<BLCMMPlugin, JMenuItem> pluginToButtonMap = new LinkedHashMap<>();
+    private final Map<PluginInfo, JMenuItem> pluginToButtonMap = new LinkedHashMap<>();
     private final Map<BLCMMUtilityPlugin, ForceClosingJFrame> nonModalMap = new HashMap<>();
 
     private JMenuItem addExternalPluginButton;
@@ -108,8 +109,8 @@ public class PluginMenu extends JMenu {
     }
 
     private void initLoadedPlugins() {
-        for (BLCMMPlugin plugin : PluginLoader.PLUGINS.keySet()) {
-            JMenuItem item = new JMenuItem(plugin.getName());
+        for (PluginInfo pluginInfo : PluginLoader.PLUGINS) {
+            JMenuItem item = new JMenuItem(pluginInfo.getName());
             item.addActionListener(new ActionListener() {
 
                 private Category getPluginRoot() {
@@ -126,8 +127,24 @@ public class PluginMenu extends JMenu {
 
                 @Override
                 public void actionPerformed(ActionEvent ae) {
+                    //Plugins are only loaded once they're first used
+                    final BLCMMPlugin plugin;
+                    try {
+                        MainGUI.INSTANCE.cursorWait();
+                        plugin = pluginInfo.getPlugin();
+                    } catch (Throwable t) {
+                        GlobalLogger.log("plugin '" + pluginInfo.getName() + "' failed to load with the following exception:");
+                        GlobalLogger.log(t);
+                        MainGUI.INSTANCE.cursorNormal();
+                        JOptionPane.showMessageDialog(MainGUI.INSTANCE, "The plugin failed to load. The error has been logged.\n"
+                                + "Please contact the developer of the plugin and provide the log.",
+                                "Plugin failed to load", JOptionPane.ERROR_MESSAGE);
+                        MainGUI.INSTANCE.requestFocus();
+                        return;
+                    }
                     if (plugin instanceof BLCMMUtilityPlugin && nonModalMap.containsKey((BLCMMUtilityPlugin) plugin)) {
                         nonModalMap.get((BLCMMUtilityPlugin) plugin).requestFocus();
+                        MainGUI.INSTANCE.cursorNormal();
                         return;
                     }
                     try {
@@ -165,7 +182,7 @@ public class PluginMenu extends JMenu {
                         if (plugin.getVersion() != null) {
                             info.append("Version: " + plugin.getVersion() + " - ");
                         }
-                        info.append("Compiled on: " + SimpleDateFormat.getDateInstance(DateFormat.SHORT).format(new Date(PluginLoader.PLUGINS.get(plugin).getCompileTime().toMillis())));
+                        info.append("Compiled on: " + SimpleDateFormat.getDateInstance(DateFormat.SHORT).format(new Date(pluginInfo.getCompileTime().toMillis())));
                         JLabel label = new JLabel(info.toString());
                         label.setFont(label.getFont().deriveFont(Font.BOLD));
                         int bottomSize = label.getPreferredSize().width + okButton.getPreferredSize().width + cancelButton.getPreferredSize().width + 3 * 10;
@@ -293,7 +310,7 @@ public class PluginMenu extends JMenu {
                 }
             });
             this.add(item);
-            pluginToButtonMap.put(plugin, item);
+            pluginToButtonMap.put(pluginInfo, item);
         }
         updatePluginMenuEnabledness();
         if (!PluginLoader.FAILED_TO_LOAD.isEmpty()) {
@@ -495,7 +512,7 @@ public class PluginMenu extends JMenu {
     }
 
     public void updatePluginMenuEnabledness() {
-        for (BLCMMPlugin plugin : pluginToButtonMap.keySet()) {
+        for (PluginInfo plugin : pluginToButtonMap.keySet()) {
             JMenuItem item = pluginToButtonMap.get(plugin);
             item.setEnabled(true);//innocent until proven otherwise
             if (MainGUI.INSTANCE.getCurrentPatch() == null) {
@@ -549,7 +566,7 @@ public class PluginMenu extends JMenu {
                             });
                         }
                     } else {
-                        FileTime c_plugin = PluginLoader.PLUGINS.get(plugin).getCompileTime();
+                        FileTime c_plugin = plugin.getCompileTime();
                         FileTime c_data = Startup.getDataLibraryCompiletime();
                         FileTime c_util = Startup.getUtilitiesCompiletime();
                         if (c_plugin.compareTo(c_util) < 0 || c_plugin.compareTo(c_data) < 0) {
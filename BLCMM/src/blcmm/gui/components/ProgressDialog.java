@@ -24,6 +24,9 @@ import java.awt.Frame;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -46,6 +49,7 @@ public class ProgressDialog extends JDialog {
     private final JLabel progressText;
     private final JLabel extraText;
     private final JProgressBar progressBar;
+    private final JButton cancelButton;
 
     /**
      * Initializes a new modal dialog.
@@ -65,6 +69,31 @@ public class ProgressDialog extends JDialog {
             String titleFormatString,
             String titleSingularSuffix, String titlePluralSuffix,
             String displayFormatString) {
+        this(parent, totalCount, titleFormatString, titleSingularSuffix, titlePluralSuffix, displayFormatString, null);
+    }
+
+    /**
+     * Initializes a new modal dialog, with a button to cancel the task.
+     * Closing the dialog cancels the task as well. The dialog itself stays
+     * open until it is disposed of, so the task can finish up first.
+     *
+     * @param parent The parent Frame we've been spawned from
+     * @param totalCount Total number of items being processed
+     * @param titleFormatString A string to format as the title of the dialog.
+     * Requires two format strings, both %s - the first will be the total number
+     * of items, the second will be used to pluralize the title.
+     * @param titleSingularSuffix The suffix to use when the title is singular
+     * @param titlePluralSuffix The suffix to use when the title is plural
+     * @param displayFormatString A string to format to show the numerical
+     * status of the progress. Requires two format strings, both %d - the first
+     * will be the current count, the second will be the total count.
+     * @param onCancel What to do when the user cancels the task, or null if
+     * the task can't be cancelled
+     */
+    public ProgressDialog(Frame parent, int totalCount,
+            String titleFormatString,
+            String titleSingularSuffix, String titlePluralSuffix,
+            String displayFormatString, Runnable onCancel) {
         super(parent, Dialog.ModalityType.APPLICATION_MODAL);
         this.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
         this.totalCount = totalCount;
@@ -100,8 +129,24 @@ public class ProgressDialog extends JDialog {
         panel.add(this.progressBar, c);
         c.gridy++;
 
+        // And a cancel button, if the task can be cancelled
+        if (onCancel != null) {
+            c.fill = GridBagConstraints.NONE;
+            this.cancelButton = new JButton("Cancel");
+            this.cancelButton.addActionListener(e -> cancel(onCancel));
+            panel.add(this.cancelButton, c);
+            this.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    cancel(onCancel);
+                }
+            });
+        } else {
+            this.cancelButton = null;
+        }
+
         this.add(panel);
-        this.setPreferredSize(new Dimension(400, 150));
+        this.setPreferredSize(new Dimension(400, onCancel == null ? 150 : 195));
         this.setResizable(false);
         this.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         this.pack();
@@ -111,6 +156,14 @@ public class ProgressDialog extends JDialog {
 
     }
 
+    private void cancel(Runnable onCancel) {
+        if (this.cancelButton.isEnabled()) {
+            this.cancelButton.setEnabled(false);
+            this.extraText.setText("Cancelling...");
+            onCancel.run();
+        }
+    }
+
     /**
      * Return the total count that we're going towards
      *
@@ -27,6 +27,7 @@ import blcmm.gui.text.AutoCompleteAttacher;
 import blcmm.gui.text.HighlightedTextArea;
 import blcmm.gui.theme.ThemeManager;
 import blcmm.model.PatchType;
+import blcmm.utilities.DumpSearchIndex;
 import blcmm.utilities.Options;
 import blcmm.utilities.Utilities;
 import general.utilities.GlobalLogger;
@@ -52,7 +53,16 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.StringJoiner;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -106,6 +116,7 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
     private static final Color BUTTONCOLOR = new JButton().getBackground();
     private static final String STAR_OPEN = "☆";
     private static final String STAR_FILLED = "★";
+    private static final int SEARCH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 
     private final HighlightedTextArea textElement;
     private String previousQuery;
@@ -124,6 +135,8 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         initComponents();
         textElement = new HighlightedTextArea(true);
         textElement.setEditable(true);
+        //Dumps and getall results can be huge, so only highlight what's shown
+        textElement.setLazyHighlighting(true);
         jPanel1.setLayout(new BorderLayout());
         jPanel1.add(textElement);
         jScrollPane1.getVerticalScrollBar().setUnitIncrement(16);
@@ -152,6 +165,11 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
             textElement.setEditable(false);
         }
         jProgressBar1.setMaximum(totalLines);
+        if (totalLines > 0) {
+            DumpSearchIndex.prepare(
+                    lines -> SwingUtilities.invokeLater(() -> showIndexProgress(lines)),
+                    () -> SwingUtilities.invokeLater(this::hideIndexProgress));
+        }
         queryTextField.getActionMap().put("Search", new AbstractAction("Search") {
             @Override
             public void actionPerformed(ActionEvent evt) {
@@ -882,10 +900,19 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         if (worker != null) {
             worker.stop();
         }
+        DumpSearchIndex index = DumpSearchIndex.getIndex();
         worker = new Worker(query) {
             @Override
-            public int loop(BufferedReader br, int counter, TreeMap<String, Boolean> matches) throws IOException {
-                return refsLoop(br, counter, matches, query);
+            protected Collection<String> getCandidateClasses(Collection<String> classes) {
+                if (index == null) {
+                    return classes;
+                }
+                return index.getCandidateClasses(Arrays.asList(query.toLowerCase() + "'"), classes);
+            }
+
+            @Override
+            public void loop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches) throws IOException {
+                refsLoop(br, counter, matches, query);
             }
         };
         worker.execute();
@@ -911,8 +938,8 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
                 Pattern compile = Pattern.compile(query);
                 worker = new Worker(query) {// Create new worker
                     @Override
-                    public int loop(BufferedReader br, int counter, TreeMap<String, Boolean> matches) throws IOException {
-                        return RegexSearchLoop(br, counter, matches, compile);
+                    public void loop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches) throws IOException {
+                        RegexSearchLoop(br, counter, matches, compile);
                     }
                 };
             } catch (PatternSyntaxException e) {
@@ -934,6 +961,7 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
                 }
             }
             final String clazz2 = clazz;
+            DumpSearchIndex index = DumpSearchIndex.getIndex();
             worker = new Worker(query) {
                 @Override
                 protected Collection<String> getAvailableClasses() {
@@ -953,8 +981,18 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
                 }
 
                 @Override
-                public int loop(BufferedReader br, int counter, TreeMap<String, Boolean> matches) throws IOException {
-                    return BasicSearchLoop(br, counter, matches, positives.toArray(new String[0]), negatives.toArray(new String[0]));
+                protected Collection<String> lookup(Collection<String> classes) {
+                    return index == null ? null : index.search(positives, negatives, classes);
+                }
+
+                @Override
+                protected Collection<String> getCandidateClasses(Collection<String> classes) {
+                    return index == null ? classes : index.getCandidateClasses(positives, classes);
+                }
+
+                @Override
+                public void loop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches) throws IOException {
+                    BasicSearchLoop(br, counter, matches, positives.toArray(new String[0]), negatives.toArray(new String[0]));
                 }
             };
         }
@@ -964,16 +1002,36 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         }
     }
 
-    private int refsLoop(BufferedReader br, int counter, TreeMap<String, Boolean> matches, String query) throws IOException {
+    private void showIndexProgress(int lines) {
+        if (worker == null || worker.stop) {
+            jProgressBar1.setString("Building search index");
+            jProgressBar1.setStringPainted(true);
+            jProgressBar1.setValue(lines);
+        }
+    }
+
+    private void hideIndexProgress() {
+        jProgressBar1.setStringPainted(false);
+        jProgressBar1.setString(null);
+        if (worker == null || worker.stop) {
+            jProgressBar1.setValue(0);
+        }
+    }
+
+    private void countLine(AtomicInteger counter) {
+        int c = counter.incrementAndGet();
+        if (c % Math.max(1, jProgressBar1.getMaximum() / 1000) == 0) {
+            jProgressBar1.setValue(c);
+        }
+    }
+
+    private void refsLoop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches, String query) throws IOException {
         String query2 = query.toLowerCase() + "'";
         String line = br.readLine();
         String current = null;
         boolean match = false;
-        while (line != null) {
-            counter++;
-            if (counter % (jProgressBar1.getMaximum() / 1000) == 0) {
-                jProgressBar1.setValue(counter);
-            }
+        while (line != null && !Thread.currentThread().isInterrupted()) {
+            countLine(counter);
             if (line.startsWith("***")) {
                 if (match) {
                     reportCurrentObject(current, matches);
@@ -990,18 +1048,14 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         if (match) {
             reportCurrentObject(current, matches);
         }
-        return counter;
     }
 
-    private int RegexSearchLoop(BufferedReader br, int counter, TreeMap<String, Boolean> matches, Pattern pat) throws IOException {
+    private void RegexSearchLoop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches, Pattern pat) throws IOException {
         String line = br.readLine();
         String current = null;
         boolean match = false;
-        while (line != null) {
-            counter++;
-            if (counter % (jProgressBar1.getMaximum() / 1000) == 0) {
-                jProgressBar1.setValue(counter);
-            }
+        while (line != null && !Thread.currentThread().isInterrupted()) {
+            countLine(counter);
             if (line.startsWith("***")) {
                 if (match) {
                     reportCurrentObject(current, matches);
@@ -1017,19 +1071,15 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         if (match) {
             reportCurrentObject(current, matches);
         }
-        return counter;
     }
 
-    private int BasicSearchLoop(BufferedReader br, int counter, TreeMap<String, Boolean> matches, String[] positives, String[] negatives) throws IOException {
+    private void BasicSearchLoop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches, String[] positives, String[] negatives) throws IOException {
         boolean[] positivematches = new boolean[positives.length];
         boolean[] negativematches = new boolean[negatives.length];
         String line = br.readLine();
         String current = null;
-        while (line != null) {
-            counter++;
-            if (counter % (jProgressBar1.getMaximum() / 1000) == 0) {
-                jProgressBar1.setValue(counter);
-            }
+        while (line != null && !Thread.currentThread().isInterrupted()) {
+            countLine(counter);
             if (line.startsWith("***")) {
                 boolean toReport = true;
                 for (boolean positive : positivematches) {
@@ -1049,13 +1099,14 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
                 }
                 current = line;
             }
+            String lower = line.toLowerCase();
             for (int i = 0; i < positives.length; i++) {
-                if (line.toLowerCase().contains(positives[i])) {
+                if (lower.contains(positives[i])) {
                     positivematches[i] = true;
                 }
             }
             for (int i = 0; i < negatives.length; i++) {
-                if (line.toLowerCase().contains(negatives[i])) {
+                if (lower.contains(negatives[i])) {
                     negativematches[i] = true;
                 }
             }
@@ -1071,17 +1122,10 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         if (toReport && current != null) {
             reportCurrentObject(current, matches);
         }
-        return counter;
     }
 
     private void reportCurrentObject(String current, TreeMap<String, Boolean> matches) {
-        int index = current.indexOf("'") + 1;
-        int index2 = current.indexOf(" ", index);
-        int index3 = current.indexOf("'", index2);
-        String cl = current.substring(index, index2);
-        String ob = current.substring(index2 + 1, index3);
-        String comp = cl + "'" + ob + "'";
-        matches.put(comp, false);
+        matches.put(DumpSearchIndex.getObjectKey(current), false);
     }
 
     public void getAll(String query) {
@@ -1178,11 +1222,24 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
         }
     }
 
-    private abstract class Worker extends SwingWorker {
+    /**
+     * Runs a query over all dump files, scanning several classes at once. Hits
+     * are collected per class on the pool threads, and handed to the EDT in
+     * batches, where they are inserted at their sorted position in the
+     * textarea.
+     */
+    private abstract class Worker extends SwingWorker<Object, String> {
 
         Exception e;
-        boolean stop = false;
+        volatile boolean stop = false;
         final String query;
+        private final AtomicInteger linesRead = new AtomicInteger();
+        // Filled by the background thread, drained on the EDT
+        private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+        // Only touched on the EDT
+        private final TreeSet<String> shown = new TreeSet<>();
+        private int headerLength = 0;
+        private volatile ExecutorService pool;
 
         public Worker(String query) {
             this.query = query;
@@ -1192,73 +1249,150 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
             return DataManager.getDictionary().getAvailableClasses();
         }
 
-        public abstract int loop(BufferedReader br, int counter, TreeMap<String, Boolean> matches) throws IOException;
+        /**
+         * Answers the query without scanning the dumps, if possible.
+         *
+         * @param classes The classes to search in
+         * @return The hits in the given classes, or null if they have to be
+         * found by scanning.
+         */
+        protected Collection<String> lookup(Collection<String> classes) {
+            return null;
+        }
+
+        /**
+         * Narrows down the classes that have to be scanned.
+         *
+         * @param classes The classes to search in
+         * @return The classes that may contain hits
+         */
+        protected Collection<String> getCandidateClasses(Collection<String> classes) {
+            return classes;
+        }
+
+        public abstract void loop(BufferedReader br, AtomicInteger counter, TreeMap<String, Boolean> matches) throws IOException;
 
         @Override
         protected Object doInBackground() throws Exception {
-
-            TreeMap<String, Boolean> matches = new TreeMap<>();
             textElement.setEditable(false);
             textElement.discardAllUndoData();
             textElement.setProcessUndo(false);
+            pool = Executors.newFixedThreadPool(SEARCH_THREADS, r -> {
+                Thread t = new Thread(r, "Object Explorer search");
+                t.setDaemon(true);
+                return t;
+            });
             try {
-                int counter = 0;
                 jProgressBar1.setValue(0);
                 textElement.setText("");
-                boolean news = false;
-                outer:
-                for (String clazz : getAvailableClasses()) {
-
+                jProgressBar1.setStringPainted(false);
+                Collection<String> classes = getAvailableClasses();
+                Collection<String> hits = lookup(classes);
+                if (hits != null) {
+                    pending.addAll(hits);
+                    publish(query);
+                    return null;
+                }
+                CompletionService<TreeMap<String, Boolean>> completion = new ExecutorCompletionService<>(pool);
+                int submitted = 0;
+                for (String clazz : getCandidateClasses(classes)) {
                     if (stop) {
                         return null;
                     }
-                    int old = matches.size();
-
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(DataManager.getRawStreamOfClass(clazz)))) {
-                        counter = loop(br, counter, matches);
-                        news = old != matches.size();
-
-                    } catch (IOException ex) {
-                        Logger.getLogger(ObjectExplorer.class.getName()).log(Level.SEVERE, null, ex);
+                    completion.submit(() -> searchClass(clazz));
+                    submitted++;
+                }
+                for (int i = 0; i < submitted; i++) {
+                    // Poll rather than take, since stop() may discard queued classes
+                    Future<TreeMap<String, Boolean>> next = completion.poll(100, TimeUnit.MILLISECONDS);
+                    while (next == null) {
+                        if (stop) {
+                            return null;
+                        }
+                        next = completion.poll(100, TimeUnit.MILLISECONDS);
                     }
-
                     if (stop) {
                         return null;
                     }
-
-                    if (news) {
-                        if (textElement.getText().isEmpty()) {
-                            textElement.setText("Found your query (" + query + ") in the following () objects:\n");
-                        }
-
-                        Document doc = textElement.getStyledDocument();
-                        int idx0 = textElement.getText().indexOf("\n");
-                        int idx1 = textElement.getText().lastIndexOf("(", idx0 + 1);
-                        int idx2 = textElement.getText().indexOf(")", idx1);
-
-                        doc.remove(idx1, idx2 - idx1 + 1);
-                        doc.insertString(idx1, "(" + matches.size() + ")", null);
-
-                        int st = textElement.getText().indexOf("\n") + 1;
-                        for (String key : matches.keySet()) {
-                            boolean ne = matches.get(key);
-                            if (!ne) {
-
-                                if (stop) {
-                                    return null;
-                                }
-                                doc.insertString(st, key + "\n", null);
-                                matches.put(key, true);
-                            }
-                            st += key.length() + 1;
-                        }
-                        news = false;
+                    TreeMap<String, Boolean> matches = next.get();
+                    if (!matches.isEmpty()) {
+                        pending.addAll(matches.keySet());
+                        publish(query);
                     }
                 }
                 return null;
             } catch (Exception e2) {
                 e = e2;
                 return null;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private TreeMap<String, Boolean> searchClass(String clazz) {
+            TreeMap<String, Boolean> matches = new TreeMap<>();
+            if (stop) {
+                return matches;
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(DataManager.getRawStreamOfClass(clazz)))) {
+                loop(br, linesRead, matches);
+            } catch (IOException ex) {
+                Logger.getLogger(ObjectExplorer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return matches;
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            // The chunks only signal that there is something to show, the
+            // actual hits are in the pending queue.
+            if (!stop) {
+                flushPending();
+            }
+        }
+
+        /**
+         * Inserts all pending hits into the textarea. Consecutive new hits are
+         * inserted as a single string, and the header is rewritten once per
+         * batch.
+         */
+        private void flushPending() {
+            TreeSet<String> added = new TreeSet<>();
+            String key;
+            while ((key = pending.poll()) != null) {
+                if (!shown.contains(key)) {
+                    added.add(key);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            shown.addAll(added);
+            try {
+                Document doc = textElement.getStyledDocument();
+                String header = "Found your query (" + query + ") in the following (" + shown.size() + ") objects:\n";
+                doc.remove(0, headerLength);
+                doc.insertString(0, header, null);
+                headerLength = header.length();
+                int st = headerLength;
+                StringBuilder run = new StringBuilder();
+                for (String s : shown) {
+                    if (added.contains(s)) {
+                        run.append(s).append("\n");
+                    } else {
+                        if (run.length() > 0) {
+                            doc.insertString(st, run.toString(), null);
+                            st += run.length();
+                            run.setLength(0);
+                        }
+                        st += s.length() + 1;
+                    }
+                }
+                if (run.length() > 0) {
+                    doc.insertString(st, run.toString(), null);
+                }
+            } catch (BadLocationException ex) {
+                e = ex;
             }
         }
 
@@ -1278,6 +1412,8 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
                 throw new RuntimeException(e);
             }
             GlobalLogger.log("Worker done");
+            // The last batch may not have been processed yet
+            flushPending();
             jProgressBar1.setValue(jProgressBar1.getMaximum());
             setQueryAndText(textElement.getText(), query);
             textElement.setEditable(true);
@@ -1292,6 +1428,9 @@ public class ObjectExplorerPanel extends javax.swing.JPanel {
             }
             GlobalLogger.log("Stopping previous worker");
             stop = true;
+            if (pool != null) {
+                pool.shutdownNow();
+            }
             try {
                 get();
                 done2();
@@ -19,6 +19,8 @@ package blcmm.gui.panels;
 
 import blcmm.gui.MainGUI;
 import blcmm.gui.components.EnhancedFormattedTextField;
+import blcmm.gui.panels.TextSearchSession.Range;
+import blcmm.gui.text.HighlightedTextArea;
 import general.utilities.GlobalLogger;
 import java.awt.Component;
 import java.awt.Dialog;
@@ -28,16 +30,13 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.OptionalInt;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import java.util.stream.IntStream;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
+import javax.swing.text.AbstractDocument;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.JTextComponent;
 
@@ -50,6 +49,7 @@ public class TextSearchDialog extends javax.swing.JDialog {
 
     private String previous = "";
     public JTextComponent textcomp;
+    private TextSearchSession session;
 
     public TextSearchDialog(Window parent, JTextComponent textcomponent, String previousSearch) {
         this(parent, textcomponent, previousSearch, true);
@@ -99,6 +99,10 @@ public class TextSearchDialog extends javax.swing.JDialog {
         super.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosed(WindowEvent e) {
+                if (session != null) {
+                    session.dispose();
+                    session = null;
+                }
                 if (textcomp != null && textcomp.isDisplayable()) {
                     textcomp.requestFocus();
                 }
@@ -335,8 +339,7 @@ public class TextSearchDialog extends javax.swing.JDialog {
             Range range = search(false, textcomp.getCaret().getDot(), true, true, isRegex());
             if (range.offset != -1) {
                 try {
-                    textcomp.getDocument().remove(range.offset, range.length);
-                    textcomp.getDocument().insertString(range.offset, replacement, null);
+                    replace(range.offset, range.length, replacement);
                     selectInDocument(range.offset, replacement.length());
                     statusLabel.setText("");
                 } catch (BadLocationException ex) {
@@ -347,44 +350,25 @@ public class TextSearchDialog extends javax.swing.JDialog {
             }
         } else {
             try {
-                Pattern p = Pattern.compile(search, isMatchCase() ? 0 : Pattern.CASE_INSENSITIVE);
-
-                int start = textcomp.getSelectionStart();
-                String full = textcomp.getText();
-                String head = full.substring(0, start);
-                String tail = full.substring(start);
-                StringBuffer builder = new StringBuffer();
-                Matcher matcher = p.matcher(tail);
-                String pre, post;
-                int startOfReplacement = -1, endOfReplacement = -1;
-                if (matcher.find()) {
-                    builder.append(head);
-                    startOfReplacement = builder.length() + matcher.start();
-                    pre = matcher.group();
+                Pattern p = TextSearchSession.compile(search, isMatchCase());
+                String full = getSession().getText(true);
+                Matcher matcher = p.matcher(full);
+                if (matcher.find(textcomp.getSelectionStart()) || (isWrapAround() && matcher.find(0))) {
+                    int startOfReplacement = matcher.start(), endOfMatch = matcher.end();
+                    //Let the matcher work out the replacement, since it may refer to groups
+                    StringBuffer builder = new StringBuffer();
                     matcher.appendReplacement(builder, replacement);
-                    endOfReplacement = builder.length();
-                    post = builder.substring(startOfReplacement, endOfReplacement);
-                    matcher.appendTail(builder);
-                } else if (isWrapAround()) {
-                    matcher = p.matcher(full);
-                    if (matcher.find()) {
-                        startOfReplacement = builder.length() + matcher.start();
-                        pre = matcher.group();
-                        matcher.appendReplacement(builder, replacement);
-                        endOfReplacement = builder.length();
-                        post = builder.substring(startOfReplacement, endOfReplacement);
-                        matcher.appendTail(builder);
-                    }
-                }
-                if (builder.length() != 0) {
-                    textcomp.setText(builder.toString());
-                    selectInDocument(startOfReplacement, endOfReplacement - startOfReplacement);
+                    String post = builder.substring(startOfReplacement);
+                    replace(startOfReplacement, endOfMatch - startOfReplacement, post);
+                    selectInDocument(startOfReplacement, post.length());
                     statusLabel.setText("");
                 } else {
                     displayNoResultsMessage();
                 }
             } catch (java.util.regex.PatternSyntaxException e) {
                 displayRegexMessage(e);
+            } catch (BadLocationException ex) {
+                GlobalLogger.log("Got a bad location exception while replacing: " + ex.toString());
             }
         }
     }//GEN-LAST:event_replaceButtonActionPerformed
@@ -392,50 +376,19 @@ public class TextSearchDialog extends javax.swing.JDialog {
     private void replaceAllButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_replaceAllButtonActionPerformed
         String search = searchTextField.getText();
         String replacement = replaceTextField.getText();
-        if (!isRegex()) {
-            List<Range> ranges = new ArrayList<>();
-            Range cur = new Range(0, 0);
-            while ((cur = search(false, cur.offset, false, false, isRegex())).offset != -1) {
-                ranges.add(cur);
-                cur = new Range(cur.offset + search.length(), 0);
-            } //process the offsets backwards, so edits don't influence other results.
-            for (int i = ranges.size() - 1; i >= 0; i--) {
-                try {
-                    Range range = ranges.get(i);
-                    textcomp.getDocument().remove(range.offset, range.length);
-                    textcomp.getDocument().insertString(range.offset, replacement, null);
-                } catch (BadLocationException ex) {
-                    //Should never happen, by contract of our search method
-                }
-            }
-            if (ranges.size() > 0) {
-                statusLabel.setText("Replaced " + ranges.size() + " instances of '" + search + "' by '" + replacement + "'.");
+        try {
+            TextSearchSession.Replacement res = getSession().replaceAll(search, replacement, isMatchCase(), isRegex());
+            if (res != null) {
+                replace(res.offset, res.length, res.text);
+                statusLabel.setText("Replaced " + res.count + " instances of '" + search + "' by '" + replacement + "'.");
             } else {
                 displayNoResultsMessage();
             }
-        } else {
-            try {
-                Pattern p = Pattern.compile(search, isMatchCase() ? 0 : Pattern.CASE_INSENSITIVE);
-                Matcher matcher = p.matcher(textcomp.getText());
-                int count = 0;
-                StringBuffer builder = new StringBuffer();
-                while (matcher.find()) {
-                    matcher.appendReplacement(builder, replacement);
-                    count++;
-                }
-                if (count > 0) {
-                    matcher.appendTail(builder);
-                    textcomp.setText(builder.toString());
-                    statusLabel.setText("Replaced " + count + " instances of '" + search + "' by '" + replacement + "'.");
-                } else {
-                    displayNoResultsMessage();
-                }
-            } catch (java.util.regex.PatternSyntaxException e) {
-                displayRegexMessage(e);
-            }
-
+        } catch (java.util.regex.PatternSyntaxException e) {
+            displayRegexMessage(e);
+        } catch (BadLocationException ex) {
+            GlobalLogger.log("Got a bad location exception while replacing: " + ex.toString());
         }
-
     }//GEN-LAST:event_replaceAllButtonActionPerformed
 
     private void regularExpressionCheckBoxItemStateChanged(java.awt.event.ItemEvent evt) {//GEN-FIRST:event_regularExpressionCheckBoxItemStateChanged
@@ -465,6 +418,31 @@ public class TextSearchDialog extends javax.swing.JDialog {
         this.textcomp = textComp;
     }
 
+    /**
+     * Returns the search session of the document we're searching in, which
+     * caches its text until it changes.
+     */
+    private TextSearchSession getSession() {
+        if (session == null || session.getDocument() != textcomp.getDocument()) {
+            if (session != null) {
+                session.dispose();
+            }
+            session = new TextSearchSession(textcomp.getDocument());
+        }
+        return session;
+    }
+
+    /**
+     * Replaces the given range in the document, as a single undoable edit.
+     */
+    private void replace(int offset, int length, String replacement) throws BadLocationException {
+        if (textcomp instanceof HighlightedTextArea) {
+            ((HighlightedTextArea) textcomp).replaceText(offset, length, replacement);
+        } else {
+            ((AbstractDocument) textcomp.getDocument()).replace(offset, length, replacement, null);
+        }
+    }
+
     private Range search(boolean searchPrevious) {
         return search(searchPrevious, textcomp.getCaret().getDot(), false, isWrapAround(), isRegex());
     }
@@ -479,85 +457,11 @@ public class TextSearchDialog extends javax.swing.JDialog {
         String search = searchTextField.getText();
         if (search != null && !search.isEmpty()) {
             try {
-                // This is the text we're searching in, say an object dump
-                String text = textcomp.getDocument().getText(0, textcomp.getDocument().getLength());
-                if (!isMatchCase()) {
-                    text = text.toLowerCase();
-                    search = search.toLowerCase();
-                }
                 this.previous = search;
-                if (!regex) {
-                    if (includeCurrentResult && initialIndex >= search.length()
-                            && text.substring(initialIndex - search.length(), initialIndex).equals(search)) {
-                        return new Range(initialIndex, search.length());
-                    }
-                    int offset = searchBackwards
-                            ? text.lastIndexOf(search, initialIndex - search.length() - 1)
-                            : text.indexOf(search, initialIndex);
-                    if (offset == -1 && wrapAround) {
-                        if (searchBackwards) {
-                            //Just search from the end
-                            offset = text.lastIndexOf(search);
-                        } else {
-                            //Just search from the start
-                            offset = text.indexOf(search);
-                        }
-                        if (offset == initialIndex) {
-                            //There is just 1 result, and we're already there
-                            offset = -1;
-                        }
-                    }
-                    return new Range(offset, search.length());
-                } else {//Regex search
-                    Pattern p = Pattern.compile(search);
-
-                    Matcher matcher = p.matcher(text);
-                    //Both for backwards searching and checking if we're already at a result, we need to scan the whole text.
-                    //Might as well do it in all cases, to keep the code clean
-                    List<Range> res = new ArrayList<>();
-                    while (matcher.find()) {
-                        res.add(new Range(matcher.start(), matcher.end() - matcher.start()));
-                    }
-                    if (res.isEmpty()) {
-                        return new Range(-1, 0);
-                    }
-                    OptionalInt opt = IntStream.range(0, res.size()).filter(i -> res.get(i).offset < initialIndex).max();
-                    int idxToCheck = opt.isPresent() ? opt.getAsInt() : 0;
-                    Range r = res.get(idxToCheck);
-                    if (r.offset + r.length == initialIndex && includeCurrentResult) {
-                        return r;
-                    } else if (searchBackwards) {
-                        for (int j = idxToCheck; j >= 0; j--) {
-                            r = res.get(j);
-                            assert r.offset < initialIndex;
-                            if (r.offset + r.length < initialIndex) {
-                                return r;
-                            }
-                        }
-                    } else {
-                        for (int j = idxToCheck; j < res.size(); j++) {
-                            r = res.get(j);
-                            if (r.offset >= initialIndex) {
-                                return r;
-                            }
-                        }
-                    }
-                    if (wrapAround) {
-                        if (searchBackwards) {
-                            return res.get(res.size() - 1);
-                        }
-                        return res.get(0);
-                    }
-                    return new Range(-1, 0);
-
-                }
-
+                return getSession().find(search, searchBackwards, initialIndex, includeCurrentResult, wrapAround, isMatchCase(), regex);
             } catch (BadLocationException ex) {
                 GlobalLogger.log("Got a bad location exception while searching: " + ex.toString());
                 //never? happens
-            } catch (StringIndexOutOfBoundsException ex) {
-                GlobalLogger.log(ex);
-                // Happens on an empty dump with previous search, do nothing for now
             }
         }
         return new Range(-1, -1);
@@ -639,20 +543,4 @@ public class TextSearchDialog extends javax.swing.JDialog {
         searchTextField.requestFocus();
     }
 
-    private static class Range {
-
-        int offset, length;
-
-        public Range(int offset, int length) {
-            this.offset = offset;
-            this.length = length;
-        }
-
-        @Override
-        public String toString() {
-            return "(" + offset + " " + length + ")";
-        }
-
-    }
-
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.gui.panels;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+ * The text of a document, and the matches of the last regular expression
+ * searched for in it, kept around for as long as the document doesn't change.
+ * This way, stepping trough results doesn't require copying the entire
+ * document for every step.
+ *
+ * @author LightChaosman
+ */
+class TextSearchSession implements DocumentListener {
+
+    private final Document document;
+    private String text, foldedText;
+
+    //The last regular expression searched for, and its matches
+    private Pattern lastPattern;
+    private Matches lastMatches;
+
+    TextSearchSession(Document document) {
+        this.document = document;
+        document.addDocumentListener(this);
+    }
+
+    Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Stops listening to the document.
+     */
+    void dispose() {
+        document.removeDocumentListener(this);
+    }
+
+    /**
+     * Returns the text of the document, folded to lower case unless matchCase
+     * is set. Folding is done per character, so offsets in either version of
+     * the text are the same.
+     *
+     * @param matchCase
+     * @return
+     * @throws BadLocationException
+     */
+    String getText(boolean matchCase) throws BadLocationException {
+        if (text == null) {
+            text = document.getText(0, document.getLength());
+        }
+        if (matchCase) {
+            return text;
+        }
+        if (foldedText == null) {
+            foldedText = fold(text);
+        }
+        return foldedText;
+    }
+
+    /**
+     * Returns all matches of the given pattern in the document.
+     *
+     * @param pattern
+     * @return
+     * @throws BadLocationException
+     */
+    Matches getMatches(Pattern pattern) throws BadLocationException {
+        if (lastPattern != null && lastPattern.pattern().equals(pattern.pattern()) && lastPattern.flags() == pattern.flags()) {
+            return lastMatches;
+        }
+        int[] starts = new int[16], ends = new int[16];
+        int count = 0;
+        Matcher matcher = pattern.matcher(getText(true));
+        while (matcher.find()) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = matcher.start();
+            ends[count] = matcher.end();
+            count++;
+        }
+        lastPattern = pattern;
+        lastMatches = new Matches(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+        return lastMatches;
+    }
+
+    /**
+     * Compiles the given regular expression. When not matching case, only the
+     * matching is made case insensitive, the expression itself is left as is.
+     *
+     * @param search
+     * @param matchCase
+     * @return
+     */
+    static Pattern compile(String search, boolean matchCase) {
+        return Pattern.compile(search, matchCase ? 0 : Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Finds the next, or previous, result of the given search in the document.
+     *
+     * @param search The text or regular expression to search for
+     * @param searchBackwards Whether to search towards the start of the text
+     * @param initialIndex The offset to start searching from
+     * @param includeCurrentResult If true, and initialIndex is at the *end* of
+     * a result, that result is returned. This is used for `replace`, so you
+     * can find first, then replace.
+     * @param wrapAround Whether to continue from the other end of the text
+     * @param matchCase Whether to match case
+     * @param regex Whether search is a regular expression
+     * @return The range of the result, with an offset of -1 if there is none
+     * @throws BadLocationException
+     */
+    Range find(String search, boolean searchBackwards, int initialIndex, boolean includeCurrentResult,
+            boolean wrapAround, boolean matchCase, boolean regex) throws BadLocationException {
+        if (!regex) {
+            // This is the text we're searching in, say an object dump
+            String text = getText(matchCase);
+            if (!matchCase) {
+                search = fold(search);
+            }
+            if (includeCurrentResult && initialIndex >= search.length()
+                    && text.startsWith(search, initialIndex - search.length())) {
+                return new Range(initialIndex - search.length(), search.length());
+            }
+            int offset = searchBackwards
+                    ? text.lastIndexOf(search, initialIndex - search.length() - 1)
+                    : text.indexOf(search, initialIndex);
+            if (offset == -1 && wrapAround) {
+                if (searchBackwards) {
+                    //Just search from the end
+                    offset = text.lastIndexOf(search);
+                } else {
+                    //Just search from the start
+                    offset = text.indexOf(search);
+                }
+                if (offset == initialIndex) {
+                    //There is just 1 result, and we're already there
+                    offset = -1;
+                }
+            }
+            return new Range(offset, search.length());
+        }
+        //The matches are kept until the document changes, so we only need to find our place among them
+        Matches res = getMatches(compile(search, matchCase));
+        if (res.size() == 0) {
+            return new Range(-1, 0);
+        }
+        int idxToCheck = Math.max(0, res.lastBefore(initialIndex));
+        if (res.ends[idxToCheck] == initialIndex && includeCurrentResult) {
+            return res.getRange(idxToCheck);
+        } else if (searchBackwards) {
+            for (int j = idxToCheck; j >= 0; j--) {
+                if (res.ends[j] < initialIndex) {
+                    return res.getRange(j);
+                }
+            }
+        } else {
+            for (int j = idxToCheck; j < res.size(); j++) {
+                if (res.starts[j] >= initialIndex) {
+                    return res.getRange(j);
+                }
+            }
+        }
+        if (wrapAround) {
+            if (searchBackwards) {
+                return res.getRange(res.size() - 1);
+            }
+            return res.getRange(0);
+        }
+        return new Range(-1, 0);
+    }
+
+    /**
+     * Works out how to replace all results of the given search. Rather than
+     * editing the document for every single result, everything in between the
+     * first and last result is replaced in one go.
+     *
+     * @param search The text or regular expression to search for
+     * @param replacement The replacement, which may refer to groups when
+     * searching for a regular expression
+     * @param matchCase Whether to match case
+     * @param regex Whether search is a regular expression
+     * @return The range to replace and what to replace it by, or null if there
+     * are no results
+     * @throws BadLocationException
+     */
+    Replacement replaceAll(String search, String replacement, boolean matchCase, boolean regex) throws BadLocationException {
+        if (search.isEmpty()) {
+            return null;
+        }
+        String full = getText(true);
+        StringBuffer builder = new StringBuffer();
+        int count = 0, first = -1, last = -1;
+        if (!regex) {
+            String text = getText(matchCase);
+            String s = matchCase ? search : fold(search);
+            int offset = text.indexOf(s);
+            first = offset;
+            last = offset;
+            while (offset != -1) {
+                builder.append(full, last, offset).append(replacement);
+                last = offset + s.length();
+                count++;
+                offset = text.indexOf(s, last);
+            }
+        } else {
+            Matcher matcher = compile(search, matchCase).matcher(full);
+            while (matcher.find()) {
+                if (count == 0) {
+                    first = matcher.start();
+                }
+                matcher.appendReplacement(builder, replacement);
+                last = matcher.end();
+                count++;
+            }
+            if (count > 0) {
+                //The matcher included everything before the first result as well
+                builder.delete(0, first);
+            }
+        }
+        return count == 0 ? null : new Replacement(first, last - first, builder.toString(), count);
+    }
+
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private void invalidate() {
+        text = null;
+        foldedText = null;
+        lastPattern = null;
+        lastMatches = null;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        invalidate();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        invalidate();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        //Only the attributes changed, like when highlighting, so our text is still valid
+    }
+
+    /**
+     * The offsets of the matches of a regular expression, in ascending order.
+     */
+    static class Matches {
+
+        final int[] starts, ends;
+
+        private Matches(int[] starts, int[] ends) {
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        int size() {
+            return starts.length;
+        }
+
+        /**
+         * Returns the index of the last match starting before the given
+         * offset, or -1 if there is none.
+         *
+         * @param offset
+         * @return
+         */
+        int lastBefore(int offset) {
+            //The matcher never finds two matches starting at the same offset
+            int idx = Arrays.binarySearch(starts, offset);
+            return (idx >= 0 ? idx : -idx - 1) - 1;
+        }
+
+        Range getRange(int i) {
+            return new Range(starts[i], ends[i] - starts[i]);
+        }
+    }
+
+    static class Range {
+
+        final int offset, length;
+
+        Range(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + offset + " " + length + ")";
+        }
+
+    }
+
+    /**
+     * A range of the text, and the text to replace it by.
+     */
+    static class Replacement extends Range {
+
+        final String text;
+        final int count;
+
+        Replacement(int offset, int length, String text, int count) {
+            super(offset, length);
+            this.text = text;
+            this.count = count;
+        }
+    }
+}
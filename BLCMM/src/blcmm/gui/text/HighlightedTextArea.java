@@ -26,6 +26,9 @@ import general.utilities.GlobalLogger;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -41,6 +44,7 @@ import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.event.CaretEvent;
+import javax.swing.text.AbstractDocument;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.Document;
@@ -61,6 +65,21 @@ public final class HighlightedTextArea extends JTextPane {
     private final UndoManager undoManager;
     private final AutoCompleteAttacher autoCompleteAttacher;
 
+    /**
+     * The number of lines above and below the visible ones to highlight as
+     * well, when highlighting lazily.
+     */
+    public static int LAZY_HIGHLIGHTING_MARGIN = 100;
+
+    /**
+     * The number of characters to highlight at once, when highlighting
+     * lazily, before giving other events a chance.
+     */
+    public static int LAZY_HIGHLIGHTING_BATCH = 20000;
+
+    private boolean lazyHighlighting = false;
+    private boolean lazyHighlightingScheduled = false;
+
     public HighlightedTextArea(boolean link) {
         this(link, true);
     }
@@ -336,14 +355,118 @@ public final class HighlightedTextArea extends JTextPane {
         }
     }
 
+    /**
+     * When highlighting lazily, text set trough {@link #setText(String)} is
+     * only highlighted once it's scrolled into view, a few lines at a time.
+     * This lets huge texts show up right away.
+     *
+     * @param lazyHighlighting Whether to highlight lazily.
+     */
+    public void setLazyHighlighting(boolean lazyHighlighting) {
+        this.lazyHighlighting = lazyHighlighting;
+        if (!lazyHighlighting && getDocument() instanceof myStylizedDocument) {
+            ((myStylizedDocument) getDocument()).highlightUnstyledLines(0, getDocument().getLength() + 1, Integer.MAX_VALUE);
+        }
+    }
+
     @Override
     public void setText(String t) {
-        super.setText(t);
+        if (getDocument() instanceof myStylizedDocument) {
+            //The text gets inserted in small pieces, which we highlight all at once afterwards
+            myStylizedDocument doc = (myStylizedDocument) getDocument();
+            doc.setDeferAllHighlighting(true);
+            try {
+                super.setText(t);
+            } finally {
+                doc.setDeferAllHighlighting(false);
+            }
+            //Highlight the new text before it can end up in the undo history, or once it is shown
+            if (lazyHighlighting) {
+                doc.postponePendingLines();
+            } else {
+                doc.highlightPendingLines();
+            }
+        } else {
+            super.setText(t);
+        }
         if (this.undoManager != null) {
             this.undoManager.discardAllEdits();
         }
     }
 
+    /**
+     * Replaces the given range of the text by the given string, as a single
+     * edit as far as undoing is concerned.
+     *
+     * @param offset The start of the range to replace
+     * @param length The length of the range to replace
+     * @param text The text to replace it by
+     * @throws BadLocationException If the range is not in the text
+     */
+    public void replaceText(int offset, int length, String text) throws BadLocationException {
+        if (this.undoManager != null) {
+            this.undoManager.beginSingleEdit();
+        }
+        try {
+            ((AbstractDocument) getDocument()).replace(offset, length, text, null);
+            //Large replacements are highlighted later, which should be part of the same edit
+            if (getDocument() instanceof myStylizedDocument) {
+                ((myStylizedDocument) getDocument()).highlightPendingLines();
+            }
+        } finally {
+            if (this.undoManager != null) {
+                this.undoManager.endSingleEdit();
+            }
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        //Whatever just got painted may have to be highlighted still
+        if (lazyHighlighting && !lazyHighlightingScheduled && getDocument() instanceof myStylizedDocument
+                && ((myStylizedDocument) getDocument()).hasUnstyledLines()) {
+            lazyHighlightingScheduled = true;
+            SwingUtilities.invokeLater(this::highlightVisibleLines);
+        }
+    }
+
+    /**
+     * Highlights a batch of the unhighlighted lines in view, or close to it,
+     * and schedules the next batch if needed.
+     */
+    private void highlightVisibleLines() {
+        lazyHighlightingScheduled = false;
+        if (!(getDocument() instanceof myStylizedDocument)) {
+            return;
+        }
+        myStylizedDocument doc = (myStylizedDocument) getDocument();
+        Rectangle visible = getVisibleRect();
+        int top = viewToModel(new Point(0, visible.y));
+        int bottom = viewToModel(new Point(0, visible.y + visible.height));
+        if (visible.isEmpty() || top < 0 || bottom < 0) {
+            return;
+        }
+        Element root = doc.getDefaultRootElement();
+        int firstLine = root.getElementIndex(top);
+        int lastLine = root.getElementIndex(bottom);
+        //First the lines we're actually showing, then the ones around them
+        boolean more = doc.highlightUnstyledLines(
+                root.getElement(firstLine).getStartOffset(),
+                root.getElement(lastLine).getEndOffset(),
+                LAZY_HIGHLIGHTING_BATCH);
+        if (!more) {
+            more = doc.highlightUnstyledLines(
+                    root.getElement(Math.max(0, firstLine - LAZY_HIGHLIGHTING_MARGIN)).getStartOffset(),
+                    root.getElement(Math.min(root.getElementCount() - 1, lastLine + LAZY_HIGHLIGHTING_MARGIN)).getEndOffset(),
+                    LAZY_HIGHLIGHTING_BATCH);
+        }
+        if (more) {
+            lazyHighlightingScheduled = true;
+            SwingUtilities.invokeLater(this::highlightVisibleLines);
+        }
+    }
+
     private void addLink() {
         MouseListener[] ls = getMouseListeners();
         for (MouseListener l : ls) {
@@ -396,11 +519,10 @@ public final class HighlightedTextArea extends JTextPane {
             public void mouseMoved(MouseEvent e) {
                 myStylizedDocument doc = (myStylizedDocument) getDocument();
                 int offset = viewToModel(e.getPoint());
-                Element el = doc.getCharacterElement(offset);
-                Object att = el.getAttributes().getAttribute("URL");
-                if (att != null) {
+                String link = doc.getLinkAt(offset);
+                if (link != null) {
                     setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-                    search = (String) att;
+                    search = link;
                 } else {
                     setCursor(Cursor.getPredefinedCursor(Cursor.TEXT_CURSOR));
                     search = null;
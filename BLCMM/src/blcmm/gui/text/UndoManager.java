@@ -52,6 +52,12 @@ public class UndoManager extends javax.swing.undo.UndoManager {
      */
     long lastEditTime;
 
+    /**
+     * Whether all edits are to be grouped in the current CompoundEdit,
+     * regardless of their timing.
+     */
+    private boolean singleEdit = false;
+
     public UndoManager() {
         compoundEdit = new CompoundEdit();
         processUndo = false;
@@ -102,7 +108,8 @@ public class UndoManager extends javax.swing.undo.UndoManager {
         // If this edit is coming in after a sufficient pause, we should close
         // out any existing compoundEdit and start a new one
         long curEditTime = System.currentTimeMillis();
-        if (curEditTime > (lastEditTime + editGroupingMillis)) {
+        if (curEditTime > (lastEditTime + editGroupingMillis)
+                && !(singleEdit && compoundEdit.isInProgress())) {
             this.finalizeUndo();
             compoundEdit = new CompoundEdit();
             this.addEdit(compoundEdit);
@@ -114,6 +121,23 @@ public class UndoManager extends javax.swing.undo.UndoManager {
         lastEditTime = curEditTime;
     }
 
+    /**
+     * Groups all edits up to the next call to {@link #endSingleEdit()} into a
+     * CompoundEdit of their own, no matter how long they take.
+     */
+    public void beginSingleEdit() {
+        finalizeUndo();
+        singleEdit = true;
+    }
+
+    /**
+     * Finalizes the CompoundEdit started by {@link #beginSingleEdit()}.
+     */
+    public void endSingleEdit() {
+        singleEdit = false;
+        finalizeUndo();
+    }
+
     /**
      * If we have an in-progress CompoundEdit, finalize it so that it can be
      * undone or whatever.
@@ -19,13 +19,28 @@ package blcmm.gui.text;
 
 import blcmm.gui.theme.ThemeManager;
 import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Element;
 import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 
@@ -45,9 +60,51 @@ public class myStylizedDocument extends DefaultStyledDocument {
     private final MutableAttributeSet number;
     private final MutableAttributeSet quotedouble;
     private final MutableAttributeSet quote;
+    private final MutableAttributeSet linkAttributes;
     private final HashSet<String> keywords;
+    private final Map<String, AttributeSet> customColors = new HashMap<>();
     final boolean link;
 
+    private static final String OPERANDS = ";{}()[]+/%=!&|^~*,";
+    private static final Pattern CUSTOM_COLOR_PATTERN = Pattern.compile("<font[ ]+color[ ]*=[ ]*\"#[0-9a-fA-F]{6}[ ]*\">.*</font>.*");//for simplicity we won't allow trailing spaces in the </font> tag.
+
+    /**
+     * Changes affecting more characters than this are not highlighted right
+     * away, but once the current event has been handled, together with all
+     * other changes made in the mean time.
+     */
+    public static int DEFERRED_HIGHLIGHTING_THRESHOLD = 10000;
+
+    /**
+     * The attribute marking the characters of a link. The object linked to is
+     * only worked out once it's asked for, see {@link #getLinkAt(int)}.
+     */
+    public static final String LINK_ATTRIBUTE = "Link";
+
+    //The text of the lines currently being highlighted, the offset at which it starts, and the attributes
+    //we're giving each of its characters. Only used while holding the write lock.
+    private final Segment text = new Segment();
+    private int textOffset;
+    private AttributeSet[] attributes;
+    //The attribute sets we got by adding a highlighting to other attribute sets, so all characters highlighted
+    //the same way share the same set.
+    private final Map<AttributeSet, Map<AttributeSet, AttributeSet>> combinedAttributes = new IdentityHashMap<>();
+
+    //The range of lines waiting to be highlighted, if any
+    private final Object pendingLock = new Object();
+    private Position pendingStart, pendingEnd;
+    //Whether all changes are to be deferred, regardless of their size
+    private boolean deferAll = false;
+    //The ranges of lines which were loaded without being highlighted, to be highlighted once they're shown
+    private final List<Position[]> unstyled = new ArrayList<>();
+
+    //The offset of the link being looked for while highlighting, and the link found there
+    private int linkOffset = -1;
+    private String foundLink;
+    //The character element of the last link asked for, since the mouse usually stays on one for a while
+    private Element lastLinkElement;
+    private String lastLink;
+
     public myStylizedDocument(boolean link) {
         doc = this;
         this.link = link;
@@ -83,6 +140,11 @@ public class myStylizedDocument extends DefaultStyledDocument {
         quote = new SimpleAttributeSet();
         StyleConstants.setForeground(quote, ThemeManager.getColor(ThemeManager.ColorType.CodeSingleQuote));
 
+        // Links
+        linkAttributes = new SimpleAttributeSet();
+        linkAttributes.addAttribute(LINK_ATTRIBUTE, Boolean.TRUE);
+        StyleConstants.setUnderline(linkAttributes, true);
+
         // Set up keywords
         keywords = new HashSet<>();
         keywords.add("True");
@@ -114,55 +176,362 @@ public class myStylizedDocument extends DefaultStyledDocument {
 
     /*
      * Determine how many lines have been changed,
-     * then apply highlighting to each line
+     * then apply highlighting to each line, or schedule it, if there are many
      */
     private void processChangedLines(int offset, int length) throws BadLocationException {
-        String content = doc.getText(0, doc.getLength());
         // The lines affected by the latest document update
         int startLine = rootElement.getElementIndex(offset);
         int endLine = rootElement.getElementIndex(offset + length);
-        // Do the actual highlighting
-        for (int i = startLine; i <= endLine; i++) {
-            applyHighlighting(content, i);
+        int start = rootElement.getElement(startLine).getStartOffset();
+        int end = rootElement.getElement(endLine).getEndOffset();
+        if (deferAll || end - start > DEFERRED_HIGHLIGHTING_THRESHOLD) {
+            deferHighlighting(start, end);
+        } else {
+            highlightLines(startLine, endLine, true);
+        }
+    }
+
+    /*
+     * Remember the given range to be highlighted once the current event has
+     * been handled, together with all other ranges changed in the mean time
+     */
+    private void deferHighlighting(int start, int end) throws BadLocationException {
+        synchronized (pendingLock) {
+            boolean scheduled = pendingStart != null;
+            if (!scheduled || start < pendingStart.getOffset()) {
+                pendingStart = createPosition(start);
+            }
+            if (!scheduled || end > pendingEnd.getOffset()) {
+                pendingEnd = createPosition(Math.min(end, getLength()));
+            }
+            if (!scheduled) {
+                SwingUtilities.invokeLater(this::highlightPendingLines);
+            }
+        }
+    }
+
+    /**
+     * Defers the highlighting of all changes, rather than only of large ones,
+     * until this is turned off again. Used to highlight text which is inserted
+     * in many pieces, like by {@link javax.swing.JEditorPane#setText}, in a
+     * single pass.
+     *
+     * @param deferAll
+     */
+    public void setDeferAllHighlighting(boolean deferAll) {
+        this.deferAll = deferAll;
+    }
+
+    /**
+     * Highlights the lines changed by large edits right away, rather than once
+     * the current event has been handled. This does nothing if there are no
+     * such lines.
+     */
+    public void highlightPendingLines() {
+        int start, end;
+        synchronized (pendingLock) {
+            if (pendingStart == null) {
+                return;
+            }
+            start = pendingStart.getOffset();
+            end = pendingEnd.getOffset();
+            pendingStart = null;
+            pendingEnd = null;
+        }
+        try {
+            highlightLines(rootElement.getElementIndex(start), rootElement.getElementIndex(end), true);
+        } catch (BadLocationException ex) {
+            Logger.getLogger(myStylizedDocument.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Leaves the lines changed by large edits unhighlighted until they are
+     * asked for trough {@link #highlightUnstyledLines(int, int, int)}.
+     * Highlighting those lines does not end up in the undo history, so this
+     * should only be used for text of which the undo history is discarded
+     * anyway, like text which was just loaded.
+     */
+    public void postponePendingLines() {
+        synchronized (pendingLock) {
+            if (pendingStart == null) {
+                return;
+            }
+            unstyled.add(new Position[]{pendingStart, pendingEnd});
+            pendingStart = null;
+            pendingEnd = null;
+        }
+    }
+
+    /**
+     * Returns whether there are lines left unhighlighted by
+     * {@link #postponePendingLines()}.
+     *
+     * @return
+     */
+    public boolean hasUnstyledLines() {
+        synchronized (pendingLock) {
+            return !unstyled.isEmpty();
+        }
+    }
+
+    /**
+     * Highlights the lines in between the given offsets which have been left
+     * unhighlighted by {@link #postponePendingLines()}. To keep this short,
+     * it stops once it highlighted more than the given number of characters.
+     *
+     * @param start The start offset of the range to highlight
+     * @param end The end offset of the range to highlight, exclusive
+     * @param maxCharacters The number of characters after which to stop
+     * @return Whether there may be unhighlighted lines left in the range
+     */
+    public boolean highlightUnstyledLines(int start, int end, int maxCharacters) {
+        int highlighted = 0;
+        while (highlighted < maxCharacters) {
+            int from = -1, to = -1;
+            synchronized (pendingLock) {
+                Iterator<Position[]> it = unstyled.iterator();
+                while (it.hasNext()) {
+                    Position[] range = it.next();
+                    int rangeStart = range[0].getOffset(), rangeEnd = range[1].getOffset();
+                    if (rangeStart >= rangeEnd) {
+                        it.remove();
+                    } else if (rangeStart < end && rangeEnd > start && (from == -1 || rangeStart < from)) {
+                        from = Math.max(rangeStart, start);
+                        to = Math.min(rangeEnd, end);
+                    }
+                }
+            }
+            if (from == -1) {
+                return false;
+            }
+            int startLine = rootElement.getElementIndex(from);
+            int endLine = startLine;
+            int lines = rootElement.getElementCount();
+            Element line = rootElement.getElement(startLine);
+            highlighted += line.getEndOffset() - line.getStartOffset();
+            while (endLine + 1 < lines && line.getEndOffset() < to && highlighted < maxCharacters) {
+                line = rootElement.getElement(++endLine);
+                highlighted += line.getEndOffset() - line.getStartOffset();
+            }
+            try {
+                highlightLines(startLine, endLine, false);
+            } catch (BadLocationException ex) {
+                Logger.getLogger(myStylizedDocument.class.getName()).log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Forget about unhighlighted lines in between the given offsets, since
+     * they're being highlighted
+     */
+    private void markStyled(int start, int end) throws BadLocationException {
+        synchronized (pendingLock) {
+            for (int i = unstyled.size() - 1; i >= 0; i--) {
+                int rangeStart = unstyled.get(i)[0].getOffset(), rangeEnd = unstyled.get(i)[1].getOffset();
+                if (rangeStart < end && rangeEnd > start) {
+                    Position[] range = unstyled.remove(i);
+                    if (rangeEnd > end) {
+                        unstyled.add(new Position[]{createPosition(end), range[1]});
+                    }
+                    if (rangeStart < start) {
+                        unstyled.add(new Position[]{range[0], createPosition(start)});
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the object linked to by the link at the given offset, or null if
+     * there is no link there.
+     *
+     * @param offset
+     * @return
+     */
+    public String getLinkAt(int offset) {
+        Element element = getCharacterElement(offset);
+        if (element.getAttributes().getAttribute(LINK_ATTRIBUTE) == null) {
+            return null;
+        }
+        if (element == lastLinkElement) {
+            return lastLink;
+        }
+        //Rather than remembering every link, parse the line again to find this one
+        writeLock();
+        try {
+            int line = rootElement.getElementIndex(offset);
+            linkOffset = offset;
+            foundLink = null;
+            collectHighlighting(line, line);
+            lastLinkElement = element;
+            lastLink = foundLink;
+            return foundLink;
+        } catch (BadLocationException ex) {
+            Logger.getLogger(myStylizedDocument.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        } finally {
+            linkOffset = -1;
+            attributes = null;
+            writeUnlock();
+        }
+    }
+
+    /*
+     * Apply highlighting to the given range of lines, using a single view of
+     * their text. The highlighting is collected per character first, and then
+     * applied by replacing the character elements of each line at once, which
+     * is far cheaper than splitting them up for every token.
+     */
+    private void highlightLines(int startLine, int endLine, boolean undoable) throws BadLocationException {
+        writeLock();
+        try {
+            int start = rootElement.getElement(startLine).getStartOffset();
+            int end = rootElement.getElement(endLine).getEndOffset();
+            markStyled(start, end);
+            collectHighlighting(startLine, endLine);
+            DefaultDocumentEvent changes = new DefaultDocumentEvent(start, end - start, DocumentEvent.EventType.CHANGE);
+            for (int i = startLine; i <= endLine; i++) {
+                replaceCharacterElements((BranchElement) rootElement.getElement(i), changes);
+            }
+            changes.end();
+            fireChangedUpdate(changes);
+            if (undoable) {
+                fireUndoableEditUpdate(new UndoableEditEvent(this, changes));
+            }
+        } finally {
+            attributes = null;
+            writeUnlock();
+        }
+    }
+
+    /*
+     * Work out the attributes of every character of the given range of lines.
+     * Only to be used while holding the write lock.
+     */
+    private void collectHighlighting(int startLine, int endLine) throws BadLocationException {
+        int start = rootElement.getElement(startLine).getStartOffset();
+        int end = rootElement.getElement(endLine).getEndOffset();
+        int contentLength = doc.getLength();
+        // set normal attributes for the lines
+        attributes = new AttributeSet[end - start];
+        Arrays.fill(attributes, normal);
+        textOffset = start;
+        if (start < contentLength) {
+            doc.getText(start, Math.min(end, contentLength) - start, text);
+            for (int i = startLine; i <= endLine; i++) {
+                applyHighlighting(i, contentLength);
+            }
+        }
+    }
+
+    /*
+     * Replace the character elements of the given line by one for every run
+     * of characters with the same attributes
+     */
+    private void replaceCharacterElements(BranchElement line, DefaultDocumentEvent changes) {
+        int startOffset = line.getStartOffset();
+        int endOffset = line.getEndOffset();
+        List<Element> added = new ArrayList<>();
+        int runStart = startOffset;
+        for (int i = startOffset + 1; i <= endOffset; i++) {
+            if (i == endOffset || attributes[i - textOffset] != attributes[runStart - textOffset]) {
+                added.add(createLeafElement(line, attributes[runStart - textOffset], runStart, i));
+                runStart = i;
+            }
+        }
+        Element[] removed = new Element[line.getElementCount()];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = line.getElement(i);
+        }
+        Element[] addedArray = added.toArray(new Element[added.size()]);
+        line.replace(0, removed.length, addedArray);
+        changes.addEdit(new ElementEdit(line, 0, removed, addedArray));
+    }
+
+    /*
+     * Add the given attributes to the characters in the given range
+     */
+    private void highlight(int offset, int length, AttributeSet highlighting) {
+        Map<AttributeSet, AttributeSet> cache = combinedAttributes.computeIfAbsent(highlighting, h -> new IdentityHashMap<>());
+        AttributeSet lastBase = null, lastResult = null;
+        for (int i = offset - textOffset; i < offset - textOffset + length; i++) {
+            //Neighbouring characters usually had the same attributes, so don't look each of them up
+            if (attributes[i] != lastBase) {
+                lastBase = attributes[i];
+                lastResult = cache.computeIfAbsent(lastBase, base -> {
+                    SimpleAttributeSet res = new SimpleAttributeSet(base);
+                    res.addAttributes(highlighting);
+                    return res;
+                });
+            }
+            attributes[i] = lastResult;
         }
     }
 
     /*
      * Parse the line to determine the appropriate highlighting
      */
-    private void applyHighlighting(String content, int line) throws BadLocationException {
+    private void applyHighlighting(int line, int contentLength) throws BadLocationException {
         int startOffset = rootElement.getElement(line).getStartOffset();
         int endOffset = rootElement.getElement(line).getEndOffset() - 1;
-        int lineLength = endOffset - startOffset + 1;
-        int contentLength = content.length();
         if (endOffset >= contentLength) {
             endOffset = contentLength - 1;
         }
+        if (endOffset < startOffset) {
+            return;
+        }
+        // check for tokens
+        checkForTokens(startOffset, endOffset);
+    }
 
-        // set normal attributes for the line
-        //System.out.println(startOffset + " " + lineLength);
-        if (lineLength < 1) {
-            return;//this line breaks undo+newlins TODO
+    /*
+     * The character at the given offset, which must lie in the lines currently
+     * being highlighted
+     */
+    private char charAt(int offset) {
+        return text.array[text.offset + offset - textOffset];
+    }
+
+    /*
+     * The first offset in between from and to, inclusive, holding the given
+     * character, or -1 if there is none
+     */
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            if (charAt(i) == c) {
+                return i;
+            }
         }
-        doc.setCharacterAttributes(startOffset, lineLength, normal, true);
+        return -1;
+    }
 
-        // check for single line comment
-        /*int index = content.indexOf(getSingleLineDelimiter(), startOffset);
-        if ((index > -1) && (index < endOffset)) {
-            doc.setCharacterAttributes(index, endOffset - index + 1, comment, false);
-            endOffset = index - 1;
-        }*/
-        // check for tokens
-        checkForTokens(content, startOffset, endOffset);
+    private boolean startsWith(String s, int offset, int endOffset) {
+        if (offset + s.length() - 1 > endOffset) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (charAt(offset + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getString(int startOffset, int endOffset) {
+        return new String(text.array, text.offset + startOffset - textOffset, endOffset - startOffset);
     }
 
     /*
      * Parse the line for tokens to highlight
      */
-    private void checkForTokens(String content, int startOffset, int endOffset) {
+    private void checkForTokens(int startOffset, int endOffset) {
         while (startOffset <= endOffset) {
             // skip the delimiters to find the start of a new token
-            while (isDelimiter(content.substring(startOffset, startOffset + 1))) {
+            while (isDelimiter(charAt(startOffset))) {
                 if (startOffset < endOffset) {
                     startOffset++;
                 } else {
@@ -170,12 +539,12 @@ public class myStylizedDocument extends DefaultStyledDocument {
                 }
             }
             // Extract and process the entire token
-            if (isDoubleQuoteDelimiter(content.substring(startOffset, startOffset + 1))) {
-                startOffset = getQuoteToken(content, startOffset, endOffset);
-            } else if (startsWithCustomColorAndContainsEnd(content.substring(startOffset, endOffset))) {
-                startOffset = getEndOfColorToken(content, startOffset, endOffset);
+            if (isDoubleQuoteDelimiter(charAt(startOffset))) {
+                startOffset = getQuoteToken(startOffset, endOffset);
+            } else if (startsWithCustomColorAndContainsEnd(startOffset, endOffset)) {
+                startOffset = getEndOfColorToken(startOffset, endOffset);
             } else {
-                startOffset = getOtherToken(content, startOffset, endOffset);
+                startOffset = getOtherToken(startOffset, endOffset);
             }
         }
     }
@@ -183,85 +552,90 @@ public class myStylizedDocument extends DefaultStyledDocument {
     /*
      * Parse the line to get the quotes and highlight it
      */
-    private int getQuoteToken(String content, int startOffset, int endOffset) {
-        String quoteDelimiter = content.substring(startOffset, startOffset + 1);
+    private int getQuoteToken(int startOffset, int endOffset) {
+        char quoteDelimiter = charAt(startOffset);
         String escapeString = getEscapeString(quoteDelimiter);
-        int index;
         int endOfQuote = startOffset;
         // skip over the escape quotes in this quote
-        index = content.indexOf(escapeString, endOfQuote + 1);
-        while ((index > -1) && (index < endOffset)) {
-            endOfQuote = index + 1;
-            index = content.indexOf(escapeString, endOfQuote);
+        for (int i = endOfQuote + 1; i < endOffset; i++) {
+            if (startsWith(escapeString, i, endOffset)) {
+                endOfQuote = i + 1;
+                i = endOfQuote - 1;
+            }
         }
         // now find the matching delimiter
-        index = content.indexOf(quoteDelimiter, endOfQuote + 1);
-        if ((index < 0) || (index > endOffset)) {
+        int index = indexOf(quoteDelimiter, endOfQuote + 1, endOffset);
+        if (index < 0) {
             endOfQuote = endOffset;
         } else {
             endOfQuote = index;
         }
-        doc.setCharacterAttributes(startOffset, endOfQuote - startOffset + 1, quotedouble, false);
+        highlight(startOffset, endOfQuote - startOffset + 1, quotedouble);
         return endOfQuote + 1;
     }
 
-    private int getOtherToken(String content, int startOffset, int endOffset) {
+    private int getOtherToken(int startOffset, int endOffset) {
         int endOfToken = startOffset + 1;
         while (endOfToken <= endOffset) {
-            if (isDelimiter(content.substring(endOfToken, endOfToken + 1))) {
+            if (isDelimiter(charAt(endOfToken))) {
                 break;
             }
             endOfToken++;
         }
-        String token = content.substring(startOffset, endOfToken);
+        String token = getString(startOffset, endOfToken);
         if (isKeyword(token)) {
-            doc.setCharacterAttributes(startOffset, endOfToken - startOffset, keyword, false);
-        } else if (token.toLowerCase().startsWith("gd_") || startsWithCapitalsAndUnderscores(token)) {
-            doc.setCharacterAttributes(startOffset, endOfToken - startOffset, GDword, false);
+            highlight(startOffset, endOfToken - startOffset, keyword);
+        } else if (token.regionMatches(true, 0, "gd_", 0, 3) || startsWithCapitalsAndUnderscores(token)) {
+            highlight(startOffset, endOfToken - startOffset, GDword);
         } else if (isSpecialValue(token)) {
-            doc.setCharacterAttributes(startOffset, endOfToken - startOffset, MTword, false);
-        } else {
+            highlight(startOffset, endOfToken - startOffset, MTword);
+        } else if (mayBeNumber(token)) {
             try {
                 Double.parseDouble(token);
-                doc.setCharacterAttributes(startOffset, endOfToken - startOffset, number, false);
+                highlight(startOffset, endOfToken - startOffset, number);
             } catch (NumberFormatException e) {
             }
         }
-        if (token.contains("'")) {
-            int index = token.indexOf("'");
-            int endindex = token.indexOf("'", index + 1);
+        int index = token.indexOf('\'');
+        if (index != -1) {
+            int endindex = token.indexOf('\'', index + 1);
 
             if (endindex != -1) {
                 String clazz = token.substring(0, index);
-                String rest = token.substring(index + 1, endindex);
-                doc.setCharacterAttributes(startOffset + index, endindex - index + 1, quote, false);
+                highlight(startOffset + index, endindex - index + 1, quote);
                 if (!clazz.equals("Class") && !clazz.equals("Package") && clazz.length() > 0 && link) {
-                    MutableAttributeSet link2 = new SimpleAttributeSet();
-                    link2.addAttribute("URL", token);
-                    StyleConstants.setUnderline(link2, true);
-                    doc.setCharacterAttributes(startOffset + index + 1, endindex - index - 1, link2, false);
+                    //What is linked to is only worked out when asked for, so all links share their attributes
+                    highlight(startOffset + index + 1, endindex - index - 1, linkAttributes);
+                    if (startOffset + index < linkOffset && linkOffset < startOffset + endindex) {
+                        foundLink = token;
+                    }
                 }
-            } else {
-                //System.out.println(token  + " "+ endOfToken + " " + endOffset + " " + content.substring(endOfToken, endOfToken + 1) + isDelimiter(content.substring(endOfToken, endOfToken + 1)));
             }
-
         }
         return endOfToken + 1;
     }
 
+    /*
+     * Parsing a number by catching the exception thrown for everything else
+     * is slow, so we only try for tokens starting like a number would.
+     */
+    private static boolean mayBeNumber(String token) {
+        char c = token.charAt(0);
+        return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'N' || c == 'I' || c <= ' ';
+    }
+
     /*
      * Override for other languages
      */
-    protected boolean isDelimiter(String character) {
-        String operands = ";{}()[]+/%=!&|^~*,";
-        return Character.isWhitespace(character.charAt(0)) || operands.contains(character);
+    protected boolean isDelimiter(char character) {
+        return Character.isWhitespace(character) || OPERANDS.indexOf(character) != -1;
     }
 
     /*
      * Override for other languages
      */
-    protected boolean isDoubleQuoteDelimiter(String character) {
-        return character.equals("\"");
+    protected boolean isDoubleQuoteDelimiter(char character) {
+        return character == '"';
     }
 
     /*
@@ -274,32 +648,37 @@ public class myStylizedDocument extends DefaultStyledDocument {
     /*
      * Override for other languages
      */
-    protected String getEscapeString(String quoteDelimiter) {
+    protected String getEscapeString(char quoteDelimiter) {
         return "\\" + quoteDelimiter;
     }
 
-    private static boolean startsWithCustomColorAndContainsEnd(String substring) {
-        if (substring == null) {
+    private boolean startsWithCustomColorAndContainsEnd(int startOffset, int endOffset) {
+        //Only bother with the regex if we're actually looking at a font tag.
+        if (!startsWith("<font", startOffset, endOffset - 1)) {
             return false;
         }
-        final String regex = "<font[ ]+color[ ]*=[ ]*\"#[0-9a-fA-F]{6}[ ]*\">.*</font>.*";//for simplicity we won't allow trailing spaces in the </font> tag.
-        return substring.matches(regex);
+        return CUSTOM_COLOR_PATTERN.matcher(text.subSequence(startOffset - textOffset, endOffset - textOffset)).matches();
     }
 
-    private int getEndOfColorToken(String content, int startOffset, int endOffset) {
-        int idxHashtag = content.indexOf("#", startOffset), idxFirstCloseBrace = content.indexOf(">", startOffset);
-        String color = content.substring(idxHashtag, idxFirstCloseBrace - 1);
+    private int getEndOfColorToken(int startOffset, int endOffset) {
+        int idxHashtag = indexOf('#', startOffset, endOffset), idxFirstCloseBrace = indexOf('>', startOffset, endOffset);
+        String color = getString(idxHashtag, idxFirstCloseBrace - 1);
 
-        int endOfContent = content.indexOf("</font>", startOffset + 1);
-        SimpleAttributeSet atts = new SimpleAttributeSet();
-        StyleConstants.setForeground(atts, Color.decode(color));
-        StyleConstants.setBold(atts, true);
-        doc.setCharacterAttributes(idxFirstCloseBrace + 1, endOfContent - (idxFirstCloseBrace + 1),
-                atts, false);
+        int endOfContent = idxFirstCloseBrace;
+        while (!startsWith("</font>", endOfContent, endOffset)) {
+            endOfContent++;
+        }
+        AttributeSet atts = customColors.computeIfAbsent(color, c -> {
+            SimpleAttributeSet res = new SimpleAttributeSet();
+            StyleConstants.setForeground(res, Color.decode(c));
+            StyleConstants.setBold(res, true);
+            return res;
+        });
+        highlight(idxFirstCloseBrace + 1, endOfContent - (idxFirstCloseBrace + 1), atts);
         //Explicitly color the quotes in the font tag, since we color the entire font tag in this method, it won't get caught by the rest of the parser.
-        int q1 = content.indexOf("\"", startOffset);
-        int q2 = content.indexOf("\"", q1 + 1);
-        doc.setCharacterAttributes(q1, q2 - q1 + 1, quotedouble, false);
+        int q1 = indexOf('"', startOffset, endOffset);
+        int q2 = indexOf('"', q1 + 1, endOffset);
+        highlight(q1, q2 - q1 + 1, quotedouble);
 
         return endOfContent + "</font>".length();//Continue parsing *after* the end of the </font> tag
 
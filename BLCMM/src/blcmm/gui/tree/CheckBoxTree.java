@@ -20,6 +20,7 @@ package blcmm.gui.tree;
 import blcmm.gui.MainGUI;
 import blcmm.gui.tree.rightmouse.*;
 import blcmm.model.*;
+import blcmm.model.properties.GlobalListOfProperties;
 import blcmm.utilities.Options;
 import blcmm.utilities.Utilities;
 import general.utilities.GlobalLogger;
@@ -36,6 +37,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.EventObject;
@@ -59,13 +61,12 @@ import javax.swing.event.EventListenerList;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeModel;
-import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 
 public final class CheckBoxTree extends JTree {
 
-    // Defining data structure that will enable to fast check-indicate the state of each node
+    // The check state of a single node, as shown by its checkbox.
     // It totally replaces the "selection" mechanism of the JTree
     static class CheckedNode {
 
@@ -98,10 +99,12 @@ public final class CheckBoxTree extends JTree {
     private static final long serialVersionUID = -4194122328392241790L;
 
     boolean change = false;
+    //Counts every change, so others can tell whether anything changed since they last looked
+    private int modificationCount = 0;
     private CompletePatch patch;
+    //Built when first searching, and discarded whenever the tree changes
+    private TreeSearchIndex searchIndex;
 
-    private HashMap<TreePath, CheckedNode> nodesCheckingState;
-    private HashSet<TreePath> checkedPaths = new HashSet<>();
     private final CheckboxTreeMouseAdapter adapter;
 
     public CheckBoxTree() {
@@ -157,15 +160,12 @@ public final class CheckBoxTree extends JTree {
     }
 
     public boolean isSelected(DefaultMutableTreeNode treenode) {
-        TreePath tp = new TreePath(treenode.getPath());
-        CheckedNode cn = nodesCheckingState.get(tp);
-        return cn.isSelected;
+        return getCheckedNode(treenode).isSelected;
     }
 
     // Returns true in case that the node is selected, has children but not all of them are selected
     public boolean isSelectedCompletely(DefaultMutableTreeNode treenode) {
-        TreePath tp = new TreePath(treenode.getPath());
-        CheckedNode cn = nodesCheckingState.get(tp);
+        CheckedNode cn = getCheckedNode(treenode);
         if (cn.hasChildren) {
             return cn.allChildrenSelected && cn.isSelected;
         } else {
@@ -173,8 +173,50 @@ public final class CheckBoxTree extends JTree {
         }
     }
 
-    CheckedNode getCheckedNode(TreePath path) {
-        return nodesCheckingState.get(path);
+    /**
+     * Returns the check state of the given node. This is derived from the
+     * number of (selected) commands our model elements keep track of, which
+     * are updated along the path to the root whenever a command is toggled, so
+     * we don't need to store or rebuild any state of our own.
+     *
+     * @param treenode
+     * @return The check state, or null if the node does not hold a model
+     * element
+     */
+    static CheckedNode getCheckedNode(DefaultMutableTreeNode treenode) {
+        Object el = treenode.getUserObject();
+        boolean hasChildren = treenode.getChildCount() > 0;
+        if (el instanceof SetCommand) {
+            boolean checked = ((SetCommand) el).isSelected();
+            return new CheckedNode(checked, hasChildren, checked);
+        } else if (el instanceof ModelElementContainer) {
+            int commands = ((ModelElementContainer<?>) el).getNumberOfCommandsDescendants();
+            if (commands == 0) {
+                //Categories without commands, like those containing only comments, are never checked
+                return new CheckedNode(false, hasChildren, hasChildren);
+            }
+            int selected = getNumberOfSelectedCommands((ModelElement) el);
+            return new CheckedNode(selected > 0, hasChildren, selected == commands);
+        } else if (el instanceof ModelElement) {
+            return new CheckedNode(false, hasChildren, false);
+        }
+        return null;
+    }
+
+    private static int getNumberOfSelectedCommands(ModelElement el) {
+        if (el instanceof SetCommand) {
+            return ((SetCommand) el).isSelected() ? 1 : 0;
+        } else if (!(el instanceof ModelElementContainer)) {
+            return 0;
+        } else if (el.getTransientData().isAcceptingStatuses()) {
+            return el.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class);
+        }
+        //The root and the mods folder don't keep counts of their own, so we sum those of their children.
+        int res = 0;
+        for (Object child : ((ModelElementContainer<?>) el).getElements()) {
+            res += getNumberOfSelectedCommands((ModelElement) child);
+        }
+        return res;
     }
 
     public void updateFontSizes() {
@@ -224,6 +266,17 @@ public final class CheckBoxTree extends JTree {
     }
 
     public void setPatch(CompletePatch patch) {
+        setPatch(patch, null);
+    }
+
+    /**
+     * Shows the given patch.
+     *
+     * @param patch The patch to show
+     * @param overwrites An analysis of the overwrites in the patch made by
+     * ColorGiver.prepare, or null to analyze it now
+     */
+    public void setPatch(CompletePatch patch, OverwriteChecker overwrites) {
         this.patch = patch;
         if (patch.getRoot() == null) {
             patch.setRoot(new Category(Category.DEFAULT_ROOT_NAME));
@@ -243,7 +296,12 @@ public final class CheckBoxTree extends JTree {
                 }
             }
         }
-        ColorGiver.reset(patch.getRoot());
+        patch.takeChangedCommands();
+        if (overwrites == null) {
+            ColorGiver.reset(patch.getRoot());
+        } else {
+            ColorGiver.install(overwrites, patch.getRoot());
+        }
         repaint();
     }
 
@@ -251,78 +309,45 @@ public final class CheckBoxTree extends JTree {
     @Override
     public void setModel(TreeModel newModel) {
         super.setModel(newModel);
-        resetCheckingState();
+        searchIndex = null;
         change = false;
-    }
-
-    // New method that returns only the checked paths (totally ignores original "selection" mechanism)
-    public TreePath[] getCheckedPaths() {
-        return checkedPaths.toArray(new TreePath[checkedPaths.size()]);
+        modificationCount++;
     }
 
     public boolean isChanged() {
         return change;
     }
 
+    /**
+     * Returns the number of times this tree got marked as changed, or got a
+     * new model.
+     *
+     * @return
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
     public void setChanged(boolean flag) {
         change = flag;
         if (flag) {
+            modificationCount++;
             isEverythingAllright();
-            resetCheckingState();
-            ColorGiver.reset(patch.getRoot());
+            searchIndex = null;
+            updateColors();
         }
     }
 
-    public void resetCheckingState() {
-        nodesCheckingState = new HashMap<>();
-        checkedPaths = new HashSet<>();
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) getModel().getRoot();
-        if (node == null) {
-            return;
-        }
-        addSubtreeToCheckingStateTracking(node);
-    }
-
-    // Creating data structure of the current model for the checking mechanism
-    private void addSubtreeToCheckingStateTracking(DefaultMutableTreeNode node) {
-        TreeNode[] path = node.getPath();
-        TreePath tp = new TreePath(path);
-        boolean checked = false;
-        if (node.getUserObject() instanceof SetCommand) {
-            checked = ((SetCommand) node.getUserObject()).isSelected();
-        } else if (node.getUserObject() instanceof ModelElement) {
+    /**
+     * Brings the coloring up to date with whatever changed in our patch,
+     * rescanning the entire tree only if the patch lost track of that.
+     */
+    private void updateColors() {
+        Collection<SetCommand> changed = patch.takeChangedCommands();
+        if (changed == null) {
+            ColorGiver.reset(patch.getRoot());
         } else {
-            System.err.println(node.getUserObject());
-            return;
-        }
-
-        CheckedNode cn = new CheckedNode(checked, node.getChildCount() > 0, checked);
-        nodesCheckingState.put(tp, cn);
-        if (node.getChildCount() == 0) {
-            if (node.getParent() == null) {
-                return;
-            }
-            return;
-        }
-        boolean all = true;
-        boolean some = false;
-        for (int i = 0; i < node.getChildCount(); i++) {
-            TreePath tpx = tp.pathByAddingChild(node.getChildAt(i));
-            DefaultMutableTreeNode x = (DefaultMutableTreeNode) tpx.getLastPathComponent();
-            addSubtreeToCheckingStateTracking(x);
-            Object el = x.getUserObject();
-            if (true
-                    && !(el instanceof Comment)
-                    && !((el instanceof Category) && ((Category) el).getNumberOfCommandsDescendants() == 0)
-                    && true) {
-                all = all && nodesCheckingState.get(tpx).allChildrenSelected && nodesCheckingState.get(tpx).isSelected;
-                some = some || nodesCheckingState.get(tpx).allChildrenSelected || nodesCheckingState.get(tpx).isSelected;
-            }
-        }
-
-        cn.allChildrenSelected = all;
-        if (node.getUserObject() instanceof ModelElement) {
-            cn.isSelected = some;
+            ColorGiver.update(changed);
         }
     }
 
@@ -335,8 +360,8 @@ public final class CheckBoxTree extends JTree {
     }
 
     public void checkNode(TreePath tp, boolean checkMode) {
-        checkSubTree(tp, checkMode);
-        updatePredecessorsWithCheckMode(tp, checkMode);
+        checkSubTree((DefaultMutableTreeNode) tp.getLastPathComponent(), checkMode);
+        updateColors();
         // Firing the check change event
         fireCheckChangeEvent(new CheckChangeEvent(new Object()));
         // Repainting tree after the data structures were updated
@@ -344,47 +369,9 @@ public final class CheckBoxTree extends JTree {
         change = true;
     }
 
-    // When a node is checked/unchecked, updating the states of the predecessors
-    private void updatePredecessorsWithCheckMode(TreePath tp, boolean check) {
-        TreePath parentPath = tp.getParentPath();
-        // If it is the root, stop the recursive calls and return
-        if (parentPath == null) {
-            return;
-        }
-        CheckedNode parentCheckedNode = nodesCheckingState.get(parentPath);
-        DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
-        parentCheckedNode.allChildrenSelected = true;
-        parentCheckedNode.isSelected = false;
-        for (int i = 0; i < parentNode.getChildCount(); i++) {
-            DefaultMutableTreeNode child = (DefaultMutableTreeNode) parentNode.getChildAt(i);
-            Object el = child.getUserObject();
-            if ((el instanceof Category && ((Category) el).getNumberOfCommandsDescendants() == 0) || el instanceof Comment) {
-                continue;
-            }
-            TreePath childPath = parentPath.pathByAddingChild(child);
-            CheckedNode childCheckedNode = nodesCheckingState.get(childPath);
-            // It is enough that even one subtree is not fully selected
-            // to determine that the parent is not fully selected
-            if (!childCheckedNode.allChildrenSelected) {
-                parentCheckedNode.allChildrenSelected = false;
-            }
-            // If at least one child is selected, selecting also the parent
-            if (childCheckedNode.isSelected) {
-                parentCheckedNode.isSelected = true;
-            }
-        }
-        if (parentCheckedNode.isSelected) {
-            checkedPaths.add(parentPath);
-        } else {
-            checkedPaths.remove(parentPath);
-        }
-        // Go to upper predecessor
-        updatePredecessorsWithCheckMode(parentPath, check);
-    }
-
     // Recursively checks/unchecks a subtree
-    private void checkSubTree(TreePath tp, boolean check) {
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) tp.getLastPathComponent();
+    // The states of the predecessors follow from the model, so we don't need to update those ourselves.
+    private void checkSubTree(DefaultMutableTreeNode node, boolean check) {
         ModelElement code = (ModelElement) node.getUserObject();
         int toCheckChildCount = node.getChildCount();
         if (code instanceof Category) {
@@ -398,17 +385,8 @@ public final class CheckBoxTree extends JTree {
         if (code instanceof SetCommand) {
             patch.setSelected((SetCommand) code, check);
         }
-        CheckedNode cn = nodesCheckingState.get(tp);
-        cn.isSelected = check;
-
         for (int i = 0; i < toCheckChildCount; i++) {
-            checkSubTree(tp.pathByAddingChild(node.getChildAt(i)), check);
-        }
-        cn.allChildrenSelected = check && toCheckChildCount == node.getChildCount();
-        if (check) {
-            checkedPaths.add(tp);
-        } else {
-            checkedPaths.remove(tp);
+            checkSubTree((DefaultMutableTreeNode) node.getChildAt(i), check);
         }
     }
 
@@ -536,58 +514,30 @@ public final class CheckBoxTree extends JTree {
         }
     }
 
+    /**
+     * Selects the first node after the current selection containing the given
+     * string, wrapping around to the first one at the end of the tree. Only
+     * the path to that node is expanded.
+     *
+     * @param st The string to search for
+     * @param includeCode Whether or not to include leafs in the search
+     * @return The index of the selected result, and the total number of
+     * results
+     */
     public int[] search(String st, boolean includeCode) {
-        TreePath tp = new TreePath(getModel().getRoot());
-        int[] rows = getSelectionRows();
-        int row = rows.length > 0 ? rows[0] : -1;
-        int[] rescount = {0, 0};
-        TreePath fr = search(st.toLowerCase(), includeCode, tp, null, new int[]{row}, rescount);
-        int[] rows2 = getSelectionRows();
-        int row2 = rows2.length > 0 ? rows2[0] : -1;
-        if (row2 == row && fr != null) {
-            rescount[0] = 1;
-            setSelectionPath(fr);
-            scrollPathToVisible(fr);
-        }
-        return rescount;
-    }
-
-    private TreePath search(final String st, boolean includeCode, TreePath tp, TreePath firstResult, int[] currentRow, int[] rescount) {
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) tp.getLastPathComponent();
-        if (node.isLeaf() && !includeCode) {
-            return firstResult;
-        }
-        String s;
-        if (node.getUserObject() instanceof SetCommand) {
-            s = ((SetCommand) node.getUserObject()).getCode();
-        } else {
-            s = node.toString();
+        if (searchIndex == null) {
+            searchIndex = new TreeSearchIndex((DefaultMutableTreeNode) getModel().getRoot());
         }
-        if (s.toLowerCase().contains(st)) {
-            rescount[1]++;
-            int[] currentRows2 = getSelectionRows();
-            int currentRow2 = currentRows2.length > 0 ? currentRows2[0] : -1;
-            expandPath(tp.getParentPath());//Expanding a path prior to our current row will increase the current row
-            int[] currentRows3 = getSelectionRows();
-            int currentRow3 = currentRows3.length > 0 ? currentRows3[0] : -1;
-            if (currentRow2 == currentRow[0]) {
-                currentRow[0] = currentRow3;
-            }
-            if (firstResult == null) {
-                firstResult = tp;
-            }
-            int row = getRowForPath(tp);
-            if (row > currentRow[0] && currentRow3 == currentRow[0]) {
-                rescount[0] = rescount[1];
-                setSelectionPath(tp);
-                scrollPathToVisible(tp);
-            }
+        int[] results = searchIndex.search(st.toLowerCase(), includeCode);
+        if (results.length == 0) {
+            return new int[]{0, 0};
         }
-        for (int i = 0; i < node.getChildCount(); i++) {
-            firstResult = search(st, includeCode, tp.pathByAddingChild(node.getChildAt(i)), firstResult, currentRow, rescount);
-        }
-
-        return firstResult;
+        TreePath selected = getSelectionPath();
+        int idx = searchIndex.getNextResult(results, selected == null ? null : (DefaultMutableTreeNode) selected.getLastPathComponent());
+        TreePath tp = new TreePath(searchIndex.getNode(results[idx]).getPath());
+        setSelectionPath(tp);
+        scrollPathToVisible(tp);
+        return new int[]{idx + 1, results.length};
     }
 
     private static class CheckboxTreeMouseAdapter extends MouseAdapter {
@@ -748,7 +698,7 @@ public final class CheckBoxTree extends JTree {
                     cancelbecauseLeaf = !Options.INSTANCE.getLeafSelectionAllowed();
                 }
                 if (!cancelbecauseLeaf) {
-                    boolean checkMode = !tree.nodesCheckingState.get(tp).isSelected;
+                    boolean checkMode = !tree.isSelected((DefaultMutableTreeNode) tp.getLastPathComponent());
                     Object valid = isValidCheck(checkMode, tp);
                     ModelElement el = (ModelElement) userObject;
                     if (valid instanceof Category) {
@@ -781,7 +731,6 @@ public final class CheckBoxTree extends JTree {
                         tree.checkNode(tp, checkMode);
                     }
                     MainGUI.INSTANCE.requestFocus();
-                    ColorGiver.reset(tree.getPatch().getRoot());
                 }
             }
             orig.mouseClicked(mouseEvent);
@@ -846,7 +795,7 @@ public final class CheckBoxTree extends JTree {
                 return null;
             }
             Category parentC = (Category) ((DefaultMutableTreeNode) parentPath.getLastPathComponent()).getUserObject();
-            CheckedNode cn = tree.nodesCheckingState.get(parentPath);
+            CheckedNode cn = CheckBoxTree.getCheckedNode((DefaultMutableTreeNode) parentPath.getLastPathComponent());
             if (!parentC.isMutuallyExclusive() && cn.isSelected) {
                 return null;
             } else if (!parentC.isMutuallyExclusive()) {
@@ -859,7 +808,7 @@ public final class CheckBoxTree extends JTree {
         }
 
         private boolean confirmCheck(TreePath tp) {
-            CheckedNode cn = tree.nodesCheckingState.get(tp);
+            CheckedNode cn = CheckBoxTree.getCheckedNode((DefaultMutableTreeNode) tp.getLastPathComponent());
             if (!Options.INSTANCE.getShowConfirmPartiaclCategory()) {
                 return true;
             }
@@ -44,6 +44,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
@@ -51,7 +52,6 @@ import javax.swing.JTree;
 import javax.swing.plaf.basic.BasicTreeUI;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
-import javax.swing.tree.TreePath;
 
 /**
  *
@@ -74,24 +74,36 @@ class CheckBoxTreeCellRenderer extends DefaultTreeCellRenderer {
         iconMap.put(closedIcon, new HashMap<>());
 
     }
-    private DefaultMutableTreeNode currentNode;
+    // The components below are reused for every row we render, rather than
+    // creating new ones for each paint. Only one of the components in the
+    // first column is visible at a time, depending on the type of row.
+    private RendererPanel panel;
+    private JLabel label;
+    private JRadioButton radioButton;
+    private TristateCheckBox categoryCheckBox;
+    private TristateCheckBox commandCheckBox;
+    private RendererPanel emptySpace;
+    private Color defaultLabelForeground;
+    private boolean componentSizesValid = false;
+    // Derived fonts, which we only recreate when our base font changes
+    private Font derivedFontsBase;
+    private Font plainFont, boldFont, italicFont;
 
     @Override
-    public Component getTreeCellRendererComponent(JTree tree2, Object value, boolean sel, boolean expanded, boolean leaf, int row, boolean hasFocus) {
-        CheckBoxTree tree = (CheckBoxTree) tree2;
-        DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
-        TreePath tp = new TreePath(node.getPath());
-        currentNode = (((DefaultMutableTreeNode) tp.getLastPathComponent()));
-        CheckBoxTree.CheckedNode cn = tree.getCheckedNode(tp);
-        Component c = super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
-        if (currentNode.getUserObject() instanceof String) {
-            return c;
-        }
-        if (cn == null) {
-            cn = new CheckBoxTree.CheckedNode(true, false, true);
+    public void updateUI() {
+        super.updateUI();
+        if (panel != null) {//This is called from the super constructor, before we have any components
+            label.setForeground(null);//So the look and feel installs its own color
+            for (JComponent c : new JComponent[]{panel, label, radioButton, categoryCheckBox, commandCheckBox, emptySpace}) {
+                c.updateUI();
+            }
+            defaultLabelForeground = label.getForeground();
+            componentSizesValid = false;
         }
-        ModelElement modelElement = (ModelElement) currentNode.getUserObject();
-        JPanel panel = new JPanel();
+    }
+
+    private void createComponents() {
+        panel = new RendererPanel();
         panel.setOpaque(false);
         panel.setLayout(new GridBagLayout());
         GridBagConstraints constr = new GridBagConstraints();
@@ -99,68 +111,120 @@ class CheckBoxTreeCellRenderer extends DefaultTreeCellRenderer {
         constr.insets = new Insets(0, 0, 0, 0);
         constr.gridx = 1;
         constr.anchor = GridBagConstraints.EAST;
-        Component UI = determineUIComponent(modelElement, cn);
-        if (modelElement instanceof SetCommand) {
-            JLabel l = new JLabel(leafIcon);
-            UI.setPreferredSize(new Dimension(UI.getPreferredSize().width + l.getPreferredSize().width + 2, UI.getPreferredSize().height));
+        radioButton = new JRadioButton("") {
+            @Override
+            public void revalidate() {
+            }
+
+            @Override
+            public void repaint(long tm, int x, int y, int width, int height) {
+            }
+        };
+        categoryCheckBox = new RendererCheckBox();
+        commandCheckBox = new RendererCheckBox();
+        emptySpace = new RendererPanel();
+        emptySpace.setOpaque(false);
+        for (JComponent c : new JComponent[]{radioButton, categoryCheckBox, commandCheckBox, emptySpace}) {
+            panel.add(c, constr);
+        }
+
+        label = new JLabel() {
+            @Override
+            public void revalidate() {
+            }
+
+            @Override
+            public void repaint(long tm, int x, int y, int width, int height) {
+            }
+        };
+        defaultLabelForeground = label.getForeground();
+        constr.gridx = 2;
+        constr.insets.left = 2;
+        panel.add(label, constr);
+
+        JPanel padding = new RendererPanel();
+        padding.setOpaque(false);
+        constr.gridx = 3;
+        constr.weightx = 10000;
+        panel.add(padding, constr);
+    }
+
+    private void updateComponentSizes() {
+        categoryCheckBox.setPreferredSize(null);
+        Dimension d = categoryCheckBox.getPreferredSize();
+        emptySpace.setPreferredSize(d);
+        commandCheckBox.setPreferredSize(new Dimension(d.width + (leafIcon == null ? 0 : leafIcon.getIconWidth()) + 2, d.height));
+        componentSizesValid = true;
+    }
+
+    private Font getDerivedFont(int style) {
+        Font base = getFont();
+        if (base != derivedFontsBase) {
+            derivedFontsBase = base;
+            plainFont = base.deriveFont(Font.PLAIN);
+            boldFont = base.deriveFont(Font.BOLD);
+            italicFont = base.deriveFont(Font.ITALIC);
+        }
+        return style == Font.BOLD ? boldFont : style == Font.ITALIC ? italicFont : plainFont;
+    }
+
+    @Override
+    public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded, boolean leaf, int row, boolean hasFocus) {
+        DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
+        if (!(node.getUserObject() instanceof ModelElement)) {
+            return super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+        }
+        if (panel == null) {
+            createComponents();
         }
-        if (UI != null) {
-            panel.add(UI, constr);
+        if (!componentSizesValid) {
+            updateComponentSizes();
         }
+        CheckBoxTree.CheckedNode cn = CheckBoxTree.getCheckedNode(node);
+        if (cn == null) {
+            cn = new CheckBoxTree.CheckedNode(true, false, true);
+        }
+        ModelElement modelElement = (ModelElement) node.getUserObject();
+        showUIComponent(modelElement, cn);
+
         Color color = ColorGiver.getColor(modelElement);
-        JLabel label = new JLabel(value.toString());
-        setText(value.toString() + "abcd");
+        label.setText(modelElement.toString());
         if (color != null && modelElement instanceof Category) {
-            setFont(getFont().deriveFont(Font.BOLD));
+            label.setFont(getDerivedFont(Font.BOLD));
         } else if (modelElement.getTransientData().getOverwriteState() == TransientModelData.OverwriteState.Overwritten) {
-            setFont(getFont().deriveFont(Font.ITALIC));
+            label.setFont(getDerivedFont(Font.ITALIC));
         } else {
-            setFont(getFont().deriveFont(Font.PLAIN));
+            label.setFont(getDerivedFont(Font.PLAIN));
         }
-        label.setFont(getFont());
         if (!tree.isEnabled()) {
             color = ThemeManager.getColor(ThemeManager.ColorType.UINimbusDisabledText);
         }
-        if (color != null) {
-            label.setForeground(color);
-        }
+        label.setForeground(color != null ? color : defaultLabelForeground);
+        label.setIcon(null);//Commands don't have an icon
         decideIcon(modelElement, label, expanded);
-        constr.gridx = 2;
-        constr.insets.left = 2;
-        panel.add(label, constr);
 
-        JPanel padding = new JPanel();
-        padding.setOpaque(false);
-        constr.gridx = 3;
-        constr.weightx = 10000;
-        panel.add(padding, constr);
-
-        createTooltip(modelElement, panel);
+        // The tooltip is only created once it is asked for
+        panel.element = modelElement;
 
         //Set the size of the UI element to be at least the width of the tree
+        panel.setPreferredSize(null);
+        panel.invalidate();
         Dimension d = panel.getPreferredSize();
         int childIndent = ((BasicTreeUI) tree.getUI()).getLeftChildIndent() + ((BasicTreeUI) tree.getUI()).getRightChildIndent();
-        int depth = tp.getPathCount();
+        int depth = node.getLevel() + 1;
         panel.setPreferredSize(new Dimension(Math.max(d.width, tree.getWidth() - childIndent * depth), d.height));
 
         return panel;
     }
 
-    private Component determineUIComponent(ModelElement modelElement, CheckBoxTree.CheckedNode cn) {
-        Component UI = null;
+    private void showUIComponent(ModelElement modelElement, CheckBoxTree.CheckedNode cn) {
+        JComponent UI = null;
         if (modelElement.getParent() instanceof Category && ((Category) modelElement.getParent()).isMutuallyExclusive() && modelElement instanceof Category) {
-            UI = new JRadioButton("", cn.isSelected);
+            radioButton.setSelected(cn.isSelected);
+            UI = radioButton;
         } else if (((modelElement instanceof Category) && ((Category) modelElement).getNumberOfCommandsDescendants() == 0)) {
-            JLabel l = new JLabel(leafIcon);
-            l.setPreferredSize(new TristateCheckBox().getPreferredSize());
-            UI = l;
-            JPanel p = new JPanel();
-            p.setPreferredSize(new TristateCheckBox().getPreferredSize());
-            p.setOpaque(false);
-            UI = p;
-        } else if (true
-                && !(modelElement instanceof Comment)
-                && true) {
+            UI = emptySpace;
+        } else if (!(modelElement instanceof Comment)) {
             TristateCheckBox.State s;
             if (cn.isSelected && cn.hasChildren && !cn.allChildrenSelected) {
                 s = TristateCheckBox.PARTIALLY_SELECTED;
@@ -169,12 +233,15 @@ class CheckBoxTreeCellRenderer extends DefaultTreeCellRenderer {
             } else {
                 s = TristateCheckBox.NOT_SELECTED;
             }
-            UI = new TristateCheckBox("", s);
+            UI = modelElement instanceof SetCommand ? commandCheckBox : categoryCheckBox;
+            ((TristateCheckBox) UI).setState(s);
+        }
+        for (JComponent c : new JComponent[]{radioButton, categoryCheckBox, commandCheckBox, emptySpace}) {
+            c.setVisible(c == UI);
         }
-        return UI;
     }
 
-    private void createTooltip(ModelElement el, JPanel panel) {
+    private static String createTooltip(ModelElement el) {
         // Tooltip processing
         StringBuilder sb = new StringBuilder();
         TransientModelData transientData = el.getTransientData();
@@ -270,9 +337,7 @@ class CheckBoxTreeCellRenderer extends DefaultTreeCellRenderer {
             }
 
         }
-        if (sb.length() > 0) {
-            panel.setToolTipText("<html>" + sb.toString());
-        }
+        return sb.length() > 0 ? "<html>" + sb.toString() : null;
     }
 
     private void decideIcon(ModelElement element, JLabel label, boolean expanded) {
@@ -330,4 +395,43 @@ class CheckBoxTreeCellRenderer extends DefaultTreeCellRenderer {
         ico.paintIcon(null, g, 0, 0);
         return new ImageIcon(image);
     }
+
+    /**
+     * The panel we return for every model element, and the spacers on it.
+     * Like the other components on it, it ignores the revalidate and repaint
+     * requests caused by reconfiguring it, since it is only ever used to paint
+     * a single row.
+     */
+    private static class RendererPanel extends JPanel {
+
+        private ModelElement element;
+
+        @Override
+        public String getToolTipText() {
+            return element == null ? null : createTooltip(element);
+        }
+
+        @Override
+        public void revalidate() {
+        }
+
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+        }
+    }
+
+    private static class RendererCheckBox extends TristateCheckBox {
+
+        RendererCheckBox() {
+            super("", NOT_SELECTED);
+        }
+
+        @Override
+        public void revalidate() {
+        }
+
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+        }
+    }
 }
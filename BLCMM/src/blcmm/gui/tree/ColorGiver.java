@@ -23,6 +23,7 @@ import blcmm.model.properties.GlobalListOfProperties;
 import blcmm.model.properties.PropertyChecker;
 import blcmm.utilities.Options;
 import java.awt.Color;
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -121,4 +122,36 @@ public class ColorGiver {
     public static final void reset(Category root) {
         OverwriteChecker.reset(root);
     }
+
+    /**
+     * Analyzes the given tree before it is shown, which may be done off the
+     * EDT, since nothing is written to the tree until the result is installed.
+     *
+     * @param root The root of the tree about to be shown
+     * @return The analysis, to be passed to install
+     */
+    public static final OverwriteChecker prepare(Category root) {
+        return OverwriteChecker.prepare(root);
+    }
+
+    /**
+     * Colors the given tree according to an analysis made by prepare, rather
+     * than analyzing it again.
+     *
+     * @param prepared The analysis of the tree
+     * @param root The root of the tree being shown
+     */
+    public static final void install(OverwriteChecker prepared, Category root) {
+        OverwriteChecker.install(prepared, root);
+    }
+
+    /**
+     * Updates the coloring after the given commands have been added, removed,
+     * moved, checked or unchecked, without rescanning the entire tree.
+     *
+     * @param changed The commands that changed
+     */
+    public static final void update(Collection<SetCommand> changed) {
+        OverwriteChecker.onCommandsChanged(changed);
+    }
 }
@@ -26,8 +26,12 @@ import blcmm.model.ModelElementContainer;
 import blcmm.model.SetCommand;
 import blcmm.model.TransientModelData;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
@@ -43,9 +47,10 @@ import java.util.TreeSet;
 public class OverwriteChecker {
 
     /**
-     * The single instance of this class
+     * The instance describing the tree that is currently shown. Only to be
+     * used on the EDT.
      */
-    private static final OverwriteChecker INSTANCE = new OverwriteChecker();
+    private static OverwriteChecker INSTANCE = new OverwriteChecker(null);
 
     public static List<SetCommand> getCompleteOverwriters(SetCommand command) {
         return getList(command, true, false);
@@ -71,13 +76,7 @@ public class OverwriteChecker {
                 = Helpers.getElementsWithPrefix(
                         INSTANCE.overwriteMap,
                         subPrefixUseful ? Helpers.getHotfixFreeStart(command) : start);
-        SetCommandPlus thisCommand = null;
-        for (SetCommandPlus s : elementsWithPrefix.get(start)) {
-            if (s.command == command) {
-                thisCommand = s;//This could be done with a hashmap or so, but since this loop will usually only be a very small number of elements, this is fine.
-                break;
-            }
-        }
+        SetCommandPlus thisCommand = INSTANCE.registered.get(command);
         for (String prefix : elementsWithPrefix.keySet()) {
             if (1 == 0) { //Two ways of doing the same thing... I think, the 'false' branch is more effiecient about it.
                 if (false //below is the super verbose way of doing things, with multiple startsWith and equals evaluations
@@ -163,167 +162,364 @@ public class OverwriteChecker {
      * @param root The category at which to start re-scanning
      */
     public static void reset(Category root) {
-        INSTANCE.colorTypeMap.clear();
-        INSTANCE.overwriteMap.clear();
-        INSTANCE.scan(root, false);
-        INSTANCE.scan(root, true);
+        INSTANCE = new OverwriteChecker(root);
+        INSTANCE.scanTree();
+    }
+
+    /**
+     * Analyzes the given tree ahead of it being shown, without touching
+     * anything that is currently shown. Since the results are only written to
+     * the tree once they're installed, this may run on any thread, as long as
+     * nothing changes the tree until it is done.
+     *
+     * @param root The root of the tree about to be shown
+     * @return The results, to be passed to install
+     */
+    public static OverwriteChecker prepare(Category root) {
+        OverwriteChecker checker = new OverwriteChecker(root);
+        checker.pendingStates = new HashMap<>();
+        checker.scanTree();
+        return checker;
+    }
+
+    /**
+     * Writes the results of an earlier call to prepare to the tree, and uses
+     * them from now on. The tree must not have changed since it was prepared.
+     *
+     * @param prepared The results of prepare
+     * @param root The root of the tree that is being shown
+     */
+    public static void install(OverwriteChecker prepared, Category root) {
+        if (prepared.root != root || prepared.pendingStates == null) {
+            throw new IllegalArgumentException("Can only install an unused analysis of the given tree");
+        }
+        Map<ModelElement, TransientModelData.OverwriteState> states = prepared.pendingStates;
+        prepared.pendingStates = null;
+        for (Map.Entry<ModelElement, TransientModelData.OverwriteState> entry : states.entrySet()) {
+            prepared.setOverwriteState(entry.getKey(), entry.getValue());
+        }
+        INSTANCE = prepared;
+    }
+
+    /**
+     * Updates our overwrite information after the given commands have been
+     * added to, removed from, moved within, checked or unchecked in the tree
+     * we last scanned. Only the commands modifying the same objects and fields
+     * as the given commands are re-analyzed, each of them only once.
+     *
+     * @param commands The commands that changed
+     */
+    public static void onCommandsChanged(Collection<SetCommand> commands) {
+        LinkedHashSet<String> prefixes = new LinkedHashSet<>();
+        //Unregister everything first: moved commands may sit in the wrong spot of our ordered sets until they are gone
+        for (SetCommand command : commands) {
+            addPrefix(prefixes, INSTANCE.unregister(command));
+        }
+        for (SetCommand command : commands) {
+            if (INSTANCE.isInTree(command)) {
+                addPrefix(prefixes, INSTANCE.register(command));
+            }
+        }
+        for (String prefix : prefixes) {
+            INSTANCE.reanalyzeRange(prefix);
+        }
     }
+
+    private static void addPrefix(Collection<String> prefixes, String prefix) {
+        if (prefix != null) {
+            prefixes.add(prefix);
+        }
+    }
+
     /**
      * The structure we use to store our overwrite statuses
      */
     private final TreeMap<String, TreeSet<SetCommandPlus>> overwriteMap = new TreeMap<>();
 
+    /**
+     * The commands currently present in our overwriteMap, for quick lookups.
+     */
+    private final HashMap<SetCommand, SetCommandPlus> registered = new HashMap<>();
+
+    /**
+     * For each container, the number of overwritten descendants and the
+     * number of overwriting descendants, respectively. This lets us update the
+     * color of ancestors without looking at their entire contents.
+     */
+    private final HashMap<ModelElementContainer<?>, int[]> descendantCounts = new HashMap<>();
+
+    /**
+     * The root of the tree we scanned.
+     */
+    private final Category root;
+
+    /**
+     * The states we determined for the elements of our tree while it was not
+     * shown yet, or null if we write those to the tree directly.
+     */
+    private HashMap<ModelElement, TransientModelData.OverwriteState> pendingStates = null;
+
     /**
      * A HashMap to keep track of what ColorType to use. This lets us change the
      * color of the highlighting dynamically as the theme is changed.
      */
     private final HashMap<ModelElement, ThemeManager.ColorType> colorTypeMap = new HashMap<>();
 
+    private OverwriteChecker(Category root) {
+        this.root = root;
+    }
+
     /**
-     * The single, private, constructor, that is called a grand total of 1 time.
+     * Scans and analyzes our entire tree.
      */
-    private OverwriteChecker() {
-        if (INSTANCE != null) {
-            throw new IllegalStateException();
-        }
+    private void scanTree() {
+        List<SetCommandPlus> ordered = new ArrayList<>();
+        scan(root, false, ordered);
+        scan(root, true, ordered);
+        analyze(ordered);
     }
 
     /**
      * Scans the given element -- if it is a container, we will recurse into it,
-     * otherwise we'll analyze it as a leaf node.
+     * otherwise we'll analyze it as a leaf node. All commands that take part
+     * in overwriting are registered, and added to the provided list in the
+     * order in which they are executed.
      *
      * @param element The element to scan
-     * @return True if this element or any of its children are overwriters.
+     * @param hotfixes Whether or not we're looking at hotfixes in this pass
+     * @param ordered The list to add the registered commands to
      */
-    private boolean scan(ModelElement element, final boolean hotfixes) {
+    private void scan(ModelElement element, final boolean hotfixes, List<SetCommandPlus> ordered) {
+        if (!hotfixes) {
+            setOverwriteState(element, TransientModelData.OverwriteState.Normal);
+        }
         if (element instanceof ModelElementContainer) {
-            preOrder(element, hotfixes);
-            if (((ModelElementContainer) element).getElements().isEmpty()) {
-                return analyzeLeaf(element, true);
-            } else if (true) {//Since the root and 'mods' don't accept transient data... we can't be smart here, yet
-                boolean isOverwriting = false;
-                for (ModelElement el : ((ModelElementContainer<ModelElement>) element).getElements()) {
-                    isOverwriting = combine(scan(el, hotfixes), isOverwriting);
-                }
-                postOrder(element, isOverwriting);
-                return isOverwriting;
-            } else {//If nothing inside us is selected, don't even bother scanning
-                return false;
+            for (ModelElement el : ((ModelElementContainer<?>) element).getElements()) {
+                scan(el, hotfixes, ordered);
             }
-        } else {
-            //leaf
-            return analyzeLeaf(element, hotfixes);
+        } else if (element instanceof SetCommand && isRelevant((SetCommand) element, hotfixes)) {
+            ordered.add(add((SetCommand) element));
         }
     }
 
     /**
-     * This is called when first processing a category
+     * Checks if the given element is still part of the tree we last scanned.
+     */
+    private boolean isInTree(ModelElement element) {
+        while (element.getParent() != null) {
+            element = element.getParent();
+        }
+        return element == root;
+    }
+
+    /**
+     * Checks if the given command takes part in overwriting.
      *
-     * @param element The element to process
+     * @param command The command to check
+     * @param hotfixesOnly Whether or not we're looking at hotfixes
+     * @return True if the command should be analyzed
      */
-    private void preOrder(ModelElement element, boolean secondRun) {
-        if (!secondRun) {
-            colorTypeMap.remove(element);
-            element.getTransientData().setOverwriteState(TransientModelData.OverwriteState.Normal);
+    private static boolean isRelevant(SetCommand command, final boolean hotfixesOnly) {
+        if (!command.isSelected()) {
+            return false;
+        }
+        if (command.getValue().startsWith("+(")) {
+            return false;
+        }
+        if (command.getField().equalsIgnoreCase("levellist")) {
+            return false;
+        }
+        if (command.getParent() == null) {
+            return false;
         }
+        return (command.getParent() instanceof HotfixWrapper) == hotfixesOnly;
+    }
+
+    private static boolean isRelevant(SetCommand command) {
+        return isRelevant(command, command.getParent() instanceof HotfixWrapper);
+    }
+
+    /**
+     * Adds the given command to our overwriteMap, without analyzing it.
+     *
+     * @param command The command to add
+     * @return The wrapper we're using for the command
+     */
+    private SetCommandPlus add(SetCommand command) {
+        SetCommandPlus plus = new SetCommandPlus(command);
+        registered.put(command, plus);
+        overwriteMap.putIfAbsent(plus.start, new TreeSet<>());
+        overwriteMap.get(plus.start).add(plus);
+        return plus;
     }
 
     /**
-     * This is called when we have finished processing a category.
+     * Registers the given command if it takes part in overwriting. The
+     * command must not be registered already.
      *
-     * @param element The element we've just finished processing
-     * @param isOverwriting Whether or not this element (or its contents) is
-     * overwriting
+     * @param command The command to register
+     * @return The prefix of the commands that need to be re-analyzed, or null
+     * if nothing changed
      */
-    private void postOrder(ModelElement element, boolean isOverwriting) {
-        // If we're overwriting but we're not marked as overwriting yet,
-        // do so.
-        if (isOverwriting && !colorTypeMap.containsKey(element)) {
-            this.setOverwriter(element);
+    private String register(SetCommand command) {
+        if (!isRelevant(command)) {
+            clearState(command);
+            return null;
         }
+        return add(command).hotfixFreeStart;
     }
 
     /**
-     * Convenience function to combine the results of two scans/results. This is
-     * just doing a logical OR on the two arguments, but it makes the code look
-     * a bit cleaner.
+     * Unregisters the given command, and resets its overwrite state.
      *
-     * @param result One result to compare
-     * @param newResult The other result to compare
-     * @return True of either result or newResult are True, False if they are
-     * both false
+     * @param command The command to unregister
+     * @return The prefix of the commands that need to be re-analyzed, or null
+     * if nothing changed
      */
-    private boolean combine(boolean result, boolean newResult) {
-        return result || newResult;
+    private String unregister(SetCommand command) {
+        clearState(command);
+        SetCommandPlus plus = registered.remove(command);
+        if (plus == null) {
+            return null;
+        }
+        TreeSet<SetCommandPlus> set = overwriteMap.get(plus.start);
+        set.removeIf(p -> p == plus);//Identity based, since the order of the command may have changed by now
+        if (set.isEmpty()) {
+            overwriteMap.remove(plus.start);
+        }
+        uncount(plus);
+        return plus.hotfixFreeStart;
+    }
+
+    private void clearState(SetCommand command) {
+        setOverwriteState(command, TransientModelData.OverwriteState.Normal);
     }
 
     /**
-     * Analyze a leaf element. Should nearly always be a SetCommand, but could
-     * technically be a Category.
+     * Re-analyzes all commands whose start begins with the given prefix. Since
+     * commands only ever overwrite commands with the same hotfix-free start,
+     * this covers everything that could be affected by a change to a command
+     * with the given hotfix-free start.
      *
-     * @param element The element to investigate
-     * @return True if we were set as an overwriter, False otherwise.
+     * @param prefix The hotfix-free start of the changed command
      */
-    private boolean analyzeLeaf(ModelElement element, final boolean hotfixesOnly) {
-        if (!hotfixesOnly) {//first scan
-            element.getTransientData().setOverwriteState(TransientModelData.OverwriteState.Normal);
+    private void reanalyzeRange(String prefix) {
+        if (prefix == null) {
+            return;
         }
-        if (element instanceof SetCommand) {
-            if (!((SetCommand) element).isSelected()) {
-                return false;
-            }
-            if (((SetCommand) element).getValue().startsWith("+(")) {
-                return false;
-            }
-            if (((SetCommand) element).getField().equalsIgnoreCase("levellist")) {
-                return false;
-            }
-            if ((element.getParent() instanceof HotfixWrapper) != hotfixesOnly) {//Note that we are guaranteed to have a parent, so no nullpointer can be thrown
-                return false;
-            }
-            SetCommand setCommand = (SetCommand) element;
-            String start = Helpers.getStart(setCommand);
-            String noHotfixPrefix = Helpers.getHotfixFreeStart(setCommand);
-            SortedMap<String, TreeSet<SetCommandPlus>> elementsWithPrefix = Helpers.getElementsWithPrefix(overwriteMap, noHotfixPrefix);
-            SortedMap<String, TreeSet<SetCommandPlus>> elementsWithFullPrefix = Helpers.getElementsWithPrefix(overwriteMap, start);
-            int p_overwrites = 0;
-            for (String prefix : elementsWithPrefix.keySet()) {
+        SortedMap<String, TreeSet<SetCommandPlus>> range = Helpers.getElementsWithPrefix(overwriteMap, prefix);
+        List<SetCommandPlus> ordered = new ArrayList<>();
+        for (TreeSet<SetCommandPlus> set : range.values()) {
+            ordered.addAll(set);
+        }
+        Collections.sort(ordered);
+        analyze(ordered);
+    }
+
+    /**
+     * Analyzes the given commands, which must be provided in the order in
+     * which they are executed, and updates the coloring of them and their
+     * ancestors.
+     *
+     * @param ordered The commands to analyze
+     */
+    private void analyze(List<SetCommandPlus> ordered) {
+        TreeMap<String, SetCommandPlus> lastWithStart = new TreeMap<>();
+        for (SetCommandPlus plus : ordered) {
+            plus.partialOverwriter = false;
+            plus.overwriter = false;
+            plus.overwritten = false;
+        }
+        for (SetCommandPlus plus : ordered) {
+            String start = plus.start;
+            for (String prefix : Helpers.getElementsWithPrefix(lastWithStart, plus.hotfixFreeStart).keySet()) {
                 if (prefix.startsWith(start)) {//We completely overwrite these, so these are handled below
                     continue;
                 } else if (!start.startsWith(prefix)) {//This hotfix modifies a non-overlapping part from the ones starting with the current prefix
                     continue;
                 }
-                p_overwrites++;
-                //ModelElement el = elementsWithPrefix.get(prefix).last().command;
-                //setPartialOverwritten(el);//We don't color partially overwritten elements, only partial overwriters
-            }
-            if (p_overwrites > 0) {
-                setPartialOverwriter(element);
+                //We don't color partially overwritten elements, only partial overwriters
+                plus.partialOverwriter = true;
+                break;
             }
-            boolean overwrite = false;
-            if (!elementsWithFullPrefix.isEmpty()) {
-                int count = 0;
-                for (String prefix : elementsWithFullPrefix.keySet()) {
-                    if (!isValidSuperString(prefix, start)) {
-                        continue;
-                    }
-                    ModelElement el = elementsWithFullPrefix.get(prefix).last().command;
-                    count++;
-                    setOverwritten(el);
-                    while ((el = el.getParent()) != null) {
-                        setOverwritten(el);
-                    }
-                }
-                if (count > 0) {
-                    setOverwriter(element);
-                    overwrite = true;
+            for (String prefix : Helpers.getElementsWithPrefix(lastWithStart, start).keySet()) {
+                if (!isValidSuperString(prefix, start)) {
+                    continue;
                 }
+                lastWithStart.get(prefix).overwritten = true;
+                plus.overwriter = true;
+            }
+            lastWithStart.put(start, plus);
+        }
+        for (SetCommandPlus plus : ordered) {
+            uncount(plus);
+            count(plus);
+            updateColor(plus);
+        }
+    }
+
+    /**
+     * Adds the overwrite status of the given command to the counts of its
+     * current ancestors, and remembers which ancestors those were.
+     */
+    private void count(SetCommandPlus plus) {
+        plus.countedOverwritten = plus.overwritten;
+        plus.countedOverwriter = plus.overwriter;
+        plus.countedAncestors.clear();
+        if (!plus.overwritten && !plus.overwriter) {
+            return;
+        }
+        ModelElementContainer<?> el = plus.command.getParent();
+        while (el != null) {
+            plus.countedAncestors.add(el);
+            int[] counts = descendantCounts.computeIfAbsent(el, k -> new int[2]);
+            counts[0] += plus.overwritten ? 1 : 0;
+            counts[1] += plus.overwriter ? 1 : 0;
+            updateColor(el, counts);
+            el = el.getParent();
+        }
+    }
+
+    /**
+     * Removes the previously counted overwrite status of the given command
+     * from the ancestors it was counted in.
+     */
+    private void uncount(SetCommandPlus plus) {
+        for (ModelElementContainer<?> el : plus.countedAncestors) {
+            int[] counts = descendantCounts.get(el);
+            counts[0] -= plus.countedOverwritten ? 1 : 0;
+            counts[1] -= plus.countedOverwriter ? 1 : 0;
+            if (counts[0] == 0 && counts[1] == 0) {
+                descendantCounts.remove(el);
             }
-            overwriteMap.putIfAbsent(start, new TreeSet<>());
-            overwriteMap.get(start).add(new SetCommandPlus(setCommand));
-            return overwrite;
+            updateColor(el, counts);
+        }
+        plus.countedAncestors.clear();
+        plus.countedOverwritten = false;
+        plus.countedOverwriter = false;
+    }
+
+    private void updateColor(SetCommandPlus plus) {
+        ModelElement element = plus.command;
+        if (plus.overwritten) {
+            setOverwritten(element);
+        } else if (plus.overwriter) {
+            setOverwriter(element);
+        } else if (plus.partialOverwriter) {
+            setPartialOverwriter(element);
+        } else {
+            setOverwriteState(element, TransientModelData.OverwriteState.Normal);
+        }
+    }
+
+    private void updateColor(ModelElementContainer<?> container, int[] counts) {
+        if (counts[0] > 0) {
+            setOverwritten(container);
+        } else if (counts[1] > 0) {
+            setOverwriter(container);
+        } else {
+            setOverwriteState(container, TransientModelData.OverwriteState.Normal);
         }
-        return false;
     }
 
     /**
@@ -333,7 +529,7 @@ public class OverwriteChecker {
      * @param element The element to set
      */
     private void setOverwriter(ModelElement element) {
-        this.setOverwriteState(element, ThemeManager.ColorType.TreeOverwriterChecker, TransientModelData.OverwriteState.Overwriter);
+        this.setOverwriteState(element, TransientModelData.OverwriteState.Overwriter);
     }
 
     /**
@@ -343,7 +539,7 @@ public class OverwriteChecker {
      * @param element The element to set
      */
     private void setOverwritten(ModelElement element) {
-        this.setOverwriteState(element, ThemeManager.ColorType.TreeOverwrittenChecker, TransientModelData.OverwriteState.Overwritten);
+        this.setOverwriteState(element, TransientModelData.OverwriteState.Overwritten);
     }
 
     /**
@@ -353,7 +549,7 @@ public class OverwriteChecker {
      * @param element The element to set
      */
     private void setPartialOverwritten(ModelElement element) {
-        this.setOverwriteState(element, ThemeManager.ColorType.TreePartialOverwrittenChecker, TransientModelData.OverwriteState.PartialOverwritten);
+        this.setOverwriteState(element, TransientModelData.OverwriteState.PartialOverwritten);
     }
 
     /**
@@ -363,36 +559,73 @@ public class OverwriteChecker {
      * @param element The element to set
      */
     private void setPartialOverwriter(ModelElement element) {
-        this.setOverwriteState(element, ThemeManager.ColorType.TreePartialOverwriterChecker, TransientModelData.OverwriteState.PartialOverwriter);
+        this.setOverwriteState(element, TransientModelData.OverwriteState.PartialOverwriter);
     }
 
     /**
-     * Convenience function to set overwrite status on an element.
+     * Convenience function to set overwrite status on an element. If our tree
+     * isn't shown yet, we only remember the state, to be set once we're
+     * installed.
      *
      * @param element The element to set
-     * @param colorType The ThemeManager.ColorType constant to use for color
      * @param overwriteState The state to set for the given element
      */
-    private void setOverwriteState(ModelElement element, ThemeManager.ColorType colorType, TransientModelData.OverwriteState overwriteState) {
-        if (element.getTransientData().setOverwriteState(overwriteState)) {
-            colorTypeMap.put(element, colorType);
+    private void setOverwriteState(ModelElement element, TransientModelData.OverwriteState overwriteState) {
+        if (pendingStates != null) {
+            if (overwriteState != TransientModelData.OverwriteState.Normal
+                    || element.getTransientData().getOverwriteState() != TransientModelData.OverwriteState.Normal) {
+                pendingStates.put(element, overwriteState);
+            } else {
+                pendingStates.remove(element);
+            }
+        } else if (overwriteState == TransientModelData.OverwriteState.Normal) {
+            element.getTransientData().setOverwriteState(overwriteState);
+            colorTypeMap.remove(element);
+        } else if (element.getTransientData().setOverwriteState(overwriteState)) {
+            colorTypeMap.put(element, getColorType(overwriteState));
         }
     }
 
-    private static final class SetCommandPlus implements Comparable<SetCommandPlus> {
+    private static ThemeManager.ColorType getColorType(TransientModelData.OverwriteState overwriteState) {
+        switch (overwriteState) {
+            case Overwriter:
+                return ThemeManager.ColorType.TreeOverwriterChecker;
+            case Overwritten:
+                return ThemeManager.ColorType.TreeOverwrittenChecker;
+            case PartialOverwriter:
+                return ThemeManager.ColorType.TreePartialOverwriterChecker;
+            case PartialOverwritten:
+                return ThemeManager.ColorType.TreePartialOverwrittenChecker;
+            default:
+                return null;
+        }
+    }
 
-        private static int COUNTER = 0;
+    /**
+     * Wraps a command we're tracking. These are ordered by the position of
+     * their command in the tree, rather than by the moment they were
+     * registered, so commands can be added anywhere in the tree without
+     * invalidating our overwriteMap.
+     */
+    private static final class SetCommandPlus implements Comparable<SetCommandPlus> {
 
         private final SetCommand command;
-        private final int idx = COUNTER++;
+        private final String start;
+        private final String hotfixFreeStart;
+
+        private boolean overwritten, overwriter, partialOverwriter;
+        private boolean countedOverwritten, countedOverwriter;
+        private final List<ModelElementContainer<?>> countedAncestors = new ArrayList<>(0);
 
         SetCommandPlus(SetCommand command) {
             this.command = command;
+            this.start = Helpers.getStart(command);
+            this.hotfixFreeStart = Helpers.getHotfixFreeStart(command);
         }
 
         @Override
         public int compareTo(SetCommandPlus t) {
-            return idx - t.idx;
+            return Helpers.compareExecutionOrder(command, t.command);
         }
 
     }
@@ -433,6 +666,20 @@ public class OverwriteChecker {
             return object + field;
         }
 
+        /**
+         * Compares two commands by the order in which they are executed. All
+         * regular commands are executed before all hotfixes, and otherwise
+         * commands are executed in the order they appear in the tree.
+         */
+        private static int compareExecutionOrder(SetCommand a, SetCommand b) {
+            boolean hotfixA = a.getParent() instanceof HotfixWrapper;
+            boolean hotfixB = b.getParent() instanceof HotfixWrapper;
+            if (hotfixA != hotfixB) {
+                return hotfixA ? 1 : -1;
+            }
+            return a.compareTreePosition(b);
+        }
+
         private static String getHotfixFreeStart(SetCommand setCommand) {
             String start = setCommand.getField();
             int min = start.length();
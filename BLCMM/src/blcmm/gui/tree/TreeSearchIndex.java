@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.gui.tree;
+
+import blcmm.model.SetCommand;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/**
+ * The lowercase text of every node of a tree, in the order in which they are
+ * shown, to search trough. The index is only valid as long as the tree does
+ * not change, after which a new one must be made.
+ *
+ * @author LightChaosman
+ */
+class TreeSearchIndex {
+
+    private final DefaultMutableTreeNode[] nodes;
+    private final String[] texts;
+    private final boolean[] leafs;
+    private final Map<DefaultMutableTreeNode, Integer> positions = new IdentityHashMap<>();
+
+    //The results of the last query, since the user will usually step trough those
+    private String lastQuery;
+    private boolean lastIncludeCode;
+    private int[] lastResults;
+
+    TreeSearchIndex(DefaultMutableTreeNode root) {
+        List<DefaultMutableTreeNode> list = new ArrayList<>();
+        Enumeration<?> e = root.preorderEnumeration();
+        while (e.hasMoreElements()) {
+            list.add((DefaultMutableTreeNode) e.nextElement());
+        }
+        nodes = list.toArray(new DefaultMutableTreeNode[list.size()]);
+        texts = new String[nodes.length];
+        leafs = new boolean[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            DefaultMutableTreeNode node = nodes[i];
+            String s;
+            if (node.getUserObject() instanceof SetCommand) {
+                s = ((SetCommand) node.getUserObject()).getCode();
+            } else {
+                s = node.toString();
+            }
+            texts[i] = s == null ? "" : s.toLowerCase();
+            leafs[i] = node.isLeaf();
+            positions.put(node, i);
+        }
+    }
+
+    /**
+     * Returns the positions of all nodes containing the given string, in
+     * ascending order. Unless includeCode is set, leafs are skipped.
+     *
+     * @param query The lowercase string to search for
+     * @param includeCode
+     * @return
+     */
+    int[] search(String query, boolean includeCode) {
+        if (query.equals(lastQuery) && includeCode == lastIncludeCode) {
+            return lastResults;
+        }
+        int[] results = new int[16];
+        int count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if ((includeCode || !leafs[i]) && texts[i].contains(query)) {
+                if (count == results.length) {
+                    results = Arrays.copyOf(results, count * 2);
+                }
+                results[count++] = i;
+            }
+        }
+        lastQuery = query;
+        lastIncludeCode = includeCode;
+        lastResults = Arrays.copyOf(results, count);
+        return lastResults;
+    }
+
+    /**
+     * Returns the index in the given results of the first result after the
+     * given node, wrapping around to the first result at the end of the tree.
+     *
+     * @param results The results of a search, which may not be empty
+     * @param selected The node to start after, or null to start at the top
+     * @return
+     */
+    int getNextResult(int[] results, DefaultMutableTreeNode selected) {
+        int current = selected == null ? -1 : getPosition(selected);
+        int idx = Arrays.binarySearch(results, current + 1);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return idx == results.length ? 0 : idx;
+    }
+
+    /**
+     * Returns the position of the given node, or -1 if it is not in the index.
+     *
+     * @param node
+     * @return
+     */
+    int getPosition(DefaultMutableTreeNode node) {
+        Integer pos = positions.get(node);
+        return pos == null ? -1 : pos;
+    }
+
+    DefaultMutableTreeNode getNode(int position) {
+        return nodes[position];
+    }
+}
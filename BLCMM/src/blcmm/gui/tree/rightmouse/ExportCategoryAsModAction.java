@@ -49,7 +49,6 @@ public class ExportCategoryAsModAction extends RightMouseButtonAction {
 
     @Override
     public void action() {
-        tree.resetCheckingState();
         Category c = (Category) ((DefaultMutableTreeNode) tree.getSelectionPaths()[0].getLastPathComponent()).getUserObject();
         BLCMM_FileChooser fc = new BLCMM_FileChooser(MainGUI.INSTANCE.getExportDialogPath(), c.getName(), true, true);
         int returnVal = fc.showSaveDialog(MainGUI.INSTANCE);
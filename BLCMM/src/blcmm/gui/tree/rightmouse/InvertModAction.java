@@ -19,13 +19,25 @@ package blcmm.gui.tree.rightmouse;
 
 import blcmm.data.lib.BorderlandsObject;
 import blcmm.data.lib.DataManager;
+import blcmm.data.lib.DataManager.Dump;
+import blcmm.gui.MainGUI;
+import blcmm.gui.components.ProgressDialog;
 import blcmm.gui.tree.CheckBoxTree;
 import blcmm.model.*;
+import general.utilities.GlobalLogger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingWorker;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreePath;
 
@@ -35,6 +47,8 @@ import javax.swing.tree.TreePath;
  */
 public class InvertModAction extends RightMouseButtonAction {
 
+    private static final int INVERSION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     public InvertModAction(CheckBoxTree tree) {
         super(tree, "Invert mod", new Requirements(true, true, true, false));
     }
@@ -53,144 +67,238 @@ public class InvertModAction extends RightMouseButtonAction {
 
     @Override
     public void action() {
-
-        DataManager.getDictionary().getElementsInClassWithPrefix("SkillDefinition", "adssada");
         TreePath[] paths = tree.getSelectionPaths();
         DefaultMutableTreeNode node = (DefaultMutableTreeNode) paths[0].getLastPathComponent();
         Category toBeInverted = (Category) node.getUserObject();
         CompletePatch patch = tree.getPatch();
+        commands = toBeInverted.getNumberOfCommandsDescendants();
+        inverted = 0;
+
+        // Look up the original values in the background, since that can take
+        // a while for large mods. The dialog blocks until the inverter is done.
+        Inverter inverter = new Inverter(toBeInverted);
+        ProgressDialog progress = new ProgressDialog(MainGUI.INSTANCE, inverter.objectToCommandsMap.size(),
+                "Inverting %s object%s", "", "s",
+                "Inverting object %d/%d", () -> inverter.cancel(true));
+        inverter.progress = progress;
+        inverter.execute();
+        progress.setVisible(true);
+        Inversion inversion;
+        try {
+            inversion = inverter.get();
+        } catch (CancellationException ex) {
+            return;
+        } catch (InterruptedException | ExecutionException ex) {
+            GlobalLogger.log(ex);
+            return;
+        }
+
         Category rootOfInverted = new Category(toBeInverted.getName() + "'s inversion");
         Category uninv = new Category("Could not be inverted");
         Category inv = new Category("Sucesfully inverted");
-        patch.insertElementInto(uninv, rootOfInverted);
-        patch.insertElementInto(inv, rootOfInverted);
-        commands = toBeInverted.getNumberOfCommandsDescendants();
-        inverted = 0;
-        invertInto(toBeInverted, inv, uninv, patch);
+        patch.insertElementsInto(inversion.uninverted, uninv);
+        patch.insertElementsInto(inversion.inverted, inv);
         inv.sort();
         uninv.sort();
-        patch.insertElementInto(rootOfInverted, toBeInverted);
-        if (uninv.size() == 0) {
-            patch.removeElementFromParentCategory(uninv);
+        if (uninv.size() > 0) {
+            patch.insertElementInto(uninv, rootOfInverted);
         }
-        if (inv.size() == 0) {
-            patch.removeElementFromParentCategory(inv);
+        if (inv.size() > 0) {
+            patch.insertElementInto(inv, rootOfInverted);
         }
+        patch.insertElementInto(rootOfInverted, toBeInverted);
+        inverted = inv.getNumberOfCommandsDescendants();
         DefaultMutableTreeNode node2 = CheckBoxTree.createTree(rootOfInverted);
         tree.getModel().insertNodeInto(node2, node, node.getChildCount());
         tree.setChanged(true);
     }
 
-    private void invertInto(Category toBeInverted, Category inverted, Category uninverted, CompletePatch patch) {
-        long l = System.currentTimeMillis();
-        HashMap<String, HashSet<String>> classToObjectsMap = new HashMap<>();
-        HashMap<String, HashSet<SetCommand>> objectToCommandsMap = new HashMap<>();
-        Collection<SetCommand> codes = new ArrayList<>();
-        Collection<HotfixWrapper> wrappers = new ArrayList<>();
-        extractData(toBeInverted, codes, wrappers);
-        for (SetCommand s : codes) {
-            analyzeCommand(s, classToObjectsMap, objectToCommandsMap);
+    /**
+     * The elements generated by inverting (part of) a mod, which have yet to
+     * be added to the patch.
+     */
+    private static class Inversion {
+
+        private final List<ModelElement> inverted = new ArrayList<>();
+        private final List<ModelElement> uninverted = new ArrayList<>();
+
+        private void addAll(Inversion other) {
+            inverted.addAll(other.inverted);
+            uninverted.addAll(other.uninverted);
         }
-        for (HotfixWrapper wrap : wrappers) {
-            for (SetCommand s : wrap.getElements()) {
-                analyzeCommand(s, classToObjectsMap, objectToCommandsMap);
+    }
+
+    /**
+     * Looks up the current values of everything the mod changes. Every class
+     * is handled on its own thread, looking up the dumps of the objects it
+     * needs directly, rather than going through all dumps of the class. Only
+     * those lookups run concurrently; the objects are parsed one at a time,
+     * since the parser isn't thread safe.
+     */
+    private class Inverter extends SwingWorker<Inversion, Integer> {
+
+        private final Map<String, List<SetCommand>> objectToCommandsMap = new LinkedHashMap<>();
+        private final AtomicInteger objectsDone = new AtomicInteger();
+        private ProgressDialog progress;
+
+        Inverter(Category toBeInverted) {
+            Collection<SetCommand> codes = new ArrayList<>();
+            Collection<HotfixWrapper> wrappers = new ArrayList<>();
+            extractData(toBeInverted, codes, wrappers);
+            for (SetCommand s : codes) {
+                analyzeCommand(s);
+            }
+            for (HotfixWrapper wrap : wrappers) {
+                for (SetCommand s : wrap.getElements()) {
+                    analyzeCommand(s);
+                }
             }
         }
-        for (String clazz : classToObjectsMap.keySet()) {
-            HashSet<String> objects = classToObjectsMap.get(clazz);
-            if (clazz == null) {
-                for (String object : objects) {
+
+        private void analyzeCommand(SetCommand s) {
+            objectToCommandsMap.computeIfAbsent(s.getObject(), o -> new ArrayList<>()).add(s);
+        }
+
+        @Override
+        protected Inversion doInBackground() throws Exception {
+            long l = System.currentTimeMillis();
+            DataManager.getDictionary().getElementsInClassWithPrefix("SkillDefinition", "adssada");
+            Map<String, List<String>> classToObjectsMap = new LinkedHashMap<>();
+            for (String object : objectToCommandsMap.keySet()) {
+                String clazz = DataManager.getDictionary().getObjectClass(object);
+                classToObjectsMap.computeIfAbsent(clazz, c -> new ArrayList<>()).add(object);
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(INVERSION_THREADS, r -> {
+                Thread t = new Thread(r, "Mod inversion");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                List<Future<Inversion>> futures = new ArrayList<>();
+                for (Map.Entry<String, List<String>> entry : classToObjectsMap.entrySet()) {
+                    futures.add(pool.submit(() -> invertClass(entry.getKey(), entry.getValue())));
+                }
+                // Merge in the order the classes were found, so the result
+                // doesn't depend on which thread finished first
+                Inversion res = new Inversion();
+                for (Future<Inversion> future : futures) {
+                    res.addAll(future.get());
+                }
+                GlobalLogger.log("Inverted " + commands + " commands in " + (System.currentTimeMillis() - l) + "ms");
+                return res;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private Inversion invertClass(String clazz, List<String> objects) {
+            Inversion res = new Inversion();
+            for (String object : objects) {
+                if (isCancelled()) {
+                    break;
+                }
+                Dump d = clazz == null ? null : DataManager.getDump(object);
+                if (d == null) {
                     for (SetCommand com : objectToCommandsMap.get(object)) {
-                        ModelElement el;
-                        if (com.getParent() instanceof HotfixWrapper) {
-                            HotfixWrapper oldw = (HotfixWrapper) com.getParent();
-                            el = new HotfixWrapper(oldw.getName(), oldw.getType(), oldw.getParameter(), Arrays.asList(new String[]{com.getCode()}));
-                        } else {
-                            el = new SetCommand(com.getCode());
-                        }
-                        patch.insertElementInto(el, uninverted);
+                        res.uninverted.add(copyOf(com));
                     }
+                } else {
+                    invertObject(d, objectToCommandsMap.get(object), res);
                 }
-            } else {
-                DataManager.streamAllDumpsOfClass(clazz).filter(d -> objects.contains(d.object)).forEach(d -> {
-                    String[] cfields = new String[objectToCommandsMap.get(d.object).size()];
-                    String[] fields = new String[cfields.length];
-                    SetCommand[] coms = new SetCommand[cfields.length];
-                    int k = 0;
-                    for (SetCommand com : objectToCommandsMap.get(d.object)) {
-                        coms[k] = com;
-                        cfields[k] = coms[k].getField();
-                        fields[k] = cfields[k];
-                        if (fields[k].contains(".")) {
-                            fields[k] = fields[k].substring(0, fields[k].indexOf("."));
-                        }
-                        if (fields[k].contains("[")) {
-                            fields[k] = fields[k].substring(0, fields[k].indexOf("["));
+                publish(objectsDone.incrementAndGet());
+            }
+            return res;
+        }
+
+        private void invertObject(Dump d, List<SetCommand> commandsOnObject, Inversion res) {
+            String[] cfields = new String[commandsOnObject.size()];
+            String[] fields = new String[cfields.length];
+            SetCommand[] coms = new SetCommand[cfields.length];
+            int k = 0;
+            for (SetCommand com : commandsOnObject) {
+                coms[k] = com;
+                cfields[k] = coms[k].getField();
+                fields[k] = cfields[k];
+                if (fields[k].contains(".")) {
+                    fields[k] = fields[k].substring(0, fields[k].indexOf("."));
+                }
+                if (fields[k].contains("[")) {
+                    fields[k] = fields[k].substring(0, fields[k].indexOf("["));
+                }
+                k++;
+            }
+            //Every object is only inverted once, since we grouped the commands by object
+            BorderlandsObject obj = parse(d);
+            for (k = 0; k < fields.length; k++) {
+                String com = null;
+                boolean done = false;
+                try {
+                    ModelElement el;
+                    String field = cfields[k];
+                    Object val = obj.getField(cfields[k]);
+                    if (val == null) {
+                        Object v2 = obj.getField(fields[k]);
+                        if (v2 == null) {
+                            val = "";
+                        } else {
+                            throw new NullPointerException();
                         }
-                        k++;
                     }
-                    BorderlandsObject obj = BorderlandsObject.parseObject(d.dump);
-                    for (k = 0; k < fields.length; k++) {
-                        String com = null;
-                        boolean done = false;
-                        try {
-                            ModelElement el;
-                            String field = cfields[k];
-                            Object val = obj.getField(cfields[k]);
-                            if (val == null) {
-                                Object v2 = obj.getField(fields[k]);
-                                if (v2 == null) {
-                                    val = "";
-                                } else {
-                                    throw new NullPointerException();
-                                }
-                            }
-                            if (coms[k].getParent() instanceof HotfixWrapper) {
-                                HotfixWrapper oldw = (HotfixWrapper) coms[k].getParent();
-                                com = "set " + d.object + " " + field + " " + val;
-                                el = new HotfixWrapper(oldw.getName(), oldw.getType(), oldw.getParameter(), Arrays.asList(new String[]{com}));
-                            } else {
-                                el = new SetCommand(d.object, field, val.toString());
-                            }
-                            patch.insertElementInto(el, inverted);
-                            done = true;
-                        } catch (NullPointerException e) {
-                            //field does not exist
-                            System.err.println("Field " + cfields[k] + " does not exist in " + d.object);
-                        } catch (IndexOutOfBoundsException e) {
-                            System.err.println("Field " + cfields[k] + " does not exist with those indices in " + d.object);
-                        } catch (IllegalArgumentException e) {
-                            System.err.println("The command '" + com + "' is not a valid command.");
-                        }
-                        if (!done) {
-                            ModelElement el;
-                            if (coms[k].getParent() instanceof HotfixWrapper) {
-                                HotfixWrapper oldw = (HotfixWrapper) coms[k].getParent();
-                                el = new HotfixWrapper(oldw.getName(), oldw.getType(), oldw.getParameter(), Arrays.asList(new String[]{coms[k].getCode()}));
-                            } else {
-                                el = new SetCommand(coms[k].getCode());
-                            }
-                            patch.insertElementInto(el, uninverted);
-                        }
-
+                    if (coms[k].getParent() instanceof HotfixWrapper) {
+                        HotfixWrapper oldw = (HotfixWrapper) coms[k].getParent();
+                        com = "set " + d.object + " " + field + " " + val;
+                        el = new HotfixWrapper(oldw.getName(), oldw.getType(), oldw.getParameter(), Arrays.asList(new String[]{com}));
+                    } else {
+                        el = new SetCommand(d.object, field, val.toString());
                     }
-                });
+                    res.inverted.add(el);
+                    done = true;
+                } catch (NullPointerException e) {
+                    //field does not exist
+                    System.err.println("Field " + cfields[k] + " does not exist in " + d.object);
+                } catch (IndexOutOfBoundsException e) {
+                    System.err.println("Field " + cfields[k] + " does not exist with those indices in " + d.object);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("The command '" + com + "' is not a valid command.");
+                }
+                if (!done) {
+                    res.uninverted.add(copyOf(coms[k]));
+                }
             }
+        }
 
+        @Override
+        protected void process(List<Integer> chunks) {
+            progress.updateProgress(chunks.get(chunks.size() - 1), "");
+        }
+
+        @Override
+        protected void done() {
+            progress.dispose();
+        }
+    }
+
+    private static BorderlandsObject parse(Dump d) {
+        // The parser keeps its state in static fields, so only one object can
+        // be parsed at a time
+        synchronized (BorderlandsObject.class) {
+            return BorderlandsObject.parseObject(d);
         }
-        System.out.println("Took " + ((System.currentTimeMillis() - l) / 1000) + " seconds to invert " + commands + " commands");
     }
 
-    private void analyzeCommand(SetCommand s, HashMap<String, HashSet<String>> classToObjectsMap, HashMap<String, HashSet<SetCommand>> objectToCommandsMap) {
-        String obj = s.getObject();
-        String clazz = DataManager.getDictionary().getObjectClass(obj);
-        classToObjectsMap.putIfAbsent(clazz, new HashSet<>());
-        classToObjectsMap.get(clazz).add(obj);
-        objectToCommandsMap.putIfAbsent(obj, new HashSet<>());
-        objectToCommandsMap.get(obj).add(s);
+    /**
+     * Creates a copy of the given command, as a top level element.
+     */
+    private static ModelElement copyOf(SetCommand com) {
+        if (com.getParent() instanceof HotfixWrapper) {
+            HotfixWrapper oldw = (HotfixWrapper) com.getParent();
+            return new HotfixWrapper(oldw.getName(), oldw.getType(), oldw.getParameter(), Arrays.asList(new String[]{com.getCode()}));
+        } else {
+            return new SetCommand(com.getCode());
+        }
     }
 
-    private void extractData(Category toBeInverted, Collection<SetCommand> codes, Collection<HotfixWrapper> wrappers) {
+    private static void extractData(Category toBeInverted, Collection<SetCommand> codes, Collection<HotfixWrapper> wrappers) {
         for (ModelElement el : toBeInverted.getElements()) {
             if (el instanceof Category) {
                 extractData((Category) el, codes, wrappers);
@@ -60,6 +60,7 @@ public class SortCategoryAction extends RightMouseButtonAction {
         }
         Category cat = (Category) node.getUserObject();
         cat.sort();
+        tree.getPatch().elementChanged(cat);
         DefaultMutableTreeNode clone = CheckBoxTree.createTree(cat);
         node.removeAllChildren();
         for (int i = 0; i < children.size(); i++) {
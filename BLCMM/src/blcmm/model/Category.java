@@ -36,6 +36,8 @@ public class Category extends ModelElementContainer<ModelElement> {
     private String name;
     private boolean mutuallyExclusive = false;
     private boolean locked = false;
+    //The patch we're the root of, if any
+    transient CompletePatch patch = null;
 
     /**
      * Constructs a category with the given name and parent. Defaults to a
@@ -67,6 +69,15 @@ public class Category extends ModelElementContainer<ModelElement> {
         return name;
     }
 
+    @Override
+    void setParent(ModelElementContainer<?> newParent) {
+        if (newParent != null) {
+            //We're no longer the root of our patch
+            patch = null;
+        }
+        super.setParent(newParent);
+    }
+
     /**
      *
      * @return true iff only one of the children of this category should be
@@ -148,11 +159,17 @@ public class Category extends ModelElementContainer<ModelElement> {
 
     @Override
     public Category copy() {
+        Category copy = copyStructure();
+        copy.finishLoading();
+        return copy;
+    }
+
+    private Category copyStructure() {
         Category copy = new Category(name, mutuallyExclusive, locked);
         for (ModelElement c : getElements()) {
-            ModelElement c2 = c.copy();
+            ModelElement c2 = c instanceof Category ? ((Category) c).copyStructure() : c.copy();
             c2.setParent(copy);
-            copy.addElement(c2);
+            copy.appendElement(c2);
         }
         return copy;
     }
@@ -22,8 +22,10 @@ import general.utilities.GlobalLogger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  *
@@ -37,6 +39,18 @@ public class CompletePatch {
     private Profile currentProfile;
     private boolean offline;
 
+    /**
+     * The most changed commands we keep track of, before we just report that
+     * everything changed.
+     */
+    private static final int MAX_CHANGED_COMMANDS = 10000;
+
+    /**
+     * The commands that were added, removed, moved, checked or unchecked since
+     * the last call to takeChangedCommands, or null if we lost track.
+     */
+    private LinkedHashSet<SetCommand> changedCommands = null;
+
     /**
      * This is more like metadata, but doesn't really make sense anywhere else.
      */
@@ -88,7 +102,72 @@ public class CompletePatch {
     }
 
     public void setRoot(Category root) {
+        if (this.root != null && this.root.patch == this) {
+            this.root.patch = null;
+            this.root.updateAttachedPatch();
+        }
         this.root = root;
+        if (root != null) {
+            root.patch = this;
+            root.updateAttachedPatch();
+        }
+        changedCommands = null;
+    }
+
+    /**
+     * Returns the commands that were added, removed, moved, checked or
+     * unchecked since the last call to this method, so whatever shows this
+     * patch only has to update those.
+     *
+     * @return The changed commands, or null if too much changed to keep track
+     * of, in which case everything should be considered changed
+     */
+    public Collection<SetCommand> takeChangedCommands() {
+        Collection<SetCommand> res = changedCommands;
+        changedCommands = new LinkedHashSet<>();
+        return res;
+    }
+
+    /**
+     * Notes that the commands in the given element changed in a way we did
+     * not take part in, like the element being sorted.
+     *
+     * @param el The element that changed
+     */
+    public void elementChanged(ModelElement el) {
+        if (changedCommands == null) {
+            return;
+        }
+        if (el instanceof SetCommand) {
+            changedCommands.add((SetCommand) el);
+            if (changedCommands.size() > MAX_CHANGED_COMMANDS) {
+                changedCommands = null;
+            }
+        } else if (el instanceof ModelElementContainer) {
+            for (ModelElement child : ((ModelElementContainer<?>) el).getElements()) {
+                elementChanged(child);
+                if (changedCommands == null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a deep copy of this patch, which is not affected by any later
+     * changes to this patch. The profiles themselves are shared.
+     *
+     * @return
+     */
+    public CompletePatch copy() {
+        CompletePatch copy = new CompletePatch();
+        copy.profiles.putAll(profiles);
+        copy.currentProfile = currentProfile;
+        copy.type = type;
+        copy.offline = offline;
+        copy.patchSource = patchSource;
+        copy.setRoot(root == null ? null : root.copy());
+        return copy;
     }
 
     String getprofileXML() {
@@ -126,15 +205,37 @@ public class CompletePatch {
         profile.setName(name);
     }
 
-    public Profile createNewProfile(String name) {
-        Profile prof = new Profile(name);
+    /**
+     * Adds a profile with the given name, giving it the lowest id not in use
+     * by any of our other profiles.
+     *
+     * @param name
+     * @return
+     */
+    Profile addProfile(String name) {
+        long[] used = new long[profiles.size() / 64 + 1];
+        for (Profile prof : profiles.values()) {
+            if (prof.id < used.length * 64) {
+                used[prof.id >> 6] |= 1L << prof.id;
+            }
+        }
+        int id = 0;
+        while ((used[id >> 6] & (1L << id)) != 0) {
+            id++;
+        }
+        Profile prof = new Profile(name, id);
         profiles.put(name, prof);
+        return prof;
+    }
+
+    public Profile createNewProfile(String name) {
+        Profile prof = addProfile(name);
         if (root != null) {
-            for (ModelElement c : root.listRecursiveContentMinusCategories()) {
-                if (c instanceof EnableableModelElement && ((EnableableModelElement) c).isSelected()) {
-                    ((SetCommand) c).turnOnInProfile(prof);
+            forEachCommand(root, c -> {
+                if (c.isSelected()) {
+                    c.turnOnInProfile(prof);
                 }
-            }
+            });
         }
         setCurrentProfile(prof);
         GlobalLogger.log("Profile Editor - created profile " + prof.getName());
@@ -145,16 +246,32 @@ public class CompletePatch {
         setCurrentProfile(getProfile(newprofile));
     }
 
+    /**
+     * Makes the given profile the current one. Commands read whether they're
+     * selected from their bit for the current profile, and categories keep
+     * count of their selected commands in every profile, so nothing in the
+     * tree needs to be updated.
+     *
+     * @param prof
+     */
     public void setCurrentProfile(Profile prof) {
         if (prof == null) {
             throw new NullPointerException();
         }
         this.currentProfile = prof;
-        if (root != null) {
-            for (ModelElement c : root.listRecursiveContentMinusCategories()) {
-                if (c instanceof EnableableModelElement) {
-                    ((EnableableModelElement) c).profileChanged(prof);
-                }
+        changedCommands = null;
+    }
+
+    /**
+     * Calls the given action on every command in the given container and its
+     * descendants.
+     */
+    private static void forEachCommand(ModelElementContainer<?> container, Consumer<EnableableModelElement> action) {
+        for (ModelElement el : container.getElements()) {
+            if (el instanceof EnableableModelElement) {
+                action.accept((EnableableModelElement) el);
+            } else if (el instanceof ModelElementContainer) {
+                forEachCommand((ModelElementContainer<?>) el, action);
             }
         }
     }
@@ -183,13 +300,10 @@ public class CompletePatch {
             }
         }
         profiles.remove(prof.getName());
+        changedCommands = null;
         if (root != null) {
-            for (ModelElement c : root.listRecursiveContentMinusCategories()) {
-                if (c instanceof EnableableModelElement) {
-                    ((EnableableModelElement) c).turnOffInProfile(prof);
-                    ((EnableableModelElement) c).profileChanged(currentProfile);
-                }
-            }
+            //Clear its bits, so its id can be reused
+            forEachCommand(root, c -> c.turnOffInProfile(prof));
         }
         GlobalLogger.log("Profile Editor - deleted profile " + prof.getName());
     }
@@ -237,9 +351,32 @@ public class CompletePatch {
         }
         el2.setParent(newParent);
         newParent.addElementAtIndexIncludingWrappers(el2, index);
+        elementChanged(el);
         assert newParent.sizeIncludingHotfixes() == size + sizeOfChild : "Size was " + size + " before inserting a child of size " + sizeOfChild + " and now it is " + newParent.sizeIncludingHotfixes();
     }
 
+    /**
+     * Appends the given elements to the given category in one go, which is a
+     * lot faster than inserting them one by one when there are many of them.
+     *
+     * @param elements The elements to append, none of which may have a parent
+     * yet
+     * @param newParent
+     */
+    public void insertElementsInto(Collection<? extends ModelElement> elements, Category newParent) {
+        for (ModelElement el : elements) {
+            if (el.getParent() != null || el instanceof HotfixCommand) {
+                throw new IllegalArgumentException("Can only insert elements without a parent");
+            }
+            el.setParent(newParent);
+        }
+        newParent.appendElements(elements);
+        newParent.combineAdjecantHotfixWrappers();
+        for (ModelElement el : elements) {
+            elementChanged(el);
+        }
+    }
+
     public boolean removeElementFromParentCategory(ModelElement modelElement) {
         ModelElementContainer modelparent = modelElement.getParent();
         if (modelparent == null) {
@@ -247,6 +384,7 @@ public class CompletePatch {
         }
         boolean a = modelparent.removeElement(modelElement);
         modelElement.setParent(null);
+        elementChanged(modelElement);
         if (modelparent instanceof HotfixWrapper && modelparent.size() == 0) {
             modelparent.getParent().removeElement(modelparent);//get rid of empty hotfixwrappers
         }
@@ -284,22 +422,22 @@ public class CompletePatch {
             com.turnOffInProfile(getCurrentProfile());
         }
         com.profileChanged(getCurrentProfile());
+        elementChanged(com);
     }
 
     public void deleteAllProfilesAndReplaceCurrentProfileWith(Profile currentProfile) {
+        forEachCommand(root, set -> {
+            boolean selected = set.isSelected();
+            for (Profile p : set.getProfiles()) {
+                set.turnOffInProfile(p);
+            }
+            if (selected) {
+                set.turnOnInProfile(currentProfile);
+            }
+        });
         profiles.clear();
         profiles.put(currentProfile.getName(), currentProfile);
-        for (ModelElement el : root.listRecursiveContentMinusCategories()) {
-            if (el instanceof EnableableModelElement) {
-                EnableableModelElement set = (EnableableModelElement) el;
-                for (Profile p : set.getProfiles().toArray(new Profile[0])) {
-                    set.turnOffInProfile(p);
-                }
-                if (set.isSelected()) {
-                    set.turnOnInProfile(currentProfile);
-                }
-            }
-        }
+        setCurrentProfile(currentProfile);
     }
 
     void fixInvalidMUT() {
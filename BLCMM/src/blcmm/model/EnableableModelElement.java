@@ -17,9 +17,9 @@
  */
 package blcmm.model;
 
-import blcmm.model.properties.GlobalListOfProperties;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 
 /**
  *
@@ -27,52 +27,115 @@ import java.util.HashSet;
  */
 abstract class EnableableModelElement extends ModelElement {
 
-    private final HashSet<Profile> onInProfiles = new HashSet<>();
-    private boolean selected = false;
+    //The ids of the profiles we're on in, as bits. Ids of 64 and up go in the extra words.
+    private long profileBits = 0;
+    private long[] moreProfileBits = null;
+    //The profile we were last told about, which is used while we're not part of a patch
+    private Profile profile = null;
 
     /**
-     * Returns whether this code is selected.
+     * Returns whether this code is selected, that is, whether it's on in the
+     * current profile of the patch it's in.
      *
      * @return
      */
     public boolean isSelected() {
-        return selected;
+        CompletePatch patch = getPatch();
+        Profile current = patch == null ? profile : patch.getCurrentProfile();
+        return current != null && isOnInProfile(current.id);
     }
 
     final void turnOnInProfile(Profile p) {
         if (p == null) {
             throw new NullPointerException();
         }
-        this.onInProfiles.add(p);
+        if (setOnInProfile(p.id, true)) {
+            transientData.updateBySelecting(p.id, 1);
+        }
     }
 
     final void turnOffInProfile(Profile p) {
         if (p == null) {
             throw new NullPointerException();
         }
-        this.onInProfiles.remove(p);
+        if (setOnInProfile(p.id, false)) {
+            transientData.updateBySelecting(p.id, -1);
+        }
     }
 
     protected final void copyProfilesAndSelectedFrom(EnableableModelElement el) {
-        onInProfiles.clear();
-        onInProfiles.addAll(el.onInProfiles);
-        selected = el.selected;
-        transientData.updateByChangingOwnProperty(GlobalListOfProperties.CLASS_TO_INSTANCE_MAP.get(GlobalListOfProperties.LeafSelectedChecker.class).get(0));
+        profileBits = el.profileBits;
+        moreProfileBits = el.moreProfileBits == null ? null : el.moreProfileBits.clone();
+        profile = el.profile;
     }
 
+    /**
+     * Tells this element which profile is current, for as long as it's not
+     * part of a patch. Once it is, the current profile of the patch is used.
+     *
+     * @param p
+     */
     final void profileChanged(Profile p) {
         if (p == null) {
             throw new NullPointerException();
         }
-        this.selected = onInProfiles.contains(p);
-        transientData.updateByChangingOwnProperty(GlobalListOfProperties.CLASS_TO_INSTANCE_MAP.get(GlobalListOfProperties.LeafSelectedChecker.class).get(0));
+        this.profile = p;
+    }
+
+    final boolean isOnInProfile(int id) {
+        if (id < 64) {
+            return (profileBits & (1L << id)) != 0;
+        }
+        int word = (id >> 6) - 1;
+        return moreProfileBits != null && word < moreProfileBits.length && (moreProfileBits[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * Returns the lowest id of a profile we're on in which is at least the
+     * given id, or -1 if there is none.
+     */
+    final int nextProfileId(int from) {
+        int words = moreProfileBits == null ? 1 : moreProfileBits.length + 1;
+        for (int word = from >> 6; word < words; word++) {
+            long bits = word == 0 ? profileBits : moreProfileBits[word - 1];
+            if (word == from >> 6) {
+                bits &= -1L << from;
+            }
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the bit of the given profile, returning whether it changed.
+     */
+    private boolean setOnInProfile(int id, boolean on) {
+        if (isOnInProfile(id) == on) {
+            return false;
+        }
+        if (id < 64) {
+            profileBits ^= 1L << id;
+        } else {
+            int word = (id >> 6) - 1;
+            if (moreProfileBits == null || word >= moreProfileBits.length) {
+                long[] bits = new long[word + 1];
+                if (moreProfileBits != null) {
+                    System.arraycopy(moreProfileBits, 0, bits, 0, moreProfileBits.length);
+                }
+                moreProfileBits = bits;
+            }
+            moreProfileBits[word] ^= 1L << id;
+        }
+        return true;
     }
 
     protected final String getProfileString() {
         StringBuilder sb = new StringBuilder();
         sb.append("profiles=\"");
         boolean first = true;
-        for (Profile prof : onInProfiles) {
+        for (Profile prof : getProfiles()) {
             if (!first) {
                 sb.append(",");
             }
@@ -83,8 +146,26 @@ abstract class EnableableModelElement extends ModelElement {
         return sb.toString();
     }
 
+    /**
+     * Returns the profiles of our patch we're on in, in the order of the
+     * patch. If we're not part of a patch, all we know about is the last
+     * profile we were told about.
+     */
     final Collection<Profile> getProfiles() {
-        return onInProfiles;
+        List<Profile> res = new ArrayList<>();
+        CompletePatch patch = getPatch();
+        if (patch == null) {
+            if (profile != null && isOnInProfile(profile.id)) {
+                res.add(profile);
+            }
+            return res;
+        }
+        for (Profile prof : patch.getProfiles()) {
+            if (isOnInProfile(prof.id)) {
+                res.add(prof);
+            }
+        }
+        return res;
     }
 
 }
@@ -55,7 +55,7 @@ public class HotfixCommand extends SetCommand {
     }
 
     @Override
-    void setParent(ModelElementContainer newParent) {
+    void setParent(ModelElementContainer<?> newParent) {
         if (newParent != null && !(newParent instanceof HotfixWrapper)) {
             throw new IllegalArgumentException();
         }
@@ -106,8 +106,9 @@ public class HotfixWrapper extends ModelElementContainer<HotfixCommand> {
         for (HotfixCommand c : getElements()) {
             HotfixCommand c2 = (HotfixCommand) c.copy();
             c2.setParent(copy);
-            copy.addElement(c2);
+            copy.appendElement(c2);
         }
+        copy.finishLoading();
         return copy;
     }
 
@@ -130,14 +131,23 @@ public class HotfixWrapper extends ModelElementContainer<HotfixCommand> {
 
     public void setName(String name) {
         this.name = name;
+        if (getParent() != null) {
+            getParent().displayChanged();//Our commands display our prefix
+        }
     }
 
     public void setParameter(String parameter) {
         this.parameter = parameter;
+        if (getParent() != null) {
+            getParent().displayChanged();//Our commands display our prefix
+        }
     }
 
     public void setType(HotfixType type) {
         this.type = type;
+        if (getParent() != null) {
+            getParent().displayChanged();//Our commands display our prefix
+        }
     }
 
     /**
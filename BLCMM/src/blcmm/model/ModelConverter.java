@@ -37,18 +37,24 @@ public class ModelConverter {
     }
 
     public static Category convertFromPseudo(PCategory cat, CompletePatch p) {
+        Category root = convert(cat, p);
+        root.finishLoading();
+        return root;
+    }
+
+    private static Category convert(PCategory cat, CompletePatch p) {
         Category root = new Category(cat.getName());
         root.setMutuallyExclusive(cat.isMutuallyExclusive());
         for (PModelElement el : cat.getChildren()) {
             if (el instanceof PCategory) {
-                Category kid = convertFromPseudo((PCategory) el, p);
+                Category kid = convert((PCategory) el, p);
                 kid.setParent(root);
-                root.addElement(kid);
+                root.appendElement(kid);
             } else if (el instanceof PComment) {
                 for (String s : ((PComment) el).getComment().split("\n")) {
                     Comment c = new Comment(s);
                     c.setParent(root);
-                    root.addElement(c);
+                    root.appendElement(c);
                 }
             } else if (el instanceof PHotfix) {
                 PHotfix el2 = (PHotfix) el;
@@ -58,14 +64,14 @@ public class ModelConverter {
                         : new HotfixCommand(el2.getCommand());
                 com.setParent(wr);
                 p.setSelected(com, el2.isSelected());
-                wr.addElement(com);
+                wr.appendElement(com);
                 wr.setParent(root);
-                root.addElement(wr);
+                root.appendElement(wr);
             } else if (el instanceof PCommand) {
                 SetCommand s = new SetCommand(((PCommand) el).getCommand());
                 s.setParent(root);
                 p.setSelected(s, ((PCommand) el).isSelected());
-                root.addElement(s);
+                root.appendElement(s);
             }
         }
         root.combineAdjecantHotfixWrappers();
@@ -83,15 +89,15 @@ public class ModelConverter {
     public static PCategory convertToPseudo(CompletePatch patch, boolean includeGBXFixes, boolean mergeMaps) {
         Category gbx = includeGBXFixes ? PatchIO.getGBXFixes(patch.getType()) : new Category("");
         Set<String> excludes = gbx.listHotfixMeta().stream().flatMap(w -> w.getElements().stream()).map(c -> c.getCode()).collect(Collectors.toSet());
-        gbx.listHotfixMeta().forEach(w -> w.getElements().stream().filter(c -> c.getValue().startsWith("+(")).collect(Collectors.toSet()).forEach(w::removeElement));
-        gbx.listHotfixMeta().stream().filter(w -> w.size() == 0).collect(Collectors.toSet()).forEach(gbx::removeElement);
+        //The GBX fixes are shared, so rather than removing the array additions from them, we skip them while converting
+        Set<String> gbxAdditions = gbx.listHotfixMeta().stream().flatMap(w -> w.getElements().stream()).filter(c -> c.getValue().startsWith("+(")).map(c -> c.getCode()).collect(Collectors.toSet());
         Category mergeCommands = new Category("Level merge commands");
         if (mergeMaps) {
             HashSet<ModelElement> excl2 = new HashSet<>();
             PatchIO.analyzeLevelMerges(patch.getType(), patch.getRoot(), excl2, mergeCommands);
             excl2.stream().filter(el -> el instanceof SetCommand).map(el -> ((SetCommand) el).getCode()).forEach(excludes::add);
         }
-        PCategory gfixes = convertToPseudo(gbx, Collections.EMPTY_SET);
+        PCategory gfixes = convertToPseudo(gbx, gbxAdditions);
         PCategory merges = convertToPseudo(mergeCommands, Collections.EMPTY_SET);
         PCategory main = convertToPseudo(patch.getRoot(), excludes);
         PCategory result = new PCategory("save-ready-patch");
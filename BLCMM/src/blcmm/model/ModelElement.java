@@ -70,6 +70,18 @@ public abstract class ModelElement {
 
     private ModelElementContainer parent;
     protected transient TransientModelData transientData;
+    /**
+     * The position of this element among its siblings. Only the relative
+     * order of the labels of siblings is meaningful. Maintained by our parent.
+     */
+    transient long siblingOrderLabel;
+    /**
+     * The innermost patch whose root is this element or one of its ancestors,
+     * regardless of whether it has a current profile. Kept up to date as
+     * elements are attached to and detached from trees, so getPatch doesn't
+     * have to walk up to the root.
+     */
+    private transient CompletePatch attachedPatch;
 
     public TransientModelData getTransientData() {
         return transientData;
@@ -77,7 +89,7 @@ public abstract class ModelElement {
 
     protected abstract String toXMLString();
 
-    void setParent(ModelElementContainer newParent) {
+    void setParent(ModelElementContainer<?> newParent) {
         if (this.parent != null && this.parent.getElements().contains(this)) {
             throw new IllegalStateException("remove this element from its current parent before allocating it to a new one");
         }
@@ -88,6 +100,60 @@ public abstract class ModelElement {
         if (newParent != null && this instanceof SetCommand) {
             newParent.updateLengths((SetCommand) this);
         }
+        updateAttachedPatch();
+    }
+
+    /**
+     * Brings the patch this element and its descendants are attached to up to
+     * date, after this element got a new parent, or became or stopped being
+     * the root of a patch. Descendants are only visited if the patch actually
+     * changed, so moving elements around within a patch is cheap.
+     */
+    void updateAttachedPatch() {
+        CompletePatch patch = this instanceof Category ? ((Category) this).patch : null;
+        if (patch == null && parent != null) {
+            patch = ((ModelElement) parent).attachedPatch;
+        }
+        if (patch != attachedPatch) {
+            attachedPatch = patch;
+            attachedPatchChanged();
+        }
+    }
+
+    /**
+     * Called when the patch this element is attached to changed, so
+     * containers can pass it on to their children.
+     */
+    void attachedPatchChanged() {
+    }
+
+    /**
+     * Returns the patch this element is part of, or null if it isn't part of
+     * one. Categories can be the root of a patch while still having a parent,
+     * like while being exported or imported, in which case the innermost patch
+     * with a current profile wins. The innermost patch is kept track of as
+     * elements are attached, so this only has to walk up the tree while that
+     * patch has no current profile yet.
+     *
+     * @return
+     */
+    CompletePatch getPatch() {
+        CompletePatch patch = attachedPatch;
+        if (patch == null || patch.getCurrentProfile() != null) {
+            return patch;
+        }
+        //The innermost patch isn't set up yet, so look for one further up
+        ModelElement el = this;
+        while (el != null) {
+            if (el instanceof Category) {
+                CompletePatch outer = ((Category) el).patch;
+                if (outer != null && outer.getRoot() == el && outer.getCurrentProfile() != null) {
+                    return outer;
+                }
+            }
+            el = el.parent;
+        }
+        return null;
     }
 
     /**
@@ -102,6 +168,49 @@ public abstract class ModelElement {
 
     public abstract ModelElement copy();
 
+    /**
+     * Compares the position of this element in the tree to the position of
+     * the given element, in pre-order. An ancestor is positioned before its
+     * descendants. This runs in time proportional to the depth of the
+     * elements, regardless of the number of siblings they have.
+     *
+     * @param other The element to compare to
+     * @return A negative number, zero, or a positive number if this element
+     * is positioned before, at, or after the given element, respectively.
+     */
+    public int compareTreePosition(ModelElement other) {
+        ModelElement a = this, b = other;
+        int depthA = getDepth(a), depthB = getDepth(b);
+        while (depthA > depthB) {
+            a = a.parent;
+            depthA--;
+        }
+        while (depthB > depthA) {
+            b = b.parent;
+            depthB--;
+        }
+        if (a == b) {//One is an ancestor of the other, or they are the same element
+            return Integer.compare(getDepth(this), getDepth(other));
+        }
+        while (a.parent != b.parent) {
+            a = a.parent;
+            b = b.parent;
+        }
+        if (a.parent == null) {//Different trees, we just need to be consistent
+            return Integer.compare(System.identityHashCode(a), System.identityHashCode(b));
+        }
+        return Long.compare(a.siblingOrderLabel, b.siblingOrderLabel);
+    }
+
+    private static int getDepth(ModelElement el) {
+        int depth = 0;
+        while (el.parent != null) {
+            el = el.parent;
+            depth++;
+        }
+        return depth;
+    }
+
     public boolean hasLockedAncestor() {
         if (this instanceof Category && ((Category) this).isLocked()) {
             return true;
@@ -18,6 +18,7 @@
 package blcmm.model;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
@@ -30,9 +31,17 @@ import java.util.logging.Logger;
  */
 public abstract class ModelElementContainer<T extends ModelElement> extends ModelElement {
 
+    /**
+     * The gap we leave between the order labels of consecutive children, so
+     * that we can usually insert a child without touching its siblings.
+     */
+    private static final long ORDER_LABEL_GAP = 1L << 32;
+
     private final List<T> elements = new ArrayList<>();
     private final transient int[] longest = new int[5];
     private transient int numberOfLeafDescendants = 0, numberOfCommandsDescendants = 0, numberOfHotfixDescendants = 0;
+    //Increased whenever the way our commands are displayed may have changed, so they know to recreate their cached strings
+    private transient int displayVersion = 0;
 
     @Override
     public Category getParent() {
@@ -101,9 +110,185 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
         }
         increaseChildCount(c);
         elements.add(i, c);
+        assignOrderLabel(i);
         transientData.updateByInsertingNewChild(c);
     }
 
+    /**
+     * Appends a child while loading a tree. Unlike addElement, this does not
+     * check for duplicates, and does not update the descendant counters and
+     * column widths of this container and its ancestors. Once the whole tree
+     * has been loaded, finishLoading must be called on its root.
+     *
+     * @param c The child to append, with its parent already set to this
+     */
+    void appendElement(T c) {
+        if (c.getParent() != this) {
+            throw new IllegalArgumentException("When adding a code, the parent must be set correctly");
+        }
+        elements.add(c);
+        assignOrderLabel(elements.size() - 1);
+        transientData.invalidate();
+    }
+
+    /**
+     * Appends the given children in one go. Like appendElement, this does not
+     * check for duplicates, but it does update the descendant counters and
+     * properties of this container and its ancestors, once for all children
+     * together.
+     *
+     * @param children The children to append, with their parent already set
+     * to this
+     */
+    void appendElements(Collection<? extends T> children) {
+        int commands = 0, leaves = 0, hotfixes = 0;
+        for (T c : children) {
+            if (c.getParent() != this) {
+                throw new IllegalArgumentException("When adding a code, the parent must be set correctly");
+            }
+            elements.add(c);
+            assignOrderLabel(elements.size() - 1);
+            if (c instanceof ModelElementContainer) {
+                ModelElementContainer<?> container = (ModelElementContainer<?>) c;
+                commands += container.numberOfCommandsDescendants;
+                leaves += container.numberOfLeafDescendants;
+                hotfixes += container.numberOfHotfixDescendants;
+                if (container instanceof HotfixWrapper) {
+                    for (SetCommand s : ((HotfixWrapper) container).getElements()) {
+                        updateLengths(s);
+                    }
+                }
+            } else if (c instanceof SetCommand) {
+                commands++;
+                leaves++;
+                if (this instanceof HotfixWrapper) {
+                    hotfixes++;
+                }
+                updateLengths((SetCommand) c);
+            } else if (c instanceof Comment) {
+                leaves++;
+            }
+        }
+        ModelElementContainer<?> container = this;
+        while (container != null) {
+            container.numberOfCommandsDescendants += commands;
+            container.numberOfLeafDescendants += leaves;
+            container.numberOfHotfixDescendants += hotfixes;
+            container = container.getParent();
+        }
+        transientData.revalidate();
+    }
+
+    /**
+     * Computes the descendant counters and column widths of this container and
+     * all of its descendants in a single post-order pass. This is to be called
+     * on the root of a tree built using appendElement.
+     */
+    void finishLoading() {
+        numberOfCommandsDescendants = 0;
+        numberOfLeafDescendants = 0;
+        numberOfHotfixDescendants = 0;
+        for (T element : elements) {
+            if (element instanceof ModelElementContainer) {
+                ModelElementContainer<?> container = (ModelElementContainer<?>) element;
+                container.finishLoading();
+                numberOfCommandsDescendants += container.numberOfCommandsDescendants;
+                numberOfLeafDescendants += container.numberOfLeafDescendants;
+                numberOfHotfixDescendants += container.numberOfHotfixDescendants;
+                if (container instanceof HotfixWrapper) {
+                    for (SetCommand s : ((HotfixWrapper) container).getElements()) {
+                        updateLengths(s);
+                    }
+                }
+            } else if (element instanceof SetCommand) {
+                numberOfCommandsDescendants++;
+                numberOfLeafDescendants++;
+                if (this instanceof HotfixWrapper) {
+                    numberOfHotfixDescendants++;
+                } else {
+                    updateLengths((SetCommand) element);
+                }
+            } else if (element instanceof Comment) {
+                numberOfLeafDescendants++;
+            }
+        }
+    }
+
+    /**
+     * Gives the child at the given index an order label in between the labels
+     * of its neighbours. Only if there is no room left between those, we
+     * relabel the smallest group of siblings around it that is sparse enough,
+     * as in the order maintenance scheme of Bender et al. That way, every
+     * insertion relabels O(log n) siblings amortized, however the insertions
+     * are spread, rather than all n of them whenever a gap runs out.
+     *
+     * @param i The index of the newly inserted child
+     */
+    private void assignOrderLabel(int i) {
+        T c = elements.get(i);
+        boolean first = i == 0, last = i == elements.size() - 1;
+        long before = first ? 0 : elements.get(i - 1).siblingOrderLabel;
+        long after = last ? 0 : elements.get(i + 1).siblingOrderLabel;
+        if (first && last) {
+            c.siblingOrderLabel = 0;
+        } else if (last && before <= Long.MAX_VALUE - ORDER_LABEL_GAP) {
+            c.siblingOrderLabel = before + ORDER_LABEL_GAP;
+        } else if (first && after >= Long.MIN_VALUE + ORDER_LABEL_GAP) {
+            c.siblingOrderLabel = after - ORDER_LABEL_GAP;
+        } else if (!first && !last && after - before > 1) {
+            c.siblingOrderLabel = before + (after - before) / 2;
+        } else {
+            relabelAround(i, first ? after : before);
+        }
+    }
+
+    /**
+     * Relabels the children around the newly inserted child at the given
+     * index, which has no label yet. We consider the aligned ranges of labels
+     * of size 2^j around the label of one of its neighbours, for increasing j,
+     * and evenly spread the children whose labels fall in the first range that
+     * holds fewer than (4/3)^j of them, the new child included. Children
+     * outside of the range keep their labels, so the order is preserved.
+     *
+     * @param i The index of the newly inserted child
+     * @param neighbour The label of a neighbour of the new child
+     */
+    private void relabelAround(int i, long neighbour) {
+        //Flipping the sign bit maps the signed order of labels onto the unsigned order
+        long anchor = neighbour ^ Long.MIN_VALUE;
+        int lo = i, hi = i;
+        for (int j = 1; j <= 64; j++) {
+            long rangeStart = j == 64 ? 0 : anchor & -(1L << j);
+            long rangeEnd = j == 64 ? -1 : rangeStart + ((1L << j) - 1);
+            while (lo > 0 && inRange(elements.get(lo - 1).siblingOrderLabel ^ Long.MIN_VALUE, rangeStart, rangeEnd)) {
+                lo--;
+            }
+            while (hi < elements.size() - 1 && inRange(elements.get(hi + 1).siblingOrderLabel ^ Long.MIN_VALUE, rangeStart, rangeEnd)) {
+                hi++;
+            }
+            int count = hi - lo + 1;
+            if (j == 64 || count < Math.pow(4.0 / 3, j)) {
+                long gap = Long.divideUnsigned(rangeEnd - rangeStart, count);
+                for (int k = lo; k <= hi; k++) {
+                    elements.get(k).siblingOrderLabel = (rangeStart + (k - lo) * gap + (gap >>> 1)) ^ Long.MIN_VALUE;
+                }
+                return;
+            }
+        }
+    }
+
+    private static boolean inRange(long unsignedLabel, long rangeStart, long rangeEnd) {
+        return Long.compareUnsigned(unsignedLabel, rangeStart) >= 0 && Long.compareUnsigned(unsignedLabel, rangeEnd) <= 0;
+    }
+
+    private void relabelChildren() {
+        long label = 0;
+        for (T element : elements) {
+            element.siblingOrderLabel = label;
+            label += ORDER_LABEL_GAP;
+        }
+    }
+
     private void increaseChildCount(T t) {
         changeChildCounters(t, true);
     }
@@ -140,7 +325,14 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
     }
 
     @Override
-    void setParent(ModelElementContainer category) {
+    void attachedPatchChanged() {
+        for (T element : elements) {
+            element.updateAttachedPatch();
+        }
+    }
+
+    @Override
+    void setParent(ModelElementContainer<?> category) {
         if (category != null && !(category instanceof Category)) {
             throw new IllegalArgumentException();
         }
@@ -151,6 +343,14 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
         return longest;
     }
 
+    int getDisplayVersion() {
+        return displayVersion;
+    }
+
+    void displayChanged() {
+        displayVersion++;
+    }
+
     /**
      * Completely recreates our "longest" structure, recursively. This is only
      * used at the moment to recompute, when the "truncateCommands" option is
@@ -162,6 +362,7 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
         for (int i = 0; i < longest.length; i++) {
             longest[i] = 0;
         }
+        displayChanged();
 
         // Now loop through our elements, recursing where needed, and adding
         // in any children to our "longest" var.
@@ -188,7 +389,10 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
     void updateLengths(SetCommand c) {
         String[] split = c.getSplit();
         for (int i = 0; i < Math.min(longest.length, split.length); i++) {
-            longest[i] = Math.max(longest[i], split[i].length());
+            if (split[i].length() > longest[i]) {
+                longest[i] = split[i].length();
+                displayVersion++;
+            }
         }
     }
 
@@ -211,10 +415,12 @@ public abstract class ModelElementContainer<T extends ModelElement> extends Mode
 
     protected void reverse() {
         Collections.reverse(elements);
+        relabelChildren();
     }
 
     public void sort() {
         this.elements.sort(ModelElement.ELEMENT_COMPERATOR);
+        relabelChildren();
     }
 
     /**
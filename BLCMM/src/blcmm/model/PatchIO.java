@@ -23,14 +23,14 @@ import blcmm.model.properties.GlobalListOfProperties;
 import blcmm.utilities.GameDetection;
 import blcmm.utilities.HotfixConverter;
 import blcmm.utilities.ImportAnomalyLog;
+import blcmm.utilities.SpillingWriter;
 import blcmm.utilities.Utilities;
 import general.utilities.GlobalLogger;
 import general.utilities.OSInfo;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -43,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -51,6 +52,7 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 /**
  *
@@ -75,15 +77,29 @@ public class PatchIO {
     }
 
     //Interface to obtain new readers for objects, so we can abstract away from just files.
-    //Since we need to "reset" readers to pre-read, and BufferedReaders don't provide adequate functionality for that, we use this workaround
+    //We sniff the format from the start of the same reader we parse from, using mark/reset.
+    //Only when the first lines exceed PEEK_LIMIT do we need to fall back to opening a second reader.
     private static interface ReaderProvider<O> {
 
-        public static final ReaderProvider<File> FILE_READER_PROVIDER = FileReader::new;
+        public static final ReaderProvider<File> FILE_READER_PROVIDER = PatchIO::openFileReader;
         public static final ReaderProvider<String> STRING__READER_PROVIDER = StringReader::new;
 
         public Reader createNewReader(O o) throws IOException;
     }
 
+    //The number of non-empty lines we look at to determine the format of the input
+    private static final int PRE_READ = 3;
+    //The maximum number of characters we allow ourselves to peek at before resetting the reader
+    private static final int PEEK_LIMIT = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    //The number of characters of hotfix values we keep in memory while saving, before we switch to a temporary file
+    private static final int HOTFIX_VALUE_MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    //Read-only commands shipped in the resources, parsed once per game
+    private static final Map<PatchType, Category> GBX_FIXES = new EnumMap<>(PatchType.class);
+    private static final Map<PatchType, Map<String, String>> VANILLA_LEVEL_LISTS = new EnumMap<>(PatchType.class);
+
     private static final int SAVE_VERSION = 1;
     public static final String LINEBREAK = System.getProperty("line.separator");
 
@@ -100,46 +116,104 @@ public class PatchIO {
         return parseInternal(f, ReaderProvider.FILE_READER_PROVIDER, f.getName());
     }
 
+    /**
+     * Opens a reader for the given file. Gzip-compressed files, such as our
+     * backups, are decompressed transparently.
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    private static Reader openFileReader(File f) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                in = new GZIPInputStream(in);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new InputStreamReader(in);
+    }
+
     public static CompletePatch parse(String s) throws IOException {
         return parseInternal(s, ReaderProvider.STRING__READER_PROVIDER, "Internal String");
     }
 
     private static <O> CompletePatch parseInternal(O o, ReaderProvider<O> p, String filename) throws IOException {
-        final int preRead = 3;
-        String[] line = new String[preRead];
-        CompletePatch res = handleInvalidFiles(p, o, preRead, line, filename);
-        if (res != null) {
-            return res;
-        }
-        BufferedReader br = new BufferedReader(p.createNewReader(o));
-        if (line[0].trim().startsWith("<BLCMM") || line[0].trim().startsWith("<category") || line[0].trim().startsWith("<code")) {
-            res = new BLCMMParser().parse(br, filename);
-        } else if (line[0].toLowerCase().startsWith("start") && filename.endsWith(".hotfix")) {
-            res = new HotfixParser().parse(br, filename);
-        } else {
-            res = new FTParser().parse(br, filename);//FT parser will handle "anything"
+        String[] line = new String[PRE_READ];
+        CompletePatch res;
+        try (BufferedReader br = new BufferedReader(p.createNewReader(o), READ_BUFFER_SIZE)) {
+            br.mark(PEEK_LIMIT);
+            preReadLines(br, line);
+            res = handleInvalidFiles(br, o, line, filename);
+            if (res != null) {
+                return res;
+            }
+            BufferedReader parseReader = br;
+            try {
+                br.reset();
+                //Drop the mark again, or the reader keeps growing its buffer to preserve it while we parse
+                br.mark(0);
+            } catch (IOException e) {
+                //The first lines were longer than our peek buffer, so our mark got invalidated.
+                parseReader = new BufferedReader(p.createNewReader(o), READ_BUFFER_SIZE);
+            }
+            try {
+                res = parseWithParserFor(parseReader, line[0], filename);
+            } finally {
+                if (parseReader != br) {
+                    parseReader.close();
+                }
+            }
         }
-        br.close();
         res.fixInvalidMUT();
         return res;
     }
 
-    private static <O> CompletePatch handleInvalidFiles(ReaderProvider<O> p, O o, final int preRead, String[] line, String filename) throws IllegalArgumentException, IOException {
-        BufferedReader br = new BufferedReader(p.createNewReader(o));
-        for (int i = 0; i < preRead; i++) {
+    private static CompletePatch parseWithParserFor(BufferedReader br, String firstLine, String filename) throws IOException {
+        if (firstLine.trim().startsWith("<BLCMM") || firstLine.trim().startsWith("<category") || firstLine.trim().startsWith("<code")) {
+            return new BLCMMParser().parse(br, filename);
+        } else if (firstLine.toLowerCase().startsWith("start") && filename.endsWith(".hotfix")) {
+            return new HotfixParser().parse(br, filename);
+        } else {
+            return new FTParser().parse(br, filename);//FT parser will handle "anything"
+        }
+    }
+
+    /**
+     * Reads the first few non-empty lines of the provided reader into the
+     * provided array. Unused entries will be null.
+     *
+     * @param br The reader to read from
+     * @param line The array to store the lines in
+     * @throws IOException
+     */
+    private static void preReadLines(BufferedReader br, String[] line) throws IOException {
+        for (int i = 0; i < line.length; i++) {
             line[i] = removeGarbageCharacters(br.readLine());
             if (line[i] != null && line[i].trim().isEmpty()) {
                 i--;
             }
         }
-        br.close();
+    }
 
+    /**
+     * Checks the pre-read lines and the type of the input for files we can not
+     * parse. The provided reader is positioned just after the pre-read lines.
+     * If this returns null, the input should be parsed normally.
+     */
+    private static <O> CompletePatch handleInvalidFiles(BufferedReader br, O o, String[] line, String filename) throws IllegalArgumentException, IOException {
         //Check for empty files
         if (line[0] == null || line[0].trim().isEmpty()) {
 
             //empty file
             CompletePatch newPatch = new FTParser().parse(new BufferedReader(new StringReader("#<patch>\n#</patch>")), "");
-            ImportAnomalyLog.INSTANCE.add(new ImportAnomalyLog.importAnomaly(
+            ImportAnomalyLog.current().add(new ImportAnomalyLog.importAnomaly(
                     filename,
                     ImportAnomalyLog.ImportAnomalyType.EmptyFile,
                     "The file '" + filename + "' was empty.",
@@ -165,7 +239,7 @@ public class PatchIO {
             else if (mimeType.equals("application/x-rar-compressed")) {
                 CompletePatch newPatch = new FTParser().parse(new BufferedReader(new StringReader("#<patch>\n#</patch>")), "");
                 String extension = filename.split("\\.(?=[^\\.]+$)")[1];
-                ImportAnomalyLog.INSTANCE.add(new ImportAnomalyLog.importAnomaly(filename,
+                ImportAnomalyLog.current().add(new ImportAnomalyLog.importAnomaly(filename,
                         ImportAnomalyLog.ImportAnomalyType.RARfile,
                         "The file '" + filename + "' is a " + extension + " extension file. Please extract the file using WinRAR / 7zip.",
                         newPatch));
@@ -178,14 +252,20 @@ public class PatchIO {
                     idx = line[2].indexOf("href=\"https://github.com") + "href=\"".length();
                     relevantline = line[2];
                 } else {
-                    try (BufferedReader br2 = new BufferedReader(p.createNewReader(o))) {
-                        String l;
-                        while ((l = br2.readLine()) != null) {
-                            if (l.contains("href=\"https://github.com/BLCM/BLCMods/blob")) {
-                                idx = l.indexOf("href=\"https://github.com/BLCM/BLCMods/blob") + "href=\"".length();
-                                relevantline = l;
-                                break;
-                            }
+                    //Continue scanning where the pre-read left off, rather than reopening the file
+                    final String link = "href=\"https://github.com/BLCM/BLCMods/blob";
+                    for (String l : line) {
+                        if (l != null && l.contains(link)) {
+                            idx = l.indexOf(link) + "href=\"".length();
+                            relevantline = l;
+                            break;
+                        }
+                    }
+                    String l;
+                    while (relevantline == null && (l = br.readLine()) != null) {
+                        if (l.contains(link)) {
+                            idx = l.indexOf(link) + "href=\"".length();
+                            relevantline = l;
                         }
                     }
                 }
@@ -200,7 +280,7 @@ public class PatchIO {
                     String downloaded = Utilities.downloadFileToString(url2);
                     if (downloaded != null) {
                         CompletePatch patch = parse(downloaded);
-                        ImportAnomalyLog.INSTANCE.add(new ImportAnomalyLog.importAnomaly(
+                        ImportAnomalyLog.current().add(new ImportAnomalyLog.importAnomaly(
                                 filename,
                                 ImportAnomalyLog.ImportAnomalyType.HTMLFile,
                                 "The file '" + filename + "' is an HTML file. Downloading mod linked inside.",
@@ -215,7 +295,7 @@ public class PatchIO {
             else {
                 CompletePatch newPatch = new FTParser().parse(new BufferedReader(new StringReader("#<patch>\n#</patch>")), "");
                 String extension = filename.split("\\.(?=[^\\.]+$)")[1];
-                ImportAnomalyLog.INSTANCE.add(new ImportAnomalyLog.importAnomaly(filename,
+                ImportAnomalyLog.current().add(new ImportAnomalyLog.importAnomaly(filename,
                         ImportAnomalyLog.ImportAnomalyType.IncorrectType,
                         "It looks like you opened a " + extension + " file. From what we can tell, this file is an unsupported file type.",
                         newPatch));
@@ -283,9 +363,9 @@ public class PatchIO {
 
     private final static class FTParser extends Parser {
 
-        private static String[] fixes = new String[2];
-        private static SetCommand[] fixes2 = new SetCommand[2];
-        private static boolean OLD_PARSE;
+        private final String[] fixes = new String[2];
+        private final SetCommand[] fixes2 = new SetCommand[2];
+        private boolean oldParse;
 
         private static void handleInvalidHotfix(CompletePatch patch, String s) {
             Category root = patch.getRoot();
@@ -329,7 +409,7 @@ public class PatchIO {
                     line = removeGarbageCharacters(br.readLine());
                 } while (line != null && line.trim().isEmpty());
             }
-            OLD_PARSE = !containsProfileData;
+            oldParse = !containsProfileData;
             if (!containsProfileData) {
                 res.createNewProfile("default");
             }
@@ -347,6 +427,7 @@ public class PatchIO {
                 currentCat = addLine(currentCat, line, res);
                 line = removeGarbageCharacters(br.readLine());
             }
+            c2.finishLoading();
 
             c2 = postProcessParse(c2, res);
             res.setRoot(c2);
@@ -410,7 +491,7 @@ public class PatchIO {
          * @param patch
          * @return
          */
-        private static Category addLine(Category parent, String s, CompletePatch patch) {
+        private Category addLine(Category parent, String s, CompletePatch patch) {
             if (s.trim().isEmpty()) {
                 return parent;
             }
@@ -433,7 +514,7 @@ public class PatchIO {
                     }
                     Category c2 = new Category(name, s.contains("<MUT>"), false);
                     c2.setParent(parent);
-                    parent.addElement(c2);
+                    parent.appendElement(c2);
                     return c2;
                 } else if (isTermination(parent, s)) {
                     parent.combineAdjecantHotfixWrappers();
@@ -445,11 +526,11 @@ public class PatchIO {
                             handleInvalidHotfix(patch, s);
                         } else {
                             wrap.setParent(parent);
-                            parent.addElement(wrap);
+                            parent.appendElement(wrap);
                         }
                     } else {
                         ModelElement code = parseNormalCode(s, parent, patch);
-                        parent.addElement(code);
+                        parent.appendElement(code);
                         if (hotfixnumber != -1) {
                             fixes[hotfixnumber] = s;
                             fixes2[hotfixnumber] = (SetCommand) code;
@@ -463,7 +544,7 @@ public class PatchIO {
                     fixes[hotfixnumber] = s;
                     fixes2[hotfixnumber] = (SetCommand) code;
                 }
-                parent.addElement(code);
+                parent.appendElement(code);
                 return parent;
             }
         }
@@ -476,7 +557,7 @@ public class PatchIO {
          * @param patch
          * @return
          */
-        private static Category postProcessParse(Category c, CompletePatch patch) {
+        private Category postProcessParse(Category c, CompletePatch patch) {
             if (fixes[0] != null && fixes[1] != null) {
                 if (c.getNumberOfHotfixDescendants() == 0) {
                     introduceMeta(c, patch);
@@ -484,8 +565,6 @@ public class PatchIO {
                 removeCodeAndEmptyParents((Category) fixes2[0].getParent(), fixes2[0]);
                 removeCodeAndEmptyParents((Category) fixes2[1].getParent(), fixes2[1]);
             }
-            fixes = new String[2];
-            fixes2 = new SetCommand[2];
             HashSet<SetCommand> offlineCodes = new HashSet<>();
             List<String> offlines = Arrays.asList(new String[]{PatchType.OFFLINE1, PatchType.OFFLINE2, PatchType.OFFLINE3});
             for (ModelElement code : c.getElements()) {
@@ -540,7 +619,7 @@ public class PatchIO {
          * @param parent
          * @param patch
          */
-        private static void introduceMeta(Category parent, CompletePatch patch) {
+        private void introduceMeta(Category parent, CompletePatch patch) {
             Category group = new Category("Hotfixes");
             String[] split1 = splitFixes(fixes[0]);
             String[] split2 = splitFixes(fixes[1]);
@@ -587,8 +666,8 @@ public class PatchIO {
             return split1;
         }
 
-        private static ModelElement parseNormalCode(String input, Category parent, CompletePatch patch) {
-            if (OLD_PARSE) {
+        private ModelElement parseNormalCode(String input, Category parent, CompletePatch patch) {
+            if (oldParse) {
                 String code;
                 if (input.contains("<off>") && input.startsWith("#")) {
                     code = input.substring(1, input.indexOf("<off>"));
@@ -705,8 +784,7 @@ public class PatchIO {
 
     private final static class BLCMMParser extends Parser {
 
-        private static int readingVersion = 0;
-        private static boolean foundHeader = false;
+        private boolean foundHeader = false;
 
         /**
          * Importer for BLCMM-style files. Note that "filename" is ignored,
@@ -724,83 +802,81 @@ public class PatchIO {
             ModelElementContainer current = null;
             CompletePatch res = new CompletePatch();
             res.setPatchSource(CompletePatch.PatchSource.BLCMM);
-            String line;
-            Stack<XMLTag> stack = new Stack<>();
+            Tokenizer line = new Tokenizer();
+            Stack<TagName> stack = new Stack<>();
 
             // We'll want to make sure that we found a proper BLCMM header tag
             // with a version number attached.  (The parsing itself will throw
             // an IllegalArgumentException if we've been told to read a file
             // with a higher version than we support.)
-            foundHeader = false;
-
             do {
-                while ((line = removeGarbageCharacters(br.readLine())).isEmpty());//concise code ftw
+                while (!line.read(br.readLine()));//concise code ftw
 
-                if (line.equals(FT_UPDATE_STRING)) {
+                if (line.contentEquals(FT_UPDATE_STRING)) {
                     continue;
                 }
-                Line split = new Line(line);
-                current = addLine(split, res, current, stack);
-            } while (line != null && !stack.isEmpty());
+                line.tokenize();
+                current = addLine(line, res, current, stack);
+            } while (!stack.isEmpty());
 
             // Make sure that we've found a valid BLCMM header (I think that we'd end up
             // having an Exception long before we get here, actually.)
             if (!foundHeader) {
                 throw new IllegalArgumentException("BLCMM header tag not found!");
             }
+            if (res.getRoot() != null) {
+                res.getRoot().finishLoading();
+            }
 
             return res;
         }
 
-        private static ModelElementContainer addLine(Line split, CompletePatch res, ModelElementContainer current, Stack<XMLTag> stack) {
+        private ModelElementContainer addLine(Tokenizer line, CompletePatch res, ModelElementContainer current, Stack<TagName> stack) {
             final boolean fixMissingProfiles = true;
             int idx = 0;
-            while (split.elements.size() > idx) {
-                Object element = split.elements.get(idx);
-                if (element instanceof XMLTag) {
-                    XMLTag tag = (XMLTag) element;
+            while (line.count > idx) {
+                if (line.isTag(idx)) {
+                    Tag tag = line.getTag(idx);
+                    if (tag.name == null) {
+                        throw new IllegalArgumentException(tag.toString());
+                    }
                     if (!tag.single && !tag.end) {//open something
-                        stack.push(tag);
+                        stack.push(tag.name);
                         switch (tag.name) {
-                            case "category":
-                                Category category = new Category(tag.arguments.get("name"), tag.arguments.containsKey("MUT"), tag.arguments.containsKey("locked"));
+                            case CATEGORY:
+                                Category category = new Category(tag.getAttribute("name"), tag.hasAttribute("MUT"), tag.hasAttribute("locked"));
                                 category.setParent(current);
                                 if (current == null) {//This will be the root
                                     res.setRoot(category);
                                 } else {
-                                    current.addElement(category);
+                                    current.appendElement(category);
                                 }
                                 current = category;
                                 break;
-                            case "hotfix":
+                            case HOTFIX:
                                 HotfixType type = HotfixType.PATCH;
                                 String param = null;
-                                if (tag.arguments.containsKey("level")) {
+                                if (tag.hasAttribute("level")) {
                                     type = HotfixType.LEVEL;
-                                    param = tag.arguments.get("level");
-                                } else if (tag.arguments.containsKey("package")) {
+                                    param = tag.getAttribute("level");
+                                } else if (tag.hasAttribute("package")) {
                                     type = HotfixType.ONDEMAND;
-                                    param = tag.arguments.get("package");
+                                    param = tag.getAttribute("package");
                                 }
-                                HotfixWrapper wrapper = new HotfixWrapper(tag.arguments.get("name"), type, param);
+                                HotfixWrapper wrapper = new HotfixWrapper(tag.getAttribute("name"), type, param);
                                 wrapper.setParent(current);
-                                current.addElement(wrapper);
+                                current.appendElement(wrapper);
                                 current = wrapper;
                                 break;
-                            case "code":
-                                idx++;
-                                StringBuilder combuilder = new StringBuilder();
-                                Object o = split.elements.get(idx);
-                                while (!(o instanceof XMLTag && ((XMLTag) o).name.equals("code"))) {
-                                    combuilder.append(o.toString());
-                                    o = split.elements.get(++idx);
-                                }
-                                String com = combuilder.toString();
+                            case CODE:
+                                //Everything up to the next code tag is the command, as is
+                                int close = line.findTag(TagName.CODE, idx + 1);
+                                String com = line.getText(idx + 1, close);
                                 SetCommand command = com.startsWith("set ") ? (current instanceof HotfixWrapper ? new HotfixCommand(com) : new SetCommand(com)) : new SetCMPCommand(com);
                                 command.setParent(current);
-                                current.addElement(command);
-                                if (tag.arguments.containsKey("profiles")) {
-                                    String profiles = tag.arguments.get("profiles");
+                                current.appendElement(command);
+                                if (tag.hasAttribute("profiles")) {
+                                    String profiles = tag.getAttribute("profiles");
                                     String[] profs = profiles.split(",");
                                     for (String prof : profs) {
                                         Profile p = res.getProfile(prof);
@@ -812,31 +888,25 @@ public class PatchIO {
                                         }
                                     }
                                 } else {//legacy
-                                    boolean sel = !tag.arguments.containsKey("selected");
+                                    boolean sel = !tag.hasAttribute("selected");
                                     if (sel) {
                                         command.turnOnInProfile(res.getCurrentProfile());
                                     }
                                 }
                                 command.profileChanged(res.getCurrentProfile());
-                                idx--;
+                                idx = close - 1;
                                 break;
-                            case "comment":
-                                idx++;
-                                combuilder = new StringBuilder();
-                                o = split.elements.get(idx);
-                                while (!(o instanceof XMLTag && ((XMLTag) o).name.equals("comment"))) {
-                                    combuilder.append(o.toString());
-                                    o = split.elements.get(++idx);
-                                }
-                                Comment comment = new Comment(combuilder.toString());
+                            case COMMENT:
+                                close = line.findTag(TagName.COMMENT, idx + 1);
+                                Comment comment = new Comment(line.getText(idx + 1, close));
                                 comment.setParent(current);
-                                current.addElement(comment);
-                                idx--;
+                                current.appendElement(comment);
+                                idx = close - 1;
                                 break;
-                            case "BLCMM":
-                                if (tag.arguments.containsKey("v")) {
+                            case BLCMM:
+                                if (tag.hasAttribute("v")) {
                                     try {
-                                        readingVersion = Integer.parseInt(tag.arguments.get("v"));
+                                        int readingVersion = Integer.parseInt(tag.getAttribute("v"));
                                         if (readingVersion > SAVE_VERSION) {
                                             throw new IllegalArgumentException(String.format(
                                                     "File is BLCMMv%d, we can only open up to v%d",
@@ -855,34 +925,34 @@ public class PatchIO {
                                     throw new IllegalArgumentException("Improperly-formed BLCMM file.  Version not found: " + tag.toString());
                                 }
                                 break;
-                            case "profiles":
-                            case "head":
-                            case "body":
+                            case PROFILES:
+                            case HEAD:
+                            case BODY:
                                 //do nothing
                                 break;
                             default:
                                 throw new IllegalArgumentException(tag.toString());
                         }
                     } else if (!tag.single && tag.end) { //close something
-                        XMLTag pop = stack.pop();
-                        if (!pop.name.equalsIgnoreCase(tag.name)) {
+                        TagName pop = stack.pop();
+                        if (pop != tag.name) {
                             throw new IllegalStateException("Unexpected XML tag: " + tag + " was expecting the closing tag of " + pop + "\nCurrent stack:\n" + Arrays.toString(stack.toArray()).replace(",", "\n").replaceAll("[\\[\\]]", ""));
                         }
                         switch (tag.name) {
-                            case "category":
-                            case "hotfix":
+                            case CATEGORY:
+                            case HOTFIX:
                                 current = current.getParent();
                                 break;
-                            case "head"://do nothing
+                            case HEAD://do nothing
                                 if (res.getProfiles().isEmpty()) {
                                     res.createNewProfile("default");
                                 }
                                 break;
-                            case "body"://do nothing
-                            case "profiles"://do nothing
-                            case "BLCMM":
-                            case "code":
-                            case "comment":
+                            case BODY://do nothing
+                            case PROFILES://do nothing
+                            case BLCMM:
+                            case CODE:
+                            case COMMENT:
                                 break;
                             default:
                                 throw new IllegalArgumentException(tag.toString());
@@ -890,14 +960,14 @@ public class PatchIO {
                     } else {
                         assert tag.single;
                         switch (tag.name) {
-                            case "type":
-                                res.setType(PatchType.valueOf(tag.arguments.get("name").toUpperCase()));
-                                res.setOffline(Boolean.parseBoolean(tag.arguments.get("offline")));
+                            case TYPE:
+                                res.setType(PatchType.valueOf(tag.getAttribute("name").toUpperCase()));
+                                res.setOffline(Boolean.parseBoolean(tag.getAttribute("offline")));
                                 break;
-                            case "profile":
-                                String name = tag.arguments.get("name");
-                                res.profiles.put(name, new Profile(name));
-                                if (tag.arguments.containsKey("current")) {
+                            case PROFILE:
+                                String name = tag.getAttribute("name");
+                                res.addProfile(name);
+                                if (tag.hasAttribute("current")) {
                                     res.setCurrentProfile(name);
                                 }
                                 break;
@@ -905,90 +975,298 @@ public class PatchIO {
                                 throw new IllegalArgumentException(tag.toString());
                         }
                     }
-                } else if (element instanceof String) {
-                    throw new IllegalArgumentException();//should be handled by the wrapping XML case
                 } else {
-                    throw new IllegalArgumentException();
+                    throw new IllegalArgumentException();//should be handled by the wrapping XML case
                 }
                 idx++;
             }
             return current;
         }
 
-        private static class XMLTag {
+        /**
+         * The tags that may occur in a BLCMM file.
+         */
+        private static enum TagName {
+            BLCMM("BLCMM"),
+            HEAD("head"),
+            TYPE("type"),
+            PROFILES("profiles"),
+            PROFILE("profile"),
+            BODY("body"),
+            CATEGORY("category"),
+            HOTFIX("hotfix"),
+            CODE("code"),
+            COMMENT("comment");
+
+            private static final TagName[] VALUES = values();
+
+            private final String tag;
+
+            private TagName(String tag) {
+                this.tag = tag;
+            }
 
-            String name;
-            HashMap<String, String> arguments = new HashMap<>();
+            /**
+             * Returns the tag with the name in the given range of the buffer,
+             * or null if there is no such tag.
+             */
+            static TagName of(char[] buffer, int start, int end) {
+                for (TagName name : VALUES) {
+                    if (name.tag.length() == end - start && regionMatches(buffer, start, name.tag)) {
+                        return name;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public String toString() {
+                return "<" + tag + ">";
+            }
+        }
+
+        private static boolean regionMatches(char[] buffer, int start, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (buffer[start + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * A tag on the line the tokenizer is at. Attributes are kept as ranges
+         * of the line, and only turned into strings when asked for.
+         */
+        private static final class Tag {
+
+            private char[] buffer;
+            private int start, stop;
+            TagName name;
             boolean single;
             boolean end;
-
-            XMLTag(String tag) {
-                if (!tag.startsWith("<")) {
-                    throw new IllegalArgumentException(tag);
+            private int attributeCount;
+            //Per attribute the start and end of its name, and of its value
+            private int[] attributes = new int[16];
+
+            void parse(char[] buffer, int start, int stop) {
+                this.buffer = buffer;
+                this.start = start;
+                this.stop = stop;
+                end = buffer[start + 1] == '/';
+                single = buffer[stop - 2] == '/';
+                int spaceidx = indexOf(' ', start, stop);
+                int nameStart = start + (end ? 2 : 1);
+                int nameEnd = spaceidx == -1 ? stop - (single ? 2 : 1) : spaceidx;
+                if (nameEnd < nameStart) {
+                    throw new IllegalArgumentException(toString());
+                }
+                name = TagName.of(buffer, nameStart, nameEnd);
+                attributeCount = 0;
+                while (spaceidx != -1) {
+                    int eqidx = indexOf('=', spaceidx, stop);
+                    int begqidx = indexOf('"', eqidx, stop);
+                    int endqidx = indexOf('"', begqidx + 1, stop);
+                    while (endqidx > start && buffer[endqidx - 1] == '\\') {
+                        endqidx = indexOf('"', endqidx + 1, stop);
+                    }
+                    if (eqidx == -1 || begqidx == -1 || endqidx == -1) {
+                        throw new IllegalArgumentException(toString());
+                    }
+                    if (attributeCount * 4 == attributes.length) {
+                        attributes = Arrays.copyOf(attributes, attributes.length * 2);
+                    }
+                    int argStart = spaceidx + 1, argEnd = eqidx;
+                    while (argStart < argEnd && buffer[argStart] <= ' ') {
+                        argStart++;
+                    }
+                    while (argEnd > argStart && buffer[argEnd - 1] <= ' ') {
+                        argEnd--;
+                    }
+                    attributes[attributeCount * 4] = argStart;
+                    attributes[attributeCount * 4 + 1] = argEnd;
+                    attributes[attributeCount * 4 + 2] = begqidx + 1;
+                    attributes[attributeCount * 4 + 3] = endqidx;
+                    attributeCount++;
+                    spaceidx = indexOf(' ', endqidx, stop);
                 }
-                if (!tag.endsWith(">")) {
-                    throw new IllegalArgumentException(tag);
+            }
+
+            /*
+             * Like String.indexOf, searching this tag only.
+             */
+            private int indexOf(char c, int from, int to) {
+                for (int i = Math.max(from, start); i < to; i++) {
+                    if (buffer[i] == c) {
+                        return i;
+                    }
                 }
-                end = tag.startsWith("</");
-                single = tag.endsWith("/>");
-                int spaceidx = tag.indexOf(" ");
-                name = spaceidx == -1 ? tag.substring(end ? 2 : 1, tag.length() - (single ? 2 : 1)) : tag.substring(end ? 2 : 1, spaceidx);
-                while (spaceidx > 0) {
-                    int eqidx = tag.indexOf("=", spaceidx);
-                    int begqidx = tag.indexOf("\"", eqidx);
-                    int endqidx = tag.indexOf("\"", begqidx + 1);
-                    while (tag.charAt(endqidx - 1) == '\\') {
-                        endqidx = tag.indexOf("\"", endqidx + 1);
+                return -1;
+            }
+
+            private int findAttribute(String key) {
+                //Search backwards, so the last occurrence of an attribute wins
+                for (int i = attributeCount - 1; i >= 0; i--) {
+                    int argStart = attributes[i * 4];
+                    if (attributes[i * 4 + 1] - argStart == key.length() && regionMatches(buffer, argStart, key)) {
+                        return i;
                     }
-                    String arg = tag.substring(spaceidx + 1, eqidx).trim();
-                    String val = unescape(tag.substring(begqidx + 1, endqidx));
+                }
+                return -1;
+            }
 
-                    arguments.put(arg, val);
-                    spaceidx = tag.indexOf(" ", endqidx);
+            boolean hasAttribute(String key) {
+                return findAttribute(key) != -1;
+            }
+
+            String getAttribute(String key) {
+                int i = findAttribute(key);
+                if (i == -1) {
+                    return null;
                 }
+                int valueStart = attributes[i * 4 + 2];
+                String value = new String(buffer, valueStart, attributes[i * 4 + 3] - valueStart);
+                return value.indexOf('\\') == -1 ? value : unescape(value);
             }
 
             @Override
             public String toString() {
-                StringBuilder args = new StringBuilder();
-                for (String arg : arguments.keySet()) {
-                    args.append(" ").append(arg).append("=\"").append(arguments.get(arg)).append("\"");
+                return new String(buffer, start, stop - start);
+            }
+        }
+
+        /**
+         * Splits lines into tags and the text in between. A single tokenizer
+         * is used for an entire file, reusing its buffer and tags for every
+         * line, so apart from the commands and attribute values we actually
+         * use, reading a line doesn't create any objects.
+         */
+        private static final class Tokenizer {
+
+            private char[] buffer = new char[1024];
+            //The length of the line, and the bounds of the line when trimmed
+            private int length, lineStart, lineEnd;
+            //The number of tokens on the line
+            int count;
+            private int[] tokenStarts = new int[16];
+            private boolean[] isTag = new boolean[16];
+            private Tag[] tags = new Tag[16];
+
+            /**
+             * Reads the given line into the buffer, leaving out the garbage
+             * characters some editors like to add.
+             *
+             * @param line
+             * @return false if nothing was left of the line
+             */
+            boolean read(String line) {
+                length = line.length();
+                if (buffer.length < length) {
+                    buffer = new char[Math.max(length, buffer.length * 2)];
+                }
+                line.getChars(0, length, buffer, 0);
+                int n = 0;
+                for (int i = 0; i < length; i++) {
+                    char c = buffer[i];
+                    if (c != (char) 0 && c != (char) 65533) {
+                        buffer[n++] = c;
+                    }
                 }
-                return String.format("<%s%s%s%s>", end ? "/" : "", name, args.toString(), single ? "/" : "");
+                length = n;
+                lineStart = 0;
+                lineEnd = length;
+                while (lineStart < lineEnd && buffer[lineStart] <= ' ') {
+                    lineStart++;
+                }
+                while (lineEnd > lineStart && buffer[lineEnd - 1] <= ' ') {
+                    lineEnd--;
+                }
+                count = 0;
+                return length > 0;
             }
 
-        }
+            boolean contentEquals(String s) {
+                return s.length() == length && regionMatches(buffer, 0, s);
+            }
 
-        private static class Line {
+            boolean isTag(int token) {
+                return isTag[token];
+            }
+
+            Tag getTag(int token) {
+                return tags[token];
+            }
+
+            /**
+             * Returns the first token at or after the given one which is the
+             * given tag, opening or closing.
+             */
+            int findTag(TagName name, int from) {
+                for (int i = from; i < count; i++) {
+                    if (isTag[i] && tags[i].name == name) {
+                        return i;
+                    }
+                }
+                throw new IllegalArgumentException("Missing closing tag for " + name + ": " + new String(buffer, lineStart, lineEnd - lineStart));
+            }
 
-            private final List<Object> elements = new ArrayList<>();
+            /**
+             * Returns the text of the line from the start of the first given
+             * token up to the start of the second.
+             */
+            String getText(int fromToken, int toToken) {
+                int start = tokenStarts[fromToken];
+                return new String(buffer, start, tokenStarts[toToken] - start);
+            }
 
-            private Line(String line) {
-                line = line.trim();
-                int idx = 0;
+            private void addToken(int start, boolean tag, int end) {
+                if (count == tokenStarts.length) {
+                    tokenStarts = Arrays.copyOf(tokenStarts, count * 2);
+                    isTag = Arrays.copyOf(isTag, count * 2);
+                    tags = Arrays.copyOf(tags, count * 2);
+                }
+                tokenStarts[count] = start;
+                isTag[count] = tag;
+                if (tag) {
+                    if (tags[count] == null) {
+                        tags[count] = new Tag();
+                    }
+                    tags[count].parse(buffer, start, end);
+                }
+                count++;
+            }
+
+            /**
+             * Splits the line we read into tokens.
+             */
+            void tokenize() {
+                int idx = lineStart;
                 int tag = -1;
-                while (idx < line.length()) {
-                    if (line.charAt(idx) == '<' && lookaheadForTag(line, idx) != -1) {//An xml tag
+                while (idx < lineEnd) {
+                    if (buffer[idx] == '<' && lookaheadForTag(idx) != -1) {//An xml tag
                         if (tag == -1) {
                             int idx2 = idx + 1;
                             boolean inquotes = false;
                             while (true) {
-                                char c = line.charAt(idx2);
+                                if (idx2 == lineEnd) {
+                                    throw new IllegalArgumentException(new String(buffer, lineStart, lineEnd - lineStart));
+                                }
+                                char c = buffer[idx2];
                                 idx2++;
                                 if (c == '>' && !inquotes) {
                                     break;
                                 } else if (c == '"') {
                                     if (!inquotes) {
                                         inquotes = true;
-                                    } else if (idx2 > 1 && line.charAt(idx2 - 2) != '\\') {//>1 and -2 because idx2 has been incremented at this point
+                                    } else if (buffer[idx2 - 2] != '\\') {//-2 because idx2 has been incremented at this point
                                         inquotes = false;
                                     }
                                 }
                             }
-                            elements.add(new XMLTag(line.substring(idx, idx2)));
+                            addToken(idx, true, idx2);
                             idx = idx2;
                         } else {
-                            elements.add(new XMLTag(line.substring(idx, tag + 1)));
+                            addToken(idx, true, tag + 1);
                             idx = tag + 1;
                             tag = -1;
                         }
@@ -997,17 +1275,17 @@ public class PatchIO {
                         boolean inquotes = false;
                         int lastStart = -1;
                         while (true) {//sanning until we hit the start of the next xml tag
-                            if (idx2 == line.length()) {
+                            if (idx2 == lineEnd) {
                                 if (lastStart != -1) {
                                     idx2 = lastStart;
                                     break;
                                 } else {
-                                    throw new IllegalArgumentException(line);
+                                    throw new IllegalArgumentException(new String(buffer, lineStart, lineEnd - lineStart));
                                 }
                             }
-                            char c = line.charAt(idx2);
+                            char c = buffer[idx2];
                             if (c == '<') {
-                                tag = lookaheadForTag(line, idx2);
+                                tag = lookaheadForTag(idx2);
                                 if (tag != -1) {
                                     if (!inquotes) {
                                         break;
@@ -1020,20 +1298,20 @@ public class PatchIO {
                             }
                             idx2++;
                         }
-                        elements.add(line.substring(idx, idx2));
+                        addToken(idx, false, idx2);
                         idx = idx2;
                     }
                 }
             }
 
-            private static int lookaheadForTag(String line, int idx2) {
-                assert line.charAt(idx2) == '<';
+            private int lookaheadForTag(int idx2) {
+                assert buffer[idx2] == '<';
                 int idx3 = idx2 + 1;
                 boolean lookingForArguments = false;
                 boolean lookingForValue = false;
                 boolean hasletter = false;
-                while (idx3 < line.length()) {
-                    char c = line.charAt(idx3);
+                while (idx3 < lineEnd) {
+                    char c = buffer[idx3];
                     if (!lookingForArguments) {
                         if (c == '>' && idx3 - idx2 > 1) {
                             return idx3;
@@ -1045,13 +1323,13 @@ public class PatchIO {
                         }
                     } else {
                         if (lookingForValue) {
-                            if (c == '"' && line.charAt(idx3 - 1) != '\\') {
+                            if (c == '"' && buffer[idx3 - 1] != '\\') {
                                 lookingForValue = false;
                                 hasletter = false;
                             }
                         } else {
                             if (c == '=') {
-                                if (line.charAt(idx3 + 1) == '"') {
+                                if (idx3 + 1 < lineEnd && buffer[idx3 + 1] == '"') {
                                     idx3++;
                                     lookingForValue = true;
                                 } else {
@@ -1059,7 +1337,7 @@ public class PatchIO {
                                 }
                             } else if (c == '>' && !hasletter) {
                                 return idx3;
-                            } else if (c == '/' && line.charAt(idx3 + 1) == '>' && !hasletter) {
+                            } else if (c == '/' && idx3 + 1 < lineEnd && buffer[idx3 + 1] == '>' && !hasletter) {
                                 idx3++;
                                 return idx3;
                             } else if (c == ' ' && !hasletter) {//skip
@@ -1098,10 +1376,19 @@ public class PatchIO {
     }
 
     public static List<String> writeToFile(CompletePatch patch, SaveFormat format, Writer writer, boolean exporting) throws IOException {
+        return writeToFile(patch, format, writer, exporting, HOTFIX_VALUE_MEMORY_LIMIT);
+    }
+
+    /**
+     * Like writeToFile, but with the given number of characters of hotfix
+     * values kept in memory, so tests can force them to go to a temporary
+     * file.
+     */
+    static List<String> writeToFile(CompletePatch patch, SaveFormat format, Writer writer, boolean exporting, int hotfixValueMemoryLimit) throws IOException {
         Category root = patch.getRoot();
         PatchType type = patch.getType();
         if (format == SaveFormat.FT) {
-            legacyWriteToFile(patch, writer);
+            legacyWriteToFile(patch, writer, hotfixValueMemoryLimit);
             return Collections.EMPTY_LIST;
         }
 
@@ -1147,7 +1434,7 @@ public class PatchIO {
         if (root.getNumberOfHotfixDescendants() > 0) {
             writer.append("#Hotfixes:" + LINEBREAK);
             Category GBXFixes = getGBXFixes(type);
-            writeFunctionalHotfix(GBXFixes, root, type, writer, patch.isOffline());//Only write hotfix data when hotfixes are present
+            writeFunctionalHotfix(GBXFixes, root, type, writer, patch.isOffline(), hotfixValueMemoryLimit);//Only write hotfix data when hotfixes are present
         }
         return res;
     }
@@ -1169,56 +1456,46 @@ public class PatchIO {
         }
     }
 
-    private static void writeFunctionalHotfix(Category gbx, Category root, PatchType type, Writer writer, boolean offline) throws IOException {
-        File f = File.createTempFile("temp_hotfixes", "temp");
-        BufferedWriter valuewriter = new BufferedWriter(new FileWriter(f));
-        OSInfo.OS OS = GameDetection.getVirtualOS(type.isBL2());
-
-        List<HotfixWrapper> hotfixes = gbx.listHotfixMeta();
-        hotfixes.addAll(root.listHotfixMeta());
-        writer.append(type.getFunctionalHotfixPrefix(offline, OS));
-        HotfixConverter conv = new HotfixConverter("");
-        int i = 0;
-        HashSet<String> illegalValues = new HashSet<>();
-        final int numberOfGBXHotfixes = gbx.getNumberOfHotfixDescendants();
-        for (HotfixWrapper c : hotfixes) {
-            setConverterToContainer(c, conv);
-            for (SetCommand command : c.getElements()) {
-                boolean gbxFix = i++ < numberOfGBXHotfixes;//notice the increment here
-                if (command.isSelected()) {
-                    conv.addSetCommand(command.getCode());
-                    String key = conv.getResult().keys.remove(0);
-                    String value = conv.getResult().values.remove(0);
-                    if (!illegalValues.contains(value)) {
-                        if (i > 1) {
-                            writer.append(",");
-                            valuewriter.append(",");
+    private static void writeFunctionalHotfix(Category gbx, Category root, PatchType type, Writer writer, boolean offline, int memoryLimit) throws IOException {
+        //The keys go straight to the output, but the values come after them, so we need to hold on to those.
+        //We keep them in memory, unless they get too big, in which case they're written to a temporary file.
+        try (SpillingWriter valuewriter = new SpillingWriter("temp_hotfixes", memoryLimit)) {
+            OSInfo.OS OS = GameDetection.getVirtualOS(type.isBL2());
+
+            List<HotfixWrapper> hotfixes = gbx.listHotfixMeta();
+            hotfixes.addAll(root.listHotfixMeta());
+            writer.append(type.getFunctionalHotfixPrefix(offline, OS));
+            HotfixConverter conv = new HotfixConverter("");
+            int i = 0;
+            HashSet<String> illegalValues = new HashSet<>();
+            final int numberOfGBXHotfixes = gbx.getNumberOfHotfixDescendants();
+            for (HotfixWrapper c : hotfixes) {
+                setConverterToContainer(c, conv);
+                for (SetCommand command : c.getElements()) {
+                    boolean gbxFix = i++ < numberOfGBXHotfixes;//notice the increment here
+                    if (command.isSelected()) {
+                        conv.addSetCommand(command.getCode());
+                        String[] converted = takeConvertedHotfix(conv);
+                        String key = converted[0];
+                        String value = converted[1];
+                        if (!illegalValues.contains(value)) {
+                            if (i > 1) {
+                                writer.append(",");
+                                valuewriter.append(",");
+                            }
+                            writer.append(key);
+                            valuewriter.append("\"" + escape(value.substring(1, value.length() - 1)) + "\"");
+                        }
+                        if (gbxFix) {
+                            illegalValues.add(value);
                         }
-                        writer.append(key);
-                        valuewriter.append("\"" + escape(value.substring(1, value.length() - 1)) + "\"");
-                    }
-                    if (gbxFix) {
-                        illegalValues.add(value);
                     }
                 }
             }
+            writer.append(type.getFunctionalHotfixCenter(offline, OS).replace("\n\n", LINEBREAK));
+            valuewriter.writeTo(writer);
+            writer.append(type.getFunctionalHotfixPostfix(offline, OS));
         }
-        valuewriter.close();
-        writer.append(type.getFunctionalHotfixCenter(offline, OS).replace("\n\n", LINEBREAK));
-        FileReader fis = new FileReader(f);
-        char[] buffer = new char[8 * 1024];
-        int bytesRead;
-        while ((bytesRead = fis.read(buffer)) != -1) {
-            writer.write(buffer, 0, bytesRead);
-        }
-        fis.close();
-        f.delete();
-        writer.append(type.getFunctionalHotfixPostfix(offline, OS));
-        //Now we're doing 3x as much IO as needed compared to storing the values in memory
-        //We could do the main loop twice, so we have 1x IO but 2x CPU usage
-        //Or actually store it in memory and risk RAM issues
-        //Or store it in RAM if small, and stream to file if it gets too big
-        //TODO revise maybe?
         //Can also enhance the HotfixConverter API to allow for some ease of use
         //If we shift blcmm.model to the utilities JAR, the converter has access to the
         //HotfixContainer and other elements, which it could then provide custom-tailored calls for,
@@ -1226,6 +1503,22 @@ public class PatchIO {
         //And I (LightChaosman) prefer to keep "volatile" code in the main project, until it's stabilized to a final form
     }
 
+    /**
+     * Returns the key and value of the set command that was just added to the
+     * provided converter, and clears its result, so the converter never holds
+     * more than one entry.
+     *
+     * @param conv
+     * @return
+     */
+    private static String[] takeConvertedHotfix(HotfixConverter conv) {
+        HotfixConverter.HotfixConverterResult result = conv.getResult();
+        String[] res = new String[]{result.keys.get(0), result.values.get(0)};
+        result.keys.clear();
+        result.values.clear();
+        return res;
+    }
+
     private static void setConverterToContainer(HotfixWrapper c, HotfixConverter conv) throws IllegalArgumentException {
         switch (c.getType()) {
             case PATCH:
@@ -1265,12 +1558,38 @@ public class PatchIO {
         }
     }
 
+    /**
+     * Returns the hotfixes Gearbox applies to the given game. These are parsed
+     * only once per game, and the returned category is shared between all
+     * callers, so it must not be modified.
+     *
+     * @param type
+     * @return
+     */
     static Category getGBXFixes(PatchType type) {
-        return getStoredCommands(type, "GBXFIXES", "GBX_hotfixes.blcm");
+        synchronized (GBX_FIXES) {
+            return GBX_FIXES.computeIfAbsent(type, t -> getStoredCommands(t, "GBXFIXES", "GBX_hotfixes.blcm"));
+        }
     }
 
-    private static Category getVanillaLevelList(PatchType type) {
-        return getStoredCommands(type, "Level lists", "vanillaLevelLists.blcm");
+    /**
+     * Returns a read-only map from each object to its vanilla LevelList value,
+     * for the given game. These are parsed only once per game.
+     *
+     * @param type
+     * @return
+     */
+    private static Map<String, String> getVanillaLevelLists(PatchType type) {
+        synchronized (VANILLA_LEVEL_LISTS) {
+            return VANILLA_LEVEL_LISTS.computeIfAbsent(type, t -> {
+                Map<String, String> res = new HashMap<>();
+                for (ModelElement el : getStoredCommands(t, "Level lists", "vanillaLevelLists.blcm").getElements()) {
+                    SetCommand vcom = (SetCommand) el;
+                    res.put(vcom.getObject(), vcom.getValue());
+                }
+                return Collections.unmodifiableMap(res);
+            });
+        }
     }
 
     private static Category getStoredCommands(PatchType type, String categoryName, String filename) {
@@ -1279,6 +1598,8 @@ public class PatchIO {
         try (BufferedReader br = new BufferedReader(new InputStreamReader(hotfixStream));) {
             CompletePatch p = new BLCMMParser().parse(br, "");
             res = p.getRoot();
+            //Evaluate the transient data right away, so sharing this category never triggers lazy evaluation later on
+            res.getTransientData().getProperties();
         } catch (Exception ex) {//TODO report to user? :thinking: What would user do with this information... if resources.jar is present, this never fails.
             GlobalLogger.log(ex);
         }
@@ -1289,8 +1610,8 @@ public class PatchIO {
         List<String> res = new ArrayList<>();
         HashSet<SetCommand> newExcludes = new HashSet<>();
         Map<String, Collection<SetCommand>> levelMerges = new LinkedHashMap<>();
-        Map<String, SetCommand> vanillamerges = null;
-        Profile p = new Profile("");
+        Map<String, String> vanillamerges = null;
+        Profile p = new Profile("", 0);
         SetCommand currentCommand = null;
         try {
             analyzeCategoryForLevelMerges(toBeChecked, levelMerges);
@@ -1303,14 +1624,10 @@ public class PatchIO {
                         continue;
                     } else if (array == null) {
                         if (vanillamerges == null) {
-                            Category vmerges = getVanillaLevelList(type);
-                            vanillamerges = new HashMap<>();
-                            for (ModelElement el : vmerges.getElements()) {
-                                SetCommand vcom = (SetCommand) el;
-                                vanillamerges.put(vcom.getObject(), vcom);
-                            }
+                            vanillamerges = getVanillaLevelLists(type);
                         }
-                        array = (BorderlandsArray) BorderlandsArray.parseArray(vanillamerges.get(object).getValue());
+                        //We merge into this array, so it's parsed fresh from the cached vanilla value
+                        array = (BorderlandsArray) BorderlandsArray.parseArray(vanillamerges.get(object));
                     }
                     String val2 = com.getValue();
                     BorderlandsArray<BorderlandsStruct> ar = (BorderlandsArray) BorderlandsArray.parseArray(val2);
@@ -1385,7 +1702,7 @@ public class PatchIO {
     //
     //Below are the legace writers
     //
-    private static void legacyWriteToFile(CompletePatch patch, Writer writer) throws IOException {
+    private static void legacyWriteToFile(CompletePatch patch, Writer writer, int hotfixValueMemoryLimit) throws IOException {
         if (patch.getProfiles().size() > 1) {//If we have profiles and are saving structure
             StringBuilder sb = new StringBuilder();
             for (Profile prof : patch.getProfiles()) {
@@ -1398,7 +1715,7 @@ public class PatchIO {
         writeLegacyStructure(patch, writer);
 
         if (patch.getRoot().getNumberOfHotfixDescendants() > 0) {
-            writeFunctionalHotfix(getGBXFixes(patch.getType()), patch.getRoot(), patch.getType(), writer, patch.isOffline());//Only write hotfix data when hotfixes are present
+            writeFunctionalHotfix(getGBXFixes(patch.getType()), patch.getRoot(), patch.getType(), writer, patch.isOffline(), hotfixValueMemoryLimit);//Only write hotfix data when hotfixes are present
         }
         if (patch.getProfiles().size() > 1) {//If we have profiles enabled, we only write the enabled set commands
             writeFunctionalCodes(patch.getRoot(), writer, new HashSet<>());
@@ -1433,8 +1750,9 @@ public class PatchIO {
             SetCommand code = (SetCommand) el;
             setConverterToContainer((HotfixWrapper) parent, conv);
             conv.addSetCommand(escape(code.getCode()));//escape, since we didn't do that in legacy
-            String key = conv.getResult().keys.remove(0);
-            String value = conv.getResult().values.remove(0);
+            String[] converted = takeConvertedHotfix(conv);
+            String key = converted[0];
+            String value = converted[1];
             String fix = "#<hotfix><key>" + key + "</key><value>" + value + "</value>" + legacyProfileString(code, patch) + (code.isSelected() ? "<on>" : "<off>");
             return fix;
         }
@@ -24,9 +24,15 @@ package blcmm.model;
 public class Profile {
 
     private String name;
+    /**
+     * A small number, unique among the profiles of a patch, so commands can
+     * store the profiles they're on in as bits.
+     */
+    final int id;
 
-    Profile(String name) {
+    Profile(String name, int id) {
         this.name = name;
+        this.id = id;
     }
 
     void setName(String newName) {
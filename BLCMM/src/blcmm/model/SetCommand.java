@@ -29,6 +29,11 @@ import java.util.Arrays;
 public class SetCommand extends EnableableModelElement {
 
     protected final String object, field, value;
+    //The padded string shown in the tree, which stays valid until our parent, or the display version of our category, changes
+    private transient String displayString;
+    private transient ModelElementContainer<?> displayParent;
+    private transient Category displayCategory;
+    private transient int displayVersion;
 
     public SetCommand(String object, String field, String value) {
         this(new String[]{object, field, value}, true);
@@ -115,6 +120,12 @@ public class SetCommand extends EnableableModelElement {
             // tree.
             return getCode();
         }
+        if (displayString != null
+                && displayParent == getParent()
+                && displayCategory == parentCategory
+                && displayVersion == parentCategory.getDisplayVersion()) {
+            return displayString;
+        }
         StringBuilder sb = new StringBuilder();
         String[] split = getSplit();
         String[] specials = getSpecialToStringCases(split);
@@ -126,7 +137,11 @@ public class SetCommand extends EnableableModelElement {
         }
 
         //sb.append(this.getTransientData().summaryString());
-        return sb.toString();
+        displayString = sb.toString();
+        displayParent = getParent();
+        displayCategory = parentCategory;
+        displayVersion = parentCategory.getDisplayVersion();
+        return displayString;
     }
 
     @Override
@@ -20,7 +20,9 @@ package blcmm.model;
 import blcmm.model.properties.GlobalListOfProperties;
 import blcmm.model.properties.PropertyChecker;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +30,17 @@ import java.util.Set;
 import java.util.TreeMap;
 
 /**
+ * The properties of a model element, and the counts of those of its
+ * descendants.
+ * <p>
+ * These are computed lazily, but only up to the point an element is attached
+ * to a tree that has been queried before. A tree that is built or copied in
+ * one go is evaluated in a single bottom-up pass the first time its root is
+ * queried, by the thread querying it, which is the thread building it or the
+ * one it was handed to. From then on, every change to the tree updates the
+ * counts right away, and elements attached to it are evaluated as they are
+ * attached. Reading the properties of an element of such a tree, like the one
+ * being shown, therefore never changes anything, so other threads may do so.
  *
  * @author LightChaosman
  */
@@ -36,9 +49,35 @@ public class TransientModelData {
     private final ModelElement element;
     private final HashSet<PropertyChecker> myProperties = new HashSet<>();
     private final Map<PropertyChecker, Integer> properties = new TreeMap<>(GlobalListOfProperties.PROPERTY_COMPARATOR);
+    /**
+     * For containers, the number of selected commands among our descendants,
+     * indexed by profile id. Commands are selected or not depending on the
+     * current profile of their patch, so rather than running the
+     * LeafSelectedChecker we count them for every profile at once, which
+     * makes switching profiles free.
+     */
+    private int[] selectedCounts = new int[0];
 
     private boolean lostParent;
 
+    /**
+     * Whether the checkers have been ran against our element yet. This is only
+     * done once the properties are first asked for, or once the element is
+     * attached to an evaluated tree, so elements which are never shown, like
+     * copies made while dragging and dropping, never run them at all.
+     */
+    private boolean evaluated = false;
+
+    /**
+     * Whether the properties map needs to be rebuilt from our own properties
+     * and those of our children. If an element is dirty, so are all of its
+     * ancestors, so a whole tree built in one go is evaluated bottom-up in a
+     * single pass, the first time its root is queried. Once that happened,
+     * the elements of the tree only become dirty again for the duration of a
+     * single change to the tree.
+     */
+    private boolean dirty = true;
+
     /**
      * Enum to hold some state as to whether this element is
      * overwriting/overwritten, etc. This is only actually used to provide
@@ -62,6 +101,13 @@ public class TransientModelData {
     private boolean acceptStatuses;
 
     TransientModelData(ModelElement element) {
+        this.overwriteState = OverwriteState.Normal;
+        this.element = element;
+        this.acceptStatuses = true;
+        this.lostParent = false;
+    }
+
+    private void evaluate() {
         PropertyChecker.Hints hints = null;
         if (element instanceof SetCommand) {
             hints = new PropertyChecker.Hints(((SetCommand) element).getObject().toLowerCase(),
@@ -69,19 +115,139 @@ public class TransientModelData {
                     ((SetCommand) element).getValue().toLowerCase());
         }
         for (PropertyChecker checker : GlobalListOfProperties.LIST) {
+            if (checker instanceof GlobalListOfProperties.LeafSelectedChecker) {
+                //Kept track of in selectedCounts instead
+                continue;
+            }
             boolean check = hints == null ? checker.checkProperty(element) : checker.checkProperty(element, hints);
             if (check) {
-                properties.put(checker, 1);
                 myProperties.add(checker);
             }
         }
-        this.overwriteState = OverwriteState.Normal;
-        this.element = element;
-        this.acceptStatuses = true;
-        this.lostParent = false;
+        evaluated = true;
+    }
+
+    /**
+     * Rebuilds the properties map of this element, and of all dirty
+     * descendants, if needed.
+     */
+    private void validate() {
+        if (!dirty) {
+            return;
+        }
+        if (acceptStatuses) {
+            if (!evaluated) {
+                evaluate();
+            } else if (element instanceof ModelElementContainer) {
+                for (PropertyChecker property : GlobalListOfProperties.DEPENDING_ON_CHILDREN) {
+                    if (property.checkProperty(element)) {
+                        myProperties.add(property);
+                    } else {
+                        myProperties.remove(property);
+                    }
+                }
+            }
+        }
+        properties.clear();
+        for (PropertyChecker property : myProperties) {
+            properties.put(property, 1);
+        }
+        if (element instanceof ModelElementContainer) {
+            Arrays.fill(selectedCounts, 0);
+            for (Object child : ((ModelElementContainer<?>) element).getElements()) {
+                TransientModelData childData = ((ModelElement) child).transientData;
+                childData.validate();
+                if (acceptStatuses) {
+                    childData.addContributionTo(properties);
+                    selectedCounts = childData.addSelectedContributionTo(selectedCounts, 1);
+                }
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Adds the counts this element passes on to its parent to the given map.
+     * Elements not accepting statuses pass on those of their children.
+     */
+    private void addContributionTo(Map<PropertyChecker, Integer> target) {
+        if (acceptStatuses) {
+            for (Map.Entry<PropertyChecker, Integer> entry : properties.entrySet()) {
+                if (entry.getKey().isPropagatingToAncestors()) {
+                    target.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                }
+            }
+        } else if (element instanceof ModelElementContainer) {
+            for (Object child : ((ModelElementContainer<?>) element).getElements()) {
+                ((ModelElement) child).transientData.addContributionTo(target);
+            }
+        }
+    }
+
+    /**
+     * Adds the number of selected commands this element passes on to its
+     * parent, per profile, times the given factor to the given counts. Returns
+     * the counts, which are grown if needed.
+     */
+    private int[] addSelectedContributionTo(int[] target, int factor) {
+        if (element instanceof EnableableModelElement) {
+            EnableableModelElement command = (EnableableModelElement) element;
+            for (int id = command.nextProfileId(0); id != -1; id = command.nextProfileId(id + 1)) {
+                target = add(target, id, factor);
+            }
+        } else if (acceptStatuses) {
+            for (int id = 0; id < selectedCounts.length; id++) {
+                if (selectedCounts[id] != 0) {
+                    target = add(target, id, factor * selectedCounts[id]);
+                }
+            }
+        } else if (element instanceof ModelElementContainer) {
+            for (Object child : ((ModelElementContainer<?>) element).getElements()) {
+                target = ((ModelElement) child).transientData.addSelectedContributionTo(target, factor);
+            }
+        }
+        return target;
+    }
+
+    private static int[] add(int[] counts, int index, int value) {
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length * 2));
+        }
+        counts[index] += value;
+        return counts;
+    }
+
+    /**
+     * Marks this element and its ancestors as dirty. We can stop at the first
+     * dirty ancestor, since its own ancestors are dirty as well.
+     */
+    void invalidate() {
+        ModelElement el = element;
+        while (el != null && !el.transientData.dirty) {
+            el.transientData.dirty = true;
+            el = el.getParent();
+        }
+    }
+
+    /**
+     * Marks this element and its ancestors as dirty, and rebuilds them right
+     * away if the tree they're in has been evaluated before, so the tree is
+     * never left dirty for another thread to rebuild.
+     */
+    void revalidate() {
+        ModelElement top = element;
+        while (top.getParent() != null && !top.getParent().transientData.dirty) {
+            top = top.getParent();
+        }
+        boolean evaluatedTree = !top.transientData.dirty;
+        invalidate();
+        if (evaluatedTree) {
+            top.transientData.validate();
+        }
     }
 
     public Set<PropertyChecker> getProperties() {
+        validate();
         return Collections.unmodifiableSet(properties.keySet());
     }
 
@@ -108,10 +274,33 @@ public class TransientModelData {
      * @return
      */
     public int getNumberOfOccurences(PropertyChecker property) {
+        if (property instanceof GlobalListOfProperties.LeafSelectedChecker) {
+            return getNumberOfSelectedCommands();
+        }
+        validate();
         Integer x = properties.get(property);
         return x == null ? 0 : x;
     }
 
+    private int getNumberOfSelectedCommands() {
+        if (!acceptStatuses) {
+            return 0;
+        }
+        if (element instanceof SetCommand) {
+            return ((SetCommand) element).isSelected() ? 1 : 0;
+        }
+        if (!(element instanceof ModelElementContainer)) {
+            return 0;
+        }
+        CompletePatch patch = element.getPatch();
+        if (patch == null) {
+            return 0;
+        }
+        validate();
+        int id = patch.getCurrentProfile().id;
+        return id < selectedCounts.length ? selectedCounts[id] : 0;
+    }
+
     /**
      * Returns a summary string detailing the various checker properties which
      * are stored inside this transient data, intended for appending to items in
@@ -121,6 +310,7 @@ public class TransientModelData {
      * @return A string for reporting purposes
      */
     public String summaryString() {
+        validate();
         ArrayList<String> al = new ArrayList<>();
         for (Map.Entry<PropertyChecker, Integer> entry : properties.entrySet()) {
             al.add(String.format("%s: %d", entry.getKey(), entry.getValue()));
@@ -140,6 +330,17 @@ public class TransientModelData {
         this.acceptStatuses = false;
         properties.clear();
         myProperties.clear();
+        revalidate();
+    }
+
+    /**
+     * Returns whether this element takes on statuses of its own. If not, it
+     * has no counts of its own, and passes on those of its children.
+     *
+     * @return
+     */
+    public boolean isAcceptingStatuses() {
+        return acceptStatuses;
     }
 
     /**
@@ -177,13 +378,34 @@ public class TransientModelData {
     }
 
     void updateByChangingOwnProperty(PropertyChecker... checkers) {
+        if (!evaluated) {
+            return;
+        }
         for (PropertyChecker property : checkers) {
-            updateSelfProperty(property);
+            if (dirty) {
+                //Our properties map will be rebuilt anyway, just keep track of our own
+                if (acceptStatuses && property.checkProperty(element)) {
+                    myProperties.add(property);
+                } else {
+                    myProperties.remove(property);
+                }
+            } else {
+                updateSelfProperty(property);
+            }
         }
     }
 
-    private void updateByChangingChildArray(ModelElement newChild, boolean add) {
+    private void updateByChangingChildArray(ModelElement child, boolean add) {
         assert element instanceof ModelElementContainer;
+        if (dirty) {
+            return;
+        }
+        TransientModelData childData = child.transientData;
+        if (childData.dirty) {
+            //Only possible when adding. We're evaluated already, so the new
+            //child has to be as well, before we can add its counts to ours.
+            childData.validate();
+        }
 
         // First check all our PropertyCheckers against ourselves and set all
         // relevant info
@@ -191,26 +413,62 @@ public class TransientModelData {
             updateSelfProperty(property);
         }
 
-        // Now take any properties from our new child and propagate them to
+        // Now take any properties from our child and propagate them to
         // ourselves, if needed.
-        TransientModelData childData = newChild.transientData;
-        for (PropertyChecker property : childData.properties.keySet()) {
-            if (property.isPropagatingToAncestors()) {
-                propagate(property, childData, add ? 1 : -1);
+        Map<PropertyChecker, Integer> contribution = new HashMap<>();
+        childData.addContributionTo(contribution);
+        for (Map.Entry<PropertyChecker, Integer> entry : contribution.entrySet()) {
+            propagate(entry.getKey(), add ? entry.getValue() : -entry.getValue());
+        }
+        int[] selected = childData.addSelectedContributionTo(new int[0], add ? 1 : -1);
+        for (int id = 0; id < selected.length; id++) {
+            if (selected[id] != 0) {
+                propagateSelected(element, id, selected[id]);
             }
         }
     }
 
-    private void propagate(PropertyChecker property, TransientModelData childData, int fac) {
-        int value = fac * childData.properties.get(property);
-        propagate(property, value);
+    /**
+     * Updates the selected counts of our ancestors after our element was
+     * turned on or off in the profile with the given id.
+     */
+    void updateBySelecting(int profileId, int delta) {
+        if (dirty) {
+            //Either our parent is dirty as well, or we're not actually one of its children
+            return;
+        }
+        propagateSelected(element.getParent(), profileId, delta);
+    }
 
+    /**
+     * Adds the given value to the selected count of the given profile of the
+     * given container and its ancestors, stopping at the first dirty one.
+     */
+    private static void propagateSelected(ModelElement container, int profileId, int value) {
+        while (container != null) {
+            TransientModelData containerdata = container.transientData;
+            if (containerdata.dirty) {
+                return;
+            }
+            if (containerdata.acceptStatuses) {
+                containerdata.selectedCounts = add(containerdata.selectedCounts, profileId, value);
+            }
+            container = container.getParent();
+        }
     }
 
+    /**
+     * Adds the given value to the count of the given property of this element
+     * and its ancestors. Dirty ancestors are skipped, since they will recount
+     * once they are queried.
+     */
     private void propagate(PropertyChecker property, int value) {
         ModelElement container = element;
         while (container != null) {
             TransientModelData containerdata = container.transientData;
+            if (containerdata.dirty) {
+                return;
+            }
             if (containerdata.acceptStatuses) {
                 containerdata.properties.put(property, containerdata.properties.getOrDefault(property, 0) + value);
                 if (containerdata.properties.get(property) == 0) {
@@ -222,25 +480,21 @@ public class TransientModelData {
     }
 
     private void updateSelfProperty(PropertyChecker property) {
-        boolean newp = property.checkProperty(element);
+        boolean newp = this.acceptStatuses && property.checkProperty(element);
         boolean oldp = myProperties.contains(property);
         if (newp != oldp) {
-            if (this.acceptStatuses) {
-                if (newp) {
-                    myProperties.add(property);
-                } else {
-                    myProperties.remove(property);
-                }
+            if (newp) {
+                myProperties.add(property);
+            } else {
+                myProperties.remove(property);
             }
             if (property.isPropagatingToAncestors()) {
                 propagate(property, newp ? 1 : -1);
             } else {
-                if (this.acceptStatuses) {
-                    if (newp) {
-                        properties.put(property, 1);
-                    } else {
-                        properties.remove(property);
-                    }
+                if (newp) {
+                    properties.put(property, 1);
+                } else {
+                    properties.remove(property);
                 }
             }
         }
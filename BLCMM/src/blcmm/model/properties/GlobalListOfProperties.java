@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -316,6 +317,7 @@ public class GlobalListOfProperties {
     public static class ObjectSyntaxChecker extends SyntaxPropertyChecker {
 
         private final static String REGEX;
+        private final static Pattern PATTERN;
 
         static {
             // 2K Aus added some packages which start with `11B_` to TPS, which
@@ -329,6 +331,7 @@ public class GlobalListOfProperties {
             String REGEX1 = "(" + word1 + ")((\\.|:)" + word2 + ")*";
             String classWrapper = "[a-zA-Z0-9_]*";
             REGEX = "(" + REGEX1 + ")|((" + classWrapper + ")'(" + REGEX1 + ")')";
+            PATTERN = Pattern.compile(REGEX);
         }
 
         public ObjectSyntaxChecker() {
@@ -340,7 +343,7 @@ public class GlobalListOfProperties {
             if (!(el instanceof SetCommand)) {
                 return false;
             }
-            return !((SetCommand) el).getObject().matches(REGEX) || ((SetCommand) el).getObject().chars().filter(i -> i == ':').count() > 1;
+            return !PATTERN.matcher(((SetCommand) el).getObject()).matches() || ((SetCommand) el).getObject().chars().filter(i -> i == ':').count() > 1;
         }
 
         @Override
@@ -352,10 +355,12 @@ public class GlobalListOfProperties {
     public static class FieldSyntaxChecker extends SyntaxPropertyChecker {
 
         private static final String REGEX;
+        private static final Pattern PATTERN;
 
         static {
             String word = "[a-zA-Z_][a-zA-Z0-9_]*(\\[([0-9]|[1-9][0-9]*)\\])?";
             REGEX = "((" + word + ")\\.)*(" + word + ")";
+            PATTERN = Pattern.compile(REGEX);
         }
 
         public FieldSyntaxChecker() {
@@ -367,7 +372,7 @@ public class GlobalListOfProperties {
             if (!(el instanceof SetCommand)) {
                 return false;
             }
-            return !((SetCommand) el).getField().matches(REGEX);
+            return !PATTERN.matcher(((SetCommand) el).getField()).matches();
         }
 
         @Override
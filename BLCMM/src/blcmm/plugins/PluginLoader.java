@@ -6,15 +6,26 @@
 import blcmm.plugins.pseudo_model.PCategory;
 import blcmm.utilities.Utilities;
 import general.utilities.GlobalLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -23,11 +34,22 @@ import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javax.swing.JOptionPane;
 
+/**
+ * Finds the plugins in our plugin directory. Plugins declare their plugin
+ * classes in the BLCMM-Plugins attribute of their manifest, or in a
+ * META-INF/services/blcmm.plugins.BLCMMPlugin file. Jars that do neither are
+ * scanned for subclasses of BLCMMPlugin.
+ *
+ * What we find is stored in an index, along with the name and supported games
+ * of each plugin, so as long as a jar doesn't change, none of its classes are
+ * loaded until its plugin is actually used.
+ */
 public class PluginLoader {
 
     public static URLClassLoader MY_CLASS_LOADER;
@@ -40,13 +62,29 @@ public class PluginLoader {
     public static final File PLUGINS_DIR = new File("plugins/");
     public static final File PLUGINS_DIR_TO_UPDATE = new File("plugins/update");
     private static final File PLUGINS_TO_DELETE = new File("plugins/delete/list.txt");
+    private static final File PLUGINS_INDEX = new File("plugins/plugins.index");
+    private static final int INDEX_VERSION = 1;
 
-    // a list where we keep an initialized object of each plugin class
-    public final static Map<BLCMMPlugin, PluginInfo> PLUGINS = new LinkedHashMap<>();//Maps plugin to compile time
+    // the manifest attribute and service file in which a jar can list its plugin classes
+    public static final String MANIFEST_ATTRIBUTE = "BLCMM-Plugins";
+    public static final String SERVICE_FILE = "META-INF/services/" + BLCMMPlugin.class.getName();
+
+    // a list of all plugins we found, which are only loaded once they're used
+    public final static List<PluginInfo> PLUGINS = new ArrayList<>();
     public final static Map<String, String> FAILED_TO_LOAD = new HashMap<String, String>();//Maps jar name to error message
+    private static boolean loaded = false;
 
-    public static void loadPlugins() {
-        List<JarFile> jarfiles = new ArrayList<>();
+    /**
+     * Finds the plugins in our plugin folder. This is done once, in the
+     * background while starting up, or when the plugin menu is first created,
+     * whichever comes first.
+     */
+    public static synchronized void loadPlugins() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        List<File> jarfiles = new ArrayList<>();
         List<URL> urls = new ArrayList<>();
         if (PLUGINS_DIR_TO_UPDATE.exists()) {
             for (File f : PLUGINS_DIR_TO_UPDATE.listFiles()) {
@@ -89,11 +127,11 @@ public class PluginLoader {
             }
         }
         MY_CLASS_LOADER = URLClassLoader.newInstance(urls.toArray(new URL[0]));
-        loadAllFiles(MY_CLASS_LOADER, jarfiles);
+        loadAllFiles(jarfiles);
     }
 
-    public static void markForDeletion(BLCMMPlugin plugin) {
-        markForDeletion(PLUGINS.get(plugin).file.getName());
+    public static void markForDeletion(PluginInfo plugin) {
+        markForDeletion(plugin.getFile().getName());
     }
 
     public static void markForDeletion(String jarName) {
@@ -108,65 +146,242 @@ public class PluginLoader {
         }
     }
 
-    private static void addFile(final List<JarFile> jarfiles, final File f, final List<URL> urls) {
+    private static void addFile(final List<File> jarfiles, final File f, final List<URL> urls) {
         try {
-            jarfiles.add(new JarFile(f));
             urls.add(new URL("jar:file:" + f.getPath() + "!/"));
+            jarfiles.add(f);
         } catch (MalformedURLException ex) {
             Logger.getLogger(PluginLoader.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(PluginLoader.class.getName()).log(Level.SEVERE, null, ex);
         }
-        while (urls.size() > jarfiles.size()) {
-            urls.remove(urls.size() - 1);
+    }
+
+    private static void loadAllFiles(List<File> jarfiles) {
+        Map<String, IndexedJar> index = readIndex(PLUGINS_INDEX);
+        Map<String, IndexedJar> newIndex = new LinkedHashMap<>();
+        HashMap<String, String> usedNames = new HashMap<>();
+        for (File jar : jarfiles) {
+            IndexedJar indexed = getIndexedJar(jar, index);
+            if (indexed.complete) {
+                newIndex.put(jar.getName(), indexed);
+            }
+            for (PluginInfo plugin : indexed.plugins) {
+                if (usedNames.containsKey(plugin.className)) {
+                    GlobalLogger.log("Plugin class clash while loading " + jar.getName() + ": " + plugin.className + " was already loaded from " + usedNames.get(plugin.className));
+                } else {
+                    usedNames.put(plugin.className, jar.getName());
+                }
+                PLUGINS.add(plugin);
+            }
         }
-        while (urls.size() < jarfiles.size()) {
-            jarfiles.remove(jarfiles.size() - 1);
+        if (!newIndex.keySet().equals(index.keySet()) || newIndex.entrySet().stream().anyMatch(e -> e.getValue() != index.get(e.getKey()))) {
+            writeIndex(newIndex, PLUGINS_INDEX);
         }
     }
 
-    private static void loadAllFiles(URLClassLoader cl, List<JarFile> jarfiles) {
-        HashMap<String, String> usedNames = new HashMap<>();
-        for (JarFile jarFile : jarfiles) {
-            try {
-                Enumeration<JarEntry> e = jarFile.entries();
-                while (e.hasMoreElements()) {
-                    JarEntry je = e.nextElement();
-                    if (je.isDirectory() || !je.getName().endsWith(".class")) {
-                        continue;
-                    }
+    /**
+     * Returns what the given index knows about the given jar, if the jar
+     * didn't change since it was indexed. Otherwise, the jar is indexed again.
+     *
+     * @param jar The jar to look up
+     * @param index The index to look in
+     * @return The plugins of the jar
+     */
+    static IndexedJar getIndexedJar(File jar, Map<String, IndexedJar> index) {
+        IndexedJar indexed = index.get(jar.getName());
+        if (indexed != null && indexed.size == jar.length() && indexed.modified == jar.lastModified()) {
+            return indexed;
+        }
+        indexed = new IndexedJar(jar.length(), jar.lastModified());
+        indexed.complete = indexJar(jar, indexed.plugins);
+        return indexed;
+    }
 
-                    // -6 because of .class
-                    String className = je.getName().substring(0, je.getName().length() - 6);
-                    className = className.replace('/', '.');
-                    if (className.endsWith("test")) {
-                        continue;
-                    }
-                    if (usedNames.containsKey(className)) {
-                        GlobalLogger.log("Plugin class clash while loading " + jarFile.getName() + ": " + className + " was already loaded from " + usedNames.get(className));
-                    } else {
-                        usedNames.put(className, jarFile.getName());
+    /**
+     * Finds the plugins in the given jar, loading and instantiating them to
+     * learn their names and supported games.
+     *
+     * @param jar The jar to index
+     * @param res The list to add the found plugins to
+     * @return true if the entire jar could be indexed
+     */
+    private static boolean indexJar(File jar, List<PluginInfo> res) {
+        try (JarFile jarFile = new JarFile(jar)) {
+            List<String> classNames = getDeclaredPluginClasses(jarFile);
+            if (classNames == null) {
+                GlobalLogger.log("No plugin classes are declared in " + jar.getName() + ", scanning all of its classes");
+                classNames = findPluginClasses(jarFile);
+            }
+            for (String className : classNames) {
+                JarEntry je = jarFile.getJarEntry(className.replace('.', '/') + ".class");
+                if (je == null) {
+                    GlobalLogger.log("Plugin class " + className + " declared in " + jar.getName() + " does not exist");
+                    continue;
+                }
+                PluginInfo info = new PluginInfo(jar, className, je.getLastModifiedTime());
+                info.getPlugin();
+                res.add(info);
+            }
+            return true;
+        } catch (IOException | ReflectiveOperationException | ClassCastException ex) {
+            Logger.getLogger(PluginLoader.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (Error e) {
+            GlobalLogger.log("Error Occured while loading plugin (" + jar.getName() + "): \n");
+            FAILED_TO_LOAD.put(jar.getName(), e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the plugin classes the given jar declares in its manifest or
+     * service file, or null if it declares none.
+     */
+    static List<String> getDeclaredPluginClasses(JarFile jarFile) throws IOException {
+        Manifest manifest = jarFile.getManifest();
+        String declared = manifest == null ? null : manifest.getMainAttributes().getValue(MANIFEST_ATTRIBUTE);
+        if (declared == null) {
+            JarEntry service = jarFile.getJarEntry(SERVICE_FILE);
+            if (service == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(jarFile.getInputStream(service), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    sb.append(line.replaceFirst("#.*", "")).append(" ");
+                }
+            }
+            declared = sb.toString();
+        }
+        return Arrays.stream(declared.split("[\\s,]+")).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the plugin classes of a jar that doesn't declare them. Rather than
+     * loading every class in the jar, we only read the class file headers,
+     * and find the concrete classes extending BLCMMPlugin.
+     */
+    static List<String> findPluginClasses(JarFile jarFile) throws IOException {
+        Map<String, ClassHeader> classes = new LinkedHashMap<>();
+        Enumeration<JarEntry> e = jarFile.entries();
+        while (e.hasMoreElements()) {
+            JarEntry je = e.nextElement();
+            if (je.isDirectory() || !je.getName().endsWith(".class")) {
+                continue;
+            }
+            // -6 because of .class
+            String className = je.getName().substring(0, je.getName().length() - 6).replace('/', '.');
+            if (className.endsWith("test")) {
+                continue;
+            }
+            try (InputStream in = jarFile.getInputStream(je)) {
+                ClassHeader header = ClassHeader.read(in);
+                if (header != null) {
+                    classes.put(className, header);
+                }
+            }
+        }
+        List<String> res = new ArrayList<>();
+        for (Map.Entry<String, ClassHeader> entry : classes.entrySet()) {
+            if (!entry.getValue().concrete) {
+                continue;
+            }
+            String superclass = entry.getValue().superclass;
+            while (superclass != null && classes.containsKey(superclass)) {
+                superclass = classes.get(superclass).superclass;
+            }
+            if (superclass != null && superclass.startsWith("blcmm.plugins.")) {
+                try {
+                    if (BLCMMPlugin.class.isAssignableFrom(Class.forName(superclass, false, PluginLoader.class.getClassLoader()))) {
+                        res.add(entry.getKey());
                     }
-                    Class c = cl.loadClass(className);
-                    Class superclass = c.getSuperclass();
-                    if (superclass != null && BLCMMPlugin.class.isAssignableFrom(superclass)) {
-                        // the following line assumes that BLCMMPlugin has a no-argument constructor
-                        BLCMMPlugin plugin = (BLCMMPlugin) c.newInstance();
-                        GlobalLogger.log(String.format("plugin loaded from %s%s, class name: %s%s, plugin name: %s",
-                                jarFile.getName(), pad(40 - jarFile.getName().length()),
-                                className, pad(50 - className.length()),
-                                plugin.getName()));
-                        PLUGINS.put(plugin, new PluginInfo(jarFile, je.getLastModifiedTime()));
+                } catch (ClassNotFoundException ex) {
+                    //Not one of ours
+                }
+            }
+        }
+        return res;
+    }
+
+    static Map<String, IndexedJar> readIndex(File indexFile) {
+        Map<String, IndexedJar> res = new LinkedHashMap<>();
+        if (!indexFile.exists()) {
+            return res;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                return res;
+            }
+            int jars = in.readInt();
+            for (int i = 0; i < jars; i++) {
+                File jar = new File(PLUGINS_DIR, in.readUTF());
+                IndexedJar indexed = new IndexedJar(in.readLong(), in.readLong());
+                int count = in.readInt();
+                for (int j = 0; j < count; j++) {
+                    PluginInfo info = new PluginInfo(jar, in.readUTF(), FileTime.fromMillis(in.readLong()));
+                    info.name = in.readUTF();
+                    info.author = readNullableUTF(in);
+                    info.version = readNullableUTF(in);
+                    info.bl2 = in.readBoolean();
+                    info.tps = in.readBoolean();
+                    int required = in.readInt();
+                    if (required >= 0) {
+                        info.requiredDataClasses = new String[required];
+                        for (int k = 0; k < required; k++) {
+                            info.requiredDataClasses[k] = in.readUTF();
+                        }
                     }
+                    indexed.plugins.add(info);
                 }
+                res.put(jar.getName(), indexed);
+            }
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to read plugin index, rebuilding it");
+            GlobalLogger.log(ex);
+            res.clear();
+        }
+        return res;
+    }
 
-            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
-                Logger.getLogger(PluginLoader.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (Error e) {
-                GlobalLogger.log("Error Occured while loading plugin (" + jarFile.getName() + "): \n");
-                //e.printStackTrace();
-                FAILED_TO_LOAD.put(jarFile.getName().replaceFirst("plugins\\\\", ""), e.toString());
+    static void writeIndex(Map<String, IndexedJar> index, File indexFile) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(index.size());
+            for (Map.Entry<String, IndexedJar> entry : index.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().modified);
+                out.writeInt(entry.getValue().plugins.size());
+                for (PluginInfo info : entry.getValue().plugins) {
+                    out.writeUTF(info.className);
+                    out.writeLong(info.compileTime.toMillis());
+                    out.writeUTF(info.name);
+                    writeNullableUTF(out, info.author);
+                    writeNullableUTF(out, info.version);
+                    out.writeBoolean(info.bl2);
+                    out.writeBoolean(info.tps);
+                    out.writeInt(info.requiredDataClasses == null ? -1 : info.requiredDataClasses.length);
+                    if (info.requiredDataClasses != null) {
+                        for (String clazz : info.requiredDataClasses) {
+                            out.writeUTF(clazz);
+                        }
+                    }
+                }
             }
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to store plugin index");
+            GlobalLogger.log(ex);
+            indexFile.delete();
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
         }
     }
 
@@ -178,23 +393,180 @@ public class PluginLoader {
         return sb.toString();
     }
 
+    /**
+     * A plugin we found, along with everything we need to know about it to
+     * show it in the plugin menu. The plugin itself is only loaded once it's
+     * asked for.
+     */
     public static class PluginInfo {
 
-        private final JarFile file;
+        private final File file;
+        final String className;
         private final FileTime compileTime;
+        //Known without loading the plugin, once it's been indexed
+        String name, author, version;
+        boolean bl2, tps;
+        String[] requiredDataClasses;
+        private BLCMMPlugin plugin;
 
-        public PluginInfo(JarFile file, FileTime compileTime) {
+        PluginInfo(File file, String className, FileTime compileTime) {
             this.file = file;
+            this.className = className;
             this.compileTime = compileTime;
         }
 
+        /**
+         * Returns the plugin, loading and instantiating it if that didn't
+         * happen yet.
+         *
+         * @return The plugin
+         * @throws ReflectiveOperationException If the plugin class can't be
+         * loaded or instantiated
+         */
+        public synchronized BLCMMPlugin getPlugin() throws ReflectiveOperationException {
+            if (plugin == null) {
+                Class c = MY_CLASS_LOADER.loadClass(className);
+                // the following line assumes that BLCMMPlugin has a no-argument constructor
+                plugin = (BLCMMPlugin) c.newInstance();
+                GlobalLogger.log(String.format("plugin loaded from %s%s, class name: %s%s, plugin name: %s",
+                        file.getName(), pad(40 - file.getName().length()),
+                        className, pad(50 - className.length()),
+                        plugin.getName()));
+                if (name == null) {
+                    name = plugin.getName();
+                    author = plugin.getAuthor();
+                    version = plugin.getVersion();
+                    bl2 = plugin.supportsBorderlands2();
+                    tps = plugin.supportsBorderlandsTPS();
+                    requiredDataClasses = plugin.getRequiredDataClasses();
+                }
+            }
+            return plugin;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public boolean supportsBorderlands2() {
+            return bl2;
+        }
+
+        public boolean supportsBorderlandsTPS() {
+            return tps;
+        }
+
+        public String[] getRequiredDataClasses() {
+            return requiredDataClasses;
+        }
+
         public FileTime getCompileTime() {
             return compileTime;
         }
 
-        public JarFile getFile() {
+        public File getFile() {
             return file;
         }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * The plugins we found in a jar, and the size and modification time of
+     * the jar when we did.
+     */
+    static class IndexedJar {
+
+        final long size, modified;
+        final List<PluginInfo> plugins = new ArrayList<>();
+        //Whether the entire jar could be indexed, so it can go in the index
+        boolean complete = true;
+
+        IndexedJar(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * The name, superclass and abstractness of a class, as read from the
+     * header of its class file.
+     */
+    private static class ClassHeader {
+
+        private static final int ACC_INTERFACE = 0x0200, ACC_ABSTRACT = 0x0400;
+
+        private final String superclass;
+        private final boolean concrete;
+
+        private ClassHeader(String superclass, boolean concrete) {
+            this.superclass = superclass;
+            this.concrete = concrete;
+        }
+
+        /**
+         * Reads the header of a class file, or returns null if it's not one we
+         * understand.
+         */
+        private static ClassHeader read(InputStream stream) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != 0xCAFEBABE) {
+                return null;
+            }
+            in.readUnsignedShort();//minor version
+            in.readUnsignedShort();//major version
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classNames = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1://Utf8
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7://Class
+                        classNames[i] = in.readUnsignedShort();
+                        break;
+                    case 8://String
+                    case 16://MethodType
+                    case 19://Module
+                    case 20://Package
+                        in.skipBytes(2);
+                        break;
+                    case 15://MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3://Integer
+                    case 4://Float
+                    case 9://Fieldref
+                    case 10://Methodref
+                    case 11://InterfaceMethodref
+                    case 12://NameAndType
+                    case 17://Dynamic
+                    case 18://InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    case 5://Long
+                    case 6://Double, these take up two entries
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            int access = in.readUnsignedShort();
+            in.readUnsignedShort();//this class
+            int superIndex = in.readUnsignedShort();
+            String superclass = superIndex == 0 ? null : utf8[classNames[superIndex]].replace('/', '.');
+            return new ClassHeader(superclass, (access & (ACC_INTERFACE | ACC_ABSTRACT)) == 0);
+        }
+    }
+}
@@ -17,79 +17,155 @@
  */
 package blcmm.utilities;
 
+import general.utilities.GlobalLogger;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 
 /**
+ * Writes gzip-compressed backups of the current patch. Backups are written on
+ * a single background thread, from a snapshot taken by the caller. If a new
+ * backup is requested while an earlier one is still waiting to be written, only
+ * the newest one is written.
  *
  * @author LightChaosman
  */
 public class AutoBackupper {
 
-    //format currenttimemillis - date - name.txt
+    //format currenttimemillis - date - counter - name.gz
     public static long BACKUP_INTERVAL = 120000;
     private static int NUMBER_OF_SESSIONS_TO_KEEP = 5;
     private static int NUMBER_OF_BACKUPS_PER_SESSION = 10;
-    private static final File DESTINATION = new File("backups/");
+    //Not final, so tests can write their backups elsewhere
+    static File DESTINATION = new File("backups/");
     private static final long CURRENT_SESSION = System.currentTimeMillis();
-    private static final LinkedList<File> CURRENT_BACKUPS = new LinkedList<File>();
+    private static final String BACKUP_EXTENSION = ".gz";
+    //Only touched on the backup thread
+    private static final LinkedList<File> CURRENT_BACKUPS = new LinkedList<>();
     private static int COUNTER = 0;
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "AutoBackupper");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicReference<PendingBackup> PENDING = new AtomicReference<>();
 
+    /**
+     * Deletes the backups of all but the most recent sessions. This is done on
+     * the backup thread, using a single scan of the backup directory.
+     */
     public static void cleanOldBackups() {
         updateSettings();
-        HashSet<Long> set = new HashSet<>();
+        EXECUTOR.execute(AutoBackupper::cleanOldBackupsNow);
+    }
+
+    static void cleanOldBackupsNow() {
         DESTINATION.mkdirs();
-        for (File f : DESTINATION.listFiles()) {
-            String name = f.getName();
-            long millis = Long.parseLong(name.split("-")[0].trim());
-            set.add(millis);
+        File[] files = DESTINATION.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<Long, List<File>> sessions = new HashMap<>();
+        for (File f : files) {
+            long millis = getSession(f);
+            if (millis >= 0) {
+                sessions.computeIfAbsent(millis, m -> new LinkedList<>()).add(f);
+            }
         }
-        ArrayList<Long> list = new ArrayList<>();
-        list.addAll(set);
-        Collections.sort(list);
-        int size = list.size();
-        for (int i = 0; i < Math.min(size, NUMBER_OF_SESSIONS_TO_KEEP); i++) {
-            list.remove(list.size() - 1);
+        TreeSet<Long> old = new TreeSet<>(sessions.keySet());
+        for (int i = 0; i < NUMBER_OF_SESSIONS_TO_KEEP && !old.isEmpty(); i++) {
+            old.pollLast();
         }
-        for (File f : DESTINATION.listFiles()) {
-            String name = f.getName();
-            long millis = Long.parseLong(name.split("-")[0].trim());
-            if (list.contains(millis) && millis != CURRENT_SESSION) {
+        old.remove(CURRENT_SESSION);
+        for (Long millis : old) {
+            for (File f : sessions.get(millis)) {
                 f.delete();
             }
         }
     }
 
-    public static void backup(File f, Backupable instance) throws IOException {
+    /**
+     * Returns the session in which the given backup was made, or -1 if the
+     * file is not a backup.
+     */
+    private static long getSession(File f) {
+        String name = f.getName();
+        int dash = name.indexOf('-');
+        try {
+            return Long.parseLong((dash < 0 ? name : name.substring(0, dash)).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static void backup(File f, Backupable instance) {
         backup(f.getName(), instance);
     }
 
-    public static void backup(String filename, Backupable instance) throws IOException {
+    /**
+     * Takes a snapshot of the given instance, if it needs a backup, and queues
+     * it to be written on the backup thread. This should be called from the
+     * thread that modifies the instance, which for the GUI is the EDT.
+     *
+     * @param filename The name of the file being backed up
+     * @param instance The instance to back up
+     */
+    public static void backup(String filename, Backupable instance) {
         if (!instance.inNeedOfBackup()) {
             return;
         }
-        while (CURRENT_BACKUPS.size() >= NUMBER_OF_BACKUPS_PER_SESSION) {
-            CURRENT_BACKUPS.pop().delete();
+        Snapshot snapshot = instance.snapshot();
+        if (PENDING.getAndSet(new PendingBackup(filename, snapshot)) == null) {
+            EXECUTOR.execute(AutoBackupper::writePendingBackup);
+        }
+        //Otherwise, the task that was already queued will write our snapshot instead of the older one
+    }
+
+    private static void writePendingBackup() {
+        PendingBackup pending = PENDING.getAndSet(null);
+        if (pending == null) {
+            return;
         }
         String date = new SimpleDateFormat("YYYY.MM.dd").format(new Date(CURRENT_SESSION));
-        String backupFileName = CURRENT_SESSION + " - " + date + " - " + (++COUNTER) + " - " + filename;
+        String backupFileName = CURRENT_SESSION + " - " + date + " - " + (++COUNTER) + " - " + pending.filename + BACKUP_EXTENSION;
         DESTINATION.mkdir();
         File f = new File(DESTINATION.toString() + File.separator + backupFileName);
-        CURRENT_BACKUPS.add(f);
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
-            instance.write(bw);
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(f))))) {
+            pending.snapshot.write(bw);
+        } catch (ConcurrentModificationException e) {
+            //A newer backup will have the changes
+            GlobalLogger.log("Dropped backup " + f.getName() + ", since it changed while being written");
+            f.delete();
+            return;
+        } catch (IOException | RuntimeException e) {
+            GlobalLogger.log("Unable to write backup " + f.getName());
+            GlobalLogger.log(e);
+            f.delete();
+            return;
         }
+        //Only now that we have a new backup, the oldest one can go
+        while (CURRENT_BACKUPS.size() >= NUMBER_OF_BACKUPS_PER_SESSION) {
+            CURRENT_BACKUPS.pop().delete();
+        }
+        CURRENT_BACKUPS.add(f);
         updateSettings();
+        pending.snapshot.written();
     }
 
     private static void updateSettings() {
@@ -109,10 +185,48 @@ public class AutoBackupper {
         return findFirst.isPresent() ? findFirst.get() : null;
     }
 
+    private static class PendingBackup {
+
+        private final String filename;
+        private final Snapshot snapshot;
+
+        PendingBackup(String filename, Snapshot snapshot) {
+            this.filename = filename;
+            this.snapshot = snapshot;
+        }
+    }
+
     public static interface Backupable {
 
-        public void write(BufferedWriter writer) throws IOException;
+        /**
+         * Returns a snapshot of the current state, which is not affected by
+         * any later changes. Rather than copying the state, a snapshot may
+         * refuse to be written once the state changed.
+         *
+         * @return
+         */
+        public Snapshot snapshot();
 
         public boolean inNeedOfBackup();
     }
+
+    public static interface Snapshot {
+
+        /**
+         * Writes this snapshot. This is called on the backup thread.
+         *
+         * @param writer
+         * @throws IOException
+         * @throws ConcurrentModificationException If the state of this
+         * snapshot changed before it could be written, in which case the
+         * backup is dropped
+         */
+        public void write(BufferedWriter writer) throws IOException;
+
+        /**
+         * Called on the backup thread, once this snapshot has been written.
+         */
+        public default void written() {
+        }
+    }
 }
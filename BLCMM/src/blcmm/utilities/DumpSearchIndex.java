@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities;
+
+import blcmm.data.lib.DataManager;
+import general.utilities.GlobalLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A token index over the object dumps of a game, used by the Object Explorer
+ * to answer searches without reading all data.
+ * <p>
+ * Every line of a dump is lowercased and split into tokens, the maximal runs
+ * of {@code [a-z0-9_]}. For every token we store the objects it occurs in. A
+ * search term consisting only of token characters can only occur within a
+ * single token, so such terms are answered exactly by the index. For other
+ * terms, the index only tells us which classes can possibly contain a match.
+ * Purely numeric tokens are not indexed, they are too common to be useful.
+ * <p>
+ * To find the tokens containing a term, we keep the tokens containing every
+ * trigram of token characters. Only the tokens containing the rarest trigram
+ * of a term need to be checked, rather than all of them. This part of the
+ * index is rebuilt from the tokens whenever the index is loaded.
+ * <p>
+ * The index is stored next to the data packages, and rebuilt whenever the
+ * installed packages change.
+ *
+ * @author LightChaosman
+ */
+public class DumpSearchIndex {
+
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "search.index";
+    private static final int PROGRESS_INTERVAL = 100000;
+    private static final int GRAM_LENGTH = 3;
+    private static final int GRAM_ALPHABET = 26 + 10 + 1;
+    private static final Map<String, DumpSearchIndex> INDICES = new ConcurrentHashMap<>();
+    private static final Set<String> BUILDING = ConcurrentHashMap.newKeySet();
+
+    private final String[] classes;
+    private final int[] classStart;//objects of class i are in [classStart[i], classStart[i+1])
+    private final String[] objects;
+    private final String[] tokens;
+    private final byte[][] postings;//delta encoded varints of object indices
+    private final byte[][] gramPostings;//for every trigram, delta encoded varints of the indices of the tokens containing it
+
+    DumpSearchIndex(String[] classes, int[] classStart, String[] objects, String[] tokens, byte[][] postings) {
+        this.classes = classes;
+        this.classStart = classStart;
+        this.objects = objects;
+        this.tokens = tokens;
+        this.postings = postings;
+        this.gramPostings = buildGramPostings(tokens);
+    }
+
+    /**
+     * Returns the index for the game currently selected in the DataManager, or
+     * null if it is not available yet.
+     *
+     * @return the index, or null
+     */
+    public static DumpSearchIndex getIndex() {
+        return INDICES.get(getGame(DataManager.isBL2()));
+    }
+
+    /**
+     * Makes the index for the current game available. If it is stored on disk
+     * and still up to date it is loaded, otherwise it is built. Both happen on
+     * a background thread, and this method does nothing if the index is
+     * already available or being prepared.
+     *
+     * @param progress Receives the number of dump lines processed so far
+     * while building
+     * @param whenDone Ran on the background thread once the index is ready
+     */
+    public static void prepare(IntConsumer progress, Runnable whenDone) {
+        boolean bl2 = DataManager.isBL2();
+        String game = getGame(bl2);
+        if (INDICES.containsKey(game) || !BUILDING.add(game)) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                Collection<String> classes = DataManager.getDictionary().getAvailableClasses();
+                File file = new File("data/" + game + "/" + FILE_NAME);
+                String fingerprint = getFingerprint(game, classes);
+                DumpSearchIndex index = load(file, fingerprint);
+                if (index == null) {
+                    long start = System.currentTimeMillis();
+                    index = build(classes, bl2, progress);
+                    if (index == null) {
+                        return;
+                    }
+                    GlobalLogger.log("Built search index for " + game + " in " + (System.currentTimeMillis() - start) + "ms");
+                    index.save(file, fingerprint);
+                }
+                INDICES.put(game, index);
+                whenDone.run();
+            } catch (IOException | RuntimeException ex) {
+                GlobalLogger.log("Unable to prepare search index for " + game);
+                GlobalLogger.log(ex);
+            } finally {
+                BUILDING.remove(game);
+            }
+        }, "Search index");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Converts a dump header line to the format the Object Explorer reports
+     * hits in: {@code Class'Object'}
+     *
+     * @param header The header line, starting with ***
+     * @return The object in Class'Object' format
+     */
+    public static String getObjectKey(String header) {
+        int index = header.indexOf("'") + 1;
+        int index2 = header.indexOf(" ", index);
+        int index3 = header.indexOf("'", index2);
+        String cl = header.substring(index, index2);
+        String ob = header.substring(index2 + 1, index3);
+        return cl + "'" + ob + "'";
+    }
+
+    /**
+     * Finds all objects in the given classes for which every positive term
+     * occurs in one of their (lowercased) lines, and none of the negative
+     * terms do. This gives the same result as scanning the dumps, but is only
+     * possible if every term consists of token characters only.
+     *
+     * @param positives lowercase terms that must occur
+     * @param negatives lowercase terms that must not occur
+     * @param classes the classes to search in
+     * @return The matching objects in Class'Object' format, or null if the
+     * terms can not be answered by the index.
+     */
+    public Collection<String> search(Collection<String> positives, Collection<String> negatives, Collection<String> classes) {
+        for (String term : positives) {
+            if (!isExact(term)) {
+                return null;
+            }
+        }
+        for (String term : negatives) {
+            if (!isExact(term)) {
+                return null;
+            }
+        }
+        BitSet res = getObjectsOfClasses(classes);
+        for (String term : positives) {
+            if (!term.isEmpty()) {
+                res.and(getObjectsContaining(term));
+            }
+        }
+        for (String term : negatives) {
+            if (term.isEmpty()) {
+                res.clear();
+            } else {
+                res.andNot(getObjectsContaining(term));
+            }
+        }
+        List<String> result = new ArrayList<>(res.cardinality());
+        for (int i = res.nextSetBit(0); i >= 0; i = res.nextSetBit(i + 1)) {
+            result.add(objects[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Narrows down the given classes to those having at least one object in
+     * which all given terms could occur. Scanning only the returned classes
+     * gives the same hits as scanning all of them.
+     *
+     * @param terms lowercase terms that must occur
+     * @param classes the classes to narrow down
+     * @return the candidate classes, in the order they were given
+     */
+    public Collection<String> getCandidateClasses(Collection<String> terms, Collection<String> classes) {
+        BitSet res = getObjectsOfClasses(classes);
+        for (String term : terms) {
+            for (String run : getRuns(term)) {
+                if (isIndexed(run)) {
+                    res.and(getObjectsContaining(run));
+                }
+            }
+        }
+        Set<String> found = new HashSet<>();
+        for (int c = 0; c < this.classes.length; c++) {
+            int next = res.nextSetBit(classStart[c]);
+            if (next >= 0 && next < classStart[c + 1]) {
+                found.add(this.classes[c]);
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (String clazz : classes) {
+            if (found.contains(clazz) || Arrays.binarySearch(this.classes, clazz) < 0) {
+                //Classes we don't know about can not be ruled out
+                result.add(clazz);
+            }
+        }
+        return result;
+    }
+
+    private BitSet getObjectsOfClasses(Collection<String> classes) {
+        BitSet res = new BitSet(objects.length);
+        for (String clazz : classes) {
+            int c = Arrays.binarySearch(this.classes, clazz);
+            if (c >= 0) {
+                res.set(classStart[c], classStart[c + 1]);
+            }
+        }
+        return res;
+    }
+
+    private BitSet getObjectsContaining(String run) {
+        BitSet res = new BitSet(objects.length);
+        byte[] candidates = null;
+        for (int i = 0; i + GRAM_LENGTH <= run.length(); i++) {
+            int gram = getGram(run, i);
+            if (gram >= 0 && (candidates == null || gramPostings[gram].length < candidates.length)) {
+                candidates = gramPostings[gram];
+            }
+        }
+        if (candidates == null) {
+            //Too short to have a trigram, so any token could contain it
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].contains(run)) {
+                    forEach(postings[i], res::set);
+                }
+            }
+        } else {
+            forEach(candidates, token -> {
+                if (tokens[token].contains(run)) {
+                    forEach(postings[token], res::set);
+                }
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Passes every index in the given delta encoded posting to the consumer.
+     */
+    private static void forEach(byte[] posting, IntConsumer consumer) {
+        int pos = 0, index = 0;
+        while (pos < posting.length) {
+            int delta = 0, shift = 0;
+            byte b;
+            do {
+                b = posting[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            index += delta;
+            consumer.accept(index);
+        }
+    }
+
+    private static byte[][] buildGramPostings(String[] tokens) {
+        PostingBuilder[] builders = new PostingBuilder[GRAM_ALPHABET * GRAM_ALPHABET * GRAM_ALPHABET];
+        for (int i = 0; i < tokens.length; i++) {
+            for (int j = 0; j + GRAM_LENGTH <= tokens[i].length(); j++) {
+                int gram = getGram(tokens[i], j);
+                if (gram >= 0) {
+                    if (builders[gram] == null) {
+                        builders[gram] = new PostingBuilder();
+                    }
+                    builders[gram].add(i);
+                }
+            }
+        }
+        byte[][] res = new byte[builders.length][];
+        for (int gram = 0; gram < builders.length; gram++) {
+            res[gram] = builders[gram] == null ? new byte[0] : builders[gram].toArray();
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of the trigram starting at the given index of the
+     * given string, or -1 if it contains anything other than token
+     * characters.
+     */
+    private static int getGram(String s, int start) {
+        int gram = 0;
+        for (int i = start; i < start + GRAM_LENGTH; i++) {
+            char c = s.charAt(i);
+            int code;
+            if (c >= 'a' && c <= 'z') {
+                code = c - 'a';
+            } else if (c >= '0' && c <= '9') {
+                code = 26 + c - '0';
+            } else if (c == '_') {
+                code = 36;
+            } else {
+                return -1;
+            }
+            gram = gram * GRAM_ALPHABET + code;
+        }
+        return gram;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isIndexed(String run) {
+        for (int i = 0; i < run.length(); i++) {
+            char c = run.charAt(i);
+            if (c < '0' || c > '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isExact(String term) {
+        if (term.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < term.length(); i++) {
+            if (!isTokenChar(term.charAt(i))) {
+                return false;
+            }
+        }
+        return isIndexed(term);
+    }
+
+    private static List<String> getRuns(String line) {
+        List<String> runs = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= line.length(); i++) {
+            boolean token = i < line.length() && isTokenChar(line.charAt(i));
+            if (token && start == -1) {
+                start = i;
+            } else if (!token && start != -1) {
+                runs.add(line.substring(start, i));
+                start = -1;
+            }
+        }
+        return runs;
+    }
+
+    private static String getGame(boolean bl2) {
+        return bl2 ? "BL2" : "TPS";
+    }
+
+    private static String getFingerprint(String game, Collection<String> classes) {
+        StringBuilder sb = new StringBuilder(game);
+        for (String clazz : new TreeSet<>(classes)) {
+            sb.append(";").append(clazz);
+        }
+        File[] jars = new File("data/" + game).listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars != null) {
+            Arrays.sort(jars);
+            for (File jar : jars) {
+                sb.append(";").append(jar.getName()).append(":").append(jar.length()).append(":").append(jar.lastModified());
+            }
+        }
+        try {
+            return Utilities.sha256(sb.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    private static DumpSearchIndex build(Collection<String> availableClasses, boolean bl2, IntConsumer progress) throws IOException {
+        String[] classes = new TreeSet<>(availableClasses).toArray(new String[0]);
+        int[] classStart = new int[classes.length + 1];
+        List<String> objects = new ArrayList<>();
+        Map<String, PostingBuilder> map = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        int lines = 0;
+        for (int c = 0; c < classes.length; c++) {
+            if (DataManager.isBL2() != bl2) {
+                //The user switched games, the streams no longer belong to this index
+                return null;
+            }
+            classStart[c] = objects.size();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(DataManager.getRawStreamOfClass(classes[c])))) {
+                int current = -1;
+                String line = br.readLine();
+                while (line != null) {
+                    lines++;
+                    if (lines % PROGRESS_INTERVAL == 0) {
+                        progress.accept(lines);
+                    }
+                    if (line.startsWith("***")) {
+                        current = objects.size();
+                        objects.add(getObjectKey(line));
+                        seen.clear();
+                    }
+                    if (current != -1) {
+                        for (String token : getRuns(line.toLowerCase())) {
+                            if (isIndexed(token) && seen.add(token)) {
+                                map.computeIfAbsent(token, k -> new PostingBuilder()).add(current);
+                            }
+                        }
+                    }
+                    line = br.readLine();
+                }
+            }
+        }
+        classStart[classes.length] = objects.size();
+        String[] tokens = new TreeSet<>(map.keySet()).toArray(new String[0]);
+        byte[][] postings = new byte[tokens.length][];
+        for (int i = 0; i < tokens.length; i++) {
+            postings[i] = map.remove(tokens[i]).toArray();
+        }
+        return new DumpSearchIndex(classes, classStart, objects.toArray(new String[0]), tokens, postings);
+    }
+
+    private static DumpSearchIndex load(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(fingerprint)) {
+                return null;
+            }
+            String[] classes = new String[in.readInt()];
+            int[] classStart = new int[classes.length + 1];
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = in.readUTF();
+                classStart[i] = in.readInt();
+            }
+            String[] objects = new String[in.readInt()];
+            classStart[classes.length] = objects.length;
+            for (int i = 0; i < objects.length; i++) {
+                objects[i] = in.readUTF();
+            }
+            String[] tokens = new String[in.readInt()];
+            byte[][] postings = new byte[tokens.length][];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = in.readUTF();
+                postings[i] = new byte[in.readInt()];
+                in.readFully(postings[i]);
+            }
+            return new DumpSearchIndex(classes, classStart, objects, tokens, postings);
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to read search index, rebuilding it");
+            GlobalLogger.log(ex);
+            return null;
+        }
+    }
+
+    private void save(File file, String fingerprint) {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(classes.length);
+            for (int i = 0; i < classes.length; i++) {
+                out.writeUTF(classes[i]);
+                out.writeInt(classStart[i]);
+            }
+            out.writeInt(objects.length);
+            for (String object : objects) {
+                out.writeUTF(object);
+            }
+            out.writeInt(tokens.length);
+            for (int i = 0; i < tokens.length; i++) {
+                out.writeUTF(tokens[i]);
+                out.writeInt(postings[i].length);
+                out.write(postings[i]);
+            }
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to store search index");
+            GlobalLogger.log(ex);
+            temp.delete();
+            return;
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private static class PostingBuilder {
+
+        private byte[] data = new byte[4];
+        private int size = 0;
+        private int last = 0;
+
+        void add(int object) {
+            if (size > 0 && object == last) {
+                //Already added, like a trigram occurring twice in the same token
+                return;
+            }
+            int delta = object - last;
+            last = object;
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7F) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+import javax.swing.SwingUtilities;
+
+/**
+ * A Writer for serializing something owned by the EDT from another thread,
+ * without copying it first. Whatever writes to this writer only runs while the
+ * EDT is parked, so it sees a consistent state, but the EDT is let go every
+ * slice of output, so it's never blocked for longer than writing a single slice
+ * takes. Each slice is kept in memory, and only handed to the underlying writer
+ * once the EDT is running again. If what is being written changes before or in
+ * between slices, writing fails with a ConcurrentModificationException.
+ *
+ * @author LightChaosman
+ */
+public class EDTSlicedWriter extends Writer {
+
+    private final Writer out;
+    private final BooleanSupplier unchanged;
+    private final char[] slice;
+    private int size = 0;
+    //Released by the EDT once it's parked, and by us to let it go again
+    private final Semaphore parked = new Semaphore(0), resume = new Semaphore(0);
+    private boolean holdingEDT = false;
+
+    private EDTSlicedWriter(Writer out, int sliceSize, BooleanSupplier unchanged) {
+        this.out = out;
+        this.slice = new char[sliceSize];
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * Writes to the given writer in slices, as described above. Called from
+     * the EDT itself, this simply writes everything in one go.
+     *
+     * @param out The writer to write to
+     * @param sliceSize The number of characters after which to let the EDT go
+     * @param unchanged Whether what is being written is still as it should be,
+     * checked while the EDT is parked, before every slice
+     * @param writing Writes everything to the writer it's given
+     * @throws IOException If writing fails
+     * @throws ConcurrentModificationException If what is being written changed
+     * before or in between slices
+     */
+    public static void write(Writer out, int sliceSize, BooleanSupplier unchanged, Writing writing) throws IOException {
+        if (SwingUtilities.isEventDispatchThread()) {
+            writing.writeTo(out);
+            return;
+        }
+        EDTSlicedWriter writer = new EDTSlicedWriter(out, sliceSize, unchanged);
+        try {
+            writer.holdEDT();
+            writing.writeTo(writer);
+        } finally {
+            writer.releaseEDT();
+        }
+        writer.flushSlice();
+    }
+
+    private void holdEDT() {
+        SwingUtilities.invokeLater(() -> {
+            parked.release();
+            resume.acquireUninterruptibly();
+        });
+        parked.acquireUninterruptibly();
+        holdingEDT = true;
+        if (!unchanged.getAsBoolean()) {
+            throw new ConcurrentModificationException("Changed while being written");
+        }
+    }
+
+    private void releaseEDT() {
+        if (holdingEDT) {
+            holdingEDT = false;
+            resume.release();
+        }
+    }
+
+    /**
+     * Lets the EDT go while the current slice is written out, and takes it
+     * back again afterwards.
+     */
+    private void nextSlice() throws IOException {
+        releaseEDT();
+        flushSlice();
+        holdEDT();
+    }
+
+    private void flushSlice() throws IOException {
+        out.write(slice, 0, size);
+        size = 0;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (size == slice.length) {
+                nextSlice();
+            }
+            int n = Math.min(len, slice.length - size);
+            System.arraycopy(cbuf, off, slice, size, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (size == slice.length) {
+                nextSlice();
+            }
+            int n = Math.min(len, slice.length - size);
+            str.getChars(off, off + n, slice, size);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        //Slices are only written out once they're full, or once we're done
+    }
+
+    @Override
+    public void close() throws IOException {
+        //Closing the underlying writer is up to whoever provided it
+    }
+
+    /**
+     * Writes something to a writer.
+     */
+    public static interface Writing {
+
+        public void writeTo(Writer writer) throws IOException;
+    }
+}
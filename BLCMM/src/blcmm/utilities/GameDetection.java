@@ -88,7 +88,8 @@ public class GameDetection {
         return blTPSPath;
     }
 
-    private static void findGames() {
+    //Synchronized, since we look for the games in the background while starting up
+    private static synchronized void findGames() {
         if (run) {
             return;
         }
@@ -486,7 +487,7 @@ public class GameDetection {
      * @param BL2 True for if we are querying BL2, or False for TPS.
      * @return True if the Proton version is being used
      */
-    private static boolean isUnixUsingProton(boolean BL2) {
+    private static synchronized boolean isUnixUsingProton(boolean BL2) {
         if (OSInfo.CURRENT_OS == OSInfo.OS.UNIX) {
             if (!UNIX_SCANNED_PROTON[BL2 ? 0 : 1]) {
                 getExe(BL2);
@@ -20,6 +20,7 @@ package blcmm.utilities;
 import blcmm.model.CompletePatch;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
 
 /**
  *
@@ -29,6 +30,10 @@ public class ImportAnomalyLog implements Iterable<ImportAnomalyLog.importAnomaly
 
     public static final ImportAnomalyLog INSTANCE = new ImportAnomalyLog();
 
+    // The log anomalies go to from a thread collecting them separately, so
+    // mods can be parsed concurrently without touching INSTANCE.
+    private static final ThreadLocal<ImportAnomalyLog> COLLECTING = new ThreadLocal<>();
+
     // Var to keep track of errors while importing mods, for reporting to
     // the user.
     private final ArrayList<importAnomaly> anomalies = new ArrayList<>();
@@ -80,6 +85,42 @@ public class ImportAnomalyLog implements Iterable<ImportAnomalyLog.importAnomaly
         }
     }
 
+    /**
+     * Returns the log anomalies found on the current thread should be added
+     * to. This is INSTANCE, unless the thread is inside a call to collect.
+     *
+     * @return The log to add anomalies to
+     */
+    public static ImportAnomalyLog current() {
+        ImportAnomalyLog log = COLLECTING.get();
+        return log == null ? INSTANCE : log;
+    }
+
+    /**
+     * Runs the given task, adding the anomalies it finds to the given log
+     * rather than to INSTANCE. These can be merged into INSTANCE later using
+     * addAll, in whatever order the tasks were meant to run in.
+     *
+     * @param <T>
+     * @param log The log to collect the anomalies in
+     * @param task The task to run
+     * @return The result of the task
+     * @throws Exception If the task throws one
+     */
+    public static <T> T collect(ImportAnomalyLog log, Callable<T> task) throws Exception {
+        ImportAnomalyLog previous = COLLECTING.get();
+        COLLECTING.set(log);
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                COLLECTING.remove();
+            } else {
+                COLLECTING.set(previous);
+            }
+        }
+    }
+
     public void add(importAnomaly anomaly) {
         int i = anomalies.size();
         while (i > 0 && anomaly.compareTo(anomalies.get(i - 1)) < 0) {
@@ -88,6 +129,12 @@ public class ImportAnomalyLog implements Iterable<ImportAnomalyLog.importAnomaly
         anomalies.add(i, anomaly);
     }
 
+    public void addAll(ImportAnomalyLog log) {
+        for (importAnomaly anomaly : log.anomalies) {
+            add(anomaly);
+        }
+    }
+
     public void clear() {
         anomalies.clear();
     }
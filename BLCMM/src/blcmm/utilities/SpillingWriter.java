@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * A Writer that keeps its contents in memory, until they grow beyond a given
+ * number of characters. From that point on, everything is written to a
+ * temporary file instead. The contents can be copied to another writer with
+ * {@link #writeTo(Writer)}. Closing this writer deletes the temporary file, if
+ * one was created.
+ *
+ * @author LightChaosman
+ */
+public class SpillingWriter extends Writer {
+
+    private final String tempFilePrefix;
+    private final int memoryLimit;
+    private StringBuilder buffer = new StringBuilder();
+    private File spillFile;
+    private Writer spill;
+
+    /**
+     * Creates a new writer
+     *
+     * @param tempFilePrefix The prefix of the temporary file, should we need
+     * one
+     * @param memoryLimit The maximum number of characters to keep in memory
+     */
+    public SpillingWriter(String tempFilePrefix, int memoryLimit) {
+        this.tempFilePrefix = tempFilePrefix;
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureRoomFor(len);
+        if (spill == null) {
+            buffer.append(cbuf, off, len);
+        } else {
+            spill.write(cbuf, off, len);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureRoomFor(len);
+        if (spill == null) {
+            buffer.append(str, off, off + len);
+        } else {
+            spill.write(str, off, len);
+        }
+    }
+
+    private void ensureRoomFor(int len) throws IOException {
+        if (buffer == null && spill == null) {
+            throw new IOException("Writer is closed");
+        }
+        if (spill == null && buffer.length() + len > memoryLimit) {
+            spillFile = File.createTempFile(tempFilePrefix, "temp");
+            spill = new BufferedWriter(new FileWriter(spillFile));
+            spill.append(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Copies everything written so far to the provided writer.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        if (spill == null) {
+            if (buffer == null) {
+                throw new IOException("Writer is closed");
+            }
+            out.append(buffer);
+            return;
+        }
+        spill.flush();
+        try (Reader reader = new FileReader(spillFile)) {
+            char[] chars = new char[8 * 1024];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                out.write(chars, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spill != null) {
+            spill.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            spillFile.delete();
+        }
+    }
+}
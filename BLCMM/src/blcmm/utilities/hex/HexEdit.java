@@ -65,6 +65,18 @@ public abstract class HexEdit {
 
     public abstract HexInspectResult inspect(byte[] bytes, int startIndexInArray, int globalOffset);
 
+    /**
+     * Creates the result of inspecting this edit, for the given bytes found at
+     * the given address.
+     *
+     * @param adress
+     * @param found
+     * @return
+     */
+    HexInspectResult createInspectResult(int adress, byte[] found) {
+        return new HexInspectResult(this, adress, found);
+    }
+
     public abstract int requiredNegativeBufferSize();
 
     public abstract HexEdit getInvertedCopy();
@@ -20,17 +20,26 @@ package blcmm.utilities.hex;
 import general.utilities.GlobalLogger;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  *
@@ -38,6 +47,9 @@ import java.util.Map;
  */
 public class HexEditor {
 
+    //Files are inspected in parallel, in chunks of this many bytes
+    private static final int INSPECTION_CHUNK_SIZE = 4 * 1024 * 1024;
+
     public static final class HexResult {
 
         public final HexResultStatus result;
@@ -64,11 +76,74 @@ public class HexEditor {
         MULTIPLE_MATCHES
     }
 
+    /**
+     * Finds where the edits of the given query match in the given file. If
+     * we inspected the same, unchanged, file for the same query before, the
+     * results of that are returned without scanning the file again.
+     *
+     * @param inputFile
+     * @param query
+     * @return The results, ordered by their address in the file
+     */
     public static HexInspectResult[] inspectFile(File inputFile, HexDictionary.HexQuery query) {
-        return inspectFile(inputFile, HexDictionary.getHexEdits(query));
+        HexEdit[] hexEdits = HexDictionary.getHexEdits(query);
+        HexInspectionCache cache = HexInspectionCache.getInstance();
+        HexInspectionCache.Fingerprint fingerprint = HexInspectionCache.Fingerprint.of(inputFile);
+        if (fingerprint == null) {
+            return inspectFile(inputFile, hexEdits);
+        }
+        HexInspectResult[] result = cache.get(inputFile, fingerprint, query, hexEdits);
+        if (result == null) {
+            result = inspectFile(inputFile, hexEdits);
+            cache.put(inputFile, fingerprint, query, hexEdits, result);
+        }
+        return result;
     }
 
+    /**
+     * Finds where the given edits match in the given file. The file is split
+     * into chunks, overlapping by as much as the edits need to look around a
+     * match, which are inspected in parallel.
+     *
+     * @param inputFile
+     * @param hexEdits
+     * @return The results, ordered by their address in the file
+     */
     public static HexInspectResult[] inspectFile(File inputFile, HexEdit... hexEdits) {
+        return inspectFile(inputFile, INSPECTION_CHUNK_SIZE, hexEdits);
+    }
+
+    /**
+     * Like inspectFile, but using chunks of the given size, which are grown to
+     * fit at least two matches of the largest edit if needed.
+     */
+    static HexInspectResult[] inspectFile(File inputFile, int chunkSize, HexEdit... hexEdits) {
+        List<HexInspectResult> result;
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return new HexInspectResult[0];
+            }
+            InspectTask task = new InspectTask(channel, size, chunkSize, hexEdits);
+            result = ForkJoinPool.commonPool().invoke(task);
+        } catch (IOException | UncheckedIOException ex) {
+            GlobalLogger.log("IO exception during hex inspection:");
+            GlobalLogger.log(ex);
+            return new HexInspectResult[0];
+        }
+        sortByAddress(result, hexEdits);
+        return result.toArray(new HexInspectResult[0]);
+    }
+
+    /**
+     * Inspects the given file as a stream, in a single thread. Returns the
+     * same as inspectFile.
+     *
+     * @param inputFile
+     * @param hexEdits
+     * @return
+     */
+    static HexInspectResult[] inspectFileSequentially(File inputFile, HexEdit... hexEdits) {
         ArrayList<HexInspectResult> result = new ArrayList<>();
         try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(inputFile));) {
             scanFile(bis, result, hexEdits);
@@ -78,9 +153,19 @@ public class HexEditor {
             GlobalLogger.log(ex);
             return new HexInspectResult[0];
         }
+        sortByAddress(result, hexEdits);
         return result.toArray(new HexInspectResult[0]);
     }
 
+    private static void sortByAddress(List<HexInspectResult> results, HexEdit[] hexEdits) {
+        //Ties are broken by the order the edits were given in
+        Map<HexEdit, Integer> order = new IdentityHashMap<>();
+        for (int i = hexEdits.length - 1; i >= 0; i--) {
+            order.put(hexEdits[i], i);
+        }
+        results.sort(Comparator.comparingInt((HexInspectResult res) -> res.adress).thenComparingInt(res -> order.get(res.orginialHexEdit)));
+    }
+
     /**
      * Performs the specified hex edits on the given file, replacing it, and
      * creating a backup in the process.
@@ -176,7 +261,11 @@ public class HexEditor {
             GlobalLogger.log(ex);
             throw ex;
         }
-        return finalizeEdit(result, inputFile, outputFile, backupOfOriginalFile, temp, hexEdits);
+        HexResult res = finalizeEdit(result, inputFile, outputFile, backupOfOriginalFile, temp, hexEdits);
+        //Whatever we knew about these files may no longer hold
+        HexInspectionCache.getInstance().invalidate(inputFile);
+        HexInspectionCache.getInstance().invalidate(outputFile);
+        return res;
     }
 
     private static void scanFile(final BufferedInputStream bis, List<HexInspectResult> result, HexEdit... hexEdits) throws IOException {
@@ -204,6 +293,7 @@ public class HexEditor {
         for (HexEdit edit : hexEdits) {
             resultmap.put(edit, new ArrayList<>());
         }
+        HexScanner scanner = new HexScanner(hexEdits);
 
         byte[] bytebuffer = new byte[byteBufferSize];
         int numberOfBytesCopiedFromLastIteration = 0;
@@ -227,12 +317,19 @@ public class HexEditor {
                 endIndex = effectiveArraySize;
             }
 
-            for (HexEdit edit : hexEdits) {
+            //Find where all edits match in a single pass
+            int[][] matches = scanner.findMatches(bytebuffer, globalOffset, startIndex, endIndex, effectiveArraySize);
+            for (int i = 0; i < hexEdits.length; i++) {
+                HexEdit edit = hexEdits[i];
                 if (bos == null) {//no proper abstraction since only two use cases.
-                    ((List) result).addAll(getInspectResults(bytebuffer, edit, globalOffset, startIndex, endIndex));
+                    ((List) result).addAll(getInspectResults(bytebuffer, edit, globalOffset, matches[i]));
                 } else {
-                    HexResultStatus resultOfSearch = searchAndReplace(bytebuffer, edit, globalOffset, startIndex, endIndex, force);
+                    HexResultStatus resultOfSearch = searchAndReplace(bytebuffer, edit, globalOffset, matches[i], force);
                     updateResult(resultOfSearch, (Result) result, edit, resultmap);
+                    if (resultOfSearch != null) {
+                        //We may have changed the bytes the other edits are looking at
+                        matches = scanner.findMatches(bytebuffer, globalOffset, startIndex, endIndex, effectiveArraySize);
+                    }
                 }
             }
             //This is set here, so it applies to all but the first iteration
@@ -245,7 +342,8 @@ public class HexEditor {
                 bytebuffer[i] = bytebuffer[effectiveArraySize - numberOfBytesCopiedFromLastIteration + i];
                 //Since bytebuffer is at least twice the size of numberOfBytesCopiedFromLastIteration, this won't go wrong
             }
-            globalOffset += (endIndex - startIndex);
+            //The bytes we kept now start our buffer, so that's where our offset in the file moves to
+            globalOffset += effectiveArraySize - numberOfBytesCopiedFromLastIteration;
         }
         //Since we did not write the tail of the last iteration, and it was copied to the start at the end of said iteration, flush the start of our buffer
         if (bos != null) {
@@ -327,15 +425,15 @@ public class HexEditor {
      * @param search
      * @param GlobalOffset We have already searched trough this many bytes in
      * previous calls to this method.
-     * @param indexToStartSearching We start searching again from this index
-     * @param indexToStopSearching We stop searching beyond this index
+     * @param matches The indices at which the edit matches, as found by our
+     * HexScanner
      * @param force
      * @return
      */
-    private static HexResultStatus searchAndReplace(byte[] bytes, HexEdit search, int GlobalOffset, int indexToStartSearching, int indexToStopSearching, boolean force) {
+    private static HexResultStatus searchAndReplace(byte[] bytes, HexEdit search, int GlobalOffset, int[] matches, boolean force) {
         List<HexResultStatus> results = new ArrayList<>();
-        outer:
-        for (int idx = indexToStartSearching; idx < indexToStopSearching; idx++) {
+        for (int idx : matches) {
+            //An earlier replacement of this same edit may have changed things
             if (search.match(bytes, idx, GlobalOffset)) {
                 HexResultStatus res = search.replace(bytes, idx, GlobalOffset, force);
                 results.add(res);
@@ -357,21 +455,102 @@ public class HexEditor {
      * @param search
      * @param GlobalOffset We have already searched trough this many bytes in
      * previous calls to this method.
-     * @param indexToStartSearching We start searching again from this index
-     * @param indexToStopSearching We stop searching beyond this index
+     * @param matches The indices at which the edit matches, as found by our
+     * HexScanner
      * @return
      */
-    private static List<HexInspectResult> getInspectResults(byte[] bytes, HexEdit search, int GlobalOffset, int indexToStartSearching, int indexToStopSearching) {
+    private static List<HexInspectResult> getInspectResults(byte[] bytes, HexEdit search, int GlobalOffset, int[] matches) {
         List<HexInspectResult> results = new ArrayList<>();
-        outer:
-        for (int idx = indexToStartSearching; idx < indexToStopSearching; idx++) {
-            if (search.match(bytes, idx, GlobalOffset)) {
-                results.add(search.inspect(bytes, idx, GlobalOffset));
-            }
+        for (int idx : matches) {
+            results.add(search.inspect(bytes, idx, GlobalOffset));
         }
         return results;
     }
 
+    /**
+     * Inspects a range of chunks of a file, splitting it up until a single
+     * chunk remains. The results of the chunks are returned in order.
+     */
+    @SuppressWarnings("serial")
+    private static class InspectTask extends RecursiveTask<List<HexInspectResult>> {
+
+        private final FileChannel channel;
+        private final long size;
+        private final HexEdit[] hexEdits;
+        private final HexScanner scanner;
+        private final int buffersize, negativeBufferSize, chunkSize;
+        private final int firstChunk, lastChunk;
+
+        InspectTask(FileChannel channel, long size, int chunkSize, HexEdit[] hexEdits) {
+            this.channel = channel;
+            this.size = size;
+            this.hexEdits = hexEdits;
+            this.scanner = new HexScanner(hexEdits);
+            int buffer = 0, negativeBuffer = 0;
+            for (HexEdit search : hexEdits) {
+                buffer = Math.max(buffer, search.requiredBufferSize());
+                negativeBuffer = Math.max(negativeBuffer, search.requiredNegativeBufferSize());
+            }
+            this.buffersize = buffer;
+            this.negativeBufferSize = negativeBuffer;
+            this.chunkSize = Math.max(chunkSize, 2 * (buffer + negativeBuffer));
+            this.firstChunk = 0;
+            this.lastChunk = (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        private InspectTask(InspectTask parent, int firstChunk, int lastChunk) {
+            this.channel = parent.channel;
+            this.size = parent.size;
+            this.hexEdits = parent.hexEdits;
+            this.scanner = parent.scanner;
+            this.buffersize = parent.buffersize;
+            this.negativeBufferSize = parent.negativeBufferSize;
+            this.chunkSize = parent.chunkSize;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected List<HexInspectResult> compute() {
+            if (lastChunk - firstChunk == 1) {
+                try {
+                    return inspectChunk(firstChunk);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            int middle = (firstChunk + lastChunk) / 2;
+            InspectTask left = new InspectTask(this, firstChunk, middle);
+            left.fork();
+            List<HexInspectResult> rightResults = new InspectTask(this, middle, lastChunk).compute();
+            List<HexInspectResult> results = left.join();
+            results.addAll(rightResults);
+            return results;
+        }
+
+        private List<HexInspectResult> inspectChunk(int chunk) throws IOException {
+            //Matches must start within [start, end), but may look at the bytes around that
+            long start = (long) chunk * chunkSize;
+            long end = Math.min(size, start + chunkSize);
+            long from = Math.max(0, start - negativeBufferSize);
+            long to = Math.min(size, end + buffersize);
+            byte[] bytes = new byte[(int) (to - from)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, from + buffer.position()) == -1) {
+                    throw new EOFException("File shrunk during hex inspection");
+                }
+            }
+            int globalOffset = (int) from;
+            int[][] matches = scanner.findMatches(bytes, globalOffset, (int) (start - from), (int) (end - from), bytes.length);
+            List<HexInspectResult> results = new ArrayList<>();
+            for (int i = 0; i < hexEdits.length; i++) {
+                results.addAll(getInspectResults(bytes, hexEdits[i], globalOffset, matches[i]));
+            }
+            return results;
+        }
+    }
+
     private static class Result {
 
         int succesfulEdits = 0;
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities.hex;
+
+import blcmm.utilities.BLCMMUtilities;
+import general.utilities.GlobalLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the results of inspecting game binaries, so we don't have to scan
+ * the same executable every time the setup panels want to know its status.
+ *
+ * Results are stored per file and query, along with the size, modification
+ * time and a hash of samples of the file. If any of those changed, or the
+ * hex edits of the query did, the stored results are ignored.
+ *
+ * @author LightChaosman
+ */
+class HexInspectionCache {
+
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "hexinspection.cache";
+    //We hash this many evenly spread blocks of this many bytes of a binary
+    private static final int SAMPLES = 16;
+    private static final int SAMPLE_SIZE = 4096;
+
+    private static HexInspectionCache instance;
+
+    private final File file;
+    private Map<String, Entry> entries;
+
+    HexInspectionCache(File file) {
+        this.file = file;
+    }
+
+    static synchronized HexInspectionCache getInstance() {
+        if (instance == null) {
+            instance = new HexInspectionCache(new File(BLCMMUtilities.getBLCMMDataDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the stored results of inspecting the given binary for the given
+     * query, or null if we have none, or the binary changed since.
+     *
+     * @param binary
+     * @param fingerprint The current fingerprint of the binary
+     * @param query
+     * @param hexEdits The edits of the query
+     * @return
+     */
+    synchronized HexInspectResult[] get(File binary, Fingerprint fingerprint, HexDictionary.HexQuery query, HexEdit[] hexEdits) {
+        Entry entry = getEntries().get(getKey(binary, query));
+        if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+            return null;
+        }
+        Map<String, HexEdit> edits = describe(hexEdits);
+        if (!entry.edits.equals(edits.keySet().toString())) {
+            return null;
+        }
+        HexInspectResult[] res = new HexInspectResult[entry.results.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = edits.get(entry.results[i]).createInspectResult(entry.addresses[i], entry.found[i]);
+        }
+        return res;
+    }
+
+    /**
+     * Stores the results of inspecting the given binary for the given query.
+     *
+     * @param binary
+     * @param fingerprint The fingerprint of the binary from before it was
+     * inspected
+     * @param query
+     * @param hexEdits The edits of the query
+     * @param results
+     */
+    synchronized void put(File binary, Fingerprint fingerprint, HexDictionary.HexQuery query, HexEdit[] hexEdits, HexInspectResult[] results) {
+        Map<String, HexEdit> edits = describe(hexEdits);
+        Map<HexEdit, String> names = new HashMap<>();
+        for (Map.Entry<String, HexEdit> e : edits.entrySet()) {
+            names.put(e.getValue(), e.getKey());
+        }
+        Entry entry = new Entry(fingerprint, edits.keySet().toString(), results.length);
+        for (int i = 0; i < results.length; i++) {
+            entry.results[i] = names.get(results[i].orginialHexEdit);
+            entry.addresses[i] = results[i].adress;
+            entry.found[i] = results[i].found;
+        }
+        getEntries().put(getKey(binary, query), entry);
+        save();
+    }
+
+    /**
+     * Forgets everything we know about the given binary, like after we edited
+     * it.
+     *
+     * @param binary
+     */
+    synchronized void invalidate(File binary) {
+        String prefix = getPath(binary) + "|";
+        if (getEntries().keySet().removeIf(key -> key.startsWith(prefix))) {
+            save();
+        }
+    }
+
+    private static String getPath(File binary) {
+        try {
+            return binary.getCanonicalPath();
+        } catch (IOException ex) {
+            return binary.getAbsolutePath();
+        }
+    }
+
+    private static String getKey(File binary, HexDictionary.HexQuery query) {
+        TreeSet<String> types = new TreeSet<>();
+        for (HexDictionary.HexType type : query.types) {
+            types.add(type.name());
+        }
+        return getPath(binary) + "|" + query.game + "|" + query.OS + "|" + types;
+    }
+
+    /**
+     * Describes each edit by its contents, since the order getHexEdits
+     * returns them in is not stable. Equal edits are numbered to tell them
+     * apart.
+     */
+    private static Map<String, HexEdit> describe(HexEdit[] hexEdits) {
+        Map<String, HexEdit> res = new TreeMap<>();
+        for (HexEdit edit : hexEdits) {
+            String description;
+            if (edit instanceof PatternHexEdit) {
+                description = "P" + Arrays.toString(((PatternHexEdit) edit).searchPattern) + ((PatternHexEdit) edit).offset;
+            } else if (edit instanceof WildCardHexEdit) {
+                description = "W" + Arrays.toString(((WildCardHexEdit) edit).searchPattern);
+            } else if (edit instanceof AddressHexEdit) {
+                description = "A" + ((AddressHexEdit) edit).adress;
+            } else {
+                description = edit.getClass().getName();
+            }
+            description += Arrays.toString(edit.original) + Arrays.toString(edit.replacement);
+            int n = 0;
+            while (res.containsKey(description + "#" + n)) {
+                n++;
+            }
+            res.put(description + "#" + n, edit);
+        }
+        return res;
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = load();
+        }
+        return entries;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> res = new HashMap<>();
+        if (!file.exists()) {
+            return res;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return res;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Fingerprint fingerprint = new Fingerprint(in.readLong(), in.readLong(), in.readLong());
+                Entry entry = new Entry(fingerprint, in.readUTF(), in.readInt());
+                for (int j = 0; j < entry.results.length; j++) {
+                    entry.results[j] = in.readUTF();
+                    entry.addresses[j] = in.readInt();
+                    entry.found[j] = new byte[in.readInt()];
+                    in.readFully(entry.found[j]);
+                }
+                res.put(key, entry);
+            }
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to read hex inspection cache, ignoring it");
+            GlobalLogger.log(ex);
+            res.clear();
+        }
+        return res;
+    }
+
+    private void save() {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.fingerprint.size);
+                out.writeLong(entry.fingerprint.lastModified);
+                out.writeLong(entry.fingerprint.hash);
+                out.writeUTF(entry.edits);
+                out.writeInt(entry.results.length);
+                for (int i = 0; i < entry.results.length; i++) {
+                    out.writeUTF(entry.results[i]);
+                    out.writeInt(entry.addresses[i]);
+                    out.writeInt(entry.found[i].length);
+                    out.write(entry.found[i]);
+                }
+            }
+        } catch (IOException ex) {
+            GlobalLogger.log("Unable to store hex inspection cache");
+            GlobalLogger.log(ex);
+            temp.delete();
+            return;
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    /**
+     * The size, modification time and a hash of samples of a file. Cheap to
+     * compute, even for large binaries.
+     */
+    static final class Fingerprint {
+
+        final long size, lastModified, hash;
+
+        private Fingerprint(long size, long lastModified, long hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /**
+         * Computes the fingerprint of the given file, or returns null if we
+         * can't read it.
+         *
+         * @param binary
+         * @return
+         */
+        static Fingerprint of(File binary) {
+            long lastModified = binary.lastModified();
+            try (RandomAccessFile raf = new RandomAccessFile(binary, "r")) {
+                long size = raf.length();
+                CRC32 crc = new CRC32();
+                byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, size)];
+                for (int i = 0; i < SAMPLES && sample.length > 0; i++) {
+                    //The first sample is at the start, the last one at the end
+                    raf.seek((size - sample.length) * i / (SAMPLES - 1));
+                    raf.readFully(sample);
+                    crc.update(sample);
+                }
+                return new Fingerprint(size, lastModified, crc.getValue());
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) obj;
+            return size == other.size && lastModified == other.lastModified && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(hash);
+        }
+    }
+
+    private static final class Entry {
+
+        final Fingerprint fingerprint;
+        //The descriptions of the edits of the query at the time
+        final String edits;
+        //For each result, the description of its edit, its address and the bytes found there
+        final String[] results;
+        final int[] addresses;
+        final byte[][] found;
+
+        Entry(Fingerprint fingerprint, String edits, int size) {
+            this.fingerprint = fingerprint;
+            this.edits = edits;
+            this.results = new String[size];
+            this.addresses = new int[size];
+            this.found = new byte[size][];
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities.hex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds where a set of hex edits match in a byte array, in a single pass over
+ * the bytes.
+ *
+ * For every pattern based edit, we take the longest stretch of its search
+ * pattern without wildcards as its anchor. The anchors of all edits are
+ * searched for at once using an Aho-Corasick automaton, and only where an
+ * anchor is found do we check the entire pattern. Address based edits can
+ * only match at their address, so we don't search for those at all.
+ *
+ * A scanner doesn't change once built, so it can be shared between threads.
+ *
+ * @author LightChaosman
+ */
+class HexScanner {
+
+    private static final int[] NONE = new int[0];
+
+    private final HexEdit[] edits;
+    //For each edit, its search pattern, if it has one
+    private final short[][] patterns;
+    //For each anchored edit, the offset and length of its anchor in its pattern
+    private final int[] anchorOffsets, anchorLengths;
+    //The edits we can't search for by anchor, which we check at every index
+    private final List<Integer> unanchored = new ArrayList<>();
+    //How far beyond the start of a match we need to scan to find its anchor
+    private int maxAnchorEnd = 0;
+
+    //The automaton. transitions[state][byte] is the next state, matches[state] the edits whose anchor ends there
+    private final int[][] transitions;
+    private final int[][] matches;
+
+    HexScanner(HexEdit... edits) {
+        this.edits = edits;
+        patterns = new short[edits.length][];
+        anchorOffsets = new int[edits.length];
+        anchorLengths = new int[edits.length];
+        List<int[]> trie = new ArrayList<>();
+        List<int[]> trieMatches = new ArrayList<>();
+        trie.add(newState());
+        trieMatches.add(NONE);
+        for (int e = 0; e < edits.length; e++) {
+            if (edits[e] instanceof PatternHexEdit) {
+                patterns[e] = ((PatternHexEdit) edits[e]).searchPattern;
+            } else if (edits[e] instanceof WildCardHexEdit) {
+                patterns[e] = ((WildCardHexEdit) edits[e]).searchPattern;
+            } else if (!(edits[e] instanceof AddressHexEdit)) {
+                unanchored.add(e);
+                continue;
+            }
+            if (patterns[e] == null) {
+                continue;
+            }
+            findAnchor(e);
+            if (anchorLengths[e] == 0) {
+                //Nothing but wildcards, or an empty pattern
+                unanchored.add(e);
+                continue;
+            }
+            maxAnchorEnd = Math.max(maxAnchorEnd, anchorOffsets[e] + anchorLengths[e]);
+            int state = 0;
+            for (int i = anchorOffsets[e]; i < anchorOffsets[e] + anchorLengths[e]; i++) {
+                int b = patterns[e][i] & 0xFF;
+                if (trie.get(state)[b] == -1) {
+                    trie.get(state)[b] = trie.size();
+                    trie.add(newState());
+                    trieMatches.add(NONE);
+                }
+                state = trie.get(state)[b];
+            }
+            int[] m = trieMatches.get(state);
+            m = Arrays.copyOf(m, m.length + 1);
+            m[m.length - 1] = e;
+            trieMatches.set(state, m);
+        }
+        transitions = trie.toArray(new int[trie.size()][]);
+        matches = trieMatches.toArray(new int[trieMatches.size()][]);
+        buildAutomaton();
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private void findAnchor(int e) {
+        short[] pattern = patterns[e];
+        int runStart = 0;
+        for (int i = 0; i <= pattern.length; i++) {
+            if (i == pattern.length || pattern[i] == HexUtilities.WILDCARD) {
+                if (i - runStart > anchorLengths[e]) {
+                    anchorOffsets[e] = runStart;
+                    anchorLengths[e] = i - runStart;
+                }
+                runStart = i + 1;
+            }
+        }
+    }
+
+    /*
+     * Turn the trie into an automaton, by filling in every missing transition
+     * with the one of the longest proper suffix that's in the trie, and adding
+     * the matches of that suffix.
+     */
+    private void buildAutomaton() {
+        int[] fail = new int[transitions.length];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int b = 0; b < 256; b++) {
+            if (transitions[0][b] == -1) {
+                transitions[0][b] = 0;
+            } else {
+                fail[transitions[0][b]] = 0;
+                queue.add(transitions[0][b]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] suffixMatches = matches[fail[state]];
+            if (suffixMatches.length > 0) {
+                int[] m = Arrays.copyOf(matches[state], matches[state].length + suffixMatches.length);
+                System.arraycopy(suffixMatches, 0, m, matches[state].length, suffixMatches.length);
+                matches[state] = m;
+            }
+            for (int b = 0; b < 256; b++) {
+                int next = transitions[state][b];
+                if (next == -1) {
+                    transitions[state][b] = transitions[fail[state]][b];
+                } else {
+                    fail[next] = transitions[fail[state]][b];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the indices at which each of our edits matches.
+     *
+     * @param bytes The bytes to search in
+     * @param globalOffset The offset of the bytes array in the file
+     * @param indexToStartSearching The first index at which a match may start
+     * @param indexToStopSearching No match may start at or beyond this index
+     * @param length The number of valid bytes in the array
+     * @return For each edit, in the order they were given in, the ascending
+     * indices at which it matches.
+     */
+    int[][] findMatches(byte[] bytes, int globalOffset, int indexToStartSearching, int indexToStopSearching, int length) {
+        int[][] res = new int[edits.length][];
+        int[] counts = new int[edits.length];
+        for (int e = 0; e < edits.length; e++) {
+            res[e] = NONE;
+        }
+        //Anchors start at or after the start of their match, so the automaton can start right there
+        int state = 0;
+        int scanEnd = Math.min(length, indexToStopSearching + maxAnchorEnd);
+        for (int i = indexToStartSearching; i < scanEnd; i++) {
+            state = transitions[state][bytes[i] & 0xFF];
+            for (int e : matches[state]) {
+                int idx = i + 1 - anchorLengths[e] - anchorOffsets[e];
+                if (idx >= indexToStartSearching && idx < indexToStopSearching
+                        && idx + patterns[e].length <= length
+                        && edits[e].match(bytes, idx, globalOffset)) {
+                    add(res, counts, e, idx);
+                }
+            }
+        }
+        for (int e = 0; e < edits.length; e++) {
+            if (edits[e] instanceof AddressHexEdit) {
+                int idx = ((AddressHexEdit) edits[e]).adress - globalOffset;
+                if (idx >= indexToStartSearching && idx < indexToStopSearching) {
+                    add(res, counts, e, idx);
+                }
+            }
+        }
+        for (int e : unanchored) {
+            for (int idx = indexToStartSearching; idx < indexToStopSearching; idx++) {
+                if (edits[e].match(bytes, idx, globalOffset)) {
+                    add(res, counts, e, idx);
+                }
+            }
+        }
+        for (int e = 0; e < edits.length; e++) {
+            res[e] = Arrays.copyOf(res[e], counts[e]);
+        }
+        return res;
+    }
+
+    private static void add(int[][] res, int[] counts, int e, int idx) {
+        if (counts[e] == res[e].length) {
+            res[e] = Arrays.copyOf(res[e], Math.max(4, counts[e] * 2));
+        }
+        res[e][counts[e]++] = idx;
+    }
+}
@@ -80,7 +80,12 @@ class WildCardHexEdit extends HexEdit {
     public HexInspectResult inspect(byte[] bytes, int startIndexInArray, int globalOffset) {
         byte[] bts = new byte[searchPattern.length];
         System.arraycopy(bytes, startIndexInArray, bts, 0, bts.length);
-        return new HexInspectResult(this, startIndexInArray + globalOffset, bts) {
+        return createInspectResult(startIndexInArray + globalOffset, bts);
+    }
+
+    @Override
+    HexInspectResult createInspectResult(int adress, byte[] found) {
+        return new HexInspectResult(this, adress, found) {
 
             @Override
             public boolean matchesEdited() {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm;
+
+import blcmm.gui.tree.CheckBoxTreeBenchmark;
+import blcmm.model.PatchIOBenchmark;
+import blcmm.model.TransientModelDataBenchmark;
+import blcmm.utilities.hex.HexEditorBenchmark;
+
+/**
+ * Runs the benchmarks of BLCMM. These are kept out of the regular test suite,
+ * since they take a while and check nothing the tests don't. Run them all
+ * using "ant benchmark", or one by one using the main method of a single
+ * benchmark class. All inputs are generated from fixed seeds, so runs can be
+ * compared between versions.
+ *
+ * @author LightChaosman
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * A piece of code to time.
+     */
+    public interface Task {
+
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HexEditorBenchmark.main(args);
+        CheckBoxTreeBenchmark.main(args);
+        PatchIOBenchmark.main(args);
+        TransientModelDataBenchmark.main(args);
+    }
+
+    /**
+     * Runs the given task the given number of times, and returns the time the
+     * fastest run took.
+     *
+     * @param runs The number of runs
+     * @param task The task to time
+     * @return The time of the fastest run, in nanoseconds
+     * @throws Exception If the task throws one
+     */
+    public static long best(int runs, Task task) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long t = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - t);
+        }
+        return best;
+    }
+
+    /**
+     * Reports a single measurement.
+     *
+     * @param format The description of what was measured, as a format string
+     * @param args The arguments of the format string
+     */
+    public static void report(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    /**
+     * Fails the benchmark if the optimized code gave another result than the
+     * code it's compared against.
+     *
+     * @param actual
+     * @param expected
+     */
+    public static void check(Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException("Benchmarked code gave a different result");
+        }
+    }
+
+    public static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.gui.panels;
+
+import blcmm.gui.panels.TextSearchSession.Range;
+import blcmm.gui.panels.TextSearchSession.Replacement;
+import blcmm.gui.text.HighlightedTextArea;
+import blcmm.gui.text.UndoManager;
+import blcmm.utilities.Options;
+import java.awt.GraphicsEnvironment;
+import java.util.regex.Pattern;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.Document;
+import javax.swing.text.PlainDocument;
+import static org.testng.Assert.*;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Checks searching and replacing in a text, as done by the find and replace
+ * dialog.
+ *
+ * @author LightChaosman
+ */
+public class TextSearchSessionNGTest {
+
+    private static final String TEXT = "set Foo Bar 1\n"
+            + "set foo baz 2\n"
+            + "set FOO Bar 3\n";
+
+    public TextSearchSessionNGTest() throws Exception {
+        Options.loadOptions();
+    }
+
+    private static Document createDocument(String text) throws Exception {
+        Document doc = new PlainDocument();
+        doc.insertString(0, text, null);
+        return doc;
+    }
+
+    @Test
+    public void testReplaceAllUndoesInOneStep() throws Exception {
+        AbstractDocument doc = (AbstractDocument) createDocument(TEXT);
+        UndoManager undo = new UndoManager();
+        undo.setProcessUndo(true);
+        doc.addUndoableEditListener(undo);
+        TextSearchSession session = new TextSearchSession(doc);
+        Replacement res = session.replaceAll("foo", "Qux", false, false);
+        assertEquals(res.count, 3);
+
+        //Even if the edits making up the replacement are spread out in time, they're undone together
+        undo.beginSingleEdit();
+        doc.remove(res.offset, res.length);
+        Thread.sleep(500);
+        doc.insertString(res.offset, res.text, null);
+        undo.endSingleEdit();
+        assertEquals(doc.getText(0, doc.getLength()), "set Qux Bar 1\nset Qux baz 2\nset Qux Bar 3\n");
+
+        undo.undo();
+        assertEquals(doc.getText(0, doc.getLength()), TEXT);
+        assertFalse(undo.canUndo());
+    }
+
+    @Test
+    public void testReplaceAllUndoesInOneStepInTextArea() throws Exception {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new SkipException("An editable text area needs a display");
+        }
+        HighlightedTextArea area = new HighlightedTextArea(false, true);
+        area.setText(TEXT);
+        area.setProcessUndo(true);
+        TextSearchSession session = new TextSearchSession(area.getDocument());
+        Replacement res = session.replaceAll("foo", "Qux", false, false);
+        area.replaceText(res.offset, res.length, res.text);
+        assertEquals(area.getText(), "set Qux Bar 1\nset Qux baz 2\nset Qux Bar 3\n");
+
+        area.getActionMap().get("Undo").actionPerformed(null);
+        assertEquals(area.getText(), TEXT);
+    }
+
+    @Test
+    public void testReplaceAll() throws Exception {
+        TextSearchSession session = new TextSearchSession(createDocument(TEXT));
+        Replacement res = session.replaceAll("Foo", "Qux", true, false);
+        assertEquals(res.count, 1);
+        assertEquals(res.offset, 4);
+        assertEquals(res.length, 3);
+        assertEquals(res.text, "Qux");
+
+        //Groups can be referred to, and everything in between results is kept
+        res = session.replaceAll("(ba)r", "$1t", false, true);
+        assertEquals(res.count, 2);
+        assertEquals(res.offset, TEXT.indexOf("Bar"));
+        assertEquals(res.text, TEXT.substring(res.offset, res.offset + res.length).replace("Bar", "Bat"));
+
+        assertNull(session.replaceAll("quux", "Qux", false, false));
+        assertNull(session.replaceAll("", "Qux", false, false));
+    }
+
+    @Test
+    public void testCaseInsensitiveRegex() throws Exception {
+        //Only the matching ignores case, so \S does not turn into \s
+        Pattern p = TextSearchSession.compile("\\S+", false);
+        assertEquals(p.pattern(), "\\S+");
+        assertEquals(p.flags(), Pattern.CASE_INSENSITIVE);
+
+        TextSearchSession session = new TextSearchSession(createDocument("a B\tc"));
+        TextSearchSession.Matches matches = session.getMatches(p);
+        assertEquals(matches.starts, new int[]{0, 2, 4});
+        assertEquals(matches.ends, new int[]{1, 3, 5});
+        Replacement res = session.replaceAll("\\S", "x", false, true);
+        assertEquals(res.text, "x x\tx");
+        assertEquals(session.find("B", false, 0, false, false, false, true).offset, 2);
+    }
+
+    @Test
+    public void testReplaceAfterFind() throws Exception {
+        TextSearchSession session = new TextSearchSession(createDocument(TEXT));
+        for (boolean regex : new boolean[]{false, true}) {
+            String search = regex ? "b.r" : "bar";
+            Range found = session.find(search, false, 0, false, true, false, regex);
+            assertEquals(found.offset, TEXT.indexOf("Bar"), search);
+            assertEquals(found.length, 3, search);
+            //Finding leaves the caret at the end of the result, which replacing should then pick up
+            Range toReplace = session.find(search, false, found.offset + found.length, true, true, false, regex);
+            assertEquals(toReplace.offset, found.offset, search);
+            assertEquals(toReplace.length, found.length, search);
+            //Whereas finding again moves on to the next result
+            Range next = session.find(search, false, found.offset + found.length, false, true, false, regex);
+            assertEquals(next.offset, TEXT.lastIndexOf("Bar"), search);
+        }
+    }
+
+    @Test
+    public void testFindWrapsAround() throws Exception {
+        TextSearchSession session = new TextSearchSession(createDocument(TEXT));
+        for (boolean regex : new boolean[]{false, true}) {
+            int last = TEXT.lastIndexOf("FOO");
+            assertEquals(session.find("foo", false, last + 1, false, true, false, regex).offset, 4);
+            assertEquals(session.find("foo", false, last + 1, false, false, false, regex).offset, -1);
+            assertEquals(session.find("foo", true, 4, false, true, false, regex).offset, last);
+            assertEquals(session.find("fOo", false, 0, false, true, true, regex).offset, -1);
+        }
+    }
+
+    @Test
+    public void testCacheDroppedAfterEdit() throws Exception {
+        Document doc = createDocument(TEXT);
+        TextSearchSession session = new TextSearchSession(doc);
+        Pattern p = TextSearchSession.compile("foo", false);
+        TextSearchSession.Matches matches = session.getMatches(p);
+        assertEquals(matches.size(), 3);
+        assertSame(session.getMatches(TextSearchSession.compile("foo", false)), matches);
+        assertNotSame(session.getMatches(TextSearchSession.compile("foo", true)), matches);
+
+        doc.insertString(0, "foo ", null);
+        assertEquals(session.getText(true), "foo " + TEXT);
+        matches = session.getMatches(p);
+        assertEquals(matches.size(), 4);
+        assertEquals(matches.starts[0], 0);
+
+        doc.remove(0, 8);
+        assertEquals(session.getText(false), TextSearchSession.fold(TEXT.substring(4)));
+        matches = session.getMatches(p);
+        assertEquals(matches.size(), 3);
+        assertEquals(matches.starts[0], 0);
+
+        //Once disposed, edits are no longer tracked
+        session.dispose();
+        doc.remove(0, doc.getLength());
+        assertSame(session.getMatches(p), matches);
+    }
+}
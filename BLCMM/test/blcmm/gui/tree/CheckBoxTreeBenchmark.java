@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.gui.tree;
+
+import blcmm.Benchmarks;
+import blcmm.model.CompletePatch;
+import blcmm.model.CompletePatch;
+import blcmm.model.PatchIO;
+import blcmm.model.SetCommand;
+import blcmm.utilities.Options;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.swing.JTree;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeCellRenderer;
+import javax.swing.tree.TreeNode;
+
+/**
+ * Measures the tree showing a mod with 50k commands, in categories of 100:
+ * rendering every row of it, with and without painting, like scrolling
+ * through it fully expanded would, and toggling a single command in it.
+ *
+ * @author LightChaosman
+ */
+public class CheckBoxTreeBenchmark {
+
+    private static final int CATEGORIES = 500;
+    private static final int COMMANDS = 100;
+    private static final int TOGGLES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Options.loadOptions();
+        //A CheckBoxTree can't be created without a display, so we show its nodes in a plain tree using its renderer
+        CompletePatch patch = PatchIO.parse(createMod());
+        JTree tree = new JTree(new DefaultTreeModel(CheckBoxTree.createTree(patch.getRoot())));
+        tree.setCellRenderer(new CheckBoxTreeCellRenderer());
+        patch.takeChangedCommands();
+        ColorGiver.reset(patch.getRoot());
+        List<DefaultMutableTreeNode> rows = new ArrayList<>();
+        Enumeration<?> nodes = ((DefaultMutableTreeNode) tree.getModel().getRoot()).preorderEnumeration();
+        while (nodes.hasMoreElements()) {
+            rows.add((DefaultMutableTreeNode) nodes.nextElement());
+        }
+        BufferedImage image = new BufferedImage(1000, 50, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        render(tree, rows, g);
+        long[] allocated = new long[2];
+        long render = Benchmarks.best(5, () -> {
+            long before = allocatedBytes();
+            Benchmarks.check(render(tree, rows, null), rows.size());
+            allocated[0] = allocatedBytes() - before;
+        });
+        long paint = Benchmarks.best(5, () -> {
+            long before = allocatedBytes();
+            Benchmarks.check(render(tree, rows, g), rows.size());
+            allocated[1] = allocatedBytes() - before;
+        });
+        Benchmarks.report("Rendering %d rows: %.0f ms, %d bytes allocated per row",
+                rows.size(), Benchmarks.millis(render), allocated[0] / rows.size());
+        Benchmarks.report("Rendering and painting them: %.0f ms, %d bytes allocated per row",
+                Benchmarks.millis(paint), allocated[1] / rows.size());
+        g.dispose();
+
+        DefaultMutableTreeNode node = rows.get(rows.size() / 2);
+        while (!(node.getUserObject() instanceof SetCommand)) {
+            node = node.getNextNode();
+        }
+        SetCommand command = (SetCommand) node.getUserObject();
+        TreeNode[] path = node.getPath();
+        long toggle = Benchmarks.best(5, () -> {
+            for (int i = 0; i < TOGGLES; i++) {
+                //What checkNode does, followed by what repainting the path needs to know
+                patch.setSelected(command, !command.isSelected());
+                ColorGiver.update(patch.takeChangedCommands());
+                for (TreeNode ancestor : path) {
+                    CheckBoxTree.getCheckedNode((DefaultMutableTreeNode) ancestor);
+                }
+            }
+            Benchmarks.check(CheckBoxTree.getCheckedNode(rows.get(0)).isSelected, true);
+        });
+        Benchmarks.report("Toggling a command among %d: %.1f us",
+                CATEGORIES * COMMANDS, Benchmarks.millis(toggle) * 1000 / TOGGLES);
+    }
+
+    /**
+     * Renders the given rows the way the tree paints its visible rows, and
+     * paints them if we're given something to paint on, returning the number
+     * of rows rendered.
+     */
+    private static int render(JTree tree, List<DefaultMutableTreeNode> rows, Graphics2D g) {
+        TreeCellRenderer renderer = tree.getCellRenderer();
+        for (int i = 0; i < rows.size(); i++) {
+            DefaultMutableTreeNode node = rows.get(i);
+            Component c = renderer.getTreeCellRendererComponent(tree, node, false, true, node.isLeaf(), i, false);
+            if (g == null) {
+                continue;
+            }
+            Dimension size = c.getPreferredSize();
+            c.setBounds(0, 0, size.width, size.height);
+            c.validate();
+            c.paint(g);
+        }
+        return rows.size();
+    }
+
+    private static String createMod() {
+        String n = PatchIO.LINEBREAK;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<BLCMM v=\"1\">").append(n);
+        sb.append("\t<head>").append(n);
+        sb.append("\t\t<type name=\"BL2\" offline=\"false\"/>").append(n);
+        sb.append("\t\t<profiles>").append(n);
+        sb.append("\t\t\t<profile name=\"default\" current=\"true\"/>").append(n);
+        sb.append("\t\t</profiles>").append(n);
+        sb.append("\t</head>").append(n);
+        sb.append("\t<body>").append(n);
+        sb.append("\t\t<category name=\"root\">").append(n);
+        for (int c = 0; c < CATEGORIES; c++) {
+            sb.append("\t\t\t<category name=\"Category ").append(c).append("\"").append(c % 7 == 0 ? " MUT=\"true\"" : "").append(">").append(n);
+            sb.append("\t\t\t\t<comment>Made by someone, version ").append(c).append("</comment>").append(n);
+            for (int i = 0; i < COMMANDS; i++) {
+                sb.append("\t\t\t\t<code profiles=\"").append(i % 3 == 0 ? "" : "default").append("\">")
+                        .append("set GD_Weap_").append(c).append(".Part_").append(i)
+                        .append(" AttributeSlotEffects[").append(i % 5).append("].BaseModifierConstant (BaseValueConstant=")
+                        .append(i).append(".5,BaseValueAttribute=None,InitializationDefinition=None,BaseValueScaleConstant=1.0)</code>").append(n);
+            }
+            sb.append("\t\t\t</category>").append(n);
+        }
+        sb.append("\t\t</category>").append(n);
+        sb.append("\t</body>").append(n);
+        sb.append("</BLCMM>").append(n);
+        return sb.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
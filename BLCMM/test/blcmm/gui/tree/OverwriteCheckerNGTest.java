@@ -6,11 +6,14 @@ import blcmm.model.CompletePatch;
 import blcmm.model.HotfixType;
 import blcmm.model.HotfixWrapper;
 import blcmm.model.ModelElement;
+import blcmm.model.ModelElementContainer;
 import blcmm.model.SetCMPCommand;
 import blcmm.model.SetCommand;
 import blcmm.utilities.Options;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import static org.testng.Assert.*;
 import org.testng.annotations.AfterClass;
@@ -27,6 +30,7 @@ import org.testng.annotations.Test;
 public class OverwriteCheckerNGTest {
     
     private SetCommand[] storedCommands;
+    private CompletePatch storedPatch;
     
     public OverwriteCheckerNGTest() throws Exception {
         Options.loadOptions();
@@ -70,41 +74,57 @@ public class OverwriteCheckerNGTest {
         CompletePatch patch = new CompletePatch();
         patch.createNewProfile("default");
         patch.setRoot(cat);
-        SetCommand cmd;
         for (String s : commands) {
-            String[] parts = s.split(" ");
-            HotfixType type = null;
-            try {
-                type = HotfixType.valueOf(parts[0].toUpperCase());
-            } catch (IllegalArgumentException e) {
-            }
-            if (type != null) {
-                String param = null;
-                if (type == HotfixType.PATCH) {
-                    s = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length));
-                } else {
-                    param = parts[1];
-                    s = String.join(" ", Arrays.copyOfRange(parts, 2, parts.length));
-                }
-                HotfixWrapper wrapper = new HotfixWrapper("name", type, param, Arrays.asList(s));
-                cmd = wrapper.get(0);
-                patch.insertElementInto(wrapper, cat);
-            } else {
-                if (parts[0].equals("set_cmp")) {
-                    cmd = new SetCMPCommand(s);
-                } else {
-                    cmd = new SetCommand(s);
-                }
-                patch.insertElementInto(cmd, cat);
-            }
+            SetCommand cmd = insertCommand(patch, s, cat, cat.sizeIncludingHotfixes());
             toStore.add(cmd);
             patch.setSelected(cmd, true);
         }
         OverwriteChecker.reset(cat);
         storedCommands = toStore.toArray(new SetCommand[toStore.size()]);
+        storedPatch = patch;
         return cat;
     }
     
+    /**
+     * Creates the command described by the given string, using the syntax
+     * described in testCategory, and inserts it into the given category.
+     *
+     * @param patch The patch we're working on
+     * @param s The command to create
+     * @param cat The category to insert the command in
+     * @param index The index to insert the command at
+     * @return The created command
+     */
+    private SetCommand insertCommand(CompletePatch patch, String s, Category cat, int index) {
+        SetCommand cmd;
+        String[] parts = s.split(" ");
+        HotfixType type = null;
+        try {
+            type = HotfixType.valueOf(parts[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+        }
+        if (type != null) {
+            String param = null;
+            if (type == HotfixType.PATCH) {
+                s = String.join(" ", Arrays.copyOfRange(parts, 1, parts.length));
+            } else {
+                param = parts[1];
+                s = String.join(" ", Arrays.copyOfRange(parts, 2, parts.length));
+            }
+            HotfixWrapper wrapper = new HotfixWrapper("name", type, param, Arrays.asList(s));
+            cmd = wrapper.get(0);
+            patch.insertElementInto(wrapper, cat, index);
+        } else {
+            if (parts[0].equals("set_cmp")) {
+                cmd = new SetCMPCommand(s);
+            } else {
+                cmd = new SetCommand(s);
+            }
+            patch.insertElementInto(cmd, cat, index);
+        }
+        return cmd;
+    }
+
     /**
      * Test data class.  This base class is basically intended to be used
      * for any test data *after* the first element.  Our TestDataF class is
@@ -937,6 +957,302 @@ public class OverwriteCheckerNGTest {
         }
     }
 
+    /**
+     * Data provider for our incremental update tests. The "tuple" elements
+     * are:
+     *
+     *  1) A string label, just used during test reporting.
+     *  2) The commands to populate our test patch with, using the syntax
+     *     described in testCategory's Javadocs.
+     *  3) The number of subcategories to distribute the commands over, in
+     *     a round-robin fashion.
+     *
+     * @return
+     */
+    @DataProvider
+    public Object[][] getIncrementalData() {
+        String[] mixed = new String[] {
+            "set foo bar baz",
+            "set foo bar[0] baz",
+            "set foo bar.frotz 1",
+            "level none set foo bar[0] nitfol",
+            "set foo bar baz2",
+            "set foo frotz 1",
+            "patch set foo bar baz",
+            "level Sanctuary_P set foo bar.frotz 2",
+            "set Class'foo' bar[0] baz",
+            "set foo bar +(1)",
+            "set foo LevelList ()",
+            "ondemand GD_Foo set foo bar[1] baz",
+            "set foo barbar baz",
+            "set foo bar[1] baz",
+        };
+        return new Object[][] {
+            { "Flat", mixed, 1 },
+            { "Two categories", mixed, 2 },
+            { "Four categories", mixed, 4 },
+        };
+    }
+
+    /**
+     * Builds a patch containing the given commands, distributed over the given
+     * number of subcategories, and resets the OverwriteChecker on it.
+     *
+     * @param commands The commands to add
+     * @param categories The number of subcategories to use
+     * @return The root of the patch
+     */
+    private Category nestedTestCategory(String[] commands, int categories) {
+        Category root = testCategory(new String[0]);
+        List<Category> subcats = createSubcategories(root, categories);
+        ArrayList<SetCommand> toStore = new ArrayList<>();
+        for (int i = 0; i < commands.length; i++) {
+            Category cat = subcats.get(i % categories);
+            SetCommand cmd = insertCommand(storedPatch, commands[i], cat, cat.sizeIncludingHotfixes());
+            storedPatch.setSelected(cmd, true);
+            toStore.add(cmd);
+        }
+        OverwriteChecker.reset(root);
+        storedPatch.takeChangedCommands();
+        storedCommands = toStore.toArray(new SetCommand[toStore.size()]);
+        return root;
+    }
+
+    private List<Category> createSubcategories(Category root, int categories) {
+        List<Category> subcats = new ArrayList<>();
+        for (int i = 0; i < categories; i++) {
+            Category cat = new Category("Cat " + i);
+            storedPatch.insertElementInto(cat, root);
+            subcats.add(cat);
+        }
+        return subcats;
+    }
+
+    /**
+     * Records everything the OverwriteChecker tells us about the elements in
+     * the given tree, so we can compare the state after an incremental update
+     * to the state after a full reset.
+     *
+     * @param element The element to start at
+     * @param snapshot The list to add our data to
+     * @return The snapshot
+     */
+    private List<Object> snapshot(ModelElement element, List<Object> snapshot) {
+        snapshot.add(element);
+        snapshot.add(element.getTransientData().getOverwriteState());
+        snapshot.add(OverwriteChecker.getColor(element));
+        if (element instanceof ModelElementContainer) {
+            for (ModelElement child : ((ModelElementContainer<?>) element).getElements()) {
+                snapshot(child, snapshot);
+            }
+        } else if (element instanceof SetCommand) {
+            SetCommand command = (SetCommand) element;
+            if (command.isSelected()
+                    && !command.getValue().startsWith("+(")
+                    && !command.getField().equalsIgnoreCase("levellist")) {
+                snapshot.add(OverwriteChecker.getCompleteOverwriters(command));
+                snapshot.add(OverwriteChecker.getCompleteOverwrittens(command));
+                snapshot.add(OverwriteChecker.getPartialOverwriters(command));
+                snapshot.add(OverwriteChecker.getPartialOverwrittens(command));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Passes everything that changed in our patch since the last call on to
+     * the OverwriteChecker, the way the tree does.
+     */
+    private void updateChanged() {
+        Collection<SetCommand> changed = storedPatch.takeChangedCommands();
+        assertNotNull(changed);
+        OverwriteChecker.onCommandsChanged(changed);
+    }
+
+    private void assertMatchesReset(Category root, String message) {
+        List<Object> incremental = snapshot(root, new ArrayList<>());
+        OverwriteChecker.reset(root);
+        List<Object> full = snapshot(root, new ArrayList<>());
+        assertEquals(incremental, full, message);
+    }
+
+    /**
+     * Test of onCommandsChanged after toggling a single command, comparing
+     * against a full reset after every toggle.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCommandToggled(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        for (SetCommand command : storedCommands) {
+            storedPatch.setSelected(command, false);
+            updateChanged();
+            assertMatchesReset(root, "Unchecking " + command);
+            storedPatch.setSelected(command, true);
+            updateChanged();
+            assertMatchesReset(root, "Checking " + command);
+        }
+    }
+
+    /**
+     * Test of onCommandsChanged after toggling many commands at once,
+     * toggling everything twice without any intermediate reset.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCommandsToggled(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        List<SetCommand> everyOther = new ArrayList<>();
+        for (int i = 0; i < storedCommands.length; i += 2) {
+            storedPatch.setSelected(storedCommands[i], false);
+            everyOther.add(storedCommands[i]);
+        }
+        updateChanged();
+        for (SetCommand command : everyOther) {
+            storedPatch.setSelected(command, true);
+        }
+        updateChanged();
+        for (int i = 1; i < storedCommands.length; i += 2) {
+            storedPatch.setSelected(storedCommands[i], false);
+        }
+        updateChanged();
+        assertMatchesReset(root, label);
+    }
+
+    /**
+     * Test of onCommandsChanged after adding commands, inserting every command
+     * at the start of its
+     * category, so that the tree order differs from the insertion order.
+     * The comparison is only done at the end, to make sure the incremental
+     * updates don't rely on any intermediate reset.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCommandAdded(String label, String[] commands, int categories) {
+        Category root = testCategory(new String[0]);
+        List<Category> subcats = createSubcategories(root, categories);
+        OverwriteChecker.reset(root);
+        storedPatch.takeChangedCommands();
+        for (int i = 0; i < commands.length; i++) {
+            SetCommand cmd = insertCommand(storedPatch, commands[i], subcats.get(i % categories), 0);
+            storedPatch.setSelected(cmd, true);
+            updateChanged();
+        }
+        assertMatchesReset(root, label);
+    }
+
+    /**
+     * Repeatedly inserts commands at the same position, which exhausts the
+     * room between the order labels of their neighbours, and checks that the
+     * overwriters are still reported in tree order.
+     */
+    @Test
+    public void testRepeatedInsertionsKeepTreeOrder() {
+        Category root = testCategory(new String[] {"set foo bar first", "set foo bar last"});
+        for (int i = 0; i < 100; i++) {
+            SetCommand cmd = insertCommand(storedPatch, "set foo bar v" + i, root, 1);
+            storedPatch.setSelected(cmd, true);
+            OverwriteChecker.onCommandsChanged(Arrays.asList(cmd));
+        }
+        List<SetCommand> expected = new ArrayList<>();
+        for (int i = 1; i < root.size(); i++) {
+            expected.add((SetCommand) root.get(i));
+        }
+        assertEquals(OverwriteChecker.getCompleteOverwriters((SetCommand) root.get(0)), expected);
+        assertMatchesReset(root, "Repeated insertions");
+    }
+
+    /**
+     * Test of onCommandsChanged after removing commands, comparing against a
+     * full reset after every removal.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCommandRemoved(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        List<SetCommand> toRemove = new ArrayList<>(Arrays.asList(storedCommands));
+        Collections.rotate(toRemove, toRemove.size() / 2);
+        for (SetCommand command : toRemove) {
+            storedPatch.removeElementFromParentCategory(command);
+            updateChanged();
+            assertMatchesReset(root, "Removing " + command);
+        }
+    }
+
+    /**
+     * Test of onCommandsChanged after moving commands and entire categories
+     * around, and removing and re-inserting a category.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCommandsMoved(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        for (int i = 0; i < storedCommands.length && categories > 1; i += 3) {
+            SetCommand command = storedCommands[i];
+            Category target = (Category) root.getElements().get((i + 1) % categories);
+            storedPatch.insertElementInto(command, target, 0);
+            updateChanged();
+            assertMatchesReset(root, "Moving " + command);
+        }
+        //Moving within the same category is done by removing it first
+        Category last = (Category) root.getElements().get(categories - 1);
+        storedPatch.removeElementFromParentCategory(last);
+        storedPatch.insertElementInto(last, root, 0);
+        updateChanged();
+        assertMatchesReset(root, "Moving " + last);
+        if (categories > 1) {
+            Category first = (Category) root.getElements().get(1);
+            storedPatch.insertElementInto(last, first);
+            updateChanged();
+            assertMatchesReset(root, "Nesting " + last);
+        }
+        storedPatch.removeElementFromParentCategory(last);
+        updateChanged();
+        assertMatchesReset(root, "Removing " + last);
+        storedPatch.insertElementInto(last, root);
+        updateChanged();
+        assertMatchesReset(root, "Re-inserting " + last);
+    }
+
+    /**
+     * Sorting a category moves commands around behind the patch's back, so
+     * the patch has to be told about it.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testOnCategorySorted(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        for (int i = 0; i < categories; i++) {
+            Category cat = (Category) root.getElements().get(i);
+            cat.sort();
+            storedPatch.elementChanged(cat);
+        }
+        updateChanged();
+        assertMatchesReset(root, label);
+    }
+
+    private List<Object> overwriteStates(ModelElement element, List<Object> states) {
+        states.add(element.getTransientData().getOverwriteState());
+        states.add(OverwriteChecker.getColor(element));
+        if (element instanceof ModelElementContainer) {
+            for (ModelElement child : ((ModelElementContainer<?>) element).getElements()) {
+                overwriteStates(child, states);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Preparing an analysis must not change anything that is shown, while
+     * installing it must give the same results as a full reset.
+     */
+    @Test(dataProvider = "getIncrementalData")
+    public void testPrepareAndInstall(String label, String[] commands, int categories) {
+        Category root = nestedTestCategory(commands, categories);
+        for (int i = 0; i < storedCommands.length; i += 2) {
+            storedPatch.setSelected(storedCommands[i], false);
+        }
+        List<Object> shown = overwriteStates(root, new ArrayList<>());
+        OverwriteChecker prepared = OverwriteChecker.prepare(root);
+        assertEquals(overwriteStates(root, new ArrayList<>()), shown, label);
+        OverwriteChecker.install(prepared, root);
+        assertMatchesReset(root, label);
+    }
+
     /**
      * Test of getColor method, of class OverwriteChecker.
      */
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.gui.tree;
+
+import blcmm.model.Category;
+import blcmm.model.CompletePatch;
+import blcmm.model.PatchIO;
+import blcmm.model.SetCommand;
+import blcmm.utilities.Options;
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import javax.swing.tree.DefaultMutableTreeNode;
+import static org.testng.Assert.*;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the results of searching the tree, and stepping through them.
+ *
+ * @author LightChaosman
+ */
+public class TreeSearchIndexNGTest {
+
+    private static final String MOD = "#<root>\n"
+            + "#<Weapons>\n"
+            + "set GD_Weap_Shotgun Damage 5\n"
+            + "#<Shotgun stuff>\n"
+            + "set GD_Weap_Shotgun Spread 2\n"
+            + "#</Shotgun stuff>\n"
+            + "#</Weapons>\n"
+            + "#<Shields>\n"
+            + "set GD_Shield Capacity 1\n"
+            + "#</Shields>\n"
+            + "#</root>\n";
+
+    public TreeSearchIndexNGTest() throws Exception {
+        Options.loadOptions();
+    }
+
+    /**
+     * Returns the nodes of the test mod, in the order in which they are shown:
+     * root, Weapons, the damage command, Shotgun stuff, the spread command,
+     * Shields and the capacity command.
+     */
+    private static List<DefaultMutableTreeNode> createNodes() throws Exception {
+        List<DefaultMutableTreeNode> nodes = new ArrayList<>();
+        Enumeration<?> e = CheckBoxTree.createTree(PatchIO.parse(MOD).getRoot()).preorderEnumeration();
+        while (e.hasMoreElements()) {
+            nodes.add((DefaultMutableTreeNode) e.nextElement());
+        }
+        return nodes;
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        List<DefaultMutableTreeNode> nodes = createNodes();
+        TreeSearchIndex index = new TreeSearchIndex(nodes.get(0));
+        assertEquals(index.search("shotgun", false), new int[]{3});
+        assertEquals(index.search("shotgun", true), new int[]{2, 3, 4});
+        assertEquals(index.search("s", false), new int[]{1, 3, 5});
+        assertEquals(index.search("capacity", true), new int[]{6});
+        assertEquals(index.search("capacity", false), new int[0]);
+        assertEquals(index.search("nothing", true), new int[0]);
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(index.getPosition(nodes.get(i)), i);
+            assertSame(index.getNode(i), nodes.get(i));
+        }
+        assertEquals(index.getPosition(new DefaultMutableTreeNode()), -1);
+    }
+
+    @Test
+    public void testStepping() throws Exception {
+        List<DefaultMutableTreeNode> nodes = createNodes();
+        TreeSearchIndex index = new TreeSearchIndex(nodes.get(0));
+        int[] results = index.search("shotgun", true);
+        assertEquals(index.getNextResult(results, null), 0);
+        assertEquals(index.getNextResult(results, nodes.get(1)), 0);
+        assertEquals(index.getNextResult(results, nodes.get(2)), 1);
+        assertEquals(index.getNextResult(results, nodes.get(3)), 2);
+        //Past the last result, we wrap around to the first one
+        assertEquals(index.getNextResult(results, nodes.get(4)), 0);
+        assertEquals(index.getNextResult(results, nodes.get(6)), 0);
+        results = index.search("s", false);
+        assertEquals(index.getNextResult(results, nodes.get(2)), 1);
+        assertEquals(index.getNextResult(results, nodes.get(5)), 0);
+    }
+
+    @Test
+    public void testIndexDiscardedOnChange() throws Exception {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new SkipException("A CheckBoxTree can not be created without a display");
+        }
+        CompletePatch patch = PatchIO.parse(MOD);
+        CheckBoxTree tree = new CheckBoxTree();
+        tree.setPatch(patch);
+        assertEquals(tree.search("capacity", true), new int[]{1, 1});
+
+        Category shields = (Category) patch.getRoot().get(1);
+        DefaultMutableTreeNode shieldsNode = (DefaultMutableTreeNode) ((DefaultMutableTreeNode) tree.getModel().getRoot()).getChildAt(1);
+        SetCommand added = new SetCommand("set GD_Shield Capacity 2");
+        patch.insertElementInto(added, shields);
+        tree.getModel().insertNodeInto(new DefaultMutableTreeNode(added), shieldsNode, shieldsNode.getChildCount());
+        tree.setChanged(true);
+        assertEquals(tree.search("capacity", true), new int[]{2, 2});
+        assertEquals(tree.search("capacity", true), new int[]{1, 2});
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.model;
+
+import blcmm.Benchmarks;
+import blcmm.utilities.EDTSlicedWriter;
+import blcmm.utilities.Options;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+/**
+ * Measures parsing a generated mod about ten times the size of the largest
+ * mods out there, opening it from disk in both the BLCMM and the FilterTool
+ * format, compared to just reading the file, and saving mods with increasing numbers of hotfixes, with
+ * their values kept in memory and spilled to a temporary file. Also measures
+ * how long backing up a mod keeps the EDT busy, when copying the mod on the
+ * EDT compared to writing it in slices while the EDT is parked.
+ *
+ * @author LightChaosman
+ */
+public class PatchIOBenchmark {
+
+    private static final int CATEGORIES = 200;
+    private static final int COMMANDS = 500;
+    private static final int[] HOTFIXES = {1000, 10000, 50000};
+    private static final int HOTFIXES_PER_WRAPPER = 100;
+    private static final int BACKUP_CATEGORIES = 100;
+    private static final int BACKUP_SLICE_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Options.loadOptions();
+        String file = PatchIONGTest.createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK,
+                PatchIONGTest.createBody(CATEGORIES, COMMANDS));
+        int lines = file.split(PatchIO.LINEBREAK).length;
+        long parse = Benchmarks.best(5, () -> Benchmarks.check(PatchIO.parse(file).getRoot().size(), CATEGORIES));
+        Benchmarks.report("Parsing %d lines (%d MB): %.0f ms, %d lines per second",
+                lines, file.length() >> 20, Benchmarks.millis(parse), lines * 1000000000L / parse);
+
+        CompletePatch mod = PatchIO.parse(file);
+        for (PatchIO.SaveFormat format : new PatchIO.SaveFormat[]{PatchIO.SaveFormat.BLCMM, PatchIO.SaveFormat.FT}) {
+            File onDisk = File.createTempFile("blcmm-benchmark", format == PatchIO.SaveFormat.FT ? ".txt" : ".blcm");
+            onDisk.deleteOnExit();
+            try (Writer writer = new FileWriter(onDisk)) {
+                PatchIO.writeToFile(mod, format, writer, false);
+            }
+            long read = Benchmarks.best(5, () -> Benchmarks.check(new String(Files.readAllBytes(onDisk.toPath())).length() > 0, true));
+            long open = Benchmarks.best(5, () -> Benchmarks.check(PatchIO.parse(onDisk).getRoot().size(), CATEGORIES));
+            Benchmarks.report("Opening the mod from disk in the %s format (%d MB): %.0f ms, reading the file alone takes %.0f ms",
+                    format, onDisk.length() >> 20, Benchmarks.millis(open), Benchmarks.millis(read));
+        }
+
+        for (int hotfixes : HOTFIXES) {
+            CompletePatch patch = PatchIO.parse(PatchIONGTest.createFile("BL2",
+                    "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, createHotfixBody(hotfixes)));
+            int size = save(patch, Integer.MAX_VALUE);
+            long inMemory = Benchmarks.best(5, () -> Benchmarks.check(save(patch, Integer.MAX_VALUE), size));
+            long spilled = Benchmarks.best(5, () -> Benchmarks.check(save(patch, 0), size));
+            Benchmarks.report("Saving %d hotfixes: %.1f ms in memory, %.1f ms spilling to a file",
+                    hotfixes, Benchmarks.millis(inMemory), Benchmarks.millis(spilled));
+        }
+
+        CompletePatch backup = PatchIO.parse(PatchIONGTest.createFile("BL2",
+                "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK,
+                PatchIONGTest.createBody(BACKUP_CATEGORIES, COMMANDS)));
+        int size = save(backup, Integer.MAX_VALUE);
+        long copy = Benchmarks.best(5, () -> Benchmarks.check(backup.copy().getRoot().size(), BACKUP_CATEGORIES));
+        long[] longestSlice = new long[1];
+        //The first backup loads the hotfixes of Gearbox, which only happens once
+        backupInSlices(backup, longestSlice);
+        longestSlice[0] = 0;
+        long sliced = Benchmarks.best(5, () -> Benchmarks.check(backupInSlices(backup, longestSlice), size));
+        Benchmarks.report("Backing up %d commands: copying on the EDT blocks it for %.1f ms, "
+                + "writing in slices takes %.1f ms, blocking the EDT for at most %.1f ms at a time",
+                BACKUP_CATEGORIES * COMMANDS, Benchmarks.millis(copy), Benchmarks.millis(sliced), Benchmarks.millis(longestSlice[0]));
+    }
+
+    /**
+     * Writes the given patch like the auto backup does, returning the length
+     * of the output, and keeping track of the longest time the EDT was parked.
+     */
+    private static int backupInSlices(CompletePatch patch, long[] longestSlice) throws Exception {
+        //A slice starts once the EDT is parked, and ends when it's written out after letting the EDT go.
+        //The output is only counted, so growing a buffer doesn't add to the measurement.
+        long[] sliceStart = new long[1];
+        int[] length = new int[1];
+        Writer writer = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                longestSlice[0] = Math.max(longestSlice[0], System.nanoTime() - sliceStart[0]);
+                length[0] += len;
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        EDTSlicedWriter.write(writer, BACKUP_SLICE_SIZE, () -> {
+            sliceStart[0] = System.nanoTime();
+            return true;
+        }, w -> PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, w, false));
+        return length[0];
+    }
+
+    /**
+     * Saves the given patch with the given number of characters of hotfix
+     * values kept in memory, returning the length of the output.
+     */
+    private static int save(CompletePatch patch, int memoryLimit) throws Exception {
+        StringWriter writer = new StringWriter();
+        PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, writer, false, memoryLimit);
+        return writer.getBuffer().length();
+    }
+
+    private static String createHotfixBody(int hotfixes) {
+        String n = PatchIO.LINEBREAK;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<category name=\"root\">").append(n);
+        for (int i = 0; i < hotfixes; i++) {
+            if (i % HOTFIXES_PER_WRAPPER == 0) {
+                if (i > 0) {
+                    sb.append("\t</hotfix>").append(n);
+                }
+                sb.append("\t<hotfix name=\"Fix ").append(i / HOTFIXES_PER_WRAPPER).append("\" level=\"None\">").append(n);
+            }
+            sb.append("\t\t<code profiles=\"default\">set GD_Weap_").append(i).append(".Part_").append(i % 7)
+                    .append(" AttributeSlotEffects[0].BaseModifierConstant (BaseValueConstant=").append(i)
+                    .append(".5,BaseValueAttribute=None,InitializationDefinition=None,BaseValueScaleConstant=1.0)</code>").append(n);
+        }
+        sb.append("\t</hotfix>").append(n);
+        sb.append("</category>").append(n);
+        return sb.toString();
+    }
+}
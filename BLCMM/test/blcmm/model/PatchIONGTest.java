@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.model;
+
+import blcmm.model.properties.GlobalListOfProperties;
+import blcmm.utilities.Options;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * @author LightChaosman
+ */
+public class PatchIONGTest {
+
+    public PatchIONGTest() throws Exception {
+        Options.loadOptions();
+    }
+
+    static String createFile(String type, String profiles, String body) {
+        String n = PatchIO.LINEBREAK;
+        return "<BLCMM v=\"1\">" + n
+                + "\t<head>" + n
+                + "\t\t<type name=\"" + type + "\" offline=\"false\"/>" + n
+                + "\t\t<profiles>" + n
+                + profiles
+                + "\t\t</profiles>" + n
+                + "\t</head>" + n
+                + "\t<body>" + n
+                + body.replaceAll("(?m)^(?=.)", "\t\t")
+                + "\t</body>" + n
+                + "</BLCMM>" + n;
+    }
+
+    /**
+     * Creates the body of a mod with the given number of categories, each
+     * with the given number of commands, comments and hotfixes, formatted the
+     * way toParseString formats it.
+     */
+    static String createBody(int categories, int commands) {
+        String n = PatchIO.LINEBREAK;
+        StringBuilder sb = new StringBuilder();
+        sb.append("<category name=\"root\">").append(n);
+        for (int c = 0; c < categories; c++) {
+            sb.append("\t<category name=\"Category ").append(c).append("\"").append(c % 7 == 0 ? " locked=\"true\"" : "").append(">").append(n);
+            sb.append("\t\t<comment>Made by <b>someone</b>, \"version\" ").append(c).append("</comment>").append(n);
+            for (int i = 0; i < commands; i++) {
+                sb.append("\t\t<code profiles=\"").append(i % 3 == 0 ? "" : "default").append("\">")
+                        .append("set GD_Weap_").append(c).append(".Part_").append(i)
+                        .append(" AttributeSlotEffects[").append(i % 5).append("].BaseModifierConstant (BaseValueConstant=")
+                        .append(i).append(".5,BaseValueAttribute=None,InitializationDefinition=None,BaseValueScaleConstant=1.0)</code>").append(n);
+            }
+            sb.append("\t\t<hotfix name=\"Fix ").append(c).append("\" level=\"None\">").append(n);
+            sb.append("\t\t\t<code profiles=\"default\">set GD_Hotfix_").append(c).append(".Thing Value \"").append(c).append("\"</code>").append(n);
+            sb.append("\t\t</hotfix>").append(n);
+            sb.append("\t</category>").append(n);
+        }
+        sb.append("</category>").append(n);
+        return sb.toString();
+    }
+
+    @Test
+    public void testParseTags() throws IOException {
+        String n = PatchIO.LINEBREAK;
+        String file = createFile("TPS",
+                "\t\t\t<profile name=\"default\"/>" + n + "\t\t\t<profile name=\"second\" current=\"true\"/>" + n,
+                "<category name=\"root\">" + n
+                + "\t<category name=\"a \\\"quoted\\\" name\" MUT=\"true\" locked=\"true\">" + n
+                + "\t\t<code profiles=\"second\">set Foo.Bar Baz \"<hi>\"</code>" + n
+                + "\t\t<code profiles=\"default\">set Foo.Bar Baz (A=\"x\",B=<b>)</code>" + n
+                + "\t\t<comment><b>bold</b> and <font color=\"red\">red</font></comment>" + n
+                + "\t\t<comment>\"quoted <code> inside\" text</comment>" + n
+                + "\t\t<comment>Gar" + (char) 0 + "ba" + (char) 65533 + "ge</comment>" + n
+                + "\t\t<comment></comment>" + n
+                + "\t</category>" + n
+                + "\t<hotfix name=\"level\" level=\"Grass_P\">" + n
+                + "\t\t<code profiles=\"second\">set Obj Attr \"a \\\"b\\\" c\"</code>" + n
+                + "\t</hotfix>" + n
+                + "\t<hotfix name=\"ondemand\" package=\"GD_Foo\">" + n
+                + "\t\t<code profiles=\"second\">set Obj Attr 2</code>" + n
+                + "\t</hotfix>" + n
+                + "</category>" + n);
+        //FilterTool adds this after the first line
+        file = file.replaceFirst(n, n + PatchIO.FT_UPDATE_STRING + n);
+        CompletePatch patch = PatchIO.parse(file);
+        assertEquals(patch.getType(), PatchType.TPS);
+        assertEquals(patch.getCurrentProfile().getName(), "second");
+        assertEquals(patch.getProfiles().size(), 2);
+
+        Category root = patch.getRoot();
+        assertEquals(root.getName(), "root");
+        assertEquals(root.size(), 3);
+        Category category = (Category) root.get(0);
+        assertEquals(category.getName(), "a \"quoted\" name");
+        assertTrue(category.isMutuallyExclusive());
+        assertTrue(category.isLocked());
+        assertEquals(((SetCommand) category.get(0)).getCode(), "set Foo.Bar Baz \"<hi>\"");
+        assertTrue(((SetCommand) category.get(0)).isSelected());
+        assertEquals(((SetCommand) category.get(1)).getCode(), "set Foo.Bar Baz (A=\"x\",B=<b>)");
+        assertFalse(((SetCommand) category.get(1)).isSelected());
+        assertEquals(((Comment) category.get(2)).getComment(), "<b>bold</b> and <font color=\"red\">red</font>");
+        assertEquals(((Comment) category.get(3)).getComment(), "\"quoted <code> inside\" text");
+        assertEquals(((Comment) category.get(4)).getComment(), "Garbage");
+        assertEquals(((Comment) category.get(5)).getComment(), "");
+
+        HotfixWrapper level = (HotfixWrapper) root.get(1);
+        assertEquals(level.getName(), "level");
+        assertEquals(level.getType(), HotfixType.LEVEL);
+        assertEquals(level.getParameter(), "Grass_P");
+        assertEquals(((SetCommand) level.get(0)).getValue(), "\"a \\\"b\\\" c\"");
+        HotfixWrapper ondemand = (HotfixWrapper) root.get(2);
+        assertEquals(ondemand.getType(), HotfixType.ONDEMAND);
+        assertEquals(ondemand.getParameter(), "GD_Foo");
+    }
+
+    @Test
+    public void testParseErrors() throws IOException {
+        String n = PatchIO.LINEBREAK;
+        String[] files = {
+            "<BLCMM v=\"1\">" + n + "\t<head>" + n + "\t\t<unknown/>" + n + "\t</head>" + n + "</BLCMM>" + n,
+            "<BLCMM v=\"1\">" + n + "\t<body>" + n + "\t</head>" + n + "</BLCMM>" + n,
+            "<BLCMM v=\"1\">" + n + "\tjust text" + n + "</BLCMM>" + n,
+            "<BLCMM v=\"1\">" + n + "\t<body>" + n + "\t\t<comment>unterminated" + n + "\t</body>" + n + "</BLCMM>" + n,
+            "<BLCMM>" + n + "</BLCMM>" + n,};
+        for (String file : files) {
+            try {
+                PatchIO.parse(file);
+                fail("Parsed " + file);
+            } catch (RuntimeException ex) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testParseRoundTrip() throws IOException {
+        String body = createBody(20, 30);
+        CompletePatch patch = PatchIO.parse(createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, body));
+        assertEquals(PatchIO.toParseString(patch.getRoot()), body);
+    }
+
+    @Test
+    public void testProfiles() throws IOException {
+        String n = PatchIO.LINEBREAK;
+        CompletePatch patch = PatchIO.parse(createFile("BL2",
+                "\t\t\t<profile name=\"default\" current=\"true\"/>" + n + "\t\t\t<profile name=\"second\"/>" + n,
+                "<category name=\"root\">" + n
+                + "\t<category name=\"sub\">" + n
+                + "\t\t<code profiles=\"default,second\">set A B 1</code>" + n
+                + "\t\t<code profiles=\"second\">set A B 2</code>" + n
+                + "\t\t<code profiles=\"\">set A B 3</code>" + n
+                + "\t</category>" + n
+                + "</category>" + n));
+        Category root = patch.getRoot();
+        Category sub = (Category) root.get(0);
+        SetCommand one = (SetCommand) sub.get(0), two = (SetCommand) sub.get(1), three = (SetCommand) sub.get(2);
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 1);
+        assertTrue(one.isSelected());
+        assertFalse(two.isSelected());
+
+        Profile def = patch.getCurrentProfile();
+        patch.setCurrentProfile("second");
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 2);
+        assertTrue(two.isSelected());
+        patch.setSelected(three, true);
+        patch.setSelected(one, false);
+        assertEquals(sub.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 2);
+        assertEquals(three.getProfileString(), "profiles=\"second\"");
+
+        patch.setCurrentProfile(def);
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 1);
+        assertTrue(one.isSelected());
+        assertFalse(three.isSelected());
+
+        //A new profile starts out as a copy of the current one, and takes the id of a deleted one
+        patch.deleteProfile(patch.getProfile("second"));
+        Profile third = patch.createNewProfile("third");
+        assertEquals(patch.getCurrentProfile(), third);
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 1);
+        assertTrue(one.isSelected());
+        assertFalse(two.isSelected());
+        assertEquals(one.getProfileString(), "profiles=\"default,third\"");
+        sub.removeElement(one);
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), 0);
+    }
+
+    @Test
+    public void testHotfixValuesSpillToFile() throws IOException {
+        CompletePatch patch = PatchIO.parse(createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, createBody(50, 2)));
+        for (PatchIO.SaveFormat format : new PatchIO.SaveFormat[]{PatchIO.SaveFormat.BLCMM, PatchIO.SaveFormat.FT}) {
+            StringWriter inMemory = new StringWriter();
+            PatchIO.writeToFile(patch, format, inMemory, false);
+            StringWriter spilled = new StringWriter();
+            PatchIO.writeToFile(patch, format, spilled, false, 64);
+            assertEquals(spilled.toString(), inMemory.toString(), format.toString());
+        }
+    }
+
+    @Test
+    public void testPropertiesFollowChanges() throws IOException {
+        String profile = "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK;
+        CompletePatch patch = PatchIO.parse(createFile("BL2", profile, createBody(4, 5)));
+        Category root = patch.getRoot();
+        root.getTransientData().getProperties();
+        CompletePatch mod = PatchIO.parse(createFile("BL2", profile, createBody(2, 3)));
+        patch.insertElementInto(mod.getRoot().get(1), root, 1);
+        patch.insertElementsInto(Arrays.asList(new SetCommand("set A B 1"), new Comment("say hi"), new Category("empty")), (Category) root.get(0));
+        patch.removeElementFromParentCategory(root.get(3));
+        patch.setSelected((SetCommand) ((Category) root.get(2)).get(2), true);
+        root.getTransientData().disableStatuses();
+        assertEquals(root.getTransientData().summaryString(), rebuilt(root).getTransientData().summaryString());
+        for (ModelElement el : root.getElements()) {
+            ModelElement copy = rebuilt(el);
+            assertEquals(el.getTransientData().summaryString(), copy.getTransientData().summaryString(), el.toString());
+            assertEquals(el.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class),
+                    copy.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafSelectedChecker.class), el.toString());
+        }
+    }
+
+    /**
+     * Returns a copy of the given element, which evaluates its properties from
+     * scratch, in the same patch.
+     */
+    private static ModelElement rebuilt(ModelElement el) {
+        CompletePatch patch = el.getPatch();
+        ModelElement copy = el.copy();
+        if (el.getParent() == null) {
+            copy.getTransientData().disableStatuses();
+        }
+        CompletePatch other = new CompletePatch();
+        other.profiles.putAll(patch.profiles);
+        other.setRoot(copy instanceof Category ? (Category) copy : null);
+        other.setCurrentProfile(patch.getCurrentProfile());
+        return copy;
+    }
+
+    @Test
+    public void testPatchFollowsAttachment() throws IOException {
+        CompletePatch patch = PatchIO.parse(createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, createBody(2, 3)));
+        Category sub = (Category) patch.getRoot().get(0);
+        SetCommand command = (SetCommand) sub.get(2);
+        assertSame(command.getPatch(), patch);
+        assertTrue(command.isSelected());
+
+        CompletePatch other = new CompletePatch();
+        other.setRoot(new Category("other"));
+        other.createNewProfile("other");
+        patch.removeElementFromParentCategory(sub);
+        assertNull(command.getPatch());
+        other.insertElementInto(sub, other.getRoot());
+        assertSame(command.getPatch(), other);
+
+        //A nested root only counts once it has a current profile
+        CompletePatch nested = new CompletePatch();
+        nested.setRoot(sub);
+        assertSame(command.getPatch(), other);
+        nested.createNewProfile("nested");
+        assertSame(command.getPatch(), nested);
+        nested.setRoot(null);
+        assertSame(command.getPatch(), other);
+
+        other.setRoot(patch.getRoot());
+        assertNull(command.getPatch());
+        assertSame(patch.getRoot().get(0).getPatch(), other);
+    }
+
+    @Test
+    public void testInsertElementsInto() throws IOException {
+        CompletePatch patch = PatchIO.parse(createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, createBody(2, 3)));
+        Category root = patch.getRoot();
+        Category one = new Category("one"), all = new Category("all");
+        patch.insertElementInto(one, root);
+        patch.insertElementInto(all, root);
+        List<ModelElement> elements = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            patch.insertElementInto(new SetCommand("set A B " + i), one);
+            elements.add(new SetCommand("set A B " + i));
+            patch.insertElementInto(new Comment("comment " + i), one);
+            elements.add(new Comment("comment " + i));
+            patch.insertElementInto(new HotfixWrapper("fix", HotfixType.PATCH, null, Arrays.asList("set A B " + i, "set A C " + i)), one);
+            elements.add(new HotfixWrapper("fix", HotfixType.PATCH, null, Arrays.asList("set A B " + i, "set A C " + i)));
+        }
+        patch.insertElementsInto(elements, all);
+        assertEquals(PatchIO.toParseString(all).replace("\"all\"", "\"one\""), PatchIO.toParseString(one));
+        assertEquals(all.getNumberOfCommandsDescendants(), one.getNumberOfCommandsDescendants());
+        assertEquals(all.getNumberOfLeafDescendants(), one.getNumberOfLeafDescendants());
+        assertEquals(all.getNumberOfHotfixDescendants(), one.getNumberOfHotfixDescendants());
+        assertEquals(root.getNumberOfCommandsDescendants(), 2 * (3 + 1) + 2 * 6);
+        assertEquals(root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.LeafTypeCommandChecker.class),
+                root.getNumberOfCommandsDescendants());
+    }
+
+    @Test
+    public void testOrderLabelsStayBounded() {
+        //Inserting next to the same child over and over again, or in the middle, exhausts the gaps between labels fastest
+        for (boolean middle : new boolean[]{false, true}) {
+            Category category = new Category("labels");
+            int inserts = 4000;
+            long relabeled = 0;
+            for (int i = 0; i < inserts; i++) {
+                long[] labels = new long[category.size()];
+                for (int k = 0; k < labels.length; k++) {
+                    labels[k] = category.get(k).siblingOrderLabel;
+                }
+                Comment comment = new Comment("comment " + i);
+                comment.setParent(category);
+                category.addElement(comment, middle ? category.size() / 2 : Math.min(1, category.size()));
+                for (int k = 0, old = 0; k < category.size(); k++) {
+                    if (category.get(k) != comment && category.get(k).siblingOrderLabel != labels[old++]) {
+                        relabeled++;
+                    }
+                    if (k > 0) {
+                        assertTrue(category.get(k - 1).siblingOrderLabel < category.get(k).siblingOrderLabel);
+                    }
+                }
+            }
+            assertTrue(relabeled < 16L * inserts, relabeled + " relabels for " + inserts + " inserts");
+        }
+    }
+
+    @Test
+    public void testGzipFiles() throws IOException {
+        String file = createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK, createBody(3, 5));
+        String expected = PatchIO.toParseString(PatchIO.parse(file).getRoot());
+        assertEquals(PatchIO.toParseString(PatchIO.parse(writeTempFile(file, false)).getRoot()), expected);
+        assertEquals(PatchIO.toParseString(PatchIO.parse(writeTempFile(file, true)).getRoot()), expected);
+    }
+
+    @Test
+    public void testFirstLinesLongerThanPeekLimit() throws IOException {
+        //The first lines don't fit in the peek buffer, so the input has to be opened again to parse it
+        String n = PatchIO.LINEBREAK;
+        char[] value = new char[1100 * 1024];
+        Arrays.fill(value, 'x');
+        String file = "#<root>" + n + "set A B " + new String(value) + n + "set A C 1" + n + "#</root>" + n;
+        CompletePatch patch = PatchIO.parse(file);
+        List<ModelElement> content = patch.getRoot().listRecursiveContentMinusCategories();
+        assertEquals(content.size(), 2);
+        assertEquals(((SetCommand) content.get(0)).getValue(), new String(value));
+        assertEquals(((SetCommand) content.get(1)).getValue(), "1");
+        String expected = PatchIO.toParseString(patch.getRoot());
+        assertEquals(PatchIO.toParseString(PatchIO.parse(writeTempFile(file, false)).getRoot()), expected);
+        assertEquals(PatchIO.toParseString(PatchIO.parse(writeTempFile(file, true)).getRoot()), expected);
+    }
+
+    private static File writeTempFile(String content, boolean gzip) throws IOException {
+        File file = File.createTempFile("patch", ".txt");
+        file.deleteOnExit();
+        try (OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @Test
+    public void testConcurrentParse() throws Exception {
+        String n = PatchIO.LINEBREAK;
+        String[] files = {
+            createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + n, createBody(5, 20)),
+            "#<root>" + n + "set A B 1" + n + "#set A B 2<off>" + n + "#</root>" + n,
+            "#<profile = default><profile = second><CurrentProfile = second>" + n
+            + "#<root>" + n
+            + "#<code>set A B 1</code><inProfile = second>" + n
+            + "#<code>set A B 2</code><inProfile = default>" + n
+            + "#</root>" + n,};
+        String[] expected = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            expected[i] = PatchIO.toParseString(PatchIO.parse(files[i]).getRoot());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 50 * files.length; i++) {
+                String file = files[i % files.length];
+                results.add(pool.submit(() -> PatchIO.toParseString(PatchIO.parse(file).getRoot())));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(results.get(i).get(), expected[i % files.length]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.model;
+
+import blcmm.Benchmarks;
+import blcmm.model.properties.GlobalListOfProperties;
+import blcmm.utilities.Options;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures what the properties of a mod with 50k commands, in categories of
+ * 100, cost: parsing it, which no longer runs any checkers, evaluating them
+ * all in one pass the first time the root is queried, and copying the tree,
+ * which doesn't evaluate anything until the copy is queried.
+ *
+ * @author LightChaosman
+ */
+public class TransientModelDataBenchmark {
+
+    private static final int CATEGORIES = 500;
+    private static final int COMMANDS = 100;
+
+    public static void main(String[] args) throws Exception {
+        Options.loadOptions();
+        String file = PatchIONGTest.createFile("BL2", "\t\t\t<profile name=\"default\" current=\"true\"/>" + PatchIO.LINEBREAK,
+                PatchIONGTest.createBody(CATEGORIES, COMMANDS));
+        CompletePatch[] patch = new CompletePatch[1];
+        long[] allocated = new long[3];
+        long parse = Benchmarks.best(5, () -> {
+            long before = allocatedBytes();
+            patch[0] = PatchIO.parse(file);
+            allocated[0] = allocatedBytes() - before;
+        });
+        int comments = countComments(PatchIO.parse(file).getRoot());
+        long evaluate = Benchmarks.best(5, () -> {
+            Category root = PatchIO.parse(file).getRoot();
+            long before = allocatedBytes();
+            Benchmarks.check(countComments(root), comments);
+            allocated[1] = allocatedBytes() - before;
+        });
+        Category root = patch[0].getRoot();
+        long copy = Benchmarks.best(5, () -> {
+            long before = allocatedBytes();
+            Benchmarks.check(root.copy().size(), CATEGORIES);
+            allocated[2] = allocatedBytes() - before;
+        });
+        Benchmarks.report("Parsing %d commands: %.0f ms, %d MB allocated", CATEGORIES * COMMANDS, Benchmarks.millis(parse), allocated[0] >> 20);
+        Benchmarks.report("Evaluating their properties: %.0f ms, %d MB allocated", Benchmarks.millis(evaluate), allocated[1] >> 20);
+        Benchmarks.report("Copying them: %.0f ms, %d MB allocated", Benchmarks.millis(copy), allocated[2] >> 20);
+    }
+
+    private static int countComments(Category root) {
+        return root.getTransientData().getNumberOfOccurences(GlobalListOfProperties.CommentChecker.class);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
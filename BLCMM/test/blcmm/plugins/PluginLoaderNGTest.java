@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.plugins;
+
+import blcmm.plugins.PluginLoader.IndexedJar;
+import blcmm.plugins.PluginLoader.PluginInfo;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Checks storing the plugin index, and finding the plugin classes of a jar.
+ *
+ * @author LightChaosman
+ */
+public class PluginLoaderNGTest {
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_INTERFACE = 0x0200, ACC_ABSTRACT = 0x0400;
+
+    private static File createTempFile(String suffix) throws IOException {
+        File f = File.createTempFile("blcmm-plugins", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Creates a jar with the given manifest attribute, if any, and the given
+     * entries.
+     */
+    private static File createJar(String declared, Map<String, byte[]> entries) throws IOException {
+        File jar = createTempFile(".jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (declared != null) {
+            manifest.getMainAttributes().putValue(PluginLoader.MANIFEST_ATTRIBUTE, declared);
+        }
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * Returns the bytes of a class file declaring just the given class, with
+     * the given superclass and access flags.
+     */
+    private static byte[] createClass(String name, String superclass, int access) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);//minor version
+        out.writeShort(52);//major version, Java 8
+        out.writeShort(5);//constant pool count, one more than the number of entries
+        out.writeByte(1);//#1 Utf8
+        out.writeUTF(name.replace('.', '/'));
+        out.writeByte(7);//#2 Class #1
+        out.writeShort(1);
+        out.writeByte(1);//#3 Utf8
+        out.writeUTF(superclass.replace('.', '/'));
+        out.writeByte(7);//#4 Class #3
+        out.writeShort(3);
+        out.writeShort(access);
+        out.writeShort(2);//this class
+        out.writeShort(4);//super class
+        out.writeShort(0);//interfaces
+        out.writeShort(0);//fields
+        out.writeShort(0);//methods
+        out.writeShort(0);//attributes
+        return bytes.toByteArray();
+    }
+
+    private static void addClass(Map<String, byte[]> entries, String name, String superclass, int access) throws IOException {
+        entries.put(name.replace('.', '/') + ".class", createClass(name, superclass, access));
+    }
+
+    private static List<String> getDeclaredPluginClasses(File jar) throws IOException {
+        try (JarFile jarFile = new JarFile(jar)) {
+            return PluginLoader.getDeclaredPluginClasses(jarFile);
+        }
+    }
+
+    @Test
+    public void testIndexRoundTrip() throws Exception {
+        File jar = new File(PluginLoader.PLUGINS_DIR, "plugin.jar");
+        IndexedJar indexed = new IndexedJar(1234, 5678);
+        PluginInfo full = new PluginInfo(jar, "example.FullPlugin", FileTime.fromMillis(1000));
+        full.name = "Full plugin";
+        full.author = "Someone";
+        full.version = "1.0";
+        full.bl2 = true;
+        full.tps = false;
+        full.requiredDataClasses = new String[]{"WeaponPartDefinition", "ItemPoolDefinition"};
+        PluginInfo bare = new PluginInfo(jar, "example.BarePlugin", FileTime.fromMillis(2000));
+        bare.name = "Bare plugin";
+        bare.bl2 = false;
+        bare.tps = true;
+        indexed.plugins.add(full);
+        indexed.plugins.add(bare);
+        Map<String, IndexedJar> index = new LinkedHashMap<>();
+        index.put(jar.getName(), indexed);
+        index.put("empty.jar", new IndexedJar(0, 0));
+
+        File indexFile = createTempFile(".index");
+        PluginLoader.writeIndex(index, indexFile);
+        Map<String, IndexedJar> read = PluginLoader.readIndex(indexFile);
+        assertEquals(read.keySet(), index.keySet());
+        assertTrue(read.get("empty.jar").plugins.isEmpty());
+
+        IndexedJar readJar = read.get(jar.getName());
+        assertEquals(readJar.size, 1234);
+        assertEquals(readJar.modified, 5678);
+        assertEquals(readJar.plugins.size(), 2);
+        for (int i = 0; i < 2; i++) {
+            PluginInfo expected = indexed.plugins.get(i), actual = readJar.plugins.get(i);
+            assertEquals(actual.getFile().getName(), jar.getName());
+            assertEquals(actual.className, expected.className);
+            assertEquals(actual.getCompileTime(), expected.getCompileTime());
+            assertEquals(actual.getName(), expected.getName());
+            assertEquals(actual.getAuthor(), expected.getAuthor());
+            assertEquals(actual.getVersion(), expected.getVersion());
+            assertEquals(actual.supportsBorderlands2(), expected.supportsBorderlands2());
+            assertEquals(actual.supportsBorderlandsTPS(), expected.supportsBorderlandsTPS());
+            assertEquals(actual.getRequiredDataClasses(), expected.getRequiredDataClasses());
+        }
+        assertNull(readJar.plugins.get(1).getAuthor());
+        assertNull(readJar.plugins.get(1).getVersion());
+        assertNull(readJar.plugins.get(1).getRequiredDataClasses());
+
+        //A damaged index is rebuilt from scratch
+        byte[] truncated = Arrays.copyOf(Files.readAllBytes(indexFile.toPath()), 20);
+        Files.write(indexFile.toPath(), truncated);
+        assertTrue(PluginLoader.readIndex(indexFile).isEmpty());
+        assertTrue(PluginLoader.readIndex(new File(indexFile.getPath() + ".missing")).isEmpty());
+    }
+
+    @Test
+    public void testDeclaredPluginClasses() throws Exception {
+        Map<String, byte[]> service = new LinkedHashMap<>();
+        service.put(PluginLoader.SERVICE_FILE, ("# Our plugins\n"
+                + "example.FirstPlugin # the first one\n"
+                + "\n"
+                + "  example.SecondPlugin\n"
+                + "#example.DisabledPlugin\n").getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(getDeclaredPluginClasses(createJar("example.FirstPlugin, example.SecondPlugin example.ThirdPlugin", Collections.emptyMap())),
+                Arrays.asList("example.FirstPlugin", "example.SecondPlugin", "example.ThirdPlugin"));
+        assertEquals(getDeclaredPluginClasses(createJar(null, service)),
+                Arrays.asList("example.FirstPlugin", "example.SecondPlugin"));
+        //The manifest takes precedence over the service file
+        assertEquals(getDeclaredPluginClasses(createJar("example.ThirdPlugin", service)),
+                Collections.singletonList("example.ThirdPlugin"));
+        //Declaring no plugins is different from not declaring them
+        assertEquals(getDeclaredPluginClasses(createJar("", Collections.emptyMap())), Collections.emptyList());
+        assertNull(getDeclaredPluginClasses(createJar(null, Collections.emptyMap())));
+    }
+
+    @Test
+    public void testFindPluginClasses() throws Exception {
+        String plugin = BLCMMPlugin.class.getName(), modelPlugin = BLCMMModelPlugin.class.getName();
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        //These can only be recognized as plugins by following their superclasses in the jar
+        addClass(entries, "example.AbstractBase", plugin, ACC_PUBLIC | ACC_ABSTRACT);
+        addClass(entries, "example.Middle", "example.AbstractBase", ACC_PUBLIC);
+        addClass(entries, "example.MyPlugin", "example.Middle", ACC_PUBLIC);
+        addClass(entries, "example.AbstractTool", plugin, ACC_PUBLIC | ACC_ABSTRACT);
+        addClass(entries, "example.Listener", "java.lang.Object", ACC_PUBLIC | ACC_INTERFACE | ACC_ABSTRACT);
+        addClass(entries, "example.Helper", "java.lang.Object", ACC_PUBLIC);
+        addClass(entries, "example.ModelPlugin", modelPlugin, ACC_PUBLIC);
+        addClass(entries, "example.NotAPlugin", PluginLoader.class.getName(), ACC_PUBLIC);
+        addClass(entries, "example.Unknown", "example.missing.Superclass", ACC_PUBLIC);
+        addClass(entries, "example.plugintest", plugin, ACC_PUBLIC);
+        entries.put("example/Broken.class", new byte[]{1, 2, 3, 4});
+        entries.put("example/readme.txt", "Not a class".getBytes(StandardCharsets.UTF_8));
+
+        try (JarFile jarFile = new JarFile(createJar(null, entries))) {
+            assertEquals(PluginLoader.findPluginClasses(jarFile),
+                    Arrays.asList("example.Middle", "example.MyPlugin", "example.ModelPlugin"));
+        }
+    }
+
+    @Test
+    public void testChangedJarIsIndexedAgain() throws Exception {
+        File jar = createJar("", Collections.emptyMap());
+        jar.setLastModified(1000000000000L);
+        IndexedJar upToDate = new IndexedJar(jar.length(), jar.lastModified());
+        IndexedJar otherSize = new IndexedJar(jar.length() + 1, jar.lastModified());
+        IndexedJar otherTime = new IndexedJar(jar.length(), jar.lastModified() - 1000);
+        for (IndexedJar indexed : new IndexedJar[]{upToDate, otherSize, otherTime}) {
+            //A plugin we won't find in the jar, so we can tell whether it was indexed again
+            indexed.plugins.add(new PluginInfo(jar, "example.OldPlugin", FileTime.fromMillis(0)));
+        }
+
+        assertSame(PluginLoader.getIndexedJar(jar, Collections.singletonMap(jar.getName(), upToDate)), upToDate);
+        for (IndexedJar changed : new IndexedJar[]{otherSize, otherTime, null}) {
+            IndexedJar indexed = PluginLoader.getIndexedJar(jar, Collections.singletonMap(jar.getName(), changed));
+            assertNotSame(indexed, changed);
+            assertTrue(indexed.complete);
+            assertEquals(indexed.size, jar.length());
+            assertEquals(indexed.modified, jar.lastModified());
+            assertTrue(indexed.plugins.isEmpty());
+        }
+    }
+}
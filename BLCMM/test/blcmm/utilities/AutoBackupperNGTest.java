@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities;
+
+import blcmm.model.CompletePatch;
+import blcmm.model.PatchIO;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Checks writing backups on the backup thread, and cleaning up old ones.
+ *
+ * @author LightChaosman
+ */
+public class AutoBackupperNGTest {
+
+    private static final String MOD = "#<root>\n"
+            + "#<Weapons>\n"
+            + "set GD_Weap_Shotgun Damage 5\n"
+            + "set GD_Weap_Shotgun Spread 2\n"
+            + "#</Weapons>\n"
+            + "#</root>\n";
+
+    public AutoBackupperNGTest() throws Exception {
+        Options.loadOptions();
+    }
+
+    private static File useTempDestination() throws IOException {
+        File dir = Files.createTempDirectory("blcmm-backups").toFile();
+        dir.deleteOnExit();
+        AutoBackupper.DESTINATION = dir;
+        return dir;
+    }
+
+    private static String write(CompletePatch patch) throws IOException {
+        StringWriter writer = new StringWriter();
+        PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, writer, false);
+        return writer.toString();
+    }
+
+    private static List<String> listNames(File dir) {
+        List<String> names = new ArrayList<>(Arrays.asList(dir.list()));
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * A backupable which always needs a backup, with the given snapshot.
+     */
+    private static AutoBackupper.Backupable backupable(AutoBackupper.Snapshot snapshot) {
+        return new AutoBackupper.Backupable() {
+            @Override
+            public AutoBackupper.Snapshot snapshot() {
+                return snapshot;
+            }
+
+            @Override
+            public boolean inNeedOfBackup() {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testOnlyNewestPendingBackupIsWritten() throws Exception {
+        File dir = useTempDestination();
+        CompletePatch patch = PatchIO.parse(MOD);
+        CountDownLatch writing = new CountDownLatch(1), proceed = new CountDownLatch(1), done = new CountDownLatch(1);
+        AtomicBoolean skippedWritten = new AtomicBoolean(false);
+
+        AutoBackupper.backup("first", backupable(new AutoBackupper.Snapshot() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                writing.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                writer.write("first");
+            }
+        }));
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        //These all come in while the first one is being written, so only the last one should be written after it
+        for (String name : new String[]{"second", "third"}) {
+            AutoBackupper.backup(name, backupable(writer -> skippedWritten.set(true)));
+        }
+        AutoBackupper.backup("fourth", backupable(new AutoBackupper.Snapshot() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, writer, false);
+            }
+
+            @Override
+            public void written() {
+                done.countDown();
+            }
+        }));
+        proceed.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(skippedWritten.get());
+
+        List<String> names = listNames(dir);
+        assertEquals(names.size(), 2, names.toString());
+        assertTrue(names.get(0).endsWith(" - first.gz"), names.get(0));
+        assertTrue(names.get(1).endsWith(" - fourth.gz"), names.get(1));
+        //The backup is compressed, which is picked up on when opening it
+        File backup = new File(dir, names.get(1));
+        assertEquals(write(PatchIO.parse(backup)), write(patch));
+    }
+
+    @Test
+    public void testChangedBackupIsDropped() throws Exception {
+        File dir = useTempDestination();
+        CompletePatch patch = PatchIO.parse(MOD);
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        for (boolean unchanged : new boolean[]{true, false}) {
+            CountDownLatch done = new CountDownLatch(1);
+            AutoBackupper.backup(unchanged ? "unchanged" : "changed", backupable(new AutoBackupper.Snapshot() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    try {
+                        //Small slices, so the state is checked many times
+                        EDTSlicedWriter.write(writer, 16, () -> unchanged,
+                                w -> PatchIO.writeToFile(patch, PatchIO.SaveFormat.BLCMM, w, false));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void written() {
+                    written.add(unchanged ? "unchanged" : "changed");
+                }
+            }));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        //Wait for the last backup to be handled
+        CountDownLatch handled = new CountDownLatch(1);
+        AutoBackupper.backup("last", backupable(writer -> handled.countDown()));
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        assertEquals(written, Collections.singletonList("unchanged"));
+
+        List<String> names = listNames(dir);
+        assertTrue(names.stream().anyMatch(n -> n.endsWith(" - unchanged.gz")), names.toString());
+        assertFalse(names.stream().anyMatch(n -> n.endsWith(" - changed.gz")), names.toString());
+        File backup = new File(dir, names.stream().filter(n -> n.endsWith(" - unchanged.gz")).findFirst().get());
+        assertEquals(write(PatchIO.parse(backup)), write(patch));
+    }
+
+    @Test
+    public void testCleanOldBackups() throws Exception {
+        File dir = useTempDestination();
+        int sessions = Options.INSTANCE.getSessionsToKeep() + 2;
+        for (int i = 1; i <= sessions; i++) {
+            for (int j = 1; j <= 2; j++) {
+                assertTrue(new File(dir, (i * 1000) + " - 2020.01.01 - " + j + " - mod.blcm.gz").createNewFile());
+            }
+        }
+        String[] others = {"notes.txt", "abc-def.gz", "12x - 2020.01.01 - 1 - mod.blcm.gz"};
+        for (String other : others) {
+            assertTrue(new File(dir, other).createNewFile());
+        }
+        AutoBackupper.cleanOldBackupsNow();
+
+        List<String> expected = new ArrayList<>(Arrays.asList(others));
+        for (int i = 3; i <= sessions; i++) {
+            for (int j = 1; j <= 2; j++) {
+                expected.add((i * 1000) + " - 2020.01.01 - " + j + " - mod.blcm.gz");
+            }
+        }
+        Collections.sort(expected);
+        assertEquals(listNames(dir), expected);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that searching the index finds exactly what checking every token of
+ * every object would find, on random tokens.
+ *
+ * @author LightChaosman
+ */
+public class DumpSearchIndexNGTest {
+
+    private static final String ALPHABET = "abcde_01";
+
+    @Test
+    public void testSearchMatchesScan() {
+        Random r = new Random(42);
+        String[] classes = {"ClassA", "ClassB"};
+        int[] classStart = {0, 150, 300};
+        String[] objects = new String[classStart[2]];
+        List<List<String>> objectTokens = new ArrayList<>();
+        TreeSet<String> allTokens = new TreeSet<>();
+        for (int o = 0; o < objects.length; o++) {
+            objects[o] = classes[o < classStart[1] ? 0 : 1] + "'Object" + o + "'";
+            List<String> tokens = new ArrayList<>();
+            for (int t = r.nextInt(10); t >= 0; t--) {
+                tokens.add(randomString(r, 1 + r.nextInt(12)));
+            }
+            objectTokens.add(tokens);
+            allTokens.addAll(tokens);
+        }
+        String[] tokens = allTokens.toArray(new String[0]);
+        byte[][] postings = new byte[tokens.length][];
+        for (int t = 0; t < tokens.length; t++) {
+            List<Integer> containing = new ArrayList<>();
+            for (int o = 0; o < objects.length; o++) {
+                if (objectTokens.get(o).contains(tokens[t])) {
+                    containing.add(o);
+                }
+            }
+            postings[t] = encode(containing);
+        }
+        DumpSearchIndex index = new DumpSearchIndex(classes, classStart, objects, tokens, postings);
+
+        for (int i = 0; i < 500; i++) {
+            String term = randomString(r, 1 + r.nextInt(5));
+            if (term.matches("[0-9]+")) {
+                //Purely numeric terms are not indexed
+                continue;
+            }
+            List<String> expected = new ArrayList<>();
+            for (int o = 0; o < objects.length; o++) {
+                for (String token : objectTokens.get(o)) {
+                    if (token.contains(term)) {
+                        expected.add(objects[o]);
+                        break;
+                    }
+                }
+            }
+            Collection<String> found = index.search(Collections.singletonList(term), Collections.emptyList(), Arrays.asList(classes));
+            assertEquals(found, expected, term);
+        }
+    }
+
+    private static String randomString(Random r, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] encode(List<Integer> sorted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int last = 0;
+        for (int value : sorted) {
+            int delta = value - last;
+            last = value;
+            while ((delta & ~0x7F) != 0) {
+                out.write((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            out.write(delta);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018-2020  LightChaosman
+ *
+ * BLCMM is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package blcmm.utilities.hex;
+
+import blcmm.Benchmarks;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Compares inspecting a synthetic binary the size of a game executable, in
+ * parallel chunks and sequentially, against checking every index.
+ *
+ * @author LightChaosman
+ */
+public class HexEditorBenchmark {
+
+    private static final int SIZE = 30 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        HexEdit[] edits = HexEditorNGTest.knownEdits();
+        byte[] bytes = HexEditorNGTest.createBinary(SIZE, 30, edits);
+        File f = File.createTempFile("hexeditor", ".bin");
+        try {
+            Files.write(f.toPath(), bytes);
+            List<String> expected = HexEditorNGTest.inspectEveryIndex(bytes, edits);
+            long everyIndex = Benchmarks.best(1, () -> HexEditorNGTest.inspectEveryIndex(bytes, edits));
+            long parallel = Benchmarks.best(3, () -> Benchmarks.check(HexEditorNGTest.describe(HexEditor.inspectFile(f, edits)), expected));
+            long sequential = Benchmarks.best(3, () -> Benchmarks.check(HexEditorNGTest.describe(HexEditor.inspectFileSequentially(f, edits)), expected));
+            Benchmarks.report("Inspecting %d MB for %d hex edits: %.0f ms, sequentially: %.0f ms, checking every index in memory: %.0f ms",
+                    SIZE >> 20, edits.length, Benchmarks.millis(parallel), Benchmarks.millis(sequential), Benchmarks.millis(everyIndex));
+        } finally {
+            f.delete();
+        }
+    }
+}
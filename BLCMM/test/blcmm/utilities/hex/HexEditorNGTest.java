@@ -0,0 +1,271 @@
+package blcmm.utilities.hex;
+
+import blcmm.model.PatchType;
+import general.utilities.OSInfo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that our hex scanning finds exactly what checking every single index
+ * of a file would find, on synthetic binaries containing every hex edit we
+ * know of.
+ *
+ * @author LightChaosman
+ */
+public class HexEditorNGTest {
+
+    private HexEdit[] allEdits;
+    private final List<File> files = new ArrayList<>();
+
+    @BeforeClass
+    public void setUpClass() throws Exception {
+        allEdits = knownEdits();
+    }
+
+    /**
+     * Returns every hex edit we know of, for any game, OS and type.
+     */
+    static HexEdit[] knownEdits() {
+        Set<HexEdit> edits = new LinkedHashSet<>();
+        for (PatchType game : PatchType.values()) {
+            for (OSInfo.OS os : OSInfo.OS.values()) {
+                for (HexDictionary.HexType type : HexDictionary.HexType.values()) {
+                    edits.addAll(Arrays.asList(HexDictionary.getHexEdits(game, os, type)));
+                }
+            }
+        }
+        return edits.toArray(new HexEdit[0]);
+    }
+
+    @AfterClass
+    public void tearDownClass() throws Exception {
+        for (File f : files) {
+            f.delete();
+        }
+    }
+
+    /**
+     * Creates random bytes, with the search patterns of all given edits
+     * planted in them a few times, some of them already edited.
+     */
+    static byte[] createBinary(int size, long seed, HexEdit... edits) {
+        Random r = new Random(seed);
+        byte[] bytes = new byte[size];
+        r.nextBytes(bytes);
+        for (HexEdit edit : edits) {
+            if (edit instanceof AddressHexEdit) {
+                int address = ((AddressHexEdit) edit).adress;
+                if (address + edit.original.length <= size) {
+                    System.arraycopy(r.nextBoolean() ? edit.original : edit.replacement, 0, bytes, address, edit.original.length);
+                }
+                continue;
+            }
+            short[] pattern = edit instanceof PatternHexEdit
+                    ? ((PatternHexEdit) edit).searchPattern
+                    : ((WildCardHexEdit) edit).searchPattern;
+            int copies = 1 + r.nextInt(2);
+            for (int c = 0; c < copies; c++) {
+                int pos = 1024 + r.nextInt(size - 2048);
+                for (int i = 0; i < pattern.length; i++) {
+                    bytes[pos + i] = pattern[i] == HexUtilities.WILDCARD ? (byte) r.nextInt() : (byte) pattern[i];
+                }
+                if (edit instanceof PatternHexEdit) {
+                    byte[] fill = r.nextBoolean() ? edit.original : edit.replacement;
+                    int offset = ((PatternHexEdit) edit).offset;
+                    if (offset >= pattern.length || offset + fill.length <= 0) {
+                        System.arraycopy(fill, 0, bytes, pos + offset, fill.length);
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private File writeBinary(byte[] bytes) throws IOException {
+        File f = File.createTempFile("hexeditor", ".bin");
+        files.add(f);
+        Files.write(f.toPath(), bytes);
+        return f;
+    }
+
+    /**
+     * What inspecting the given bytes should return, by checking every
+     * single index for every single edit.
+     */
+    static List<String> inspectEveryIndex(byte[] bytes, HexEdit... edits) {
+        List<String> res = new ArrayList<>();
+        for (HexEdit edit : edits) {
+            for (int idx = edit.requiredNegativeBufferSize(); idx + edit.requiredBufferSize() <= bytes.length; idx++) {
+                if (edit.match(bytes, idx, 0)) {
+                    res.add(describe(edit.inspect(bytes, idx, 0)));
+                }
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    static List<String> describe(HexInspectResult[] results) {
+        List<String> res = new ArrayList<>();
+        for (HexInspectResult result : results) {
+            res.add(describe(result));
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private static String describe(HexInspectResult result) {
+        return String.format("%08x %s %s", result.adress, System.identityHashCode(result.orginialHexEdit), Arrays.toString(result.found));
+    }
+
+    @Test
+    public void testScannerFindsEveryMatch() {
+        for (int seed = 0; seed < 20; seed++) {
+            byte[] bytes = createBinary(64 * 1024, seed, allEdits);
+            HexScanner scanner = new HexScanner(allEdits);
+            int[][] matches = scanner.findMatches(bytes, 0, 64, bytes.length - 128, bytes.length);
+            for (int e = 0; e < allEdits.length; e++) {
+                List<Integer> expected = new ArrayList<>();
+                for (int idx = 64; idx < bytes.length - 128; idx++) {
+                    if (allEdits[e].match(bytes, idx, 0)) {
+                        expected.add(idx);
+                    }
+                }
+                List<Integer> found = new ArrayList<>();
+                for (int idx : matches[e]) {
+                    found.add(idx);
+                }
+                assertEquals(found, expected, "Matches of edit " + e + " with seed " + seed);
+            }
+        }
+    }
+
+    @Test
+    public void testScannerWithSharedAndOverlappingAnchors() {
+        HexEdit[] edits = {
+            new WildCardHexEdit("01 02 03 ?? 05", "04", "FF"),
+            new WildCardHexEdit("02 03 ?? 05 06", "04", "FF"),
+            new PatternHexEdit("01 01 01", 3, "AA", "BB"),
+            new PatternHexEdit("01 01", -1, "AA", "BB"),
+            new WildCardHexEdit("?? ??", "00 00", "01 01"),
+            new AddressHexEdit(40, "00", "01")
+        };
+        byte[] bytes = new byte[64];
+        byte[] planted = {1, 1, 1, 1, 2, 3, 4, 5, 6, 1, 2, 3, 9, 5, 6, 1, 1};
+        System.arraycopy(planted, 0, bytes, 8, planted.length);
+        int[][] matches = new HexScanner(edits).findMatches(bytes, 0, 1, 56, bytes.length);
+        for (int e = 0; e < edits.length; e++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int idx = 1; idx < 56; idx++) {
+                if (edits[e].match(bytes, idx, 0)) {
+                    expected.add(idx);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for (int idx : matches[e]) {
+                found.add(idx);
+            }
+            assertEquals(found, expected, "Matches of edit " + e);
+        }
+    }
+
+    @Test
+    public void testInspectFile() throws IOException {
+        byte[] bytes = createBinary(3 * 1024 * 1024 + 12345, 42, allEdits);
+        File f = writeBinary(bytes);
+        assertEquals(describe(HexEditor.inspectFile(f, allEdits)), inspectEveryIndex(bytes, allEdits));
+    }
+
+    @Test
+    public void testInspectFileInChunks() throws IOException {
+        for (int size : new int[]{4096, 5000, 64 * 1024, 64 * 1024 + 1, 1024 * 1024 - 13, 3 * 1024 * 1024 + 12345}) {
+            File f = writeBinary(createBinary(size, size, allEdits));
+            HexInspectResult[] sequential = HexEditor.inspectFileSequentially(f, allEdits);
+            for (int chunks : new int[]{4 * 1024, 64 * 1024 - 1, 4 * 1024 * 1024}) {
+                HexInspectResult[] parallel = HexEditor.inspectFile(f, chunks, allEdits);
+                assertEquals(parallel.length, sequential.length, "Size " + size + ", chunks of " + chunks);
+                for (int i = 0; i < parallel.length; i++) {
+                    assertSame(parallel[i].orginialHexEdit, sequential[i].orginialHexEdit);
+                    assertEquals(parallel[i].adress, sequential[i].adress);
+                    assertEquals(parallel[i].found, sequential[i].found);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPerformHexEdits() throws IOException {
+        HexEdit[] edits = HexDictionary.getHexEdits(PatchType.BL2, OSInfo.OS.WINDOWS, HexDictionary.HexType.values());
+        for (int seed = 0; seed < 10; seed++) {
+            byte[] bytes = createBinary(2 * 1024 * 1024, seed, edits);
+            File f = writeBinary(bytes);
+            File out = writeBinary(bytes);
+            HexEditor.HexResult res = HexEditor.performHexEdits(f, out, edits);
+            byte[] edited = Files.readAllBytes(out.toPath());
+            assertEquals(describe(HexEditor.inspectFile(out, edits)), inspectEveryIndex(edited, edits));
+            if (res.result == HexEditor.HexResultStatus.HEXEDIT_SUCCESFUL) {
+                for (HexInspectResult result : HexEditor.inspectFile(out, edits)) {
+                    assertTrue(result.matchesEdited(), describe(result));
+                }
+            } else {
+                assertEquals(edited, bytes);
+            }
+        }
+    }
+
+    @Test
+    public void testInspectionCache() throws IOException {
+        HexDictionary.HexQuery query = new HexDictionary.HexQuery(OSInfo.OS.WINDOWS, PatchType.BL2, HexDictionary.HexType.values());
+        HexEdit[] edits = HexDictionary.getHexEdits(query);
+        byte[] bytes = createBinary(1024 * 1024, 3, edits);
+        File f = writeBinary(bytes);
+        File cacheFile = writeBinary(new byte[0]);
+        cacheFile.delete();
+        HexInspectionCache.Fingerprint fingerprint = HexInspectionCache.Fingerprint.of(f);
+        HexInspectResult[] results = HexEditor.inspectFile(f, edits);
+        assertNull(new HexInspectionCache(cacheFile).get(f, fingerprint, query, edits));
+        new HexInspectionCache(cacheFile).put(f, fingerprint, query, edits, results);
+
+        //A fresh cache reads what we stored, even if the edits come in another order
+        List<HexEdit> shuffled = new ArrayList<>(Arrays.asList(edits));
+        Collections.shuffle(shuffled, new Random(3));
+        HexInspectionCache cache = new HexInspectionCache(cacheFile);
+        HexInspectResult[] cached = cache.get(f, HexInspectionCache.Fingerprint.of(f), query, shuffled.toArray(new HexEdit[0]));
+        assertNotNull(cached);
+        assertEquals(cached.length, results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertSame(cached[i].orginialHexEdit, results[i].orginialHexEdit);
+            assertEquals(cached[i].adress, results[i].adress);
+            assertEquals(cached[i].found, results[i].found);
+            assertEquals(cached[i].matchesOriginal(), results[i].matchesOriginal());
+            assertEquals(cached[i].matchesEdited(), results[i].matchesEdited());
+        }
+
+        //Changing the file, even without changing its size and modification time, invalidates it
+        long lastModified = f.lastModified();
+        bytes[0]++;
+        Files.write(f.toPath(), bytes);
+        f.setLastModified(lastModified);
+        assertNull(cache.get(f, HexInspectionCache.Fingerprint.of(f), query, edits));
+
+        //And so does editing it
+        cache.put(f, HexInspectionCache.Fingerprint.of(f), query, edits, results);
+        assertNotNull(cache.get(f, HexInspectionCache.Fingerprint.of(f), query, edits));
+        cache.invalidate(f);
+        assertNull(cache.get(f, HexInspectionCache.Fingerprint.of(f), query, edits));
+        assertNull(new HexInspectionCache(cacheFile).get(f, HexInspectionCache.Fingerprint.of(f), query, edits));
+        cacheFile.delete();
+    }
+}